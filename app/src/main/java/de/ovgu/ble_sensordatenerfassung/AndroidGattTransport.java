@@ -0,0 +1,248 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.UUID;
+
+/**
+ * {@link GattConnection} on a {@link BluetoothGatt} connection. Characteristics are looked up
+ * in the measurement service of the connected device, the Android callbacks are passed on
+ * from the Binder thread.
+ */
+public class AndroidGattTransport implements GattConnection {
+
+    private final Context mContext;
+    private final BluetoothDevice mDevice;
+    private final UUID mServiceUuid;
+    private volatile BluetoothGatt mGatt;
+    private volatile Callback mCallback;
+
+    public AndroidGattTransport(Context context, BluetoothDevice device, UUID serviceUuid) {
+        mContext = context;
+        mDevice = device;
+        mServiceUuid = serviceUuid;
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        // A previously connected device is reconnected on the same GATT object
+        if (mGatt != null) {
+            return mGatt.connect();
+        }
+        // A direct connection, it fails when the device is not in range
+        mGatt = mDevice.connectGatt(mContext, false, mGattCallback);
+        return mGatt != null;
+    }
+
+    @Override
+    public synchronized boolean connectInBackground() {
+        // Reconnecting an existing GATT object always uses autoConnect and keeps its services
+        if (mGatt != null) {
+            return mGatt.connect();
+        }
+        mGatt = mDevice.connectGatt(mContext, true, mGattCallback);
+        return mGatt != null;
+    }
+
+    @Override
+    public void disconnect() {
+        BluetoothGatt gatt = mGatt;
+        if (gatt != null) {
+            gatt.disconnect();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mGatt != null) {
+            mGatt.close();
+            mGatt = null;
+        }
+    }
+
+    @Override
+    public boolean discoverServices() {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.discoverServices();
+    }
+
+    @Override
+    public boolean hasService() {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && gatt.getService(mServiceUuid) != null;
+    }
+
+    @Override
+    public int getProperties(UUID characteristic) {
+        BluetoothGattCharacteristic c = findCharacteristic(mGatt, characteristic);
+        return c == null ? 0 : c.getProperties();
+    }
+
+    @Override
+    public boolean hasDescriptor(UUID characteristic, UUID descriptor) {
+        BluetoothGattCharacteristic c = findCharacteristic(mGatt, characteristic);
+        return c != null && c.getDescriptor(descriptor) != null;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic c = findCharacteristic(gatt, characteristic);
+        return c != null && gatt.setCharacteristicNotification(c, enable);
+    }
+
+    @Override
+    public void setLinkProfile(LinkProfile profile) {
+        BluetoothGatt gatt = mGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        gatt.requestConnectionPriority(toConnectionPriority(profile));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            int phy = profile.getPhy() == LinkProfile.PHY_2M
+                    ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+            gatt.setPreferredPhy(phy, phy, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        }
+    }
+
+    @Override
+    public boolean readCharacteristic(UUID characteristic) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic c = findCharacteristic(gatt, characteristic);
+        return c != null && gatt.readCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic c = findCharacteristic(gatt, characteristic);
+        return c != null && c.setValue(value) && gatt.writeCharacteristic(c);
+    }
+
+    @Override
+    public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+        BluetoothGatt gatt = mGatt;
+        BluetoothGattCharacteristic c = findCharacteristic(gatt, characteristic);
+        if (c == null) {
+            return false;
+        }
+        BluetoothGattDescriptor d = c.getDescriptor(descriptor);
+        return d != null && d.setValue(value) && gatt.writeDescriptor(d);
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        BluetoothGatt gatt = mGatt;
+        return gatt != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && gatt.requestMtu(mtu);
+    }
+
+    private BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, UUID characteristic) {
+        if (gatt == null) {
+            return null;
+        }
+        BluetoothGattService service = gatt.getService(mServiceUuid);
+        return service == null ? null : service.getCharacteristic(characteristic);
+    }
+
+    private static int toConnectionPriority(LinkProfile profile) {
+        switch (profile.getConnectionPriority()) {
+            case LinkProfile.PRIORITY_HIGH:
+                return BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            case LinkProfile.PRIORITY_LOW_POWER:
+                return BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER;
+            default:
+                return BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        }
+    }
+
+    /**
+     * Passes the Android callbacks on without their Android types.
+     */
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Callback callback = mCallback;
+            if (callback == null) {
+                return;
+            }
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                callback.onConnectionStateChange(AndroidGattTransport.this, true);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                callback.onConnectionStateChange(AndroidGattTransport.this, false);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onServicesDiscovered(AndroidGattTransport.this,
+                        status == BluetoothGatt.GATT_SUCCESS && gatt.getService(mServiceUuid) != null);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onCharacteristicRead(AndroidGattTransport.this, characteristic.getUuid(),
+                        characteristic.getValue(), status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onCharacteristicWrite(AndroidGattTransport.this, characteristic.getUuid(),
+                        status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onDescriptorWrite(AndroidGattTransport.this,
+                        descriptor.getCharacteristic().getUuid(), descriptor.getUuid(),
+                        status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onMtuChanged(AndroidGattTransport.this, mtu, status == BluetoothGatt.GATT_SUCCESS);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            Callback callback = mCallback;
+            if (callback != null) {
+                callback.onCharacteristicChanged(AndroidGattTransport.this, characteristic.getUuid(),
+                        characteristic.getValue());
+            }
+        }
+    };
+}
@@ -7,17 +7,16 @@ import android.app.AlertDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -29,6 +28,8 @@ import android.widget.TextView;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
+import java.util.concurrent.Executor;
+
 public class MainActivity extends AppCompatActivity {
 
     // TAG is used for informational messages
@@ -41,19 +42,27 @@ public class MainActivity extends AppCompatActivity {
     private static TextView mSpeedValue;
     private static TextView mTorqueValue;
     private static TextView mEfficiencyValue;
+    private TrendChartView mTrendChart;
+    private TextView mMetricsOverlay;
     //private static Button start_button;
     //private static Button stop_button;
     private static Button start_stop_button;
 
-    private boolean toggleState = true;
+    // Text currently shown per channel, so unchanged values are not set again
+    private final String[] mShownValues = new String[SampleDecoder.CHANNEL_COUNT];
 
     // Variables to manage BLE connection
-    private static boolean mConnectState;
-    private static boolean mServiceConnected;
     private static MeasurementService mMeasurementService;
+    private boolean mBound;
+    // Set by the start button until the service is connected
+    private boolean mStartRequested;
 
     private static final int REQUEST_ENABLE_BLE = 1;
 
+    // Refresh interval of the metrics overlay
+    private static final long METRICS_REFRESH_MILLIS = 1000;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
     //This is required for Android 6.0 (Marshmallow)
     private static final int PERMISSION_REQUEST_COARSE_LOCATION = 1;
 
@@ -73,11 +82,21 @@ public class MainActivity extends AppCompatActivity {
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             Log.i(TAG, "onServiceConnected");
             mMeasurementService = ((MeasurementService.LocalBinder) service).getService();
-            mServiceConnected = true;
+            mMeasurementService.registerListener(mMeasurementListener, mMainExecutor);
             mMeasurementService.initialize();
-            mMeasurementService.scan();
+            if (mStartRequested) {
+                mStartRequested = false;
+                // Connects the devices of the last session or scans, once Bluetooth is on,
+                // and keeps acquiring without the activity until the stop button
+                mMeasurementService.startForegroundAcquisition();
+            } else if (mMeasurementService.isForeground()) {
+                // Back to an acquisition that went on in the background
+                mTrendChart.setSampleStore(mMeasurementService.getSampleStore());
+                start_stop_button.setText(isActive(mMeasurementService.getConnectionState())
+                        ? "Beende Verbindung" : "Starte Verbindung");
+            }
             /* After this we wait for the scan callback to detect that a device has been found */
-            /* The callback broadcasts a message which is picked up by the mGattUpdateReceiver */
+            /* The service calls onDeviceFound() of the mMeasurementListener */
         }
 
         /**
@@ -109,6 +128,29 @@ public class MainActivity extends AppCompatActivity {
         mSpeedValue = (TextView) findViewById(R.id.speed_view);
         mTorqueValue = (TextView) findViewById(R.id.torque_view);
         mEfficiencyValue = (TextView) findViewById(R.id.efficiency_view);
+        mTrendChart = (TrendChartView) findViewById(R.id.trend_chart);
+        mMetricsOverlay = (TextView) findViewById(R.id.metrics_overlay);
+
+        // A long press on the chart shows or hides the acquisition metrics
+        mTrendChart.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                boolean show = mMetricsOverlay.getVisibility() != View.VISIBLE;
+                mMetricsOverlay.setVisibility(show ? View.VISIBLE : View.GONE);
+                mHandler.removeCallbacks(mMetricsRefresh);
+                if (show) {
+                    mHandler.post(mMetricsRefresh);
+                }
+                return true;
+            }
+        });
+
+        // Tapping a value shows or hides its trace in the chart
+        toggleTraceOnClick(mVoltageValue, SampleDecoder.CHANNEL_VOLTAGE);
+        toggleTraceOnClick(mCurrentValue, SampleDecoder.CHANNEL_CURRENT);
+        toggleTraceOnClick(mSpeedValue, SampleDecoder.CHANNEL_SPEED);
+        toggleTraceOnClick(mTorqueValue, SampleDecoder.CHANNEL_TORQUE);
+        toggleTraceOnClick(mEfficiencyValue, SampleDecoder.CHANNEL_EFFICIENCY);
 
         // Set up a variables for accessing the buttons
         //start_button = (Button) findViewById(R.id.start_button);
@@ -118,20 +160,15 @@ public class MainActivity extends AppCompatActivity {
         start_stop_button.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if(toggleState)
-                {
-                    startBluetooth(v);
-                }else{
+                if (mMeasurementService != null && isActive(mMeasurementService.getConnectionState())) {
                     stopBluetooth(v);
+                } else {
+                    startBluetooth(v);
                 }
             }
         });
 
 
-        // Initialize service and connection state variable
-        mServiceConnected = false;
-        mConnectState = false;
-
         //This section required for Android 6.0 (Marshmallow)
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             // Android M Permission check 
@@ -148,6 +185,10 @@ public class MainActivity extends AppCompatActivity {
                 builder.show();
             }
         } //End of section for Android 6.0 (Marshmallow)
+
+        // Attach to an acquisition that is still running in the foreground, without creating
+        // the service if there is none
+        mBound = bindService(new Intent(this, MeasurementService.class), mServiceConnection, 0);
     } //End of onCreate() section
 
     //This method required for Android 6.0 (Marshmallow)
@@ -173,19 +214,6 @@ public class MainActivity extends AppCompatActivity {
         }
     } //End of section for Android 6.0 (Marshmallow)
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        // Register the broadcast receiver. This specified the messages the main activity looks for from the PSoCCapSenseLedService
-        final IntentFilter filter = new IntentFilter();
-        filter.addAction(MeasurementService.ACTION_BLESCAN_CALLBACK);
-        filter.addAction(MeasurementService.ACTION_CONNECTED);
-        filter.addAction(MeasurementService.ACTION_DISCONNECTED);
-        filter.addAction(MeasurementService.ACTION_SERVICES_DISCOVERED);
-        filter.addAction(MeasurementService.ACTION_DATA_RECEIVED);
-        registerReceiver(mBleUpdateReceiver, filter);
-    }
-
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         // User chose not to enable Bluetooth.
@@ -196,20 +224,24 @@ public class MainActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
     }
 
-    @Override
-    protected void onPause() {
-        super.onPause();
-        unregisterReceiver(mBleUpdateReceiver);
-    }
-
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        // Close and unbind the service when the activity goes away
-        mMeasurementService.close();
-        unbindService(mServiceConnection);
-        mMeasurementService = null;
-        mServiceConnected = false;
+        mHandler.removeCallbacks(mMetricsRefresh);
+        mTrendChart.setSampleStore(null);
+        // Close and unbind the service when the activity goes away, unless it acquires in the
+        // foreground
+        if (mMeasurementService != null) {
+            mMeasurementService.unregisterListener(mMeasurementListener);
+            if (!mMeasurementService.isForeground()) {
+                mMeasurementService.close();
+            }
+            mMeasurementService = null;
+        }
+        if (mBound) {
+            unbindService(mServiceConnection);
+            mBound = false;
+        }
     }
 
     /**
@@ -226,25 +258,25 @@ public class MainActivity extends AppCompatActivity {
 
         // Ensures Bluetooth is enabled on the device.  If Bluetooth is not currently enabled,
         // fire an intent to display a dialog asking the user to grant permission to enable it.
+        // The service waits for the adapter on its own, nothing has to wait here.
         if (!mBluetoothAdapter.isEnabled()) {
             Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivityForResult(enableBtIntent, REQUEST_ENABLE_BLE);
         }
 
-        while(!mBluetoothAdapter.isEnabled()){}
-
-        if(!mServiceConnected) {
+        if (mMeasurementService == null) {
             // Start the BLE Service
             Log.d(TAG, "Starting BLE Service");
+            mStartRequested = true;
             Intent gattServiceIntent = new Intent(this, MeasurementService.class);
-            bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+            mBound = bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
         } else {
-            mMeasurementService.scan();
-            Log.v(TAG, "Scanning for devices.");
+            mMeasurementService.startForegroundAcquisition();
+            Log.v(TAG, "Starting acquisition.");
         }
 
         /* After this we wait for the scan callback to detect that a device has been found */
-        /* The callback broadcasts a message which is picked up by the mGattUpdateReceiver */
+        /* The service calls onDeviceFound() of the mMeasurementListener */
     }
 
     /**
@@ -253,88 +285,157 @@ public class MainActivity extends AppCompatActivity {
      * @param view the view object
      */
     public void stopBluetooth(View view) {
-        mMeasurementService.disconnect();
+        mMeasurementService.stop();
+        // The connections are kept while the activity is bound
+        mMeasurementService.stopForegroundAcquisition();
         /* After this we wait for the gatt callback to report the device is disconnected */
-        /* That event broadcasts a message which is picked up by the mGattUpdateReceiver */
+        /* The service calls onDisconnected() of the mMeasurementListener */
     }
 
     /**
-     * Listener for BLE event broadcasts
+     * Shows the metrics of the selected device while the overlay is visible.
      */
-    private final BroadcastReceiver mBleUpdateReceiver = new BroadcastReceiver() {
+    private final Runnable mMetricsRefresh = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            switch (action) {
-                case MeasurementService.ACTION_BLESCAN_CALLBACK:
-                    Log.d(TAG, "Connecting to GATT");
-                    mMeasurementService.connect();
-                    /* After this we wait for the gatt callback to report the device is connected */
-                    /* That event broadcasts a message which is picked up by the mGattUpdateReceiver */
-                    break;
-
-                case MeasurementService.ACTION_CONNECTED:
-                    // If statement necessary because GATT_CONNECTED action can be triggered when sending notifications
-                    if(!mConnectState) {
-                        mConnectState = true;
-                        Log.d(TAG, "Trying to Discovering Services");
-                        /* This will discover the service and the characteristics */
-                        mMeasurementService.discoverServices();
-                        /* After this we wait for the gatt callback to report the services and characteristics */
-                        /* That event broadcasts a message which is picked up by the mGattUpdateReceiver */
-                        toggleState = false;
-                        start_stop_button.setText("Beende Verbindung");
-                        //start_button.setEnabled(false);
-                        //stop_button.setEnabled(true);
-                        /* This will start the repeated read task*/
-                        //readHandler.post(readRoutine);
-                        Toast.makeText(getApplicationContext(), "Verbindung hergestellt", Toast.LENGTH_SHORT).show();
-                    }
-                    break;
-
-                case MeasurementService.ACTION_DISCONNECTED:
-                    toggleState = true;
-                    start_stop_button.setText("Starte Verbindung");
-                    //stop_button.setEnabled(false);
-                    //start_button.setEnabled(true);
-                    mConnectState = false;
-                    /* Necessary to enable reconnect */
-                    unbindService(mServiceConnection);
-                    mServiceConnected = false;
-                    /* This will stop the repeated read task*/
-                    //readHandler.removeCallbacks(readRoutine);
-                    Toast.makeText(getApplicationContext(), "Verbindung beendet", Toast.LENGTH_SHORT).show();
-                    Log.d(TAG, "Disconnected");
-                    break;
-
-                case MeasurementService.ACTION_SERVICES_DISCOVERED:
-                    Log.d(TAG, "Services Discovered");
-
-                    /* Enable notifications*/
-                    mMeasurementService.enableNotifications();
-                    break;
-
-                case MeasurementService.ACTION_DATA_RECEIVED:
-                    // This is called after a notify or read completes
-                    String Voltage = mMeasurementService.getVoltageValue() + " V";
-                    mVoltageValue.setText(Voltage);
-
-                    String Current = mMeasurementService.getCurrentValue() + " A";
-                    mCurrentValue.setText(Current);
-
-                    String Speed = mMeasurementService.getSpeedValue() + " min\u207B\u00B9";
-                    mSpeedValue.setText(Speed);
-
-                    String Torque = mMeasurementService.getTorqueValue() + " Nm";
-                    mTorqueValue.setText(Torque);
-
-                    String Efficiency = mMeasurementService.getEfficiencyValue() + " \u0025";
-                    mEfficiencyValue.setText(Efficiency);
-
-                    break;
-
-                default:
-                    break;
+        public void run() {
+            AcquisitionMetrics.Snapshot snapshot =
+                    mMeasurementService == null ? null : mMeasurementService.getMetricsSnapshot();
+            mMetricsOverlay.setText(snapshot == null ? "no device" : snapshot.toString());
+            mHandler.postDelayed(this, METRICS_REFRESH_MILLIS);
+        }
+    };
+
+    /**
+     * @return true if the button stops instead of starts
+     */
+    private static boolean isActive(ConnectionStateMachine.State state) {
+        return state != ConnectionStateMachine.State.IDLE && state != ConnectionStateMachine.State.CLOSED
+                && state != ConnectionStateMachine.State.ADAPTER_OFF;
+    }
+
+    private void toggleTraceOnClick(TextView view, final int channel) {
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                mTrendChart.toggleChannel(channel);
+            }
+        });
+    }
+
+    private static boolean isChanged(int changed, int channel) {
+        return (changed & (1 << channel)) != 0;
+    }
+
+    /**
+     * Shows the text of a channel, unless the view already shows exactly that text.
+     *
+     * @param channel the channel the text belongs to
+     * @param view the view of the channel
+     * @param text the formatted value with unit
+     */
+    private void showValue(int channel, TextView view, String text) {
+        if (!text.equals(mShownValues[channel])) {
+            mShownValues[channel] = text;
+            view.setText(text);
+        }
+    }
+
+    /**
+     * Runs the callbacks of the mMeasurementListener on the main thread
+     */
+    private final Executor mMainExecutor = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
+    /**
+     * Listener for BLE events of the MeasurementService
+     */
+    private final MeasurementListener mMeasurementListener = new MeasurementListenerAdapter() {
+        @Override
+        public void onDeviceFound(String address) {
+            if (mMeasurementService == null) {
+                return;
+            }
+            Log.d(TAG, "Connecting to GATT " + address);
+            mMeasurementService.connect(address);
+            /* The service connects, discovers and subscribes every found device on its own */
+            /* The service calls onConnected() of this listener for the first one */
+        }
+
+        @Override
+        public void onConnectionStateChanged(ConnectionStateMachine.State state) {
+            // Scanning, connecting and reconnecting can all be stopped
+            start_stop_button.setText(isActive(state) ? "Beende Verbindung" : "Starte Verbindung");
+        }
+
+        @Override
+        public void onConnected() {
+            // The service reports this once, when the first device is connected
+            /* The service discovers the services and characteristics on its own */
+            /* The service calls onServicesDiscovered() of this listener */
+            //start_button.setEnabled(false);
+            //stop_button.setEnabled(true);
+            /* This will start the repeated read task*/
+            //readHandler.post(readRoutine);
+            Toast.makeText(getApplicationContext(), "Verbindung hergestellt", Toast.LENGTH_SHORT).show();
+        }
+
+        @Override
+        public void onDisconnected() {
+            //stop_button.setEnabled(false);
+            //start_button.setEnabled(true);
+            /* The service stays bound, start() connects again */
+            /* This will stop the repeated read task*/
+            //readHandler.removeCallbacks(readRoutine);
+            Toast.makeText(getApplicationContext(), "Verbindung beendet", Toast.LENGTH_SHORT).show();
+            Log.d(TAG, "Disconnected");
+            FrameStats frames = mTrendChart.getFrameStats();
+            Log.d(TAG, "Chart: " + frames.getFrameCount() + " frames, " + frames.getDroppedFrameCount()
+                    + " dropped, " + frames.getAverageDrawNanos() / 1000 + " us per draw");
+        }
+
+        @Override
+        public void onServicesDiscovered() {
+            Log.d(TAG, "Services Discovered");
+            if (mMeasurementService == null) {
+                return;
+            }
+
+            /* The service enables the notifications, show the device in the chart */
+            mTrendChart.setSampleStore(mMeasurementService.getSampleStore());
+        }
+
+        @Override
+        public void onValuesChanged(int changed) {
+            // This is called at most once per display frame after notifies or reads
+            // completed. Only the channels that changed are formatted and redrawn.
+            if (mMeasurementService == null) {
+                return;
+            }
+            if (isChanged(changed, SampleDecoder.CHANNEL_VOLTAGE)) {
+                showValue(SampleDecoder.CHANNEL_VOLTAGE, mVoltageValue,
+                        mMeasurementService.getVoltageValue() + " V");
+            }
+            if (isChanged(changed, SampleDecoder.CHANNEL_CURRENT)) {
+                showValue(SampleDecoder.CHANNEL_CURRENT, mCurrentValue,
+                        mMeasurementService.getCurrentValue() + " A");
+            }
+            if (isChanged(changed, SampleDecoder.CHANNEL_SPEED)) {
+                showValue(SampleDecoder.CHANNEL_SPEED, mSpeedValue,
+                        mMeasurementService.getSpeedValue() + " min\u207B\u00B9");
+            }
+            if (isChanged(changed, SampleDecoder.CHANNEL_TORQUE)) {
+                showValue(SampleDecoder.CHANNEL_TORQUE, mTorqueValue,
+                        mMeasurementService.getTorqueValue() + " Nm");
+            }
+            if (isChanged(changed, SampleDecoder.CHANNEL_EFFICIENCY)) {
+                showValue(SampleDecoder.CHANNEL_EFFICIENCY, mEfficiencyValue,
+                        mMeasurementService.getEfficiencyValue() + " \u0025");
             }
         }
     };
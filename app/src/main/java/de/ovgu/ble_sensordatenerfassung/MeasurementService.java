@@ -1,106 +1,553 @@
 package de.ovgu.ble_sensordatenerfassung;
 
 import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.app.IntentService;
-import android.bluetooth.BluetoothGattCharacteristic;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.nfc.Tag;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.ParcelUuid;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.support.v4.app.NotificationCompat;
 import android.util.Log;
+import android.view.Choreographer;
 
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.Arrays;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 public class MeasurementService extends Service {
     private final static String TAG = MeasurementService.class.getSimpleName();
 
-    // Bluetooth objects that we need to interact with
-    private static BluetoothManager mBluetoothManager;
-    private static BluetoothAdapter mBluetoothAdapter;
-    private static BluetoothLeScanner mLEScanner;
-    private static BluetoothDevice mLeDevice;
-    private static BluetoothGatt mBluetoothGatt;
-
-    // Bluetooth characteristics that we need to read/write
-    private static BluetoothGattCharacteristic mVoltageCharacterisitc;
-    private static BluetoothGattCharacteristic mCurrentCharacterisitc;
-    private static BluetoothGattCharacteristic mSpeedCharacterisitc;
-    private static BluetoothGattCharacteristic mTorqueCharacterisitc;
-    private static BluetoothGattCharacteristic mEfficiencyCharacterisitc;
+    // Bluetooth objects that we need to interact with, shared by all devices
+    private BluetoothManager mBluetoothManager;
+    private BluetoothAdapter mBluetoothAdapter;
+    private BluetoothLeScanner mLEScanner;
 
     // UUIDs for the service and characteristics that the custom CapSenseLED service uses
-    private final static String measurementServiceUUID =        "5d8eee9c-f629-4429-a328-baf6ecb10bbb";
-    public  final static String voltageCharacterisitcUUID =     "4b4369f0-0929-4af2-90ee-9be9df9779fc";
-    public  final static String currentCharacterisitcUUID =     "e570157c-65b9-45ff-83ff-0d963f8f7056";
-    public  final static String speedCharacterisitcUUID =       "d0524569-7ad1-4a2c-9b41-a62977af90f1";
-    public  final static String torqueCharacterisitcUUID =      "0506ecfe-b5e1-43df-8129-dcda57e2d1b0";
-    public  final static String efficiencyCharacterisitcUUID =  "20b0b221-492e-4c1a-90d6-4b8a12f91a43";
-    //private final static String CccdUUID =                   "00002902-0000-1000-8000-00805f9b34fb";
-
-    // Variables to keep track of the values
-    private static String mVoltageValue = "0.0";
-    private static String mCurrentValue = "0.0";
-    private static String mSpeedValue = "0";
-    private static String mTorqueValue = "0.0";
-    private static String mEfficiencyValue = "0";
-
-    // Actions used during broadcasts to the main activity
-    public final static String ACTION_BLESCAN_CALLBACK =
-            "de.ovgu.ble_sensordatenerfassung.ACTION_BLESCAN_CALLBACK";
-    public final static String ACTION_CONNECTED =
-            "de.ovgu.ble_sensordatenerfassung.ACTION_CONNECTED";
-    public final static String ACTION_DISCONNECTED =
-            "de.ovgu.ble_sensordatenerfassung.ACTION_DISCONNECTED";
-    public final static String ACTION_SERVICES_DISCOVERED =
-            "de.ovgu.ble_sensordatenerfassung.ACTION_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_RECEIVED =
-            "de.ovgu.ble_sensordatenerfassung.ACTION_DATA_RECEIVED";
+    private final static String measurementServiceUUID =        MeasurementProfile.SERVICE;
+    private final static UUID MEASUREMENT_SERVICE = UUID.fromString(measurementServiceUUID);
+    public  final static String voltageCharacterisitcUUID =     MeasurementProfile.VOLTAGE;
+    public  final static String currentCharacterisitcUUID =     MeasurementProfile.CURRENT;
+    public  final static String speedCharacterisitcUUID =       MeasurementProfile.SPEED;
+    public  final static String torqueCharacterisitcUUID =      MeasurementProfile.TORQUE;
+    public  final static String efficiencyCharacterisitcUUID =  MeasurementProfile.EFFICIENCY;
+    // Optional characteristic that packs all channels into rows, see FrameDecoder
+    public  final static String frameCharacterisitcUUID =       MeasurementProfile.FRAME;
+    private final static UUID FRAME_UUID = UUID.fromString(frameCharacterisitcUUID);
+    private final static String CccdUUID =                      MeasurementProfile.CCCD;
+    private final static UUID CCCD = UUID.fromString(CccdUUID);
+
+    // Maps characteristic UUIDs to channels and decodes their raw values
+    private final static SampleDecoder mDecoder = MeasurementProfile.newDecoder();
+
+    // Largest number of points downsampled at once, more are summarized by the rollups first
+    private final static int MAX_DOWNSAMPLE_INPUT = 16384;
+    private final long[] mDownsampleTimes = new long[MAX_DOWNSAMPLE_INPUT];
+    private final float[] mDownsampleValues = new float[MAX_DOWNSAMPLE_INPUT];
+    private final RollupEngine.Buckets mDownsampleBuckets = new RollupEngine.Buckets(MAX_DOWNSAMPLE_INPUT);
+
+    // Default number of devices connected at the same time, Android allows about seven
+    public final static int DEFAULT_MAX_DEVICES = 4;
+
+    // The compressed histories of all devices may use this part of the heap, see
+    // getCompressedHistoryBytes()
+    private final static int HISTORY_HEAP_FRACTION = 4;
+
+    // A scan collects reports for this long, then the strongest devices are chosen
+    private final static long SCAN_WINDOW_MILLIS = 3000;
+
+    // Scan reports are delivered in batches, so the app wakes up twice per second at most
+    private final static long SCAN_REPORT_DELAY_MILLIS = 500;
+
+    // The reports flushed at the end of a batched scan arrive through the callback, so the
+    // scan is ranked this long after the flush
+    private final static long SCAN_FLUSH_WAIT_MILLIS = 100;
+    private volatile boolean mScanBatching;
+
+    // Reports a device needs to be chosen, unless no device has that many
+    private final static int MIN_SCAN_REPORTS = 2;
+
+    // Found and connected devices, and the one shown by the UI
+    private final List<DeviceConnection> mDevices = new CopyOnWriteArrayList<>();
+    private volatile DeviceConnection mSelected;
+    private volatile int mMaxDevices = DEFAULT_MAX_DEVICES;
+    private final AtomicInteger mConnectedCount = new AtomicInteger();
+    private volatile boolean mScanning;
+
+    // Devices seen in the current scan window, ranked by their smoothed RSSI
+    private final ScanRanker mScanRanker = new ScanRanker();
+    private final HashMap<String, BluetoothDevice> mScannedDevices = new HashMap<>();
+
+    // Delivers events and samples to the registered listeners, e.g. the main activity
+    private final MeasurementDispatcher mDispatcher = new MeasurementDispatcher();
+
+    // Display refreshes per second, 0 refreshes once per display frame
+    private volatile int mUiUpdateRate = 0;
+    private long mLastUiUpdate;
+
+    // Raw values of the latest row of the selected device at the last refresh, main thread only
+    private final float[] mDisplayedRow = new float[SampleDecoder.CHANNEL_COUNT];
+    private DeviceConnection mDisplayedDevice;
+    private long mDisplayedRowNanos = Long.MIN_VALUE;
+
+    // Folds the notifications into at most one display refresh per frame or interval
+    private final UpdateCoalescer mUpdateCoalescer = new UpdateCoalescer();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Runs the timeouts of the GATT queues and of the connection scheduler on the main thread
+    private final GattOperationQueue.Scheduler mMainScheduler = new GattOperationQueue.Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mMainHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mMainHandler.removeCallbacks(task);
+        }
+    };
+
+    // Connects and discovers the devices one at a time, they share the radio
+    private final ConnectionScheduler mConnectionScheduler = new ConnectionScheduler(
+            new ConnectionScheduler.Callback() {
+                @Override
+                public boolean onStart(String address, int step) {
+                    DeviceConnection device = findDevice(address);
+                    if (device == null) {
+                        return false;
+                    }
+                    return step == ConnectionScheduler.STEP_CONNECT ? device.startConnect()
+                            : device.startDiscovery();
+                }
+
+                @Override
+                public void onFailed(String address, int step) {
+                    DeviceConnection device = findDevice(address);
+                    if (device == null) {
+                        return;
+                    }
+                    Log.w(TAG, (step == ConnectionScheduler.STEP_CONNECT ? "Connect" : "Discovery")
+                            + " failed: " + address);
+                    if (step == ConnectionScheduler.STEP_DISCOVER) {
+                        device.disconnect();
+                        return;
+                    }
+                    // The device is gone, a cached one is looked for by a new scan
+                    device.close();
+                    mDevices.remove(device);
+                    reportConnectionState();
+                    if (device.mWarm && mDevices.isEmpty()) {
+                        scan();
+                    }
+                }
+            }, mMainScheduler);
+
+    // Interval of the automatic link profile selection
+    private final static long LINK_EVALUATION_MILLIS = 2000;
+
+    // Link parameters in use for all devices, chosen automatically unless set explicitly
+    private volatile LinkProfile mLinkProfile = LinkProfile.BALANCED;
+    private volatile boolean mAutoLinkProfile = true;
+    private volatile boolean mUiAttached;
+    private final LinkProfileSelector mLinkSelector = new LinkProfileSelector(LinkProfile.BALANCED);
+    private final LinkProfileStats[] mLinkStats = new LinkProfileStats[LinkProfile.values().length];
+
+    // Devices connected before and their characteristics, loaded by initialize()
+    private final static String DEVICE_CACHE_FILE = "device_cache";
+    private DeviceCache mDeviceCache = new DeviceCache(null);
+
+    // Reconnects dropped connections in the background instead of giving up
+    private volatile boolean mFastReconnect = true;
+
+    // State of the adapter and the scan, every device has its own machine
+    private volatile ConnectionStateMachine mServiceState;
+
+    // The state last told to the listeners, guarded by mStateLock
+    private final Object mStateLock = new Object();
+    private ConnectionStateMachine.State mReportedState = ConnectionStateMachine.State.IDLE;
+
+    // Set when start() waits for the adapter to be switched on
+    private volatile boolean mStartPending;
+    private boolean mReceiverRegistered;
+
+    // Logs the transitions of all machines and tells the listeners about the visible state
+    private final ConnectionStateMachine.Listener mStateListener = new ConnectionStateMachine.Listener() {
+        @Override
+        public void onStateChanged(ConnectionStateMachine machine, ConnectionStateMachine.State from,
+                                   ConnectionStateMachine.State to, long timeNanos) {
+            Log.d(TAG, machine.getName() + ": " + from + " -> " + to);
+            reportConnectionState();
+        }
+    };
+
+    // Follows the adapter, connections are closed when it goes off and started again when it is back
+    private final BroadcastReceiver mAdapterStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            if (state == BluetoothAdapter.STATE_TURNING_OFF || state == BluetoothAdapter.STATE_OFF) {
+                onAdapterOff();
+            } else if (state == BluetoothAdapter.STATE_ON) {
+                onAdapterOn();
+            }
+        }
+    };
+
+    // Time to the first sample for connects with and without the cache
+    private final ConnectTimings mConnectTimings = new ConnectTimings();
+
+    // Start of the current scan, cold connects count from there
+    private volatile long mScanStartNanos;
+
+    // Starts a recording automatically for every connection
+    private volatile boolean mRecordingEnabled = true;
+
+    // Captures the raw GATT events of every connected device into a trace
+    private volatile boolean mTraceEnabled;
+
+    // Starts and stops the acquisition that goes on without a bound UI
+    public final static String ACTION_START_FOREGROUND = "de.ovgu.ble_sensordatenerfassung.START_FOREGROUND";
+    public final static String ACTION_STOP_FOREGROUND = "de.ovgu.ble_sensordatenerfassung.STOP_FOREGROUND";
+    private final static int NOTIFICATION_ID = 1;
+    private final static String NOTIFICATION_CHANNEL = "acquisition";
+    private volatile boolean mForeground;
+
+    // Display refreshes and write batching, chosen by whether a UI is bound
+    private volatile AcquisitionMode mMode = AcquisitionMode.INTERACTIVE;
+
+    // Held only for the periodic flushes of the background mode, never across them
+    private final static long WAKE_LOCK_TIMEOUT_MILLIS = 1000;
+    private PowerManager.WakeLock mWakeLock;
+    private volatile long mWakeLockCount;
+
+    // Runs the exports one after the other, created on first use
+    private ExecutorService mExportExecutor;
+
+    // Sends the samples of every device to the local network while streaming, null otherwise
+    private SampleStreamer mStreamer;
+    private final SampleStreamer.Clock mElapsedClock = new SampleStreamer.Clock() {
+        @Override
+        public long nanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+
+    // A channel without notification for this long is polled instead
+    private final static long STALL_TIMEOUT_MILLIS = 2000;
+
+    // Bounds of the polling interval, adapted to how fast the polled values change
+    private final static long MIN_POLL_INTERVAL_MILLIS = 50;
+    private final static long MAX_POLL_INTERVAL_MILLIS = 1000;
+
+    // The reads of one poll are queued one after the other, so their rows get a wider window
+    private final static long POLLED_ROW_SKEW_NANOS = MIN_POLL_INTERVAL_MILLIS * 1000000L;
+
+    // Hands the samples of the selected device to the listeners and schedules the refreshes
+    private final DeviceAcquisition.Listener mSampleListener = new DeviceAcquisition.Listener() {
+        @Override
+        public void onSample(DeviceAcquisition device, int channel, long timeNanos, float value) {
+            if (!mMode.isUiUpdating()) {
+                // Nobody looks, the chart reads the store once a UI is bound again
+                return;
+            }
+            DeviceConnection selected = mSelected;
+            if (selected == null || selected.mAcquisition != device) {
+                return;
+            }
+            mDispatcher.addSample(channel, timeNanos, value);
+            if (mUpdateCoalescer.markChanged(channel)) {
+                mMainHandler.post(mScheduleUiUpdate);
+            }
+        }
+    };
 
     public MeasurementService() {
+        for (int i = 0; i < mLinkStats.length; i++) {
+            mLinkStats[i] = new LinkProfileStats();
+        }
+        mServiceState = newServiceState();
+    }
+
+    private ConnectionStateMachine newServiceState() {
+        ConnectionStateMachine machine = new ConnectionStateMachine("service",
+                ConnectionStateMachine.State.IDLE, SystemClock.elapsedRealtimeNanos());
+        machine.setListener(mStateListener);
+        return machine;
     }
 
     public class LocalBinder extends Binder {
         MeasurementService getService() {
             return MeasurementService.this;
         }
+
+        /**
+         * Registers a listener for events and samples of the service.
+         *
+         * @param listener the listener to call
+         * @param executor the executor the callbacks of the listener run on
+         */
+        public void registerListener(MeasurementListener listener, Executor executor) {
+            MeasurementService.this.registerListener(listener, executor);
+        }
+
+        public void unregisterListener(MeasurementListener listener) {
+            MeasurementService.this.unregisterListener(listener);
+        }
+
+        /**
+         * @return the acquisition metrics of the selected device, or null if there is none
+         */
+        public AcquisitionMetrics.Snapshot getMetricsSnapshot() {
+            return MeasurementService.this.getMetricsSnapshot();
+        }
     }
 
     @Override
     public IBinder onBind(Intent intent) {
+        mUiAttached = true;
+        updateMode();
         return mBinder;
     }
 
+    @Override
+    public void onRebind(Intent intent) {
+        mUiAttached = true;
+        updateMode();
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
-        // The BLE close method is called when we unbind the service to free up the resources.
-        close();
-        return super.onUnbind(intent);
+        mUiAttached = false;
+        updateMode();
+        // A started acquisition goes on without the UI, otherwise the resources are freed
+        if (!mForeground) {
+            close();
+        }
+        // Have onRebind called when the UI comes back
+        return true;
+    }
+
+    /**
+     * Handles {@link #ACTION_START_FOREGROUND}, also after the system restarted the service,
+     * and {@link #ACTION_STOP_FOREGROUND} from the notification.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_STOP_FOREGROUND.equals(intent.getAction())) {
+            stop();
+            stopForegroundAcquisition();
+            return START_NOT_STICKY;
+        }
+        if (!initialize()) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+        if (!mForeground) {
+            mForeground = true;
+            startForeground(NOTIFICATION_ID, buildNotification());
+            if (mWakeLock == null) {
+                PowerManager power = (PowerManager) getSystemService(Context.POWER_SERVICE);
+                mWakeLock = power.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + ":flush");
+                mWakeLock.setReferenceCounted(false);
+            }
+            updateMode();
+        }
+        start();
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mMainHandler.removeCallbacks(mBackgroundFlush);
+        if (mWakeLock != null && mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+        if (mReceiverRegistered) {
+            unregisterReceiver(mAdapterStateReceiver);
+            mReceiverRegistered = false;
+        }
+        synchronized (this) {
+            if (mExportExecutor != null) {
+                // Running exports are finished, their files stay valid
+                mExportExecutor.shutdown();
+                mExportExecutor = null;
+            }
+        }
+        stopNetworkStream();
+        super.onDestroy();
     }
 
     private final IBinder mBinder = new LocalBinder();
 
+    /**
+     * Starts acquiring in the foreground: streaming, recording and statistics go on while no
+     * UI is bound, until {@link #stopForegroundAcquisition()} or the stop action of the
+     * notification. Calls {@link #start()} like a bound start would.
+     */
+    public void startForegroundAcquisition() {
+        startService(new Intent(this, MeasurementService.class).setAction(ACTION_START_FOREGROUND));
+    }
+
+    /**
+     * Leaves the foreground. The connections stay as long as a UI is bound, otherwise they
+     * are closed.
+     */
+    public void stopForegroundAcquisition() {
+        if (!mForeground) {
+            return;
+        }
+        mForeground = false;
+        stopForeground(true);
+        updateMode();
+        if (!mUiAttached) {
+            close();
+        }
+        stopSelf();
+    }
+
+    /**
+     * @return true if the acquisition goes on without a bound UI
+     */
+    public boolean isForeground() {
+        return mForeground;
+    }
+
+    public AcquisitionMode getAcquisitionMode() {
+        return mMode;
+    }
+
+    /**
+     * @return number of flushes under the wake lock since the service was created
+     */
+    public long getWakeLockCount() {
+        return mWakeLockCount;
+    }
+
+    /**
+     * Switches between the interactive and the background mode when the UI comes or goes.
+     */
+    private void updateMode() {
+        AcquisitionMode mode = mUiAttached || !mForeground ? AcquisitionMode.INTERACTIVE
+                : AcquisitionMode.BACKGROUND;
+        if (mode == mMode) {
+            return;
+        }
+        Log.i(TAG, "Acquisition mode " + mode);
+        mMode = mode;
+        for (DeviceConnection device : mDevices) {
+            device.applyMode(mode);
+        }
+        mMainHandler.removeCallbacks(mBackgroundFlush);
+        if (mode.getFlushMillis() > 0) {
+            mMainHandler.postDelayed(mBackgroundFlush, mode.getFlushMillis());
+        }
+        if (mWakeLock != null && mWakeLock.isHeld() && mode.getFlushMillis() == 0) {
+            mWakeLock.release();
+        }
+        if (mode.isUiUpdating()) {
+            // The UI missed everything in between, show the current values at once
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                mUpdateCoalescer.markChanged(channel);
+            }
+            mMainHandler.post(mScheduleUiUpdate);
+        }
+    }
+
+    /**
+     * Writes and syncs what the recorders collected under a short wake lock, so the device
+     * cannot suspend halfway. The interval runs on uptime: the flush rides along with a
+     * wakeup for the notifications and never wakes the CPU by itself.
+     */
+    private final Runnable mBackgroundFlush = new Runnable() {
+        @Override
+        public void run() {
+            if (mWakeLock != null) {
+                mWakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+                mWakeLockCount++;
+            }
+            for (DeviceConnection device : mDevices) {
+                device.flush();
+            }
+            long interval = mMode.getFlushMillis();
+            if (interval > 0) {
+                mMainHandler.postDelayed(this, interval);
+            }
+        }
+    };
+
+    private Notification buildNotification() {
+        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && manager != null) {
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL,
+                    getString(R.string.Messung), NotificationManager.IMPORTANCE_LOW));
+        }
+        PendingIntent open = PendingIntent.getActivity(this, 0, new Intent(this, MainActivity.class), 0);
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, MeasurementService.class).setAction(ACTION_STOP_FOREGROUND), 0);
+        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(getString(R.string.Messung_laeuft))
+                .setContentIntent(open)
+                .setOngoing(true)
+                .addAction(0, getString(R.string.Beende_Verbindung), stop)
+                .build();
+    }
+
+    /**
+     * Registers a listener for events and samples of the service. Registering the same
+     * listener again replaces its executor.
+     *
+     * @param listener the listener to call
+     * @param executor the executor the callbacks of the listener run on
+     */
+    public void registerListener(MeasurementListener listener, Executor executor) {
+        mDispatcher.register(listener, executor);
+    }
+
+    /**
+     * Removes a listener. Callbacks that are already queued on its executor still run.
+     *
+     * @param listener the listener to remove
+     */
+    public void unregisterListener(MeasurementListener listener) {
+        mDispatcher.unregister(listener);
+    }
+
     /**
      * Initializes a reference to the local Bluetooth adapter.
      *
@@ -123,19 +570,173 @@ public class MeasurementService extends Service {
             return false;
         }
 
+        if (mDeviceCache.size() == 0) {
+            mDeviceCache = new DeviceCache(new File(getFilesDir(), DEVICE_CACHE_FILE));
+            mDeviceCache.load();
+        }
+
+        if (mServiceState.is(ConnectionStateMachine.State.CLOSED)) {
+            mServiceState = newServiceState();
+        }
+        if (!mReceiverRegistered) {
+            registerReceiver(mAdapterStateReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
+            mReceiverRegistered = true;
+        }
+        if (!mBluetoothAdapter.isEnabled()) {
+            mServiceState.moveTo(ConnectionStateMachine.State.ADAPTER_OFF, SystemClock.elapsedRealtimeNanos());
+        }
+
         return true;
     }
 
     /**
-     * Scans for BLE devices that support the service we are looking for
+     * Starts acquiring: known devices are connected again, cached devices are connected
+     * without a scan, and otherwise a scan looks for devices. If Bluetooth is off, this
+     * waits without polling until the adapter is switched on.
+     */
+    public void start() {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return;
+        }
+        if (!mBluetoothAdapter.isEnabled()) {
+            mStartPending = true;
+            mServiceState.moveTo(ConnectionStateMachine.State.ADAPTER_OFF, SystemClock.elapsedRealtimeNanos());
+            return;
+        }
+        mStartPending = false;
+        if (!mDevices.isEmpty()) {
+            for (DeviceConnection device : mDevices) {
+                connect(device.getAddress());
+            }
+            return;
+        }
+        // The devices of the last session need no scan
+        if (!reconnect()) {
+            scan();
+        }
+    }
+
+    /**
+     * Stops the scan, a pending start and all connections.
+     */
+    public void stop() {
+        mStartPending = false;
+        stopScan();
+        disconnect();
+    }
+
+    private void onAdapterOff() {
+        if (mServiceState.is(ConnectionStateMachine.State.ADAPTER_OFF)) {
+            return;
+        }
+        Log.i(TAG, "Bluetooth switched off");
+        // Everything that was running is started again once the adapter is back
+        mStartPending |= mScanning || !mDevices.isEmpty();
+        stopScan();
+        mConnectionScheduler.clear();
+        long now = SystemClock.elapsedRealtimeNanos();
+        for (DeviceConnection device : mDevices) {
+            // The GATT objects die with the adapter
+            device.mState.moveTo(ConnectionStateMachine.State.ADAPTER_OFF, now);
+            device.close();
+        }
+        mDevices.clear();
+        mSelected = null;
+        if (mConnectedCount.getAndSet(0) > 0) {
+            mMainHandler.removeCallbacks(mLinkEvaluation);
+            mLinkStats[mLinkProfile.ordinal()].deactivate(now);
+            mDispatcher.dispatchDisconnected();
+        }
+        mServiceState.moveTo(ConnectionStateMachine.State.ADAPTER_OFF, now);
+    }
+
+    private void onAdapterOn() {
+        if (!mServiceState.is(ConnectionStateMachine.State.ADAPTER_OFF)) {
+            return;
+        }
+        Log.i(TAG, "Bluetooth switched on");
+        mServiceState.moveTo(ConnectionStateMachine.State.IDLE, SystemClock.elapsedRealtimeNanos());
+        if (mStartPending) {
+            start();
+        }
+    }
+
+    /**
+     * @return the state shown to the user: the adapter or scan state while the adapter is off
+     * or a scan runs, otherwise the state of the selected device, or of the first device as
+     * long as none is connected
+     */
+    public ConnectionStateMachine.State getConnectionState() {
+        ConnectionStateMachine.State service = mServiceState.getState();
+        if (service != ConnectionStateMachine.State.IDLE) {
+            return service;
+        }
+        DeviceConnection device = mSelected;
+        if (device == null) {
+            for (DeviceConnection first : mDevices) {
+                device = first;
+                break;
+            }
+        }
+        return device == null ? service : device.mState.getState();
+    }
+
+    /**
+     * @return the state machine of the adapter and the scan
+     */
+    public ConnectionStateMachine getServiceStateMachine() {
+        return mServiceState;
+    }
+
+    /**
+     * @return the state machine of a device, or null if the device is not known
+     */
+    public ConnectionStateMachine getStateMachine(String address) {
+        DeviceConnection device = findDevice(address);
+        return device == null ? null : device.mState;
+    }
+
+    private void reportConnectionState() {
+        ConnectionStateMachine.State state = getConnectionState();
+        synchronized (mStateLock) {
+            if (state == mReportedState) {
+                return;
+            }
+            mReportedState = state;
+        }
+        mDispatcher.dispatchConnectionStateChanged(state);
+    }
+
+    /**
+     * Scans for BLE devices that support the service we are looking for. The scan collects
+     * batched reports for a fixed window, then stops and chooses the devices with the
+     * strongest smoothed RSSI, at most {@link #setMaxDevices} in total. Only the chosen
+     * devices are reported to the listeners, see {@link #getScanCandidates()} for all.
      */
     public void scan() {
-        /* Scan for devices and look for the one with the service that we want */
-        UUID measurementService = UUID.fromString(measurementServiceUUID);
+        /* Scan for devices and look for the ones with the service that we want */
+        UUID measurementService = MEASUREMENT_SERVICE;
         UUID[] measurementServiceArray = {measurementService};
 
         //mBluetoothAdapter.startLeScan(measurementServiceArray, mLeScanCallback);
 
+        if (mScanning) {
+            return;
+        }
+        if (!mBluetoothAdapter.isEnabled()) {
+            // The adapter state receiver starts again once Bluetooth is on
+            mStartPending = true;
+            return;
+        }
+        mScanning = true;
+        mServiceState.moveTo(ConnectionStateMachine.State.SCANNING, SystemClock.elapsedRealtimeNanos());
+        mScanStartNanos = SystemClock.elapsedRealtimeNanos();
+        mScanRanker.clear();
+        synchronized (mScannedDevices) {
+            mScannedDevices.clear();
+        }
+        mMainHandler.postDelayed(mFinishScan, SCAN_WINDOW_MILLIS);
 
         // Use old scan method for versions older than lollipop
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
@@ -145,9 +746,14 @@ public class MeasurementService extends Service {
             ScanSettings settings;
             List<ScanFilter> filters;
             mLEScanner = mBluetoothAdapter.getBluetoothLeScanner();
-            settings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
-                    .build();
+            ScanSettings.Builder builder = new ScanSettings.Builder()
+                    .setScanMode(toScanMode(mLinkProfile));
+            mScanBatching = mBluetoothAdapter.isOffloadedScanBatchingSupported();
+            if (mScanBatching) {
+                // The controller collects the reports, fewer wakeups for the same information
+                builder.setReportDelay(SCAN_REPORT_DELAY_MILLIS);
+            }
+            settings = builder.build();
             filters = new ArrayList<>();
             // We will scan just for the CAR's UUID
             ParcelUuid PUuid = new ParcelUuid(measurementService);
@@ -159,176 +765,914 @@ public class MeasurementService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
-     *
-     * @return Return true if the connection is initiated successfully. The connection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Stops a running scan without choosing any device.
      */
-    public boolean connect(){
-        if (mBluetoothAdapter == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return false;
+    public void stopScan() {
+        mMainHandler.removeCallbacks(mFinishScan);
+        mMainHandler.removeCallbacks(mRankScan);
+        if (!mScanning) {
+            return;
         }
-
-        // Previously connected device.  Try to reconnect.
-        if (mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            return mBluetoothGatt.connect();
+        mScanning = false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            //noinspection deprecation
+            mBluetoothAdapter.stopLeScan(mLeScanCallback);
+        } else if (mLEScanner != null) {
+            mLEScanner.stopScan(mScanCallback);
         }
-
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = mLeDevice.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        return true;
+        mServiceState.moveTo(ConnectionStateMachine.State.IDLE, SystemClock.elapsedRealtimeNanos());
+        Log.v(TAG, "Scan stopped, " + mScanRanker.getReportCount() + " reports of "
+                + mScanRanker.getCandidateCount() + " devices.");
     }
 
     /**
-     * Runs service discovery on the connected device.
+     * Ends the scan window. The reports the controller still holds back are flushed first,
+     * otherwise up to the last {@link #SCAN_REPORT_DELAY_MILLIS} of the window would be lost.
      */
-    public void discoverServices() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    private final Runnable mFinishScan = new Runnable() {
+        @Override
+        public void run() {
+            if (mScanning && mScanBatching && mLEScanner != null
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                mLEScanner.flushPendingScanResults(mScanCallback);
+                mMainHandler.postDelayed(mRankScan, SCAN_FLUSH_WAIT_MILLIS);
+            } else {
+                mRankScan.run();
+            }
         }
-        mBluetoothGatt.discoverServices();
-    }
+    };
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
-     * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
-     * callback.
+     * Stops scanning and adds the strongest devices that are not known yet, up to the maximum
+     * number of devices.
      */
-    public void disconnect() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    private final Runnable mRankScan = new Runnable() {
+        @Override
+        public void run() {
+            stopScan();
+            int wanted = mMaxDevices - mDevices.size();
+            if (wanted <= 0) {
+                return;
+            }
+            List<String> best = mScanRanker.pickBest(mMaxDevices, MIN_SCAN_REPORTS);
+            if (best.isEmpty()) {
+                best = mScanRanker.pickBest(mMaxDevices, 1);
+            }
+            Log.i(TAG, "Scan candidates: " + mScanRanker.getRanked());
+            for (String address : best) {
+                if (wanted == 0) {
+                    break;
+                }
+                BluetoothDevice device;
+                synchronized (mScannedDevices) {
+                    device = mScannedDevices.get(address);
+                }
+                if (device != null && addDevice(device, false)) {
+                    wanted--;
+                }
+            }
         }
-        mBluetoothGatt.disconnect();
-    }
+    };
 
     /**
-     * After using a given BLE device, the app must call this method to ensure resources are
-     * released properly.
+     * @return the devices seen by the current or last scan, the strongest first, e.g. to let
+     * the user choose another one with {@link #connect(String)}
      */
-    public void close() {
-        if (mBluetoothGatt == null) {
-            return;
-        }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+    public List<ScanRanker.Candidate> getScanCandidates() {
+        return mScanRanker.getRanked();
+    }
+
+    public boolean isScanning() {
+        return mScanning;
     }
 
     /**
-     * This method is used to read the voltage value from the device
+     * Sets how many devices are found and connected at the same time.
      */
-    public void readVoltageCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.readCharacteristic(mVoltageCharacterisitc);
+    public void setMaxDevices(int maxDevices) {
+        mMaxDevices = Math.max(1, maxDevices);
+    }
+
+    public int getMaxDevices() {
+        return mMaxDevices;
     }
 
     /**
-     * This method is used to read the current value from the device
+     * Counts a scan report. Runs for every report, repeated ones only update the ranking.
      */
-    public void readCurrentCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    private void onScanReport(BluetoothDevice device, int rssi) {
+        String address = device.getAddress();
+        if (mScanRanker.onResult(address, rssi, SystemClock.elapsedRealtimeNanos())) {
+            synchronized (mScannedDevices) {
+                mScannedDevices.put(address, device);
+            }
         }
-        mBluetoothGatt.readCharacteristic(mCurrentCharacterisitc);
     }
 
     /**
-     * This method is used to read the speed value from the device
+     * Remembers a chosen device and tells the listeners about it.
+     *
+     * @param warm whether the device comes from the cache instead of a scan
+     * @return false if the device is already known or no more devices are allowed
      */
-    public void readSpeedCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
-        }
-        mBluetoothGatt.readCharacteristic(mSpeedCharacterisitc);
+    private boolean addDevice(BluetoothDevice device, boolean warm) {
+        return addDevice(new AndroidGattTransport(this, device, MEASUREMENT_SERVICE), warm);
     }
 
     /**
-     * This method is used to read the torque value from the device
+     * @return the memory budget of the compressed history of one device. All devices together
+     * get at most a quarter of the heap the app may use, no device more than the default.
      */
-    public void readTorqueCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    private long getCompressedHistoryBytes() {
+        ActivityManager activityManager = (ActivityManager) getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) {
+            return DeviceAcquisition.DEFAULT_COMPRESSED_BYTES;
+        }
+        long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        return Math.min(DeviceAcquisition.DEFAULT_COMPRESSED_BYTES,
+                heapBytes / HISTORY_HEAP_FRACTION / Math.max(1, mMaxDevices));
+    }
+
+    private boolean addDevice(GattConnection transport, boolean warm) {
+        String address = transport.getAddress();
+        DeviceConnection connection;
+        synchronized (mDevices) {
+            if (findDevice(address) != null || mDevices.size() >= mMaxDevices) {
+                return false;
+            }
+            connection = new DeviceConnection(transport);
+            connection.mWarm = warm;
+            connection.mConnectStartNanos = warm ? SystemClock.elapsedRealtimeNanos() : mScanStartNanos;
+            mDevices.add(connection);
+        }
+        synchronized (this) {
+            // Unless the stream started meanwhile and already added it
+            if (mStreamer != null && connection.mStreamSource == null) {
+                connection.mStreamSource = mStreamer.addSource(address);
+            }
+        }
+        Log.v(TAG, "Device chosen: " + address);
+        mDispatcher.dispatchDeviceFound(address); // Tell the listeners that a device has been found
+        return true;
+    }
+
+    /**
+     * Adds a simulated sensor like a found device, e.g. to load-test the acquisition without
+     * the test bench. It is connected with {@link #connect(String)} like any other device.
+     *
+     * @return false if the address is already known or no more devices are allowed
+     */
+    public boolean addSimulatedDevice(SimulatedSensor sensor) {
+        return addDevice(sensor, false);
+    }
+
+    private DeviceConnection findDevice(String address) {
+        for (DeviceConnection device : mDevices) {
+            if (device.mAcquisition.getAddress().equals(address)) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connects to the GATT server of a device found by the scan. The connection, service
+     * discovery and subscription run on their own; connects and discoveries of different
+     * devices are done one after the other, see {@link ConnectionScheduler}.
+     *
+     * @param address the address reported by {@link MeasurementListener#onDeviceFound}
+     * @return Return true if the connection is scheduled. The connection result
+     * is reported asynchronously through the
+     * {@link GattConnection.Callback#onConnectionStateChange}
+     * callback.
+     */
+    public boolean connect(String address) {
+        DeviceConnection device = findDevice(address);
+        if (device == null && mBluetoothAdapter != null) {
+            // A candidate of the scan the user picked instead
+            BluetoothDevice scanned;
+            synchronized (mScannedDevices) {
+                scanned = mScannedDevices.get(address);
+            }
+            if (scanned != null) {
+                addDevice(scanned, false);
+                device = findDevice(address);
+            }
+        }
+        if (device == null) {
+            Log.w(TAG, "Unknown device " + address);
+            return false;
+        }
+        if (!device.mConnected && !device.mReconnecting) {
+            mConnectionScheduler.enqueue(address, ConnectionScheduler.STEP_CONNECT);
+        }
+        return true;
+    }
+
+    /**
+     * Connects to the devices of the last connections directly, without scanning. Their
+     * addresses and characteristic layouts are cached, so the service discovery is skipped
+     * where the device still shows the same layout. The devices are reported to the
+     * listeners like found ones.
+     *
+     * @return false if no device is cached, the caller should {@link #scan()} instead
+     */
+    public boolean reconnect() {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
+            return false;
+        }
+        boolean any = false;
+        for (DeviceCache.Layout layout : mDeviceCache.getRecent()) {
+            if (mDevices.size() >= mMaxDevices) {
+                break;
+            }
+            if (!BluetoothAdapter.checkBluetoothAddress(layout.getAddress())) {
+                continue;
+            }
+            any |= addDevice(mBluetoothAdapter.getRemoteDevice(layout.getAddress()), true);
+        }
+        return any || !mDevices.isEmpty();
+    }
+
+    /**
+     * Sets whether dropped connections are reconnected in the background. The Bluetooth
+     * controller waits for the device without a timeout until it is in range again, or until
+     * it is disconnected. While a device reconnects, it keeps its recording and counts as
+     * connected.
+     */
+    public void setFastReconnect(boolean enabled) {
+        mFastReconnect = enabled;
+    }
+
+    /**
+     * Forgets the cached devices, the next start scans again.
+     */
+    public void clearDeviceCache() {
+        for (DeviceCache.Layout layout : mDeviceCache.getRecent()) {
+            mDeviceCache.remove(layout.getAddress());
+        }
+        saveDeviceCache();
+    }
+
+    private void saveDeviceCache() {
+        try {
+            mDeviceCache.save();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save the device cache.", e);
+        }
+    }
+
+    /**
+     * @return time from the start of a connection to its first sample, for scanned and for
+     * cached devices
+     */
+    public ConnectTimings getConnectTimings() {
+        return mConnectTimings;
+    }
+
+    /**
+     * Disconnects all devices or cancels their pending connections. The disconnection results
+     * are reported asynchronously through the
+     * {@link GattConnection.Callback#onConnectionStateChange}
+     * callback.
+     */
+    public void disconnect() {
+        if (mBluetoothAdapter == null) {
+            Log.w(TAG, "BluetoothAdapter not initialized");
             return;
         }
-        mBluetoothGatt.readCharacteristic(mTorqueCharacterisitc);
+        for (DeviceConnection device : mDevices) {
+            device.disconnect();
+        }
+    }
+
+    /**
+     * Disconnects one device or cancels its pending connection.
+     */
+    public void disconnect(String address) {
+        DeviceConnection device = findDevice(address);
+        if (device != null) {
+            device.disconnect();
+        }
+    }
+
+    /**
+     * After using the BLE devices, the app must call this method to ensure resources are
+     * released properly.
+     */
+    public void close() {
+        mStartPending = false;
+        stopScan();
+        mConnectionScheduler.clear();
+        mMainHandler.removeCallbacks(mLinkEvaluation);
+        for (DeviceConnection device : mDevices) {
+            device.close();
+        }
+        mDevices.clear();
+        mSelected = null;
+        mConnectedCount.set(0);
+        mServiceState.moveTo(ConnectionStateMachine.State.CLOSED, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * @return the acquisition of every known device, connected or not
+     */
+    public List<DeviceAcquisition> getDevices() {
+        List<DeviceAcquisition> devices = new ArrayList<>(mDevices.size());
+        for (DeviceConnection device : mDevices) {
+            devices.add(device.mAcquisition);
+        }
+        return devices;
+    }
+
+    /**
+     * @return the acquisition of a device, or null if the device is not known
+     */
+    public DeviceAcquisition getDevice(String address) {
+        DeviceConnection device = findDevice(address);
+        return device == null ? null : device.mAcquisition;
+    }
+
+    /**
+     * Chooses the device whose values are shown: its samples go to the listeners and the
+     * single device getters of this service refer to it. The first device that connects is
+     * selected automatically.
+     *
+     * @return false if the device is not known
+     */
+    public boolean selectDevice(String address) {
+        DeviceConnection device = findDevice(address);
+        if (device == null) {
+            return false;
+        }
+        mSelected = device;
+        return true;
+    }
+
+    /**
+     * @return the acquisition of the selected device, or null if there is none
+     */
+    public DeviceAcquisition getSelectedDevice() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition;
+    }
+
+    /**
+     * @return the number of devices that are connected at the moment
+     */
+    public int getConnectedDeviceCount() {
+        return mConnectedCount.get();
+    }
+
+    /**
+     * @return the live acquisition metrics of a device, or null if the device is not known
+     */
+    public AcquisitionMetrics getMetrics(String address) {
+        DeviceConnection device = findDevice(address);
+        return device == null ? null : device.mMetrics;
+    }
+
+    /**
+     * @return a copy of the acquisition metrics of the selected device: rates, jitter, gaps,
+     * stalls, decode time and latency to the display, or null if there is no device
+     */
+    public AcquisitionMetrics.Snapshot getMetricsSnapshot() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mMetrics.snapshot();
+    }
+
+    /**
+     * Gives access to the scheduler of the connects and service discoveries, e.g. for how
+     * long devices waited for the radio.
+     */
+    public ConnectionScheduler getConnectionScheduler() {
+        return mConnectionScheduler;
+    }
+
+    /**
+     * Gives access to the queue that runs all GATT requests of the selected device, e.g. for
+     * its queue depth and latency statistics.
+     *
+     * @return the GATT operation queue of the selected device, or null if there is none
+     */
+    public GattOperationQueue getGattOperationQueue() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition.getGattQueue();
+    }
+
+    /**
+     * This method is used to read the voltage value from the selected device
+     */
+    public void readVoltageCharacteristic() {
+        readChannel(SampleDecoder.CHANNEL_VOLTAGE);
+    }
+
+    /**
+     * This method is used to read the current value from the selected device
+     */
+    public void readCurrentCharacteristic() {
+        readChannel(SampleDecoder.CHANNEL_CURRENT);
+    }
+
+    /**
+     * This method is used to read the speed value from the selected device
+     */
+    public void readSpeedCharacteristic() {
+        readChannel(SampleDecoder.CHANNEL_SPEED);
+    }
+
+    /**
+     * This method is used to read the torque value from the selected device
+     */
+    public void readTorqueCharacteristic() {
+        readChannel(SampleDecoder.CHANNEL_TORQUE);
+    }
+
+    /**
+     * This method is used to read the efficiency value from the selected device
+     */
+    public void readEfficiencyCharacteristic() {
+        readChannel(SampleDecoder.CHANNEL_EFFICIENCY);
+    }
+
+    private void readChannel(int channel) {
+        DeviceConnection selected = mSelected;
+        if (selected == null || !selected.mConnected) {
+            Log.w(TAG, "No connected device");
+            return;
+        }
+        selected.mAcquisition.getGattQueue().read(mDecoder.uuidOf(channel));
+    }
+
+    /**
+     * Reads all channels of the selected device.
+     */
+    public void readCharacteristics() {
+        DeviceConnection selected = mSelected;
+        if (selected == null || !selected.mConnected) {
+            Log.w(TAG, "No connected device");
+            return;
+        }
+        selected.readCharacteristics();
+    }
+
+    /**
+     * Sets how often the listeners are told about new values.
+     *
+     * @param updatesPerSecond maximum number of refreshes per second, 0 to refresh once per
+     *                         display frame
+     */
+    public void setUiUpdateRate(int updatesPerSecond) {
+        mUiUpdateRate = Math.max(0, updatesPerSecond);
+    }
+
+    /**
+     * @return number of new values that did not cause a refresh of their own
+     */
+    public long getCoalescedUpdateCount() {
+        return mUpdateCoalescer.getCoalescedCount();
+    }
+
+    /**
+     * @return number of refreshes sent to the listeners
+     */
+    public long getDeliveredUpdateCount() {
+        return mUpdateCoalescer.getDeliveredCount();
+    }
+
+
+
+    public String getVoltageValue() {
+        return SampleDecoder.format(SampleDecoder.CHANNEL_VOLTAGE, latest(SampleDecoder.CHANNEL_VOLTAGE));
+    }
+
+    public String getCurrentValue() {
+        return SampleDecoder.format(SampleDecoder.CHANNEL_CURRENT, latest(SampleDecoder.CHANNEL_CURRENT));
+    }
+
+    public String getSpeedValue() {
+        return SampleDecoder.format(SampleDecoder.CHANNEL_SPEED, latest(SampleDecoder.CHANNEL_SPEED));
+    }
+
+    public String getTorqueValue() {
+        return SampleDecoder.format(SampleDecoder.CHANNEL_TORQUE, latest(SampleDecoder.CHANNEL_TORQUE));
+    }
+
+    public String getEfficiencyValue() {
+        return SampleDecoder.format(SampleDecoder.CHANNEL_EFFICIENCY, latest(SampleDecoder.CHANNEL_EFFICIENCY));
+    }
+
+    public String getInputPowerValue() {
+        return getDerivedValue(DerivedMetrics.CHANNEL_INPUT_POWER);
+    }
+
+    public String getOutputPowerValue() {
+        return getDerivedValue(DerivedMetrics.CHANNEL_OUTPUT_POWER);
+    }
+
+    public String getInputEnergyValue() {
+        return getDerivedValue(DerivedMetrics.CHANNEL_INPUT_ENERGY);
+    }
+
+    public String getOutputEnergyValue() {
+        return getDerivedValue(DerivedMetrics.CHANNEL_OUTPUT_ENERGY);
+    }
+
+    public String getLocalEfficiencyValue() {
+        return getDerivedValue(DerivedMetrics.CHANNEL_LOCAL_EFFICIENCY);
+    }
+
+    private String getDerivedValue(int channel) {
+        return DerivedMetrics.format(channel, latest(channel));
+    }
+
+    /**
+     * @return the latest value of a channel of the selected device, NaN if there is none. Raw
+     * channels are taken from the same row as of the last refresh, so they fit the powers.
+     */
+    private float latest(int channel) {
+        DeviceConnection selected = mSelected;
+        if (selected == null) {
+            return Float.NaN;
+        }
+        if (channel < SampleDecoder.CHANNEL_COUNT && selected == mDisplayedDevice
+                && mDisplayedRowNanos != Long.MIN_VALUE) {
+            return mDisplayedRow[channel];
+        }
+        return selected.mAcquisition.getSampleStore().latest(channel);
+    }
+
+    /**
+     * Gives access to the running statistics of all channels of the selected device and to
+     * the comparison of the reported with the locally computed efficiency.
+     *
+     * @return the metrics of the selected device, or null if there is none
+     */
+    public DerivedMetrics getDerivedMetrics() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition.getDerivedMetrics();
+    }
+
+    /**
+     * Gives access to the recorded history of all channels of the selected device. The store
+     * may be read from any thread.
+     *
+     * @return the sample store of the selected device, or null if there is none
+     */
+    public SampleStore getSampleStore() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition.getSampleStore();
+    }
+
+    /**
+     * Gives access to the compressed long-term history of all channels of the selected
+     * device. The history may be read from any thread.
+     */
+    public CompressedHistory getCompressedHistory() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition.getCompressedHistory();
+    }
+
+    /**
+     * Gives access to the min/max/mean summaries of all channels of the selected device. The
+     * rollups may be queried from any thread.
+     */
+    public RollupEngine getRollups() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition.getRollups();
+    }
+
+    /**
+     * Reduces the samples of a channel of the selected device in {@code [fromNanos, toNanos)}
+     * to about one point per pixel with {@link Lttb}. Short windows are downsampled from the
+     * raw samples, longer ones from the means of the finest rollup level that covers them.
+     *
+     * @param width number of points wanted, usually the width of the view in pixels
+     * @param times receives the timestamps of the points
+     * @param values receives the values of the points
+     * @return the number of points written
+     */
+    public synchronized int downsample(int channel, long fromNanos, long toNanos, int width,
+                                       long[] times, float[] values) {
+        DeviceConnection selected = mSelected;
+        if (selected == null) {
+            return 0;
+        }
+        DeviceAcquisition acquisition = selected.mAcquisition;
+        int n = acquisition.readHistory(channel, fromNanos, toNanos, mDownsampleTimes, mDownsampleValues);
+        if (n < MAX_DOWNSAMPLE_INPUT) {
+            return Lttb.downsample(mDownsampleTimes, mDownsampleValues, n, width, times, values);
+        }
+        RollupEngine.Buckets buckets = mDownsampleBuckets;
+        n = acquisition.getRollups().query(channel, fromNanos, toNanos, buckets);
+        return Lttb.downsample(buckets.times, buckets.means, n, width, times, values);
+    }
+
+    /**
+     * Copies the samples of a channel of the selected device whose timestamps lie in
+     * {@code [fromNanos, toNanos)}, see {@link DeviceAcquisition#readHistory}.
+     *
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @return the number of samples copied, at most the length of {@code values}
+     */
+    public int readHistory(int channel, long fromNanos, long toNanos, long[] times, float[] values) {
+        DeviceConnection selected = mSelected;
+        return selected == null ? 0
+                : selected.mAcquisition.readHistory(channel, fromNanos, toNanos, times, values);
+    }
+
+    /**
+     * Uses the given link profile from now on and stops choosing it automatically.
+     *
+     * @param profile the profile to use
+     */
+    public void setLinkProfile(LinkProfile profile) {
+        mAutoLinkProfile = false;
+        mLinkSelector.setProfile(profile);
+        applyLinkProfile(profile);
+    }
+
+    /**
+     * Lets the service choose the link profile from the backlog and whether a UI is attached.
+     */
+    public void setAutoLinkProfile(boolean auto) {
+        mAutoLinkProfile = auto;
+    }
+
+    public LinkProfile getLinkProfile() {
+        return mLinkProfile;
+    }
+
+    /**
+     * @param profile the profile of interest
+     * @return throughput and latency achieved by all devices while the profile was active
+     */
+    public LinkProfileStats getLinkProfileStats(LinkProfile profile) {
+        return mLinkStats[profile.ordinal()];
+    }
+
+    /**
+     * Switches all connections to the parameters of a profile.
+     */
+    private void applyLinkProfile(LinkProfile profile) {
+        LinkProfile previous = mLinkProfile;
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (previous != profile) {
+            mLinkStats[previous.ordinal()].deactivate(now);
+            Log.i(TAG, "Link profile " + previous + " -> " + profile);
+        }
+        mLinkProfile = profile;
+        mLinkStats[profile.ordinal()].activate(now);
+        for (DeviceConnection device : mDevices) {
+            device.applyLinkProfile(profile);
+        }
+    }
+
+    /**
+     * Chooses the link profile while connected, see LinkProfileSelector. The backlog is the
+     * sum over all devices.
+     */
+    private final Runnable mLinkEvaluation = new Runnable() {
+        @Override
+        public void run() {
+            int backlog = 0;
+            for (DeviceConnection device : mDevices) {
+                backlog += device.takeBacklog();
+            }
+
+            if (mAutoLinkProfile) {
+                LinkProfile profile = mLinkSelector.evaluate(backlog, mUiAttached);
+                if (profile != mLinkProfile) {
+                    applyLinkProfile(profile);
+                }
+            }
+            mMainHandler.postDelayed(this, LINK_EVALUATION_MILLIS);
+        }
+    };
+
+    private static int toScanMode(LinkProfile profile) {
+        switch (profile.getScanMode()) {
+            case LinkProfile.SCAN_LOW_LATENCY:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            case LinkProfile.SCAN_LOW_POWER:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+            default:
+                return ScanSettings.SCAN_MODE_BALANCED;
+        }
+    }
+
+    /**
+     * @return true if all channels of the selected device arrive in packed frames
+     */
+    public boolean isFrameMode() {
+        DeviceConnection selected = mSelected;
+        return selected != null && selected.mFrameMode;
+    }
+
+    /**
+     * @return number of frame rows of the selected device that were lost on the way,
+     * detected by their sequence numbers
+     */
+    public long getDroppedRowCount() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? 0 : selected.mAcquisition.getDroppedRowCount();
+    }
+
+    /**
+     * @return true if at least one channel of the selected device is currently polled
+     * instead of notified
+     */
+    public boolean isPolling() {
+        DeviceConnection selected = mSelected;
+        return selected != null && selected.mPolledChannels.get() != 0;
+    }
+
+    /**
+     * @return the current polling interval of the selected device, adapted to how fast the
+     * values change
+     */
+    public long getPollIntervalMillis() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? MIN_POLL_INTERVAL_MILLIS : selected.mPollInterval.getIntervalMillis();
+    }
+
+    /**
+     * Starts recording the received rows of every connected device into a new session below
+     * {@link #getSessionsDirectory()}. Devices that already record keep their recording.
+     *
+     * @return true if all connected devices record afterwards
+     */
+    public boolean startRecording() {
+        boolean recording = true;
+        for (DeviceConnection device : mDevices) {
+            if (device.mDiscovered) {
+                recording &= device.startRecording();
+            }
+        }
+        return recording;
+    }
+
+    /**
+     * Stops the running recordings. The remaining rows are written on a background thread.
+     */
+    public void stopRecording() {
+        for (DeviceConnection device : mDevices) {
+            device.stopRecording();
+        }
+    }
+
+    /**
+     * Sets whether a recording is started automatically for every connection.
+     */
+    public void setRecordingEnabled(boolean enabled) {
+        mRecordingEnabled = enabled;
     }
 
     /**
-     * This method is used to read the efficiency value from the device
+     * Streams the samples of every device to TCP clients on the local network, e.g.
+     * {@code nc <phone> 5050}. Frames are sent every {@code batchMillis}; a client that falls
+     * behind loses whole frames and never slows down the acquisition. A running stream is
+     * replaced.
+     *
+     * @param port the port to listen on, usually {@link TcpStreamServer#DEFAULT_PORT}
+     * @return the streamer, for its policy and counters
      */
-    public void readEfficiencyCharacteristic() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    public SampleStreamer startNetworkStream(int port) {
+        return startNetworkStream(new TcpStreamServer(port));
+    }
+
+    /**
+     * Publishes the samples of every device to an MQTT broker, one topic per device below
+     * {@code topicPrefix}. A running stream is replaced.
+     *
+     * @param port the port of the broker, usually {@link MqttPublisher#DEFAULT_PORT}
+     * @return the streamer, for its policy and counters
+     */
+    public SampleStreamer startMqttStream(String host, int port, String topicPrefix) {
+        return startNetworkStream(new MqttPublisher(host, port, topicPrefix,
+                "ble-" + Long.toHexString(SystemClock.elapsedRealtimeNanos())));
+    }
+
+    private synchronized SampleStreamer startNetworkStream(StreamTransport transport) {
+        stopNetworkStream();
+        mStreamer = new SampleStreamer(transport, mElapsedClock, SampleStreamer.DEFAULT_QUEUE_CAPACITY);
+        for (DeviceConnection device : mDevices) {
+            device.mStreamSource = mStreamer.addSource(device.getAddress());
         }
-        mBluetoothGatt.readCharacteristic(mEfficiencyCharacterisitc);
+        mStreamer.start();
+        return mStreamer;
     }
 
-    public void readCharacteristics() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    /**
+     * Stops the network stream. What is still queued is sent on a background thread before
+     * the connections close.
+     */
+    public synchronized void stopNetworkStream() {
+        final SampleStreamer streamer = mStreamer;
+        if (streamer == null) {
             return;
         }
-
-        mBluetoothGatt.readCharacteristic(mVoltageCharacterisitc);
-        mBluetoothGatt.readCharacteristic(mCurrentCharacterisitc);
-        mBluetoothGatt.readCharacteristic(mSpeedCharacterisitc);
-        mBluetoothGatt.readCharacteristic(mTorqueCharacterisitc);
-        mBluetoothGatt.readCharacteristic(mEfficiencyCharacterisitc);
-
-
-        // Notify the main activity that new data is available
-        broadcastUpdate(ACTION_DATA_RECEIVED);
+        mStreamer = null;
+        for (DeviceConnection device : mDevices) {
+            device.mStreamSource = null;
+        }
+        // The sender may be in a blocking connect or write of the transport
+        new Thread("SampleStreamerClose") {
+            @Override
+            public void run() {
+                streamer.close();
+                Log.i(TAG, "Streamed " + streamer.getSentSamples() + " samples in "
+                        + streamer.getSentFrames() + " frames");
+            }
+        }.start();
     }
 
+    private synchronized void removeStreamSource(DeviceConnection device) {
+        SampleStreamer.Source source = device.mStreamSource;
+        device.mStreamSource = null;
+        if (mStreamer != null && source != null) {
+            mStreamer.removeSource(source);
+        }
+    }
 
+    /**
+     * @return the running network stream, or null
+     */
+    public synchronized SampleStreamer getNetworkStreamer() {
+        return mStreamer;
+    }
 
-    public String getVoltageValue() {
-        return mVoltageValue;
+    /**
+     * Starts or stops capturing the raw GATT events of every connected device into a trace
+     * below {@link #getTracesDirectory()}, for replay with the {@link TraceReplayer}. A trace
+     * goes on across dropouts until capturing is stopped or the device is closed.
+     */
+    public void setTraceEnabled(boolean enabled) {
+        mTraceEnabled = enabled;
+        for (DeviceConnection device : mDevices) {
+            if (!enabled) {
+                device.stopTrace();
+            } else if (device.mConnected) {
+                device.startTrace();
+            }
+        }
     }
 
-    public String getCurrentValue() {
-        return mCurrentValue;
+    public boolean isTraceEnabled() {
+        return mTraceEnabled;
     }
 
-    public String getSpeedValue() {
-        return mSpeedValue;
+    /**
+     * @return the directory that holds the captured traces, one file per device and start
+     */
+    public File getTracesDirectory() {
+        return new File(getFilesDir(), "traces");
     }
 
-    public String getTorqueValue() {
-        return mTorqueValue;
+    /**
+     * @return the running recorder of the selected device, or null if nothing is recorded
+     */
+    public SessionRecorder getSessionRecorder() {
+        DeviceConnection selected = mSelected;
+        return selected == null ? null : selected.mAcquisition.getRecorder();
     }
 
-    public String getEfficiencyValue() {
-        return mEfficiencyValue;
+    /**
+     * @return the directory that holds one subdirectory per recorded session
+     */
+    public File getSessionsDirectory() {
+        return new File(getFilesDir(), "sessions");
     }
 
-    /* Enables notifications*/
-    public void enableNotifications() {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
-            return;
+    /**
+     * Exports a recorded session on a background thread. Exports run one after the other.
+     *
+     * @param session directory of the session, see {@link #getSessionsDirectory()}
+     * @param target file to write
+     * @param exporter format, channels, time range and progress listener of the export
+     * @return the number of exported rows
+     */
+    public synchronized Future<Long> exportSession(File session, File target, SessionExporter exporter) {
+        if (mExportExecutor == null) {
+            mExportExecutor = Executors.newSingleThreadExecutor();
         }
+        return exporter.exportAsync(mExportExecutor, session, target);
+    }
 
-        mBluetoothGatt.setCharacteristicNotification(mVoltageCharacterisitc, true);
-        mBluetoothGatt.setCharacteristicNotification(mCurrentCharacterisitc, true);
-        mBluetoothGatt.setCharacteristicNotification(mSpeedCharacterisitc, true);
-        mBluetoothGatt.setCharacteristicNotification(mTorqueCharacterisitc, true);
-        mBluetoothGatt.setCharacteristicNotification(mEfficiencyCharacterisitc, true);
-        Log.v(TAG, "Notifications enabled.");
+    private static void setBits(AtomicInteger mask, int bits) {
+        int value;
+        do {
+            value = mask.get();
+        } while (!mask.compareAndSet(value, value | bits));
+    }
+
+    private static void clearBits(AtomicInteger mask, int bits) {
+        int value;
+        do {
+            value = mask.get();
+        } while (!mask.compareAndSet(value, value & ~bits));
     }
 
     /**
@@ -341,11 +1685,7 @@ public class MeasurementService extends Service {
             new BluetoothAdapter.LeScanCallback() {
                 @Override
                 public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    mLeDevice = device;
-                    //noinspection declaration
-                    mBluetoothAdapter.stopLeScan(mLeScanCallback); // Stop scanning after the first device is found
-                    Log.v(TAG, "Device found.");
-                    broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+                    onScanReport(device, rssi);
                 }
             };
 
@@ -358,150 +1698,939 @@ public class MeasurementService extends Service {
     private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            mLeDevice = result.getDevice();
-            mLEScanner.stopScan(mScanCallback); // Stop scanning after the first device is found
-            Log.v(TAG, "Device found.");
-            broadcastUpdate(ACTION_BLESCAN_CALLBACK); // Tell the main activity that a device has been found
+            onScanReport(result.getDevice(), result.getRssi());
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) {
+                ScanResult result = results.get(i);
+                onScanReport(result.getDevice(), result.getRssi());
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            Log.e(TAG, "Scan failed: " + errorCode);
+            mScanning = false;
+            mMainHandler.removeCallbacks(mFinishScan);
+            mMainHandler.removeCallbacks(mRankScan);
         }
     };
 
     /**
-     * Implements callback methods for GATT events that the app cares about.  For example,
-     * connection change and services discovered.
+     * Called by a device when its connection is established.
      */
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                broadcastUpdate(ACTION_CONNECTED);
-                Log.i(TAG, "Connected to GATT server.");
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(ACTION_DISCONNECTED);
+    private void onDeviceConnected(DeviceConnection device) {
+        if (mSelected == null) {
+            mSelected = device;
+        }
+        if (mConnectedCount.incrementAndGet() == 1) {
+            // Set up the link for the current profile and keep adapting it
+            mMainHandler.removeCallbacks(mLinkEvaluation);
+            mMainHandler.postDelayed(mLinkEvaluation, LINK_EVALUATION_MILLIS);
+            mDispatcher.dispatchConnected();
+        }
+        reportConnectionState();
+    }
+
+    /**
+     * Called by a device when its connection was closed or lost. The listeners are told once
+     * the last device is gone.
+     */
+    private void onDeviceDisconnected(DeviceConnection device) {
+        if (mSelected == device) {
+            // Show another device that is still streaming, if there is one
+            for (DeviceConnection other : mDevices) {
+                if (other != device && other.mDiscovered) {
+                    mSelected = other;
+                    break;
+                }
+            }
+        }
+        if (mConnectedCount.decrementAndGet() == 0) {
+            mMainHandler.removeCallbacks(mLinkEvaluation);
+            mLinkStats[mLinkProfile.ordinal()].deactivate(SystemClock.elapsedRealtimeNanos());
+            mDispatcher.dispatchDisconnected();
+        }
+        reportConnectionState();
+    }
+
+    /**
+     * The connection, characteristic handles and polling state of one device. Everything that
+     * is received ends up in its {@link DeviceAcquisition}.
+     */
+    private class DeviceConnection {
+        final DeviceAcquisition mAcquisition;
+        final ConnectionStateMachine mState;
+        final AcquisitionMetrics mMetrics = new AcquisitionMetrics();
+        // The Android stack, or a simulated sensor
+        final GattConnection mTransport;
+        volatile boolean mConnected;
+        volatile boolean mDiscovered;
+
+        // Whether the device came from the cache, and whether it reconnects after a dropout
+        volatile boolean mWarm;
+        volatile boolean mReconnecting;
+        volatile boolean mDisconnectRequested;
+        // Set by a dropout: the acquisition and recording go on where they stopped
+        volatile boolean mResuming;
+
+        // Start of the connection whose first sample is still missing, 0 if none
+        volatile long mConnectStartNanos;
+
+        volatile boolean mFrameMode;
+        volatile int mMtu = 23;
+        long mLastDroppedRows;
+
+        // Captures the raw events while tracing is enabled, null otherwise
+        volatile TraceRecorder mTrace;
+
+        // Queue of the network stream while streaming, null otherwise
+        volatile SampleStreamer.Source mStreamSource;
+
+        // Streams every sample, also those the UI never sees, then hands it on to the UI
+        final DeviceAcquisition.Listener mStreamListener = new DeviceAcquisition.Listener() {
+            @Override
+            public void onSample(DeviceAcquisition device, int channel, long timeNanos, float value) {
+                SampleStreamer.Source source = mStreamSource;
+                if (source != null) {
+                    source.offer(channel, timeNanos, value);
+                }
+                mSampleListener.onSample(device, channel, timeNanos, value);
+            }
+        };
+
+        // Channels whose notifications are subscribed, and channels that are polled instead
+        final AtomicInteger mNotifyingChannels = new AtomicInteger();
+        final AtomicInteger mPolledChannels = new AtomicInteger();
+
+        // Arrival time of the last notification per channel, in elapsedRealtime milliseconds
+        final AtomicLongArray mLastNotifications = new AtomicLongArray(SampleDecoder.CHANNEL_COUNT);
+
+        // Polling state, the poll task runs on the main thread
+        final AdaptivePollInterval mPollInterval =
+                new AdaptivePollInterval(MIN_POLL_INTERVAL_MILLIS, MAX_POLL_INTERVAL_MILLIS);
+        final float[] mLastPolledValues = new float[SampleDecoder.CHANNEL_COUNT];
+        volatile boolean mPolling;
+
+        DeviceConnection(GattConnection transport) {
+            mTransport = transport;
+            mTransport.setCallback(mGattCallback);
+            mAcquisition = new DeviceAcquisition(transport.getAddress(), mDecoder, transport,
+                    mMainScheduler, getCompressedHistoryBytes());
+            mAcquisition.setListener(mStreamListener);
+            mState = new ConnectionStateMachine(transport.getAddress(), ConnectionStateMachine.State.IDLE,
+                    SystemClock.elapsedRealtimeNanos());
+            mState.setListener(mStateListener);
+        }
+
+        String getAddress() {
+            return mAcquisition.getAddress();
+        }
+
+        void setState(ConnectionStateMachine.State state) {
+            if (!mState.moveTo(state, SystemClock.elapsedRealtimeNanos())) {
+                Log.w(TAG, getAddress() + ": illegal transition " + mState.getState() + " -> " + state);
+            }
+        }
+
+        /**
+         * Starts the connection, called by the connection scheduler.
+         */
+        boolean startConnect() {
+            mDisconnectRequested = false;
+            setState(ConnectionStateMachine.State.CONNECTING);
+            if (mConnectStartNanos == 0) {
+                mConnectStartNanos = SystemClock.elapsedRealtimeNanos();
+            }
+            Log.d(TAG, "Trying to connect to " + getAddress());
+            return mTransport.connect();
+        }
+
+        /**
+         * Starts the service discovery, called by the connection scheduler.
+         */
+        boolean startDiscovery() {
+            return mConnected && mTransport.discoverServices();
+        }
+
+        void disconnect() {
+            mDisconnectRequested = true;
+            mMainHandler.removeCallbacks(mReconnectTask);
+            mConnectionScheduler.cancel(getAddress());
+            mTransport.disconnect();
+            if (mReconnecting) {
+                // A pending background connection reports nothing when it is cancelled
+                mReconnecting = false;
+                stopStreaming();
+                onDeviceDisconnected(this);
+            }
+            if (!mConnected) {
+                setState(ConnectionStateMachine.State.IDLE);
+            }
+        }
+
+        void close() {
+            mDisconnectRequested = true;
+            mReconnecting = false;
+            mMainHandler.removeCallbacks(mReconnectTask);
+            mConnectionScheduler.cancel(getAddress());
+            mAcquisition.getGattQueue().clear();
+            stopStreaming();
+            stopTrace();
+            removeStreamSource(this);
+            mTransport.close();
+            mConnected = false;
+            mDiscovered = false;
+            setState(ConnectionStateMachine.State.CLOSED);
+        }
+
+        /**
+         * Waits before the next background connection of a dropped device. The delay only
+         * grows when the stack gives a background connection up with an error, waiting for
+         * the device to come back in range has no timeout and no limit.
+         */
+        void scheduleReconnect() {
+            setState(ConnectionStateMachine.State.RECONNECTING);
+            long delay = mState.nextReconnectDelayMillis();
+            Log.i(TAG, "Reconnecting " + getAddress() + " in " + delay + " ms");
+            mMainHandler.removeCallbacks(mReconnectTask);
+            mMainHandler.postDelayed(mReconnectTask, delay);
+        }
+
+        // Starts a background connection, outside of the connection scheduler and its timeout
+        private final Runnable mReconnectTask = new Runnable() {
+            @Override
+            public void run() {
+                if (!mReconnecting) {
+                    return;
+                }
+                mConnectStartNanos = SystemClock.elapsedRealtimeNanos();
+                Log.d(TAG, "Waiting in the background for " + getAddress());
+                if (!mTransport.connectInBackground()) {
+                    scheduleReconnect();
+                }
+            }
+        };
+
+        void readCharacteristics() {
+            // The reads are queued and run one after the other. The listeners are notified
+            // when they complete.
+            GattOperationQueue queue = mAcquisition.getGattQueue();
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                queue.read(mDecoder.uuidOf(channel));
+            }
+        }
+
+        /**
+         * @return the requests and lost frame rows that piled up since the last call
+         */
+        int takeBacklog() {
+            long dropped = mAcquisition.getDroppedRowCount();
+            int backlog = mAcquisition.getGattQueue().getQueueDepth()
+                    + (int) Math.min(Integer.MAX_VALUE, dropped - mLastDroppedRows);
+            mLastDroppedRows = dropped;
+            return backlog;
+        }
+
+        /**
+         * Switches the connection to the parameters of a profile. The MTU is only ever raised,
+         * Android cannot lower it during a connection.
+         */
+        void applyLinkProfile(LinkProfile profile) {
+            if (!mDiscovered) {
+                return;
+            }
+            mTransport.setLinkProfile(profile);
+            if (profile.getMtu() > mMtu) {
+                mAcquisition.getGattQueue().requestMtu(profile.getMtu(), null);
             }
         }
 
         /**
-         * This is called when a service discovery has completed.
+         * Subscribes to the notifications of all channels. Besides enabling them locally, this
+         * writes the CCCD of every characteristic, otherwise the device decides on its own
+         * whether it sends anything.
          *
-         * It gets the characteristics we are interested in and then
-         * broadcasts an update to the main activity.
+         * If the device has the packed frame characteristic, the MTU of the link profile is
+         * requested and only the frames are subscribed, which carry all channels in one
+         * notification. Otherwise, or if that fails, every channel is subscribed on its own.
          *
-         * @param gatt The GATT database object
-         * @param status Status of whether the write was successful.
+         * Channels that do not support notifications, whose subscription fails or whose
+         * notifications stall are polled instead, until notifications arrive again.
          */
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status){
-            // Get just the service that we are looking for
-            BluetoothGattService mService = gatt.getService(UUID.fromString(measurementServiceUUID));
-            /* Get characteristics from our desired service */
-            mVoltageCharacterisitc = mService.getCharacteristic(UUID.fromString(voltageCharacterisitcUUID));
-            mCurrentCharacterisitc = mService.getCharacteristic(UUID.fromString(currentCharacterisitcUUID));
-            mSpeedCharacterisitc = mService.getCharacteristic(UUID.fromString(speedCharacterisitcUUID));
-            mTorqueCharacterisitc = mService.getCharacteristic(UUID.fromString(torqueCharacterisitcUUID));
-            mEfficiencyCharacterisitc = mService.getCharacteristic(UUID.fromString(efficiencyCharacterisitcUUID));
-
-            // Read the current values from the device
-            readCharacteristics();
+        void enableNotifications() {
+            mFrameMode = false;
+            if (hasFrameNotifications() && mTransport.hasDescriptor(FRAME_UUID, CCCD)) {
+                mAcquisition.getGattQueue().requestMtu(mLinkProfile.getMtu(), new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, boolean success) {
+                        if (success && FrameDecoder.rowsPerNotification(mMtu) > 0) {
+                            subscribeFrames();
+                        } else {
+                            Log.i(TAG, "MTU too small for frames, subscribing channels.");
+                            subscribeChannels();
+                        }
+                    }
+                });
+            } else {
+                subscribeChannels();
+            }
+        }
 
-            // Broadcast that service/characteristic/descriptor discovery is done
-            broadcastUpdate(ACTION_SERVICES_DISCOVERED);
+        /**
+         * Subscribes to the packed frame characteristic, falls back to the single channels if
+         * that fails.
+         */
+        private void subscribeFrames() {
+            if (!mTransport.setCharacteristicNotification(FRAME_UUID, true)) {
+                subscribeChannels();
+                return;
+            }
+            mAcquisition.getGattQueue().writeDescriptor(FRAME_UUID, CCCD,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, new GattOperation.Callback() {
+                        @Override
+                        public void onComplete(GattOperation operation, boolean success) {
+                            if (!success) {
+                                Log.w(TAG, "Frame subscription failed, subscribing channels.");
+                                mTransport.setCharacteristicNotification(FRAME_UUID, false);
+                                subscribeChannels();
+                                return;
+                            }
+                            Log.v(TAG, "Frame notifications enabled, "
+                                    + FrameDecoder.rowsPerNotification(mMtu) + " rows per notification.");
+                            mFrameMode = true;
+                            long now = SystemClock.elapsedRealtime();
+                            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                                mLastNotifications.set(channel, now);
+                            }
+                            setBits(mNotifyingChannels, (1 << SampleDecoder.CHANNEL_COUNT) - 1);
+                            mMainHandler.removeCallbacks(mStallCheck);
+                            mMainHandler.post(mStallCheck);
+                        }
+                    });
         }
 
         /**
-         * This is called when a read completes
-         *
-         * @param gatt the GATT database object
-         * @param characteristic the GATT characteristic that was read
-         * @param status the status of the transaction
+         * Subscribes to the characteristic of every channel.
          */
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                // Verify that the read was the LED state
-                String uuid = characteristic.getUuid().toString();
-
-                if(uuid.equals(voltageCharacterisitcUUID)) {
-                    mVoltageValue = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT,0).toString();
-                }else if(uuid.equals(currentCharacterisitcUUID)) {
-                    mCurrentValue = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT,0).toString();
-                }else if(uuid.equals(speedCharacterisitcUUID)) {
-                    mSpeedValue = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT,0).toString();
-                }else if(uuid.equals(torqueCharacterisitcUUID)) {
-                    mTorqueValue = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT,0).toString();
-                }else if(uuid.equals(efficiencyCharacterisitcUUID)) {
-                    mEfficiencyValue = characteristic.getFloatValue(BluetoothGattCharacteristic.FORMAT_FLOAT,0).toString();
+        private void subscribeChannels() {
+            long now = SystemClock.elapsedRealtime();
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                final int bit = 1 << channel;
+                UUID characteristic = mDecoder.uuidOf(channel);
+                if ((mTransport.getProperties(characteristic) & GattConnection.PROPERTY_NOTIFY) == 0
+                        || !mTransport.hasDescriptor(characteristic, CCCD)
+                        || !mTransport.setCharacteristicNotification(characteristic, true)) {
+                    Log.w(TAG, "Notifications not supported, polling channel " + channel);
+                    setBits(mPolledChannels, bit);
+                    continue;
                 }
+
+                mLastNotifications.set(channel, now);
+                setBits(mNotifyingChannels, bit);
+                mAcquisition.getGattQueue().writeDescriptor(characteristic, CCCD,
+                        BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE, new GattOperation.Callback() {
+                            @Override
+                            public void onComplete(GattOperation operation, boolean success) {
+                                if (!success) {
+                                    Log.w(TAG, "Subscription failed: " + operation);
+                                    clearBits(mNotifyingChannels, bit);
+                                    setBits(mPolledChannels, bit);
+                                    mMainHandler.post(mStallCheck);
+                                }
+                            }
+                        });
             }
+            Log.v(TAG, "Notifications enabled for " + getAddress());
+
+            mMainHandler.removeCallbacks(mStallCheck);
+            mMainHandler.post(mStallCheck);
         }
 
         /**
-         * This is called when a characteristic with notify set changes.
-         * It broadcasts an update to the main activity with the changed data.
+         * Switches stalled channels to polling and channels whose notifications came back to
+         * notifications again. Runs periodically on the main thread while streaming.
+         */
+        private final Runnable mStallCheck = new Runnable() {
+            @Override
+            public void run() {
+                long now = SystemClock.elapsedRealtime();
+                int notifying = mNotifyingChannels.get();
+                // One stalled frame characteristic stalls every channel, it counts once
+                boolean frameStalled = false;
+                for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                    int bit = 1 << channel;
+                    if ((notifying & bit) == 0) {
+                        continue;
+                    }
+                    if (now - mLastNotifications.get(channel) > STALL_TIMEOUT_MILLIS) {
+                        if ((mPolledChannels.get() & bit) == 0) {
+                            if (mFrameMode) {
+                                frameStalled = true;
+                            } else {
+                                mMetrics.onStall(channel);
+                            }
+                        }
+                        setBits(mPolledChannels, bit);
+                    } else {
+                        clearBits(mPolledChannels, bit);
+                    }
+                }
+                if (frameStalled) {
+                    mMetrics.onStall(AcquisitionMetrics.FRAME);
+                }
+
+                if (mPolledChannels.get() != 0 && !mPolling) {
+                    Log.i(TAG, "Falling back to polling " + getAddress());
+                    mPolling = true;
+                    mPollInterval.reset();
+                    mAcquisition.getRowAssembler().setWindow(POLLED_ROW_SKEW_NANOS, POLLED_ROW_SKEW_NANOS);
+                    mMainHandler.post(mPollTask);
+                }
+                mMainHandler.postDelayed(this, STALL_TIMEOUT_MILLIS / 2);
+            }
+        };
+
+        /**
+         * Reads the polled channels and schedules the next poll. The interval shrinks while
+         * the values change and grows while they stay the same.
+         */
+        private final Runnable mPollTask = new Runnable() {
+            @Override
+            public void run() {
+                int polled = mPolledChannels.get();
+                if (polled == 0) {
+                    Log.i(TAG, "Notifications resumed, polling stopped.");
+                    mPolling = false;
+                    mAcquisition.getRowAssembler().setWindow(RowAssembler.DEFAULT_SKEW_NANOS,
+                            RowAssembler.DEFAULT_DELAY_NANOS);
+                    return;
+                }
+
+                GattOperationQueue queue = mAcquisition.getGattQueue();
+                boolean changed = false;
+                for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                    if ((polled & (1 << channel)) == 0) {
+                        continue;
+                    }
+                    float value = mAcquisition.getSampleStore().latest(channel);
+                    // Also equal while both are NaN, before the first value
+                    if (Float.compare(value, mLastPolledValues[channel]) != 0) {
+                        mLastPolledValues[channel] = value;
+                        changed = true;
+                    }
+                    // Do not pile up reads if the link cannot keep up with the interval
+                    if (queue.getQueueDepth() < SampleDecoder.CHANNEL_COUNT) {
+                        queue.read(mDecoder.uuidOf(channel));
+                    }
+                }
+                mMainHandler.postDelayed(this, mPollInterval.onPoll(changed));
+            }
+        };
+
+        /**
+         * Starts recording the received rows into a new session. Does nothing if a recording
+         * is already running.
          *
-         * @param gatt The GATT database object
-         * @param characteristic The characteristic that was changed
+         * @return true if a recording is running afterwards
          */
-        @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
+        synchronized boolean startRecording() {
+            if (mAcquisition.getRecorder() != null) {
+                return true;
+            }
+            long startMillis = System.currentTimeMillis();
+            String name = startMillis + "_" + getAddress().replace(":", "");
+            SessionRecorder recorder = new SessionRecorder(
+                    new File(getSessionsDirectory(), name), SampleDecoder.CHANNEL_COUNT);
+            mMode.applyTo(recorder);
+            try {
+                recorder.start(startMillis, SystemClock.elapsedRealtimeNanos());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start recording.", e);
+                return false;
+            }
+            mAcquisition.setRecorder(recorder);
+            Log.i(TAG, "Recording to " + recorder.getDirectory());
+            return true;
+        }
 
-            String uuid = characteristic.getUuid().toString();
+        /**
+         * Stops the running recording. The remaining rows are written on a background thread.
+         */
+        synchronized void stopRecording() {
+            final SessionRecorder recorder = mAcquisition.setRecorder(null);
+            if (recorder == null) {
+                return;
+            }
+            new Thread("SessionRecorderClose") {
+                @Override
+                public void run() {
+                    try {
+                        recorder.close();
+                        Log.i(TAG, "Recorded " + recorder.getRecordedRows() + " rows, dropped "
+                                + recorder.getDroppedRows());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Recording failed.", e);
+                    }
+                }
+            }.start();
+        }
 
-            byte[] tmp;
-            float floatTmp = characteristicToFloat(characteristic.getValue());
+        /**
+         * Starts capturing the raw GATT events into a new trace. Does nothing if a trace is
+         * already running.
+         */
+        synchronized void startTrace() {
+            if (mTrace != null) {
+                return;
+            }
+            long startMillis = System.currentTimeMillis();
+            String name = startMillis + "_" + getAddress().replace(":", "") + ".trace";
+            TraceRecorder trace = new TraceRecorder(new File(getTracesDirectory(), name));
+            mMode.applyTo(trace);
+            try {
+                trace.start(startMillis, SystemClock.elapsedRealtimeNanos());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to start trace.", e);
+                return;
+            }
+            mTrace = trace;
+            Log.i(TAG, "Tracing to " + trace.getFile());
+        }
 
-            // New values are stored
-            switch(uuid)
-            {
-                case voltageCharacterisitcUUID:
-                    mVoltageValue = String.format("%.1f",floatTmp);
-                    break;
+        /**
+         * Stops the running trace. The remaining events are written on a background thread.
+         */
+        synchronized void stopTrace() {
+            final TraceRecorder trace = mTrace;
+            if (trace == null) {
+                return;
+            }
+            mTrace = null;
+            new Thread("TraceRecorderClose") {
+                @Override
+                public void run() {
+                    try {
+                        trace.close();
+                        Log.i(TAG, "Traced " + trace.getRecordedEvents() + " events, dropped "
+                                + trace.getDroppedEvents());
+                    } catch (IOException e) {
+                        Log.e(TAG, "Trace failed.", e);
+                    }
+                }
+            }.start();
+        }
 
-                case currentCharacterisitcUUID:
-                    mCurrentValue = String.format("%.1f",floatTmp);
-                    break;
+        /**
+         * Applies the write batching of a mode to the running recorder and trace, and writes
+         * what they collected so far.
+         */
+        void applyMode(AcquisitionMode mode) {
+            SessionRecorder recorder = mAcquisition.getRecorder();
+            if (recorder != null) {
+                mode.applyTo(recorder);
+            }
+            TraceRecorder trace = mTrace;
+            if (trace != null) {
+                mode.applyTo(trace);
+            }
+            flush();
+        }
 
-                case speedCharacterisitcUUID:
-                    mSpeedValue = String.format("%.0f",floatTmp);
-                    break;
+        /**
+         * Asks the recorder and the trace to write and sync everything soon.
+         */
+        void flush() {
+            SessionRecorder recorder = mAcquisition.getRecorder();
+            if (recorder != null) {
+                recorder.flush();
+            }
+            TraceRecorder trace = mTrace;
+            if (trace != null) {
+                trace.flush();
+            }
+        }
 
-                case torqueCharacterisitcUUID:
-                    mTorqueValue = String.format("%.1f",floatTmp);
-                    break;
+        /**
+         * Stops the recording, stall detection and polling, e.g. after a disconnect.
+         */
+        void stopStreaming() {
+            stopRecording();
+            stopPolling();
+        }
 
-                case efficiencyCharacterisitcUUID:
-                    mEfficiencyValue = String.format("%.1f",floatTmp);
-                    break;
+        /**
+         * Stops the stall detection and polling, but keeps the recording.
+         */
+        void stopPolling() {
+            mNotifyingChannels.set(0);
+            mPolledChannels.set(0);
+            mMainHandler.removeCallbacks(mStallCheck);
+            mMainHandler.removeCallbacks(mPollTask);
+            mPolling = false;
+            mAcquisition.getRowAssembler().setWindow(RowAssembler.DEFAULT_SKEW_NANOS,
+                    RowAssembler.DEFAULT_DELAY_NANOS);
+        }
+
+        /**
+         * Starts streaming from the characteristics of the measurement service.
+         *
+         * @param discovered true if the service comes from a discovery, its layout is cached
+         */
+        private void onServiceResolved(boolean discovered) {
+            mDiscovered = true;
+            setState(ConnectionStateMachine.State.SUBSCRIBING);
+            if (discovered) {
+                mDeviceCache.put(new DeviceCache.Layout(getAddress(), getChannelMask(false),
+                        getChannelMask(true), hasFrameNotifications(), mMtu, System.currentTimeMillis()));
+                saveDeviceCache();
+            }
+
+            // Set up the link for the current profile
+            applyLinkProfile(mLinkProfile);
+            mLinkStats[mLinkProfile.ordinal()].activate(SystemClock.elapsedRealtimeNanos());
+
+            // Energy and statistics start over with every connection, not with every dropout
+            if (!mResuming) {
+                mAcquisition.reset();
+                mMetrics.reset();
+                TraceRecorder trace = mTrace;
+                if (trace != null) {
+                    trace.onReset(SystemClock.elapsedRealtimeNanos());
+                }
+            }
+            mResuming = false;
+
+            // Read the current values from the device and keep them coming
+            readCharacteristics();
+            enableNotifications();
+
+            // Persist everything received from now on
+            if (mRecordingEnabled) {
+                startRecording();
+            }
+
+            // Tell the listeners that service/characteristic/descriptor discovery is done
+            if (mSelected == this) {
+                mDispatcher.dispatchServicesDiscovered();
+            }
+        }
+
+        /**
+         * @return true if the known service shows the same characteristics as on the last
+         * discovery
+         */
+        private boolean isCachedLayout() {
+            DeviceCache.Layout layout = mDeviceCache.get(getAddress());
+            if (layout == null || !mTransport.hasService()) {
+                return false;
+            }
+            return layout.matches(getChannelMask(false), getChannelMask(true), hasFrameNotifications());
+        }
+
+        /**
+         * @param notify true for the channels that can notify, false for all that exist
+         */
+        private int getChannelMask(boolean notify) {
+            int mask = 0;
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                int properties = mTransport.getProperties(mDecoder.uuidOf(channel));
+                if (properties != 0 && (!notify || (properties & GattConnection.PROPERTY_NOTIFY) != 0)) {
+                    mask |= 1 << channel;
+                }
             }
+            return mask;
+        }
+
+        private boolean hasFrameNotifications() {
+            // Only newer firmware has the packed frames
+            return (mTransport.getProperties(FRAME_UUID) & GattConnection.PROPERTY_NOTIFY) != 0;
+        }
 
-            // Notify the main activity that new data is available
-            broadcastUpdate(ACTION_DATA_RECEIVED);
+        /**
+         * Counts the time to the first sample of a connection. Only the first sample after a
+         * connect pays more than a volatile read.
+         */
+        private void onSampleArrived(long arrivalNanos) {
+            long start = mConnectStartNanos;
+            if (start == 0) {
+                return;
+            }
+            mConnectStartNanos = 0;
+            setState(ConnectionStateMachine.State.STREAMING);
+            long nanos = arrivalNanos - start;
+            mConnectTimings.record(mWarm ? ConnectTimings.WARM : ConnectTimings.COLD, nanos);
+            Log.i(TAG, "First sample of " + getAddress() + " after " + nanos / 1000000 + " ms ("
+                    + (mWarm ? "warm" : "cold") + ")");
         }
-    }; // End of GATT event callback methods
 
-    private float characteristicToFloat(byte[] b){
-        byte tmp;
-        tmp = b[0];
-        b[0] = b[3];
-        b[3] = tmp;
-        tmp = b[1];
-        b[1] = b[2];
-        b[2] = tmp;
+        /**
+         * Implements callback methods for GATT events that the app cares about.  For example,
+         * connection change and services discovered.
+         */
+        private final GattConnection.Callback mGattCallback = new GattConnection.Callback() {
+            @Override
+            public void onConnectionStateChange(GattConnection connection, boolean connected) {
+                if (connected && mTraceEnabled) {
+                    startTrace();
+                }
+                TraceRecorder trace = mTrace;
+                if (trace != null) {
+                    trace.onConnectionStateChange(connected, SystemClock.elapsedRealtimeNanos());
+                }
+                if (connected) {
+                    Log.i(TAG, "Connected to GATT server " + getAddress());
+                    mConnectionScheduler.complete(getAddress(), ConnectionScheduler.STEP_CONNECT, true);
+                    if (mState.is(ConnectionStateMachine.State.RECONNECTING)) {
+                        // The device is back in range
+                        mMainHandler.removeCallbacks(mReconnectTask);
+                        setState(ConnectionStateMachine.State.CONNECTING);
+                    }
+                    if (!mConnected) {
+                        mConnected = true;
+                        if (!mReconnecting) {
+                            onDeviceConnected(DeviceConnection.this);
+                        }
+                        mReconnecting = false;
+                    }
+                    // A known connection still has the services of the last discovery
+                    if (isCachedLayout()) {
+                        Log.i(TAG, "Cached layout still valid, skipping discovery of " + getAddress());
+                        onServiceResolved(false);
+                        return;
+                    }
+                    // This will discover the service and the characteristics once the radio is free
+                    setState(ConnectionStateMachine.State.DISCOVERING);
+                    mConnectionScheduler.enqueue(getAddress(), ConnectionScheduler.STEP_DISCOVER);
+                } else {
+                    Log.i(TAG, "Disconnected from GATT server " + getAddress());
+                    mConnectionScheduler.complete(getAddress(), ConnectionScheduler.STEP_CONNECT, false);
+                    mConnectionScheduler.cancel(getAddress());
+                    // Requests still queued would never get their callbacks
+                    mAcquisition.getGattQueue().clear();
+                    mDiscovered = false;
+                    if (mReconnecting) {
+                        // The stack gave the background connection up, start another one
+                        scheduleReconnect();
+                        return;
+                    }
+                    if (mConnected && mFastReconnect && !mDisconnectRequested) {
+                        // A dropout: reconnect with growing delays, the recording goes on
+                        Log.i(TAG, "Connection lost: " + getAddress());
+                        mConnected = false;
+                        mReconnecting = true;
+                        mResuming = true;
+                        mWarm = true;
+                        stopPolling();
+                        scheduleReconnect();
+                        return;
+                    }
+                    stopStreaming();
+                    setState(ConnectionStateMachine.State.IDLE);
+                    if (mConnected) {
+                        mConnected = false;
+                        onDeviceDisconnected(DeviceConnection.this);
+                    }
+                }
+            }
+
+            /**
+             * This is called when a service discovery has completed.
+             *
+             * It gets the characteristics we are interested in, subscribes to them and then
+             * notifies the listeners.
+             *
+             * @param connection the connection of the device
+             * @param success true if the measurement service was found
+             */
+            @Override
+            public void onServicesDiscovered(GattConnection connection, boolean success) {
+                mConnectionScheduler.complete(getAddress(), ConnectionScheduler.STEP_DISCOVER, success);
+                if (!success) {
+                    Log.w(TAG, "Measurement service not found on " + getAddress());
+                    connection.disconnect();
+                    return;
+                }
+                onServiceResolved(true);
+            }
+
+            /**
+             * This is called when a read completes
+             *
+             * @param connection the connection of the device
+             * @param characteristic the characteristic that was read
+             * @param value the value that was read
+             * @param success the status of the transaction
+             */
+            @Override
+            public void onCharacteristicRead(GattConnection connection, UUID characteristic, byte[] value,
+                                             boolean success) {
+                if (success) {
+                    // Reads carry the same little-endian floats as notifications
+                    long arrival = SystemClock.elapsedRealtimeNanos();
+                    TraceRecorder trace = mTrace;
+                    if (trace != null) {
+                        trace.onRead(characteristic, value, arrival);
+                    }
+                    long decodeStart = System.nanoTime();
+                    int channel = mAcquisition.onValue(characteristic, value, arrival);
+                    mMetrics.onRead(System.nanoTime() - decodeStart);
+                    if (channel != SampleDecoder.NO_CHANNEL) {
+                        onSampleArrived(arrival);
+                        if (mSelected == DeviceConnection.this && mMode.isUiUpdating()) {
+                            mMetrics.onPending(arrival);
+                        }
+                    }
+                }
+                // Start the next queued request
+                mAcquisition.getGattQueue().onCharacteristicRead(characteristic, success);
+            }
+
+            /**
+             * This is called when a write completes
+             *
+             * @param connection the connection of the device
+             * @param characteristic the characteristic that was written
+             * @param success the status of the transaction
+             */
+            @Override
+            public void onCharacteristicWrite(GattConnection connection, UUID characteristic, boolean success) {
+                mAcquisition.getGattQueue().onCharacteristicWrite(characteristic, success);
+            }
+
+            /**
+             * This is called when a descriptor write completes
+             *
+             * @param connection the connection of the device
+             * @param characteristic the characteristic of the descriptor
+             * @param descriptor the descriptor that was written
+             * @param success the status of the transaction
+             */
+            @Override
+            public void onDescriptorWrite(GattConnection connection, UUID characteristic, UUID descriptor,
+                                          boolean success) {
+                mAcquisition.getGattQueue().onDescriptorWrite(characteristic, descriptor, success);
+            }
+
+            /**
+             * This is called when an MTU request completes
+             *
+             * @param connection the connection of the device
+             * @param mtu the new MTU
+             * @param success the status of the transaction
+             */
+            @Override
+            public void onMtuChanged(GattConnection connection, int mtu, boolean success) {
+                if (success) {
+                    mMtu = mtu;
+                }
+                mAcquisition.getGattQueue().onMtuChanged(success);
+            }
 
-        ByteBuffer buf = ByteBuffer.wrap(b);
-        return buf.getFloat();
+            /**
+             * This is called when a characteristic with notify set changes.
+             * The new value is stored and handed to the listeners.
+             *
+             * @param connection the connection of the device
+             * @param characteristic the characteristic that was changed
+             * @param value its new value
+             */
+            @Override
+            public void onCharacteristicChanged(GattConnection connection, UUID characteristic, byte[] value) {
+                long arrival = SystemClock.elapsedRealtimeNanos();
+                TraceRecorder trace = mTrace;
+                if (trace != null) {
+                    // Raw and before decoding, so the trace shows what arrived even if it broke
+                    trace.onNotification(characteristic, value, arrival);
+                }
+                if (FRAME_UUID.equals(characteristic)) {
+                    // All channels in one notification, possibly several rows
+                    long decodeStart = System.nanoTime();
+                    int rows = mAcquisition.onFrame(value, arrival);
+                    mMetrics.onNotification(AcquisitionMetrics.FRAME, arrival, System.nanoTime() - decodeStart);
+                    if (rows > 0) {
+                        onSampleArrived(arrival);
+                        if (mSelected == DeviceConnection.this && mMode.isUiUpdating()) {
+                            mMetrics.onPending(arrival);
+                        }
+                        long now = SystemClock.elapsedRealtime();
+                        for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                            mLastNotifications.set(channel, now);
+                        }
+                    }
+                    mLinkStats[mLinkProfile.ordinal()].onNotification(arrival,
+                            rows * SampleDecoder.CHANNEL_COUNT);
+                    return;
+                }
 
+                // New values are stored, the listeners are notified with the next refresh
+                long decodeStart = System.nanoTime();
+                int channel = mAcquisition.onValue(characteristic, value, arrival);
+                if (channel != SampleDecoder.NO_CHANNEL) {
+                    mMetrics.onNotification(channel, arrival, System.nanoTime() - decodeStart);
+                    onSampleArrived(arrival);
+                    if (mSelected == DeviceConnection.this && mMode.isUiUpdating()) {
+                        mMetrics.onPending(arrival);
+                    }
+                    mLastNotifications.set(channel, SystemClock.elapsedRealtime());
+                    mLinkStats[mLinkProfile.ordinal()].onNotification(arrival, 1);
+                }
+            }
+        }; // End of GATT event callback methods
     }
 
     /**
-     * Sends a broadcast to the listener in the main activity.
-     *
-     * @param action The type of action that occurred.
+     * Schedules the next display refresh. Runs on the main thread, because the
+     * Choreographer belongs to the main looper.
+     */
+    private final Runnable mScheduleUiUpdate = new Runnable() {
+        @Override
+        public void run() {
+            int rate = mUiUpdateRate;
+            if (rate <= 0) {
+                Choreographer.getInstance().postFrameCallback(mUiFrameCallback);
+            } else {
+                long delay = mLastUiUpdate + 1000 / rate - SystemClock.uptimeMillis();
+                mMainHandler.postDelayed(mPublishUiUpdate, Math.max(0, delay));
+            }
+        }
+    };
+
+    private final Choreographer.FrameCallback mUiFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            publishUiUpdate();
+        }
+    };
+
+    private final Runnable mPublishUiUpdate = new Runnable() {
+        @Override
+        public void run() {
+            publishUiUpdate();
+        }
+    };
+
+    /**
+     * Tells the listeners which channels changed since the last refresh and hands out the
+     * samples collected so far.
      */
-    private void broadcastUpdate(final String action){
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
+    private void publishUiUpdate() {
+        mLastUiUpdate = SystemClock.uptimeMillis();
+        int changed = mUpdateCoalescer.takeChanged();
+        if (changed != 0) {
+            DeviceConnection selected = mSelected;
+            mDisplayedDevice = selected;
+            if (selected != null) {
+                mDisplayedRowNanos = selected.mAcquisition.getLatestRow(mDisplayedRow);
+            }
+            mDispatcher.flushSamples();
+            mDispatcher.dispatchValuesChanged(changed);
+            if (selected != null) {
+                selected.mMetrics.onDisplayed(SystemClock.elapsedRealtimeNanos());
+            }
+        }
     }
 
 }
@@ -0,0 +1,264 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrolling trend chart of selected channels of a {@link SampleStore}.
+ *
+ * While it is shown, the view redraws on every display frame. Every trace reads the newest
+ * samples of its channel into preallocated buffers, downsamples them with {@link Lttb} to one
+ * point per pixel and draws them as lines. Every channel is scaled to its own range within the
+ * window, so traces of different units can be compared by shape. Nothing is allocated in
+ * {@link #onDraw}; the buffers only change in {@link #onSizeChanged}.
+ */
+public class TrendChartView extends View {
+
+    // Samples read per channel and frame, more than a window at our notification rates
+    private final static int RAW_CAPACITY = 8192;
+
+    private final static long DEFAULT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final static int[] CHANNEL_COLORS = {Color.BLUE, Color.RED, Color.GREEN, Color.MAGENTA, Color.CYAN};
+    private final static String[] CHANNEL_LABELS = {"U", "I", "n", "M", "η"};
+
+    private final Paint[] mTracePaints = new Paint[SampleDecoder.CHANNEL_COUNT];
+    private final Paint mGridPaint = new Paint();
+    private final FrameStats mFrameStats = new FrameStats();
+
+    private final long[] mRawTimes = new long[RAW_CAPACITY];
+    private final float[] mRawValues = new float[RAW_CAPACITY];
+    private long[] mPointTimes = new long[0];
+    private float[] mPointValues = new float[0];
+    private float[] mLines = new float[0];
+
+    private SampleStore mSampleStore;
+    private int mChannels = (1 << SampleDecoder.CHANNEL_CURRENT) | (1 << SampleDecoder.CHANNEL_TORQUE);
+    private long mWindowNanos = DEFAULT_WINDOW_NANOS;
+    private boolean mAnimating;
+
+    public TrendChartView(Context context) {
+        this(context, null);
+    }
+
+    public TrendChartView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        for (int channel = 0; channel < mTracePaints.length; channel++) {
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(CHANNEL_COLORS[channel]);
+            paint.setStrokeWidth(2f);
+            paint.setTextSize(32f);
+            mTracePaints[channel] = paint;
+        }
+        mGridPaint.setColor(Color.LTGRAY);
+        mGridPaint.setStrokeWidth(1f);
+    }
+
+    /**
+     * Sets the store the traces are read from and starts the animation, or stops it for null.
+     */
+    public void setSampleStore(SampleStore store) {
+        mSampleStore = store;
+        updateAnimation();
+        invalidate();
+    }
+
+    /**
+     * @param channels bit mask of the channels to draw
+     */
+    public void setChannels(int channels) {
+        mChannels = channels;
+        invalidate();
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    /**
+     * Shows or hides the trace of a channel.
+     */
+    public void toggleChannel(int channel) {
+        setChannels(mChannels ^ (1 << channel));
+    }
+
+    /**
+     * @param windowNanos time span from the left to the right edge
+     */
+    public void setWindow(long windowNanos) {
+        mWindowNanos = windowNanos;
+        invalidate();
+    }
+
+    /**
+     * @return frame time and dropped frames of this view
+     */
+    public FrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        int points = Math.max(3, width - getPaddingLeft() - getPaddingRight());
+        mPointTimes = new long[points];
+        mPointValues = new float[points];
+        mLines = new float[4 * points];
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        updateAnimation();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopAnimation();
+    }
+
+    @Override
+    public void setVisibility(int visibility) {
+        super.setVisibility(visibility);
+        updateAnimation();
+    }
+
+    private void updateAnimation() {
+        if (mSampleStore != null && getVisibility() == VISIBLE) {
+            if (!mAnimating) {
+                mAnimating = true;
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+            }
+        } else {
+            stopAnimation();
+        }
+    }
+
+    private void stopAnimation() {
+        if (mAnimating) {
+            mAnimating = false;
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFrameStats.pause();
+        }
+    }
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!mAnimating) {
+                return;
+            }
+            mFrameStats.onFrame(frameTimeNanos);
+            invalidate();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        long start = System.nanoTime();
+        SampleStore store = mSampleStore;
+        int left = getPaddingLeft();
+        int top = getPaddingTop();
+        int width = getWidth() - left - getPaddingRight();
+        int height = getHeight() - top - getPaddingBottom();
+        if (store == null || width <= 0 || height <= 0) {
+            return;
+        }
+
+        float middle = top + height / 2f;
+        canvas.drawLine(left, middle, left + width, middle, mGridPaint);
+
+        long now = SystemClock.elapsedRealtimeNanos();
+        long from = now - mWindowNanos;
+        float labelX = left;
+        for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+            if ((mChannels & (1 << channel)) == 0 || channel >= store.getChannelCount()) {
+                continue;
+            }
+            Paint paint = mTracePaints[channel];
+            canvas.drawText(CHANNEL_LABELS[channel], labelX, top + 32f, paint);
+            labelX += 48f;
+            int points = readPoints(store, channel, from, now);
+            if (points < 2) {
+                continue;
+            }
+            drawTrace(canvas, paint, points, from, left, top, width, height);
+        }
+        mFrameStats.onDraw(System.nanoTime() - start);
+    }
+
+    /**
+     * Reads the samples of a channel in the window and downsamples them to the point buffers.
+     *
+     * @return the number of points
+     */
+    private int readPoints(SampleStore store, int channel, long from, long to) {
+        int n = store.readRange(channel, from, to + 1, mRawTimes, mRawValues);
+        if (n < RAW_CAPACITY) {
+            return Lttb.downsample(mRawTimes, mRawValues, n, mPointValues.length, mPointTimes, mPointValues);
+        }
+        // More samples in the window than fit, take the newest instead of the oldest ones
+        n = store.readLatest(channel, mRawTimes, mRawValues, RAW_CAPACITY);
+        int first = 0;
+        while (first < n && mRawTimes[first] < from) {
+            first++;
+        }
+        int last = n;
+        while (last > first && mRawTimes[last - 1] > to) {
+            last--;
+        }
+        int count = last - first;
+        if (first > 0) {
+            System.arraycopy(mRawTimes, first, mRawTimes, 0, count);
+            System.arraycopy(mRawValues, first, mRawValues, 0, count);
+        }
+        return Lttb.downsample(mRawTimes, mRawValues, count, mPointValues.length, mPointTimes, mPointValues);
+    }
+
+    private void drawTrace(Canvas canvas, Paint paint, int points, long from,
+                           int left, int top, int width, int height) {
+        float min = mPointValues[0];
+        float max = min;
+        for (int i = 1; i < points; i++) {
+            float value = mPointValues[i];
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        // Flat traces are drawn in the middle
+        float range = max > min ? max - min : 1f;
+        float offset = max > min ? min : min - 0.5f;
+        float xScale = (float) width / mWindowNanos;
+        float yScale = (height - 1) / range;
+        float bottom = top + height - 1;
+
+        float lastX = left + (mPointTimes[0] - from) * xScale;
+        float lastY = bottom - (mPointValues[0] - offset) * yScale;
+        int n = 0;
+        for (int i = 1; i < points; i++) {
+            float x = left + (mPointTimes[i] - from) * xScale;
+            float y = bottom - (mPointValues[i] - offset) * yScale;
+            mLines[n++] = lastX;
+            mLines[n++] = lastY;
+            mLines[n++] = x;
+            mLines[n++] = y;
+            lastX = x;
+            lastY = y;
+        }
+        canvas.drawLines(mLines, 0, n, paint);
+    }
+}
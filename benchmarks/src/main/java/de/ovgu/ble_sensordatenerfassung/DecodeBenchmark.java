@@ -0,0 +1,113 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the notification decode path with the one it replaced.
+ *
+ * One invocation handles one sample, so the average time is the time per sample and the
+ * {@code gc.alloc.rate.norm} column of the GC profiler is the number of bytes allocated per
+ * sample. Run {@link #main} from the IDE to get both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    private UUID[] mUuids;
+    private byte[][] mValues;
+    private SampleDecoder mDecoder;
+    private float[] mLatest;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mUuids = new UUID[]{
+                UUID.fromString(MeasurementProfile.VOLTAGE),
+                UUID.fromString(MeasurementProfile.CURRENT),
+                UUID.fromString(MeasurementProfile.SPEED),
+                UUID.fromString(MeasurementProfile.TORQUE),
+                UUID.fromString(MeasurementProfile.EFFICIENCY)};
+        mDecoder = new SampleDecoder(mUuids[0], mUuids[1], mUuids[2], mUuids[3], mUuids[4]);
+        mLatest = new float[SampleDecoder.CHANNEL_COUNT];
+        mValues = new byte[mUuids.length][];
+        for (int i = 0; i < mValues.length; i++) {
+            int bits = Float.floatToIntBits(12.5f * (i + 1));
+            mValues[i] = new byte[]{(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24)};
+        }
+    }
+
+    /**
+     * The path used before: UUID to String, in-place byte swap, ByteBuffer and String.format.
+     */
+    @Benchmark
+    public void legacyDecode(Blackhole blackhole) {
+        int i = next();
+        String uuid = mUuids[i].toString();
+        byte[] b = mValues[i].clone(); // the old path swapped the bytes of the value itself
+        byte tmp;
+        tmp = b[0];
+        b[0] = b[3];
+        b[3] = tmp;
+        tmp = b[1];
+        b[1] = b[2];
+        b[2] = tmp;
+        float value = ByteBuffer.wrap(b).getFloat();
+
+        switch (uuid) {
+            case MeasurementProfile.SPEED:
+                blackhole.consume(String.format("%.0f", value));
+                break;
+            default:
+                blackhole.consume(String.format("%.1f", value));
+                break;
+        }
+    }
+
+    /**
+     * The current path: UUID lookup and a little-endian read into a primitive field.
+     */
+    @Benchmark
+    public void primitiveDecode(Blackhole blackhole) {
+        int i = next();
+        byte[] value = mValues[i];
+        int channel = mDecoder.channelOf(mUuids[i]);
+        mLatest[channel] = SampleDecoder.decodeFloat(value, 0);
+        blackhole.consume(mLatest);
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = i + 1 == mUuids.length ? 0 : i + 1;
+        return i;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(DecodeBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
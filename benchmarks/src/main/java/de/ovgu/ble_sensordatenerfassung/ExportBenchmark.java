@@ -0,0 +1,110 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exports recorded sessions of one to four hours at 100 rows per second.
+ *
+ * The time per export should grow linearly with the hours, while {@code gc.alloc.rate.norm}
+ * of the GC profiler stays the same for every length, i.e. the heap does not grow with the
+ * session. Run {@link #main} from the IDE to get both.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+    private final static int ROWS_PER_HOUR = 100 * 3600;
+
+    @Param({"1", "4"})
+    public int hours;
+
+    private File mSession;
+
+    @Setup(Level.Trial)
+    public void record() throws Exception {
+        mSession = File.createTempFile("export", "");
+        if (!mSession.delete()) {
+            throw new IOException("Cannot create " + mSession);
+        }
+        SessionRecorder recorder = new SessionRecorder(mSession, SampleDecoder.CHANNEL_COUNT);
+        recorder.setIntervals(1, 60000);
+        recorder.start(0L, 0L);
+        float[] values = new float[SampleDecoder.CHANNEL_COUNT];
+        for (int i = 0; i < hours * ROWS_PER_HOUR; i++) {
+            for (int c = 0; c < values.length; c++) {
+                values[c] = 12f + c + (i % 1000) * 0.01f;
+            }
+            while (!recorder.append(i * 10000000L, values)) {
+                Thread.yield();
+            }
+        }
+        recorder.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        File[] files = mSession.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mSession.delete();
+    }
+
+    @Benchmark
+    public long csv() throws IOException {
+        return new SessionExporter().export(mSession, new NullOutputStream());
+    }
+
+    @Benchmark
+    public long columnar() throws IOException {
+        return new SessionExporter()
+                .setFormat(SessionExporter.FORMAT_COLUMNAR)
+                .export(mSession, new NullOutputStream());
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ExportBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
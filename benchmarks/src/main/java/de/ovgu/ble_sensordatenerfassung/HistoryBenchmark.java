@@ -0,0 +1,118 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compression ratio and throughput of the compressed history on one hour of realistic traces
+ * at 100 samples per second with jittered arrival times.
+ *
+ * One operation is one sample, so the scores are the time per sample. The compression ratio
+ * of every trace is printed during the setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryBenchmark {
+
+    private final static int SAMPLES = 100 * 3600;
+
+    @Param({"voltage", "current", "torque"})
+    public String trace;
+
+    private long[] mTimes;
+    private float[] mValues;
+    private CompressedHistory mHistory;
+    private long[] mReadTimes;
+    private float[] mReadValues;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        mTimes = new long[SAMPLES];
+        mValues = new float[SAMPLES];
+        long time = 0;
+        float load = 0f;
+        for (int i = 0; i < SAMPLES; i++) {
+            time += 10000000L + (random.nextInt(3000) - 1500) * 1000L;
+            mTimes[i] = time;
+            if (i % 6000 == 0) {
+                // The load changes once a minute
+                load = random.nextInt(10) / 10f;
+            }
+            if ("voltage".equals(trace)) {
+                // 10 mV ADC steps, sagging slightly under load
+                mValues[i] = Math.round((12.6f - 0.4f * load + random.nextInt(3) * 0.01f) * 100) / 100f;
+            } else if ("current".equals(trace)) {
+                // 1 mA steps with some noise
+                mValues[i] = Math.round((8f * load + (float) random.nextGaussian() * 0.05f) * 1000) / 1000f;
+            } else {
+                // Noisy torque in 0.1 Nm steps
+                mValues[i] = Math.round((25f * load + (float) random.nextGaussian() * 0.3f) * 10) / 10f;
+            }
+        }
+        mHistory = encode();
+        mReadTimes = new long[SAMPLES];
+        mReadValues = new float[SAMPLES];
+        System.out.println(String.format(Locale.US, "%n%s: %.2f compression ratio, %.2f bytes per sample",
+                trace, mHistory.getCompressionRatio(), mHistory.getCompressedBytes() / (double) SAMPLES));
+    }
+
+    private CompressedHistory encode() {
+        CompressedHistory history = new CompressedHistory(1, 1024, Long.MAX_VALUE);
+        for (int i = 0; i < SAMPLES; i++) {
+            history.append(0, mTimes[i], mValues[i]);
+        }
+        history.sealAll();
+        return history;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public CompressedHistory encodeHour() {
+        return encode();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public int decodeHour() {
+        return mHistory.readRange(0, Long.MIN_VALUE, Long.MAX_VALUE, mReadTimes, mReadValues, 0);
+    }
+
+    /**
+     * Reads one minute in the middle; only the blocks of that minute are decoded.
+     */
+    @Benchmark
+    public int decodeMinute() {
+        long from = mTimes[SAMPLES / 2];
+        return mHistory.readRange(0, from, from + TimeUnit.MINUTES.toNanos(1), mReadTimes, mReadValues, 0);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(HistoryBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,107 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the acquisition metrics on the notification path.
+ *
+ * {@link #plain} is what a notification costs without instrumentation, {@link #instrumented}
+ * adds what the GATT callback of the service does with it: two clock reads around the decode
+ * and {@link AcquisitionMetrics#onNotification}. The difference is the price of keeping the
+ * metrics on. The metrics allocate nothing, so {@code gc.alloc.rate.norm} of the GC profiler
+ * must not be higher for {@link #instrumented} than for {@link #plain}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+
+    // 200 notifications per second and channel
+    private final static long INTERVAL_NANOS = 5000000L;
+
+    private UUID[] mUuids;
+    private byte[][] mValues;
+    private DeviceAcquisition mAcquisition;
+    private AcquisitionMetrics mMetrics;
+    private long mTime;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mUuids = new UUID[]{
+                UUID.fromString(MeasurementProfile.VOLTAGE),
+                UUID.fromString(MeasurementProfile.CURRENT),
+                UUID.fromString(MeasurementProfile.SPEED),
+                UUID.fromString(MeasurementProfile.TORQUE),
+                UUID.fromString(MeasurementProfile.EFFICIENCY)};
+        SampleDecoder decoder = new SampleDecoder(mUuids[0], mUuids[1], mUuids[2], mUuids[3], mUuids[4]);
+        mValues = new byte[mUuids.length][];
+        for (int i = 0; i < mValues.length; i++) {
+            int bits = Float.floatToIntBits(12.5f * (i + 1));
+            mValues[i] = new byte[]{(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24)};
+        }
+        GattOperationQueue.Scheduler scheduler = new GattOperationQueue.Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMillis) {
+            }
+
+            @Override
+            public void removeCallbacks(Runnable task) {
+            }
+        };
+        mAcquisition = new DeviceAcquisition("00:00:00:00:00:00", decoder, null, scheduler);
+        mMetrics = new AcquisitionMetrics();
+    }
+
+    @Benchmark
+    public int plain() {
+        int i = next();
+        return mAcquisition.onValue(mUuids[i], mValues[i], mTime);
+    }
+
+    @Benchmark
+    public int instrumented() {
+        int i = next();
+        long arrival = mTime;
+        long decodeStart = System.nanoTime();
+        int channel = mAcquisition.onValue(mUuids[i], mValues[i], arrival);
+        mMetrics.onNotification(channel, arrival, System.nanoTime() - decodeStart);
+        mMetrics.onPending(arrival);
+        return channel;
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = i + 1 == mUuids.length ? 0 : i + 1;
+        mTime += INTERVAL_NANOS / mUuids.length;
+        return i;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(MetricsBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,186 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate throughput of 1 to N devices streaming at the same time.
+ *
+ * Every benchmark thread is one sensor with its own {@link DeviceAcquisition}, like
+ * every connection gets its own GATT callbacks on the phone. The sensor answers reads at once
+ * and pushes notifications with noisy values of all five channels, so the numbers are the
+ * ceiling of decode, store, compression, rollups and derived metrics, not of the radio.
+ * {@link #main} runs it with 1, 2, 4 and 8 threads; JMH sums the throughput of all threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultiDeviceBenchmark {
+
+    private final static UUID[] UUIDS = {
+            UUID.fromString(MeasurementProfile.VOLTAGE),
+            UUID.fromString(MeasurementProfile.CURRENT),
+            UUID.fromString(MeasurementProfile.SPEED),
+            UUID.fromString(MeasurementProfile.TORQUE),
+            UUID.fromString(MeasurementProfile.EFFICIENCY)};
+
+    private final static SampleDecoder DECODER =
+            new SampleDecoder(UUIDS[0], UUIDS[1], UUIDS[2], UUIDS[3], UUIDS[4]);
+
+    private final static float[] LEVELS = {12f, 8f, 1500f, 0.6f, 85f};
+
+    // Notifications per invocation, one op is one notification
+    private final static int BATCH = 1000;
+
+    // 200 notifications per second and channel
+    private final static long INTERVAL_NANOS = 5000000L;
+
+    /**
+     * A sensor that answers every read at once with its latest value.
+     */
+    private static class InstantSensor implements GattTransport, GattOperationQueue.Scheduler {
+        DeviceAcquisition mAcquisition;
+        final byte[][] mLatest = new byte[SampleDecoder.CHANNEL_COUNT][];
+        long mTime;
+
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            int channel = DECODER.channelOf(characteristic);
+            mAcquisition.onValue(characteristic, mLatest[channel], mTime);
+            mAcquisition.getGattQueue().onCharacteristicRead(characteristic, true);
+            return true;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            mAcquisition.getGattQueue().onDescriptorWrite(characteristic, descriptor, true);
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return false;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Device {
+        InstantSensor mSensor;
+        DeviceAcquisition mAcquisition;
+        byte[][] mValues;
+        int mNext;
+
+        @Setup
+        public void setup() {
+            Random random = new Random(Thread.currentThread().getId());
+            mValues = new byte[1024 * SampleDecoder.CHANNEL_COUNT][];
+            for (int i = 0; i < mValues.length; i++) {
+                int channel = i % SampleDecoder.CHANNEL_COUNT;
+                float value = LEVELS[channel] * (1f + 0.01f * (float) random.nextGaussian());
+                mValues[i] = encode(value);
+            }
+            mSensor = new InstantSensor();
+            mAcquisition = new DeviceAcquisition("00:00:00:00:00:" + Thread.currentThread().getId(),
+                    DECODER, mSensor, mSensor);
+            mSensor.mAcquisition = mAcquisition;
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                mSensor.mLatest[channel] = mValues[channel];
+            }
+        }
+    }
+
+    private static byte[] encode(float value) {
+        int bits = Float.floatToIntBits(value);
+        return new byte[]{(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24)};
+    }
+
+    /**
+     * One op is one notification of a single channel.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long notifications(Device device) {
+        InstantSensor sensor = device.mSensor;
+        DeviceAcquisition acquisition = device.mAcquisition;
+        byte[][] values = device.mValues;
+        int next = device.mNext;
+        long time = sensor.mTime;
+        for (int i = 0; i < BATCH; i++) {
+            int channel = next % SampleDecoder.CHANNEL_COUNT;
+            byte[] value = values[next];
+            acquisition.onValue(UUIDS[channel], value, time);
+            sensor.mLatest[channel] = value;
+            time += INTERVAL_NANOS / SampleDecoder.CHANNEL_COUNT;
+            next = (next + 1) & (values.length - 1);
+        }
+        device.mNext = next;
+        sensor.mTime = time;
+        return acquisition.getSampleCount();
+    }
+
+    /**
+     * One op is one read of a single channel through the GATT queue, like polling does.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SampleDecoder.CHANNEL_COUNT)
+    public long polledReads(Device device) {
+        GattOperationQueue queue = device.mAcquisition.getGattQueue();
+        for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+            queue.read(UUIDS[channel]);
+        }
+        device.mSensor.mTime += INTERVAL_NANOS;
+        return device.mAcquisition.getSampleCount();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int[] devices = {1, 2, 4, 8};
+        double single = 0;
+        for (int n : devices) {
+            Options options = new OptionsBuilder()
+                    .include(MultiDeviceBenchmark.class.getSimpleName() + ".notifications")
+                    .threads(n)
+                    .build();
+            for (RunResult result : new Runner(options).run()) {
+                double total = result.getPrimaryResult().getScore();
+                if (n == 1) {
+                    single = total;
+                }
+                System.out.printf("%d devices: %.0f notifications/s in total, %.0f per device, scaling %.2f%n",
+                        n, total, total / n, total / single);
+            }
+        }
+    }
+}
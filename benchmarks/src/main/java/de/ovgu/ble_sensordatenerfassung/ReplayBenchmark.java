@@ -0,0 +1,185 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a GATT trace as fast as possible through decoding, storage and derived metrics.
+ *
+ * By default a minute of bench traffic at 1000 rows per second is synthesized, either as
+ * single channel notifications or as frames at an MTU of 247. A trace captured on the bench
+ * can be replayed instead with {@code -p trace=/path/to/file.trace}. The time is per replay
+ * of the whole trace, the setup prints the number of events to get the events per second.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayBenchmark {
+
+    private final static int ROWS = 1000 * 60;
+    private final static long ROW_INTERVAL_NANOS = 1000000L;
+    private final static int MTU = 247;
+
+    private final static GattTransport NO_TRANSPORT = new GattTransport() {
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            return false;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return false;
+        }
+    };
+
+    private final static GattOperationQueue.Scheduler NO_SCHEDULER = new GattOperationQueue.Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+        }
+    };
+
+    @Param({"channels", "frames"})
+    public String mode;
+
+    // A recorded trace to replay instead of the synthesized one
+    @Param({""})
+    public String trace;
+
+    private File mTrace;
+    private boolean mTemporary;
+    private TraceReplayer mReplayer;
+    private DeviceAcquisition mAcquisition;
+
+    @Setup(Level.Trial)
+    public void record() throws Exception {
+        if (trace.length() > 0) {
+            mTrace = new File(trace);
+        } else {
+            mTrace = File.createTempFile("replay", ".trace");
+            mTemporary = true;
+            synthesize(mTrace, "frames".equals(mode));
+        }
+        mReplayer = new TraceReplayer(new TraceReader(mTrace));
+        mReplayer.setSpeed(TraceReplayer.MAX_SPEED);
+        mReplayer.replay(newAcquisition());
+        System.out.println(mReplayer.getValueCount() + " events, " + mTrace.length() + " bytes");
+    }
+
+    private static void synthesize(File file, boolean frames) throws IOException {
+        TraceRecorder recorder = new TraceRecorder(file);
+        recorder.setBatchMillis(1);
+        recorder.start(0L, 0L);
+        SimulatedSensor.TestBench bench = new SimulatedSensor.TestBench(1);
+        float[] values = new float[SampleDecoder.CHANNEL_COUNT];
+        UUID[] channels = MeasurementProfile.channelUuids();
+        UUID frameUuid = UUID.fromString(MeasurementProfile.FRAME);
+        byte[] frame = new byte[FrameDecoder.rowsPerNotification(MTU) * FrameDecoder.ROW_SIZE];
+        byte[] value = new byte[4];
+        int frameRows = 0;
+
+        for (int row = 0; row < ROWS; row++) {
+            long time = row * ROW_INTERVAL_NANOS;
+            bench.sample(time / 1e9, values);
+            if (!frames) {
+                for (int channel = 0; channel < channels.length; channel++) {
+                    putInt(value, 0, Float.floatToIntBits(values[channel]));
+                    while (!recorder.onNotification(channels[channel], value, time)) {
+                        Thread.yield();
+                    }
+                }
+                continue;
+            }
+            int offset = frameRows * FrameDecoder.ROW_SIZE;
+            putInt(frame, offset, row);
+            putInt(frame, offset + 4, (int) (time / 1000));
+            for (int channel = 0; channel < channels.length; channel++) {
+                putInt(frame, offset + 8 + 4 * channel, Float.floatToIntBits(values[channel]));
+            }
+            if (++frameRows * FrameDecoder.ROW_SIZE == frame.length) {
+                while (!recorder.onNotification(frameUuid, frame, time)) {
+                    Thread.yield();
+                }
+                frameRows = 0;
+            }
+        }
+        recorder.close();
+    }
+
+    private static void putInt(byte[] value, int offset, int bits) {
+        value[offset] = (byte) bits;
+        value[offset + 1] = (byte) (bits >> 8);
+        value[offset + 2] = (byte) (bits >> 16);
+        value[offset + 3] = (byte) (bits >> 24);
+    }
+
+    private static DeviceAcquisition newAcquisition() {
+        return new DeviceAcquisition("00:00:00:00:00:01", MeasurementProfile.newDecoder(),
+                NO_TRANSPORT, NO_SCHEDULER);
+    }
+
+    /**
+     * Every replay starts on a fresh device, the stores are not part of the measurement.
+     */
+    @Setup(Level.Invocation)
+    public void connect() {
+        mAcquisition = newAcquisition();
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        if (mTemporary) {
+            mTrace.delete();
+        }
+    }
+
+    @Benchmark
+    public long replay() throws IOException {
+        return mReplayer.replay(mAcquisition);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ReplayBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
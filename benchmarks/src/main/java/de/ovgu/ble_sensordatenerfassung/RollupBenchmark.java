@@ -0,0 +1,97 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of maintaining the rollups per sample, and of querying and downsampling one hour of
+ * five channels at 100 samples per second to 1000 pixels.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RollupBenchmark {
+
+    private final static int SAMPLES = 100 * 3600;
+    private final static int BATCH = 100000;
+    private final static long INTERVAL_NANOS = 10000000L;
+
+    private RollupEngine mRollups;
+    private RollupEngine mIngest;
+    private RollupEngine.Buckets mBuckets;
+    private long[] mTimes;
+    private float[] mValues;
+    private long mNextTime;
+    private float[] mNoise;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        mNoise = new float[1024];
+        for (int i = 0; i < mNoise.length; i++) {
+            mNoise[i] = (float) random.nextGaussian();
+        }
+        mRollups = new RollupEngine(SampleDecoder.CHANNEL_COUNT, RollupEngine.DEFAULT_RESOLUTIONS, 4096);
+        for (int i = 0; i < SAMPLES; i++) {
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                mRollups.append(channel, i * INTERVAL_NANOS, 12f + mNoise[(i + channel) & 1023]);
+            }
+        }
+        mIngest = new RollupEngine(SampleDecoder.CHANNEL_COUNT, RollupEngine.DEFAULT_RESOLUTIONS, 4096);
+        mBuckets = new RollupEngine.Buckets(16384);
+        mTimes = new long[1000];
+        mValues = new float[1000];
+    }
+
+    /**
+     * One operation is one sample of one channel.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void ingest() {
+        long time = mNextTime;
+        for (int i = 0; i < BATCH; i++) {
+            mIngest.append(i % SampleDecoder.CHANNEL_COUNT, time, mNoise[i & 1023]);
+            time += INTERVAL_NANOS / SampleDecoder.CHANNEL_COUNT;
+        }
+        mNextTime = time;
+    }
+
+    @Benchmark
+    public int queryHour() {
+        return mRollups.query(SampleDecoder.CHANNEL_TORQUE, 0, SAMPLES * INTERVAL_NANOS, mBuckets);
+    }
+
+    @Benchmark
+    public int downsampleHour() {
+        int n = mRollups.query(SampleDecoder.CHANNEL_TORQUE, 0, SAMPLES * INTERVAL_NANOS, mBuckets);
+        return Lttb.downsample(mBuckets.times, mBuckets.means, n, mValues.length, mTimes, mValues);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RollupBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,99 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the row assembly per single channel sample.
+ *
+ * Rounds of five samples arrive in bursts of one connection event at 1000 rounds per second.
+ * With {@code loss > 0} that share of the samples never arrives, so rows wait for their delay
+ * and missing values are interpolated. Neither case may allocate: {@code gc.alloc.rate.norm}
+ * of the GC profiler must be 0.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RowAssemblerBenchmark {
+
+    private final static int CHANNELS = SampleDecoder.CHANNEL_COUNT;
+    private final static long ROUND_NANOS = 1000000L;
+    private final static long CONNECTION_INTERVAL_NANOS = 7500000L;
+
+    // Precomputed pattern of lost samples, so the random numbers are not measured
+    private final static int PATTERN = 4096;
+
+    @Param({"0", "0.1"})
+    public float loss;
+
+    private RowAssembler mAssembler;
+    private Blackhole mBlackhole;
+    private final boolean[] mLost = new boolean[PATTERN];
+    private long mRound;
+    private int mChannel;
+    private int mNext;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mAssembler = new RowAssembler(CHANNELS, RowAssembler.DEFAULT_CAPACITY, new RowAssembler.Sink() {
+            @Override
+            public void onRow(long timeNanos, float[] values, int measured) {
+                mBlackhole.consume(values[0] + values[CHANNELS - 1]);
+            }
+        });
+        Random random = new Random(42);
+        for (int i = 0; i < PATTERN; i++) {
+            mLost[i] = random.nextFloat() < loss;
+        }
+    }
+
+    @Benchmark
+    public boolean add() {
+        int channel = mChannel;
+        long round = mRound;
+        if (++mChannel == CHANNELS) {
+            mChannel = 0;
+            mRound++;
+        }
+        int next = mNext;
+        mNext = next + 1 == PATTERN ? 0 : next + 1;
+        if (mLost[next]) {
+            return false;
+        }
+        // Delivered at the end of the connection event, a few microseconds apart
+        long sampled = round * ROUND_NANOS;
+        long arrival = (sampled / CONNECTION_INTERVAL_NANOS + 1) * CONNECTION_INTERVAL_NANOS
+                + (round % 8 * CHANNELS + channel) * 20000L;
+        return mAssembler.add(channel, arrival, round + channel);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RowAssemblerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,524 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams simulated sensors through the acquisition at rising rates and reports how much of
+ * the load arrives, how late and how regularly, and from which rate on rows are dropped.
+ *
+ * Every step connects the sensors, subscribes them like the service does, either to every
+ * channel or to the packed frames, and streams for a while. The receiving side is the one of
+ * the phone, a {@link DeviceAcquisition} with all its tiers and the
+ * {@link AcquisitionMetrics} per device; only the Android callbacks are replaced. Dropped
+ * connections are reconnected at once, so long runs with loss and disconnects make a soak
+ * test.
+ *
+ * With an {@link AcquisitionMode} every sensor is also recorded with the write batching of
+ * that mode. INTERACTIVE refreshes a simulated display once per frame like the service does
+ * for a bound UI, BACKGROUND flushes the recorders at the interval of its wake lock instead.
+ * The CPU time of the whole process, sensors included, is reported per hour of acquisition,
+ * so both modes can be compared over long runs.
+ *
+ * Options, all optional:
+ * <pre>
+ * --rates=100,500,1000    rows per second and sensor, one step each
+ * --devices=1             sensors streaming at the same time
+ * --seconds=5             length of a step, after one second of warm-up
+ * --frames                subscribe to the packed frames instead of the channels
+ * --interval=0            connection interval in ms, 0 delivers at once
+ * --jitter=0              largest random delay per notification in us
+ * --loss=0                probability that a notification is lost
+ * --disconnects=0         mean time between dropped connections in ms, 0 for none
+ * --mode=background       record and run the service work of an acquisition mode
+ * --report=load.json      where the results are written as JSON
+ * </pre>
+ */
+public class SimulatedLoad {
+
+    private final static UUID FRAME = UUID.fromString(MeasurementProfile.FRAME);
+    private final static UUID CCCD = UUID.fromString(MeasurementProfile.CCCD);
+    private final static byte[] ENABLE_NOTIFICATION = {1, 0};
+    private final static SampleDecoder DECODER = MeasurementProfile.newDecoder();
+
+    private final static long WARMUP_MILLIS = 1000;
+
+    // Display refresh interval of the simulated UI
+    private final static long FRAME_MILLIS = 16;
+
+    /**
+     * Runs the timeouts of the GATT queues with the method names of {@code Handler}.
+     */
+    private static class Scheduler implements GattOperationQueue.Scheduler {
+        private final ScheduledExecutorService mExecutor = new ScheduledThreadPoolExecutor(1);
+        private final Map<Runnable, ScheduledFuture<?>> mTasks = new HashMap<>();
+
+        @Override
+        public synchronized void postDelayed(Runnable task, long delayMillis) {
+            mTasks.put(task, mExecutor.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public synchronized void removeCallbacks(Runnable task) {
+            ScheduledFuture<?> future = mTasks.remove(task);
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        void shutdown() {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * One sensor and what the service keeps of it.
+     */
+    private static class Client implements GattConnection.Callback {
+        final SimulatedSensor mSensor;
+        final DeviceAcquisition mAcquisition;
+        final AcquisitionMetrics mMetrics = new AcquisitionMetrics();
+        // From sampling on the sensor to stored in all tiers, recorded on the sensor thread
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        final boolean mFrames;
+        volatile boolean mRunning = true;
+        volatile long mReconnects;
+
+        Client(SimulatedSensor sensor, Scheduler scheduler, boolean frames) {
+            mSensor = sensor;
+            mFrames = frames;
+            mAcquisition = new DeviceAcquisition(sensor.getAddress(), DECODER, sensor, scheduler);
+            sensor.setCallback(this);
+        }
+
+        private void subscribe() {
+            final GattOperationQueue queue = mAcquisition.getGattQueue();
+            if (mFrames) {
+                queue.requestMtu(SimulatedSensor.DEFAULT_MAX_MTU, new GattOperation.Callback() {
+                    @Override
+                    public void onComplete(GattOperation operation, boolean success) {
+                        mSensor.setCharacteristicNotification(FRAME, true);
+                        queue.writeDescriptor(FRAME, CCCD, ENABLE_NOTIFICATION, null);
+                    }
+                });
+                return;
+            }
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                mSensor.setCharacteristicNotification(DECODER.uuidOf(channel), true);
+                queue.writeDescriptor(DECODER.uuidOf(channel), CCCD, ENABLE_NOTIFICATION, null);
+            }
+        }
+
+        @Override
+        public void onConnectionStateChange(GattConnection connection, boolean connected) {
+            if (connected) {
+                if (connection.hasService()) {
+                    subscribe();
+                } else {
+                    connection.discoverServices();
+                }
+                return;
+            }
+            mAcquisition.getGattQueue().clear();
+            mAcquisition.reset();
+            if (mRunning) {
+                mReconnects++;
+                connection.connect();
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(GattConnection connection, boolean success) {
+            subscribe();
+        }
+
+        @Override
+        public void onCharacteristicRead(GattConnection connection, UUID characteristic, byte[] value,
+                                         boolean success) {
+            mAcquisition.getGattQueue().onCharacteristicRead(characteristic, success);
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattConnection connection, UUID characteristic, boolean success) {
+            mAcquisition.getGattQueue().onCharacteristicWrite(characteristic, success);
+        }
+
+        @Override
+        public void onDescriptorWrite(GattConnection connection, UUID characteristic, UUID descriptor,
+                                      boolean success) {
+            mAcquisition.getGattQueue().onDescriptorWrite(characteristic, descriptor, success);
+        }
+
+        @Override
+        public void onMtuChanged(GattConnection connection, int mtu, boolean success) {
+            mAcquisition.getGattQueue().onMtuChanged(success);
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattConnection connection, UUID characteristic, byte[] value) {
+            long arrival = System.nanoTime();
+            if (FRAME.equals(characteristic)) {
+                mAcquisition.onFrame(value, arrival);
+                long now = System.nanoTime();
+                mMetrics.onNotification(AcquisitionMetrics.FRAME, arrival, now - arrival);
+                mLatency.record(now - mSensor.getSampleNanos());
+                return;
+            }
+            int channel = mAcquisition.onValue(characteristic, value, arrival);
+            if (channel != SampleDecoder.NO_CHANNEL) {
+                long now = System.nanoTime();
+                mMetrics.onNotification(channel, arrival, now - arrival);
+                mLatency.record(now - mSensor.getSampleNanos());
+            }
+        }
+    }
+
+    /**
+     * What the service does for a bound UI: hands the samples of the selected device to the
+     * listeners and refreshes the shown values once per frame on a main thread.
+     */
+    private static class Display implements DeviceAcquisition.Listener, Runnable {
+        final MeasurementDispatcher mDispatcher = new MeasurementDispatcher();
+        final UpdateCoalescer mCoalescer = new UpdateCoalescer();
+        final ExecutorService mMain = Executors.newSingleThreadExecutor();
+        final Scheduler mScheduler;
+        final SampleStore mStore;
+        final String[] mShown = new String[SampleDecoder.CHANNEL_COUNT];
+        volatile long mRefreshes;
+
+        Display(Scheduler scheduler, DeviceAcquisition selected) {
+            mScheduler = scheduler;
+            mStore = selected.getSampleStore();
+            mDispatcher.register(new MeasurementListenerAdapter() {
+                @Override
+                public void onValuesChanged(int changed) {
+                    for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                        if ((changed & (1 << channel)) != 0) {
+                            mShown[channel] = DerivedMetrics.format(channel, mStore.latest(channel));
+                        }
+                    }
+                    mRefreshes++;
+                }
+            }, mMain);
+        }
+
+        @Override
+        public void onSample(DeviceAcquisition device, int channel, long timeNanos, float value) {
+            mDispatcher.addSample(channel, timeNanos, value);
+            if (mCoalescer.markChanged(channel)) {
+                mScheduler.postDelayed(this, FRAME_MILLIS);
+            }
+        }
+
+        @Override
+        public void run() {
+            int changed = mCoalescer.takeChanged();
+            if (changed != 0) {
+                mDispatcher.flushSamples();
+                mDispatcher.dispatchValuesChanged(changed);
+            }
+        }
+
+        void shutdown() {
+            mMain.shutdownNow();
+        }
+    }
+
+    /**
+     * The outcome of one step.
+     */
+    private static class Result {
+        float mRate;
+        int mDevices;
+        double mSeconds;
+        long mRows;
+        long mSent;
+        long mLost;
+        long mOverflows;
+        long mSamples;
+        long mReconnects;
+        long mLatencyP50;
+        long mLatencyP99;
+        long mLatencyMax;
+        long mDecodeP99;
+        long mJitterP99;
+        long mGaps;
+        long mCpuNanos;
+        long mRefreshes;
+        long mFlushes;
+
+        boolean isSaturated() {
+            return mOverflows > 0;
+        }
+
+        double getSamplesPerSecond() {
+            return mSamples / mSeconds;
+        }
+
+        /**
+         * @return CPU seconds the process spends per hour of acquisition
+         */
+        double getCpuSecondsPerHour() {
+            return mCpuNanos / 1e9 / mSeconds * 3600;
+        }
+    }
+
+    private final float[] mRates;
+    private final int mDevices;
+    private final long mStepMillis;
+    private final boolean mFrames;
+    private final long mIntervalNanos;
+    private final long mJitterNanos;
+    private final float mLoss;
+    private final long mDisconnectMillis;
+    private final AcquisitionMode mMode;
+    private final File mReport;
+    private volatile long mFlushes;
+
+    private SimulatedLoad(Map<String, String> options) {
+        String[] rates = option(options, "rates", "100,500,1000,2000,5000").split(",");
+        mRates = new float[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            mRates[i] = Float.parseFloat(rates[i]);
+        }
+        mDevices = Integer.parseInt(option(options, "devices", "1"));
+        mStepMillis = (long) (Double.parseDouble(option(options, "seconds", "5")) * 1000);
+        mFrames = options.containsKey("frames");
+        mIntervalNanos = Long.parseLong(option(options, "interval", "0")) * 1000000L;
+        mJitterNanos = Long.parseLong(option(options, "jitter", "0")) * 1000L;
+        mLoss = Float.parseFloat(option(options, "loss", "0"));
+        mDisconnectMillis = Long.parseLong(option(options, "disconnects", "0"));
+        String mode = options.get("mode");
+        mMode = mode == null ? null : AcquisitionMode.valueOf(mode.toUpperCase(Locale.ROOT));
+        mReport = new File(option(options, "report", "load.json"));
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : value;
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime();
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private Result runStep(float rate) throws InterruptedException, IOException {
+        final Scheduler scheduler = new Scheduler();
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < mDevices; i++) {
+            SimulatedSensor sensor = new SimulatedSensor(String.format(Locale.ROOT, "00:00:00:00:00:%02X", i));
+            sensor.setRate(rate);
+            sensor.setConnectDelay(0);
+            sensor.setDiscoveryDelay(0);
+            sensor.setConnectionInterval(mIntervalNanos);
+            sensor.setJitter(mJitterNanos);
+            sensor.setLossRate(mLoss);
+            sensor.setMeanTimeBetweenDisconnects(mDisconnectMillis);
+            sensor.setFrameSupported(mFrames);
+            clients.add(new Client(sensor, scheduler, mFrames));
+        }
+
+        // The service work of the mode: recording, and the display or the batched flushes
+        final List<SessionRecorder> recorders = new ArrayList<>();
+        Display display = null;
+        Runnable flush = null;
+        if (mMode != null) {
+            for (Client client : clients) {
+                File directory = File.createTempFile("load", "");
+                if (!directory.delete()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                SessionRecorder recorder = new SessionRecorder(directory, SampleDecoder.CHANNEL_COUNT);
+                mMode.applyTo(recorder);
+                recorder.start(System.currentTimeMillis(), System.nanoTime());
+                client.mAcquisition.setRecorder(recorder);
+                recorders.add(recorder);
+            }
+            if (mMode.isUiUpdating()) {
+                display = new Display(scheduler, clients.get(0).mAcquisition);
+                clients.get(0).mAcquisition.setListener(display);
+            } else if (mMode.getFlushMillis() > 0) {
+                flush = new Runnable() {
+                    @Override
+                    public void run() {
+                        for (SessionRecorder recorder : recorders) {
+                            recorder.flush();
+                        }
+                        mFlushes++;
+                        scheduler.postDelayed(this, mMode.getFlushMillis());
+                    }
+                };
+                scheduler.postDelayed(flush, mMode.getFlushMillis());
+            }
+        }
+        for (Client client : clients) {
+            client.mSensor.connect();
+        }
+
+        // Let the JIT and the subscriptions settle, then count from zero
+        Thread.sleep(WARMUP_MILLIS);
+        long[][] start = new long[mDevices][];
+        for (int i = 0; i < mDevices; i++) {
+            Client client = clients.get(i);
+            client.mMetrics.reset();
+            client.mLatency.reset();
+            start[i] = counters(client);
+        }
+        long startRefreshes = display == null ? 0 : display.mRefreshes;
+        long startFlushes = mFlushes;
+        long startCpu = processCpuNanos();
+        long startNanos = System.nanoTime();
+        Thread.sleep(mStepMillis);
+        long[][] end = new long[mDevices][];
+        for (int i = 0; i < mDevices; i++) {
+            end[i] = counters(clients.get(i));
+        }
+        long nanos = System.nanoTime() - startNanos;
+        long cpu = processCpuNanos() - startCpu;
+
+        Result result = new Result();
+        result.mRate = rate;
+        result.mDevices = mDevices;
+        result.mSeconds = nanos / 1e9;
+        result.mCpuNanos = cpu;
+        result.mRefreshes = display == null ? 0 : display.mRefreshes - startRefreshes;
+        result.mFlushes = mFlushes - startFlushes;
+        int characteristic = mFrames ? AcquisitionMetrics.FRAME : SampleDecoder.CHANNEL_VOLTAGE;
+        for (int i = 0; i < mDevices; i++) {
+            Client client = clients.get(i);
+            result.mRows += end[i][0] - start[i][0];
+            result.mSent += end[i][1] - start[i][1];
+            result.mLost += end[i][2] - start[i][2];
+            result.mOverflows += end[i][3] - start[i][3];
+            result.mSamples += end[i][4] - start[i][4];
+            result.mReconnects += end[i][5] - start[i][5];
+            // The worst device counts
+            result.mLatencyP50 = Math.max(result.mLatencyP50, client.mLatency.getPercentileNanos(50));
+            result.mLatencyP99 = Math.max(result.mLatencyP99, client.mLatency.getPercentileNanos(99));
+            result.mLatencyMax = Math.max(result.mLatencyMax, client.mLatency.getMaxNanos());
+            result.mDecodeP99 = Math.max(result.mDecodeP99, client.mMetrics.getDecodeTime().getPercentileNanos(99));
+            result.mJitterP99 = Math.max(result.mJitterP99,
+                    client.mMetrics.getJitter(characteristic).getPercentileNanos(99));
+            result.mGaps += client.mMetrics.getGapCount(characteristic);
+        }
+
+        for (Client client : clients) {
+            client.mRunning = false;
+            client.mSensor.close();
+        }
+        if (flush != null) {
+            scheduler.removeCallbacks(flush);
+        }
+        scheduler.shutdown();
+        if (display != null) {
+            display.shutdown();
+        }
+        for (SessionRecorder recorder : recorders) {
+            recorder.close();
+            delete(recorder.getDirectory());
+        }
+        return result;
+    }
+
+    private static long[] counters(Client client) {
+        SimulatedSensor sensor = client.mSensor;
+        return new long[]{sensor.getRowCount(), sensor.getSentCount(), sensor.getLostCount(),
+                sensor.getOverflowCount(), client.mAcquisition.getSampleCount(), client.mReconnects};
+    }
+
+    private void run() throws InterruptedException, IOException {
+        System.out.println(String.format(Locale.ROOT, "%d device(s), %s, %s, %d s per step",
+                mDevices, mFrames ? "frames" : "channels", mMode == null ? "acquisition only" : mMode,
+                mStepMillis / 1000));
+        System.out.println("    rate   samples/s   lost  overflow  latency p50/p99/max us  decode p99 us  jitter p99 us"
+                + "  cpu s/h");
+        List<Result> results = new ArrayList<>();
+        for (float rate : mRates) {
+            Result result = runStep(rate);
+            results.add(result);
+            System.out.println(String.format(Locale.ROOT, "%8.0f %11.0f %6d %9d %8d/%d/%d %14d %14d %8.1f%s",
+                    result.mRate, result.getSamplesPerSecond(), result.mLost, result.mOverflows,
+                    result.mLatencyP50 / 1000, result.mLatencyP99 / 1000, result.mLatencyMax / 1000,
+                    result.mDecodeP99 / 1000, result.mJitterP99 / 1000, result.getCpuSecondsPerHour(),
+                    result.isSaturated() ? "  saturated" : ""));
+        }
+        writeReport(results);
+        System.out.println("Results saved to " + mReport);
+    }
+
+    private void writeReport(List<Result> results) throws IOException {
+        File parent = mReport.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(String.format(Locale.ROOT, "    {\"mode\": \"%s\", \"devices\": %d, \"rate\": %.1f, "
+                            + "\"seconds\": %.3f, \"rows\": %d, \"sent\": %d, \"lost\": %d, \"overflows\": %d, "
+                            + "\"samples\": %d, \"samplesPerSecond\": %.1f, \"reconnects\": %d, "
+                            + "\"latencyP50Nanos\": %d, \"latencyP99Nanos\": %d, \"latencyMaxNanos\": %d, "
+                            + "\"decodeP99Nanos\": %d, \"jitterP99Nanos\": %d, \"gaps\": %d, \"saturated\": %b, "
+                            + "\"acquisitionMode\": \"%s\", \"cpuSecondsPerHour\": %.2f, \"refreshes\": %d, "
+                            + "\"flushes\": %d}",
+                    mFrames ? "frames" : "channels", result.mDevices, result.mRate, result.mSeconds,
+                    result.mRows, result.mSent, result.mLost, result.mOverflows, result.mSamples,
+                    result.getSamplesPerSecond(), result.mReconnects, result.mLatencyP50,
+                    result.mLatencyP99, result.mLatencyMax, result.mDecodeP99, result.mJitterP99,
+                    result.mGaps, result.isSaturated(), mMode == null ? "none" : mMode.name(),
+                    result.getCpuSecondsPerHour(), result.mRefreshes, result.mFlushes));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mReport), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        new SimulatedLoad(options).run();
+    }
+}
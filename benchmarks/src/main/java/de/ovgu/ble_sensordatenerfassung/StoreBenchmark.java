@@ -0,0 +1,103 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends to the sample store and reads from it the way the chart does: the newest samples,
+ * a window by time and everything after a sequence number.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StoreBenchmark {
+
+    // One minute of five channels at 100 samples per second
+    private final static int CAPACITY = 100 * 60;
+    private final static int BATCH = 10000;
+    private final static int WINDOW = 1000;
+    private final static long INTERVAL_NANOS = 10000000L;
+
+    private SampleStore mStore;
+    private SampleStore mIngest;
+    private long[] mTimes;
+    private float[] mValues;
+    private float[] mNoise;
+    private long mNextTime;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        mNoise = new float[1024];
+        for (int i = 0; i < mNoise.length; i++) {
+            mNoise[i] = (float) random.nextGaussian();
+        }
+        mStore = new SampleStore(SampleDecoder.CHANNEL_COUNT, CAPACITY);
+        for (int i = 0; i < mStore.getCapacity(); i++) {
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                mStore.append(channel, i * INTERVAL_NANOS, 12f + mNoise[(i + channel) & 1023]);
+            }
+        }
+        mIngest = new SampleStore(SampleDecoder.CHANNEL_COUNT, CAPACITY);
+        mTimes = new long[WINDOW];
+        mValues = new float[WINDOW];
+    }
+
+    /**
+     * One operation is one sample of one channel.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void append() {
+        long time = mNextTime;
+        for (int i = 0; i < BATCH; i++) {
+            mIngest.append(i % SampleDecoder.CHANNEL_COUNT, time, mNoise[i & 1023]);
+            time += INTERVAL_NANOS / SampleDecoder.CHANNEL_COUNT;
+        }
+        mNextTime = time;
+    }
+
+    @Benchmark
+    public int readLatest() {
+        return mStore.readLatest(SampleDecoder.CHANNEL_TORQUE, mTimes, mValues, WINDOW);
+    }
+
+    @Benchmark
+    public int readRange() {
+        long from = (mStore.getCapacity() - WINDOW) * INTERVAL_NANOS;
+        return mStore.readRange(SampleDecoder.CHANNEL_TORQUE, from, from + WINDOW * INTERVAL_NANOS,
+                mTimes, mValues);
+    }
+
+    @Benchmark
+    public int readSequence() {
+        long from = mStore.count(SampleDecoder.CHANNEL_TORQUE) - WINDOW;
+        return mStore.read(SampleDecoder.CHANNEL_TORQUE, from, mTimes, mValues, WINDOW);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(StoreBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,409 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Streams generated samples through a {@link SampleStreamer} to a client on the loopback
+ * interface and reports how many arrive per second and how late.
+ *
+ * Every step runs one transport at one rate. With {@code tcp} the client connects to a
+ * {@link TcpStreamServer}, with {@code mqtt} a minimal broker in this process receives the
+ * publishes of a {@link MqttPublisher}. The samples carry the time they were offered, so the
+ * latency from offer to decode covers the queue, the batching, the socket and the decoding.
+ * Samples the queues left out under load are reported as dropped and decimated.
+ *
+ * Options, all optional:
+ * <pre>
+ * --transports=tcp,mqtt          transports to measure, one step per rate each
+ * --rates=10000,100000,1000000   samples per second and device
+ * --devices=1                    sources streaming at the same time
+ * --seconds=5                    length of a step, after one second of warm-up
+ * --batch=50                     batch interval of the streamer in ms
+ * --policy=decimate              queue policy, drop or decimate
+ * --report=stream.json           where the results are written as JSON
+ * </pre>
+ */
+public class StreamLoad {
+
+    private final static long WARMUP_MILLIS = 1000;
+
+    // Sleep of the producers between their bursts
+    private final static long PRODUCER_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    /**
+     * Decodes the frames of one connection and records the latency of every sample.
+     */
+    private static abstract class Receiver extends Thread implements StreamFrameReader.SampleVisitor {
+        final StreamFrameReader mReader = new StreamFrameReader();
+        final LatencyHistogram mLatency = new LatencyHistogram();
+        volatile boolean mMeasuring;
+        volatile long mReceived;
+        volatile long mMeasured;
+
+        Receiver(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void onSample(int channel, long timeNanos, float value) {
+            mReceived++;
+            if (mMeasuring) {
+                mMeasured++;
+                mLatency.record(System.nanoTime() - timeNanos);
+            }
+        }
+
+        abstract void shutdown() throws IOException;
+    }
+
+    /**
+     * Reads the frames of a {@link TcpStreamServer} like {@code nc} would.
+     */
+    private static class TcpReceiver extends Receiver {
+        private final Socket mSocket;
+
+        TcpReceiver(int port) throws IOException {
+            super("TcpReceiver");
+            mSocket = new Socket("127.0.0.1", port);
+        }
+
+        @Override
+        public void run() {
+            try {
+                InputStream in = new BufferedInputStream(mSocket.getInputStream(), 64 * 1024);
+                while (mReader.readFrom(in, this) >= 0) {
+                    // Counted by the visitor
+                }
+            } catch (IOException e) {
+                // Closed at the end of the step
+            }
+        }
+
+        @Override
+        void shutdown() throws IOException {
+            mSocket.close();
+        }
+    }
+
+    /**
+     * Accepts one MQTT connection, answers the CONNECT and decodes the payloads of the
+     * publishes, enough of a broker for one publisher.
+     */
+    private static class MqttReceiver extends Receiver {
+        private final ServerSocket mServer;
+        private volatile Socket mSocket;
+
+        MqttReceiver() throws IOException {
+            super("MqttReceiver");
+            mServer = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return mServer.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = mServer.accept();
+                mSocket = socket;
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                OutputStream out = socket.getOutputStream();
+                byte[] body = new byte[1024];
+                while (true) {
+                    int type = in.read();
+                    if (type < 0 || (type & 0xf0) == 0xe0) {
+                        return;
+                    }
+                    int length = readRemainingLength(in);
+                    if (body.length < length) {
+                        body = new byte[length];
+                    }
+                    in.readFully(body, 0, length);
+                    if ((type & 0xf0) == 0x10) {
+                        // CONNACK, accepted
+                        out.write(new byte[]{0x20, 2, 0, 0});
+                        out.flush();
+                    } else if ((type & 0xf0) == 0x30) {
+                        int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                        mReader.read(body, 2 + topicLength, length - 2 - topicLength, this);
+                    }
+                }
+            } catch (IOException e) {
+                // Closed at the end of the step
+            }
+        }
+
+        private static int readRemainingLength(DataInputStream in) throws IOException {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int digit = in.readUnsignedByte();
+                length |= (digit & 0x7f) << shift;
+                if ((digit & 0x80) == 0) {
+                    return length;
+                }
+            }
+        }
+
+        @Override
+        void shutdown() throws IOException {
+            mServer.close();
+            Socket socket = mSocket;
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * Offers samples to one source at a fixed rate, in bursts between short sleeps.
+     */
+    private static class Producer extends Thread {
+        final SampleStreamer.Source mSource;
+        final double mRate;
+        volatile boolean mRunning = true;
+        volatile long mOffered;
+
+        Producer(SampleStreamer.Source source, double rate) {
+            super("Producer " + source.getName());
+            mSource = source;
+            mRate = rate;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long offered = 0;
+            while (mRunning) {
+                long now = System.nanoTime();
+                long due = (long) ((now - start) * mRate / 1e9);
+                while (offered < due) {
+                    mSource.offer((int) (offered % SampleDecoder.CHANNEL_COUNT), System.nanoTime(), offered);
+                    offered++;
+                }
+                mOffered = offered;
+                LockSupport.parkNanos(PRODUCER_PARK_NANOS);
+            }
+        }
+    }
+
+    private static class Result {
+        String mTransport;
+        double mRate;
+        double mSeconds;
+        long mOffered;
+        long mReceived;
+        long mMeasured;
+        long mDropped;
+        long mDecimated;
+        long mFrames;
+        long mBytes;
+        long mLatencyP50;
+        long mLatencyP99;
+        long mLatencyMax;
+
+        double getSamplesPerSecond() {
+            return mMeasured / mSeconds;
+        }
+
+        double getBytesPerSample() {
+            return mReceived == 0 ? 0 : (double) mBytes / mReceived;
+        }
+    }
+
+    private final String[] mTransports;
+    private final double[] mRates;
+    private final int mDevices;
+    private final long mStepMillis;
+    private final long mBatchMillis;
+    private final SampleStreamer.Policy mPolicy;
+    private final File mReport;
+
+    private StreamLoad(Map<String, String> options) {
+        mTransports = option(options, "transports", "tcp,mqtt").split(",");
+        String[] rates = option(options, "rates", "10000,100000,1000000").split(",");
+        mRates = new double[rates.length];
+        for (int i = 0; i < rates.length; i++) {
+            mRates[i] = Double.parseDouble(rates[i]);
+        }
+        mDevices = Integer.parseInt(option(options, "devices", "1"));
+        mStepMillis = (long) (Double.parseDouble(option(options, "seconds", "5")) * 1000);
+        mBatchMillis = Long.parseLong(option(options, "batch", "50"));
+        mPolicy = SampleStreamer.Policy.valueOf(option(options, "policy", "decimate").toUpperCase(Locale.ROOT));
+        mReport = new File(option(options, "report", "stream.json"));
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value == null ? fallback : value;
+    }
+
+    private Result runStep(String transport, double rate) throws InterruptedException, IOException {
+        Receiver receiver;
+        SampleStreamer streamer;
+        TcpStreamServer server = null;
+        if ("tcp".equals(transport)) {
+            server = new TcpStreamServer(0);
+            streamer = new SampleStreamer(server);
+            receiver = null;
+        } else if ("mqtt".equals(transport)) {
+            MqttReceiver broker = new MqttReceiver();
+            broker.start();
+            receiver = broker;
+            streamer = new SampleStreamer(new MqttPublisher("127.0.0.1", broker.getPort(), "load", "stream-load"));
+        } else {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        streamer.setBatchMillis(mBatchMillis);
+        streamer.setPolicy(mPolicy);
+        List<SampleStreamer.Source> sources = new ArrayList<>();
+        for (int i = 0; i < mDevices; i++) {
+            sources.add(streamer.addSource(String.format(Locale.ROOT, "00:00:00:00:00:%02X", i)));
+        }
+        streamer.start();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        if (server != null) {
+            while (server.getPort() < 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            receiver = new TcpReceiver(server.getPort());
+            receiver.start();
+            while (server.getClientCount() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        } else {
+            while (!streamer.isConnected() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+        }
+        if (!streamer.isConnected() || (server != null && server.getClientCount() == 0)) {
+            throw new IOException("No connection over " + transport, streamer.getError());
+        }
+
+        List<Producer> producers = new ArrayList<>();
+        for (SampleStreamer.Source source : sources) {
+            Producer producer = new Producer(source, rate);
+            producers.add(producer);
+            producer.start();
+        }
+        Thread.sleep(WARMUP_MILLIS);
+        receiver.mMeasuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(mStepMillis);
+        receiver.mMeasuring = false;
+        long seconds = System.nanoTime() - start;
+
+        Result result = new Result();
+        result.mTransport = transport;
+        result.mRate = rate;
+        result.mSeconds = seconds / 1e9;
+        result.mMeasured = receiver.mMeasured;
+        result.mLatencyP50 = receiver.mLatency.getPercentileNanos(50);
+        result.mLatencyP99 = receiver.mLatency.getPercentileNanos(99);
+        result.mLatencyMax = receiver.mLatency.getMaxNanos();
+
+        for (Producer producer : producers) {
+            producer.mRunning = false;
+            producer.join();
+            result.mOffered += producer.mOffered;
+        }
+        // Sends what is still queued
+        streamer.close();
+        deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (receiver.mReceived < streamer.getSentSamples() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        receiver.shutdown();
+        receiver.join();
+        result.mReceived = receiver.mReceived;
+        result.mFrames = streamer.getSentFrames();
+        result.mBytes = streamer.getSentBytes();
+        for (SampleStreamer.Source source : sources) {
+            result.mDropped += source.getDroppedCount();
+            result.mDecimated += source.getDecimatedCount();
+        }
+        return result;
+    }
+
+    private void run() throws InterruptedException, IOException {
+        System.out.println(String.format(Locale.ROOT, "%d device(s), %d ms batches, %s, %d s per step",
+                mDevices, mBatchMillis, mPolicy, mStepMillis / 1000));
+        System.out.println("transport      rate   samples/s    dropped  decimated  B/sample  latency p50/p99/max us");
+        List<Result> results = new ArrayList<>();
+        for (String transport : mTransports) {
+            for (double rate : mRates) {
+                Result result = runStep(transport, rate);
+                results.add(result);
+                System.out.println(String.format(Locale.ROOT, "%-9s %9.0f %11.0f %10d %10d %9.2f  %d/%d/%d",
+                        result.mTransport, result.mRate, result.getSamplesPerSecond(), result.mDropped,
+                        result.mDecimated, result.getBytesPerSample(), result.mLatencyP50 / 1000,
+                        result.mLatencyP99 / 1000, result.mLatencyMax / 1000));
+            }
+        }
+        writeReport(results);
+        System.out.println("Results saved to " + mReport);
+    }
+
+    private void writeReport(List<Result> results) throws IOException {
+        File parent = mReport.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(String.format(Locale.ROOT, "    {\"transport\": \"%s\", \"devices\": %d, \"rate\": %.1f, "
+                            + "\"batchMillis\": %d, \"policy\": \"%s\", \"seconds\": %.3f, \"offered\": %d, "
+                            + "\"received\": %d, \"samplesPerSecond\": %.1f, \"dropped\": %d, \"decimated\": %d, "
+                            + "\"frames\": %d, \"bytesPerSample\": %.2f, \"latencyP50Nanos\": %d, "
+                            + "\"latencyP99Nanos\": %d, \"latencyMaxNanos\": %d}",
+                    result.mTransport, mDevices, result.mRate, mBatchMillis, mPolicy.name(), result.mSeconds,
+                    result.mOffered, result.mReceived, result.getSamplesPerSecond(), result.mDropped,
+                    result.mDecimated, result.mFrames, result.getBytesPerSample(), result.mLatencyP50,
+                    result.mLatencyP99, result.mLatencyMax));
+            json.append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(mReport), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        new StreamLoad(options).run();
+    }
+}
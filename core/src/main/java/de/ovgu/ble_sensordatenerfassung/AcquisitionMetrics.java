@@ -0,0 +1,303 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Instrumentation of the acquisition of one device: notifications per characteristic, their
+ * inter-arrival jitter, gaps and stalls, the time spent decoding and the latency from a GATT
+ * callback to the display refresh that shows its value.
+ *
+ * The characteristics are the channels of {@link SampleDecoder} plus {@link #FRAME} for the
+ * packed frames. Notifications, reads and stalls are recorded from one thread at a time, like
+ * the GATT callbacks of a device arrive, and {@link #onDisplayed} from the main thread; the
+ * getters and {@link #snapshot} may be called from any thread. Recording allocates nothing.
+ */
+public class AcquisitionMetrics {
+
+    public final static int FRAME = SampleDecoder.CHANNEL_COUNT;
+    public final static int CHARACTERISTIC_COUNT = SampleDecoder.CHANNEL_COUNT + 1;
+
+    // An interval this many times the usual one is a gap
+    public final static int GAP_FACTOR = 3;
+
+    // Intervals needed before gaps are detected, the usual interval is unknown before
+    private final static int WARMUP_INTERVALS = 8;
+
+    // Weight of a new interval in the usual interval, 1/16
+    private final static int SMOOTHING_SHIFT = 4;
+
+    private final AtomicLongArray mNotifications = new AtomicLongArray(CHARACTERISTIC_COUNT);
+    private final AtomicLongArray mFirstArrival = new AtomicLongArray(CHARACTERISTIC_COUNT);
+    private final AtomicLongArray mLastArrival = new AtomicLongArray(CHARACTERISTIC_COUNT);
+    private final AtomicLongArray mSmoothedInterval = new AtomicLongArray(CHARACTERISTIC_COUNT);
+    private final AtomicLongArray mGaps = new AtomicLongArray(CHARACTERISTIC_COUNT);
+    private final AtomicLongArray mStalls = new AtomicLongArray(CHARACTERISTIC_COUNT);
+    private final LatencyHistogram[] mJitter = new LatencyHistogram[CHARACTERISTIC_COUNT];
+    private final LatencyHistogram mDecode = new LatencyHistogram();
+    private final LatencyHistogram mUiLatency = new LatencyHistogram();
+
+    // Oldest callback whose value has not been shown yet, 0 if none
+    private final AtomicLong mPendingSince = new AtomicLong();
+
+    public AcquisitionMetrics() {
+        for (int i = 0; i < CHARACTERISTIC_COUNT; i++) {
+            mJitter[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Counts a notification.
+     *
+     * @param characteristic a channel or {@link #FRAME}
+     * @param arrivalNanos when the callback started
+     * @param decodeNanos time spent decoding and storing the value
+     */
+    public void onNotification(int characteristic, long arrivalNanos, long decodeNanos) {
+        mDecode.record(decodeNanos);
+        long count = mNotifications.get(characteristic);
+        mNotifications.lazySet(characteristic, count + 1);
+        if (count == 0) {
+            mFirstArrival.lazySet(characteristic, arrivalNanos);
+            mLastArrival.lazySet(characteristic, arrivalNanos);
+            return;
+        }
+        long interval = arrivalNanos - mLastArrival.get(characteristic);
+        mLastArrival.lazySet(characteristic, arrivalNanos);
+        long smoothed = mSmoothedInterval.get(characteristic);
+        if (count == 1) {
+            mSmoothedInterval.lazySet(characteristic, interval);
+            return;
+        }
+        if (count > WARMUP_INTERVALS && interval > GAP_FACTOR * smoothed) {
+            // A gap says nothing about the usual interval
+            mGaps.lazySet(characteristic, mGaps.get(characteristic) + 1);
+            return;
+        }
+        mJitter[characteristic].record(Math.abs(interval - smoothed));
+        mSmoothedInterval.lazySet(characteristic, smoothed + ((interval - smoothed) >> SMOOTHING_SHIFT));
+    }
+
+    /**
+     * Counts a value that was read instead of notified, only its decode time is recorded.
+     */
+    public void onRead(long decodeNanos) {
+        mDecode.record(decodeNanos);
+    }
+
+    /**
+     * A value arrived that the display is going to show. Only the oldest one until the next
+     * {@link #onDisplayed} counts.
+     *
+     * @param arrivalNanos when its callback started
+     */
+    public void onPending(long arrivalNanos) {
+        mPendingSince.compareAndSet(0, arrivalNanos);
+    }
+
+    /**
+     * Counts a channel whose notifications stalled, so it is polled.
+     */
+    public void onStall(int characteristic) {
+        mStalls.incrementAndGet(characteristic);
+    }
+
+    /**
+     * A display refresh showed everything received so far.
+     *
+     * @param timeNanos when the refresh was handed to the listeners
+     */
+    public void onDisplayed(long timeNanos) {
+        long since = mPendingSince.getAndSet(0);
+        if (since != 0) {
+            mUiLatency.record(timeNanos - since);
+        }
+    }
+
+    public long getNotificationCount(int characteristic) {
+        return mNotifications.get(characteristic);
+    }
+
+    public long getGapCount(int characteristic) {
+        return mGaps.get(characteristic);
+    }
+
+    public long getStallCount(int characteristic) {
+        return mStalls.get(characteristic);
+    }
+
+    /**
+     * @return the usual time between two notifications, 0 if not known yet
+     */
+    public long getIntervalNanos(int characteristic) {
+        return mSmoothedInterval.get(characteristic);
+    }
+
+    /**
+     * @return notifications per second at the usual interval
+     */
+    public float getRate(int characteristic) {
+        long interval = mSmoothedInterval.get(characteristic);
+        return interval <= 0 ? 0 : 1e9f / interval;
+    }
+
+    public LatencyHistogram getJitter(int characteristic) {
+        return mJitter[characteristic];
+    }
+
+    public LatencyHistogram getDecodeTime() {
+        return mDecode;
+    }
+
+    public LatencyHistogram getUiLatency() {
+        return mUiLatency;
+    }
+
+    /**
+     * @return a copy of the current values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Starts over, e.g. for a new connection.
+     */
+    public void reset() {
+        for (int i = 0; i < CHARACTERISTIC_COUNT; i++) {
+            mNotifications.set(i, 0);
+            mFirstArrival.set(i, 0);
+            mLastArrival.set(i, 0);
+            mSmoothedInterval.set(i, 0);
+            mGaps.set(i, 0);
+            mStalls.set(i, 0);
+            mJitter[i].reset();
+        }
+        mDecode.reset();
+        mUiLatency.reset();
+        mPendingSince.set(0);
+    }
+
+    /**
+     * The metrics at one point in time.
+     */
+    public static class Snapshot {
+        private final long[] mNotifications = new long[CHARACTERISTIC_COUNT];
+        private final float[] mRates = new float[CHARACTERISTIC_COUNT];
+        private final float[] mAverageRates = new float[CHARACTERISTIC_COUNT];
+        private final long[] mGaps = new long[CHARACTERISTIC_COUNT];
+        private final long[] mStalls = new long[CHARACTERISTIC_COUNT];
+        private final long[] mJitterP50 = new long[CHARACTERISTIC_COUNT];
+        private final long[] mJitterP99 = new long[CHARACTERISTIC_COUNT];
+        private final long mDecodeP50;
+        private final long mDecodeP99;
+        private final long mDecodeMax;
+        private final long mUiLatencyP50;
+        private final long mUiLatencyP99;
+        private final long mUiLatencyMax;
+
+        Snapshot(AcquisitionMetrics metrics) {
+            for (int i = 0; i < CHARACTERISTIC_COUNT; i++) {
+                long count = metrics.mNotifications.get(i);
+                mNotifications[i] = count;
+                mRates[i] = metrics.getRate(i);
+                long span = metrics.mLastArrival.get(i) - metrics.mFirstArrival.get(i);
+                mAverageRates[i] = count < 2 || span <= 0 ? 0 : (count - 1) * 1e9f / span;
+                mGaps[i] = metrics.mGaps.get(i);
+                mStalls[i] = metrics.mStalls.get(i);
+                mJitterP50[i] = metrics.mJitter[i].getPercentileNanos(50);
+                mJitterP99[i] = metrics.mJitter[i].getPercentileNanos(99);
+            }
+            mDecodeP50 = metrics.mDecode.getPercentileNanos(50);
+            mDecodeP99 = metrics.mDecode.getPercentileNanos(99);
+            mDecodeMax = metrics.mDecode.getMaxNanos();
+            mUiLatencyP50 = metrics.mUiLatency.getPercentileNanos(50);
+            mUiLatencyP99 = metrics.mUiLatency.getPercentileNanos(99);
+            mUiLatencyMax = metrics.mUiLatency.getMaxNanos();
+        }
+
+        public long getNotificationCount(int characteristic) {
+            return mNotifications[characteristic];
+        }
+
+        /**
+         * @return notifications per second at the recent usual interval
+         */
+        public float getRate(int characteristic) {
+            return mRates[characteristic];
+        }
+
+        /**
+         * @return notifications per second from the first to the last one
+         */
+        public float getAverageRate(int characteristic) {
+            return mAverageRates[characteristic];
+        }
+
+        public long getGapCount(int characteristic) {
+            return mGaps[characteristic];
+        }
+
+        public long getStallCount(int characteristic) {
+            return mStalls[characteristic];
+        }
+
+        public long getJitterP50Nanos(int characteristic) {
+            return mJitterP50[characteristic];
+        }
+
+        public long getJitterP99Nanos(int characteristic) {
+            return mJitterP99[characteristic];
+        }
+
+        public long getDecodeP50Nanos() {
+            return mDecodeP50;
+        }
+
+        public long getDecodeP99Nanos() {
+            return mDecodeP99;
+        }
+
+        public long getDecodeMaxNanos() {
+            return mDecodeMax;
+        }
+
+        public long getUiLatencyP50Nanos() {
+            return mUiLatencyP50;
+        }
+
+        public long getUiLatencyP99Nanos() {
+            return mUiLatencyP99;
+        }
+
+        public long getUiLatencyMaxNanos() {
+            return mUiLatencyMax;
+        }
+
+        /**
+         * @return a few lines for a debug overlay, one per characteristic that notified
+         */
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < CHARACTERISTIC_COUNT; i++) {
+                if (mNotifications[i] == 0 && mStalls[i] == 0) {
+                    continue;
+                }
+                text.append(i == FRAME ? "F" : String.valueOf(i))
+                        .append(' ').append(Math.round(mRates[i])).append("/s")
+                        .append(" jit ").append(mJitterP50[i] / 1000).append('/')
+                        .append(mJitterP99[i] / 1000).append(" us")
+                        .append(" gap ").append(mGaps[i])
+                        .append(" stall ").append(mStalls[i])
+                        .append('\n');
+            }
+            text.append("decode ").append(mDecodeP50 / 1000).append('/').append(mDecodeP99 / 1000)
+                    .append('/').append(mDecodeMax / 1000).append(" us\n");
+            text.append("ui ").append(mUiLatencyP50 / 1000000).append('/')
+                    .append(mUiLatencyP99 / 1000000).append('/').append(mUiLatencyMax / 1000000)
+                    .append(" ms");
+            return text.toString();
+        }
+    }
+}
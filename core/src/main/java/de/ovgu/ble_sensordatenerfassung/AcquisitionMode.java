@@ -0,0 +1,72 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * How the service spends wakeups while it acquires, depending on whether a UI is attached.
+ *
+ * Acquisition, recording and statistics run the same in both modes. Without a UI the display
+ * refreshes are suspended and the recorders collect their rows for longer before they write
+ * and sync them, so a run of several hours wakes the CPU and the storage as rarely as
+ * possible. The MeasurementService holds a wake lock only for the periodic flushes.
+ */
+public enum AcquisitionMode {
+
+    // A UI shows the values: refreshes at display rate, rows reach the storage quickly
+    INTERACTIVE(true, 200, 5000, 0),
+
+    // Started in the foreground without a UI: no refreshes, writes and syncs in large batches
+    BACKGROUND(false, 2000, 60000, 30000);
+
+    private final boolean mUiUpdates;
+    private final long mBatchMillis;
+    private final long mSyncMillis;
+    private final long mFlushMillis;
+
+    AcquisitionMode(boolean uiUpdates, long batchMillis, long syncMillis, long flushMillis) {
+        mUiUpdates = uiUpdates;
+        mBatchMillis = batchMillis;
+        mSyncMillis = syncMillis;
+        mFlushMillis = flushMillis;
+    }
+
+    /**
+     * @return true if samples are handed to the listeners and the display is refreshed
+     */
+    public boolean isUiUpdating() {
+        return mUiUpdates;
+    }
+
+    /**
+     * @return how long the session and trace writers collect before they write
+     */
+    public long getBatchMillis() {
+        return mBatchMillis;
+    }
+
+    /**
+     * @return how often the session writers force their pages to storage
+     */
+    public long getSyncMillis() {
+        return mSyncMillis;
+    }
+
+    /**
+     * @return interval of the flushes under a wake lock, 0 if the mode needs none
+     */
+    public long getFlushMillis() {
+        return mFlushMillis;
+    }
+
+    /**
+     * Applies the write intervals of this mode to a session recorder.
+     */
+    public void applyTo(SessionRecorder recorder) {
+        recorder.setIntervals(mBatchMillis, mSyncMillis);
+    }
+
+    /**
+     * Applies the write interval of this mode to a trace recorder.
+     */
+    public void applyTo(TraceRecorder recorder) {
+        recorder.setBatchMillis(mBatchMillis);
+    }
+}
@@ -0,0 +1,49 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Polling interval that follows how fast the polled values change.
+ *
+ * Every poll that finds a changed value halves the interval, so a fast changing signal is
+ * sampled densely. Every poll that finds nothing new stretches it by half, so a steady
+ * signal does not waste airtime. The interval always stays within the given bounds.
+ */
+public class AdaptivePollInterval {
+    private final long mMinMillis;
+    private final long mMaxMillis;
+    private long mIntervalMillis;
+
+    public AdaptivePollInterval(long minMillis, long maxMillis) {
+        if (minMillis <= 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("invalid interval bounds");
+        }
+        mMinMillis = minMillis;
+        mMaxMillis = maxMillis;
+        mIntervalMillis = minMillis;
+    }
+
+    /**
+     * Starts over with the shortest interval.
+     */
+    public void reset() {
+        mIntervalMillis = mMinMillis;
+    }
+
+    /**
+     * Adapts the interval to the result of a poll.
+     *
+     * @param changed whether the poll found at least one changed value
+     * @return the interval until the next poll
+     */
+    public long onPoll(boolean changed) {
+        if (changed) {
+            mIntervalMillis = Math.max(mMinMillis, mIntervalMillis / 2);
+        } else {
+            mIntervalMillis = Math.min(mMaxMillis, mIntervalMillis + mIntervalMillis / 2 + 1);
+        }
+        return mIntervalMillis;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+}
@@ -0,0 +1,295 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.Arrays;
+
+/**
+ * Immutable block of timestamped samples of one channel, compressed like the Gorilla time
+ * series database does it.
+ *
+ * Timestamps are stored with microsecond resolution as delta-of-delta: a regular sample rate
+ * gives deltas of deltas close to zero, which take one to a few bits. Values are stored as the
+ * XOR with the previous value: slowly changing sensor values share sign, exponent and the high
+ * mantissa bits, so only the few bits in the middle that differ are written.
+ *
+ * Blocks are created by an {@link Encoder} and are safe to read from any thread.
+ */
+public class CompressedBlock {
+
+    // Resolution of the stored timestamps
+    public final static long TIME_RESOLUTION_NANOS = 1000;
+
+    private final long[] mWords;
+    private final int mCount;
+    private final long mFirstTime;
+    private final long mLastTime;
+
+    private CompressedBlock(long[] words, int count, long firstTime, long lastTime) {
+        mWords = words;
+        mCount = count;
+        mFirstTime = firstTime;
+        mLastTime = lastTime;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return timestamp of the first sample, in nanoseconds truncated to the resolution
+     */
+    public long getFirstTime() {
+        return mFirstTime;
+    }
+
+    /**
+     * @return timestamp of the last sample as it was appended, not truncated. It separates
+     * the samples of this block exactly from the ones appended after it.
+     */
+    public long getLastTime() {
+        return mLastTime;
+    }
+
+    /**
+     * @return memory used by the compressed samples
+     */
+    public int getSizeBytes() {
+        return mWords.length * 8;
+    }
+
+    /**
+     * Decodes the samples whose timestamps lie in {@code [fromNanos, toNanos)}.
+     *
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @param offset index of the first sample in the arrays
+     * @return the number of samples copied, limited by the length of {@code values}
+     */
+    public int decode(long fromNanos, long toNanos, long[] times, float[] values, int offset) {
+        BitReader in = new BitReader(mWords);
+        long time = in.read(64);
+        long delta = 0;
+        int bits = (int) in.read(32);
+        int leading = 0;
+        int trailing = 0;
+        int n = 0;
+
+        for (int i = 0; i < mCount && offset + n < values.length; i++) {
+            if (i > 0) {
+                delta += readDeltaOfDelta(in);
+                time += delta;
+
+                if (in.read(1) != 0) {
+                    if (in.read(1) != 0) {
+                        leading = (int) in.read(5);
+                        trailing = 32 - leading - ((int) in.read(5) + 1);
+                    }
+                    bits ^= (int) in.read(32 - leading - trailing) << trailing;
+                }
+            }
+            long nanos = time * TIME_RESOLUTION_NANOS;
+            if (nanos >= toNanos) {
+                break;
+            }
+            if (nanos >= fromNanos) {
+                if (times != null) {
+                    times[offset + n] = nanos;
+                }
+                values[offset + n] = Float.intBitsToFloat(bits);
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static long readDeltaOfDelta(BitReader in) {
+        if (in.read(1) == 0) {
+            return 0;
+        }
+        if (in.read(1) == 0) {
+            return in.readSigned(8);
+        }
+        if (in.read(1) == 0) {
+            return in.readSigned(14);
+        }
+        if (in.read(1) == 0) {
+            return in.readSigned(20);
+        }
+        return in.read(64);
+    }
+
+    /**
+     * Compresses the samples of one block. Not thread-safe.
+     */
+    public static class Encoder {
+        private final BitWriter mOut = new BitWriter();
+        private int mCount;
+        private long mFirstTime;
+        private long mLastTime;
+        private long mLastNanos;
+        private long mDelta;
+        private int mBits;
+        // Position of the meaningful XOR bits, leading is -1 while there is none yet
+        private int mLeading = -1;
+        private int mTrailing;
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Appends a sample. Timestamps must not decrease.
+         */
+        public void append(long timeNanos, float value) {
+            long time = timeNanos / TIME_RESOLUTION_NANOS;
+            int bits = Float.floatToRawIntBits(value);
+            if (mCount == 0) {
+                mOut.write(time, 64);
+                mOut.write(bits, 32);
+                mFirstTime = time;
+            } else {
+                long delta = time - mLastTime;
+                writeDeltaOfDelta(delta - mDelta);
+                mDelta = delta;
+                writeXor(bits ^ mBits);
+            }
+            mLastTime = time;
+            mLastNanos = timeNanos;
+            mBits = bits;
+            mCount++;
+        }
+
+        /**
+         * Creates the immutable block and resets the encoder for the next one.
+         *
+         * @return the block, or null if the encoder is empty
+         */
+        public CompressedBlock seal() {
+            if (mCount == 0) {
+                return null;
+            }
+            CompressedBlock block = new CompressedBlock(mOut.toArray(), mCount,
+                    mFirstTime * TIME_RESOLUTION_NANOS, mLastNanos);
+            mOut.reset();
+            mCount = 0;
+            mDelta = 0;
+            mLeading = -1;
+            return block;
+        }
+
+        private void writeDeltaOfDelta(long dod) {
+            if (dod == 0) {
+                mOut.write(0, 1);
+            } else if (dod >= -128 && dod < 128) {
+                mOut.write(0x2, 2);
+                mOut.write(dod, 8);
+            } else if (dod >= -8192 && dod < 8192) {
+                mOut.write(0x6, 3);
+                mOut.write(dod, 14);
+            } else if (dod >= -524288 && dod < 524288) {
+                mOut.write(0xe, 4);
+                mOut.write(dod, 20);
+            } else {
+                mOut.write(0xf, 4);
+                mOut.write(dod, 64);
+            }
+        }
+
+        private void writeXor(int xor) {
+            if (xor == 0) {
+                mOut.write(0, 1);
+                return;
+            }
+            int leading = Math.min(31, Integer.numberOfLeadingZeros(xor));
+            int trailing = Integer.numberOfTrailingZeros(xor);
+            if (mLeading >= 0 && leading >= mLeading && trailing >= mTrailing) {
+                // The changed bits fit into the window of the previous value
+                mOut.write(0x2, 2);
+                mOut.write(xor >>> mTrailing, 32 - mLeading - mTrailing);
+            } else {
+                int length = 32 - leading - trailing;
+                mOut.write(0x3, 2);
+                mOut.write(leading, 5);
+                mOut.write(length - 1, 5);
+                mOut.write(xor >>> trailing, length);
+                mLeading = leading;
+                mTrailing = trailing;
+            }
+        }
+    }
+
+    /**
+     * Appends bits to a growing array of words, most significant bit first.
+     */
+    static class BitWriter {
+        private long[] mWords = new long[64];
+        private int mBitLength;
+
+        int getBitLength() {
+            return mBitLength;
+        }
+
+        /**
+         * Writes the lowest {@code bits} bits of a value, 1 to 64.
+         */
+        void write(long value, int bits) {
+            if (bits < 64) {
+                value &= (1L << bits) - 1;
+            }
+            int index = mBitLength >>> 6;
+            int free = 64 - (mBitLength & 63);
+            if (index + 1 >= mWords.length) {
+                mWords = Arrays.copyOf(mWords, mWords.length * 2);
+            }
+            if (bits <= free) {
+                mWords[index] |= value << (free - bits);
+            } else {
+                mWords[index] |= value >>> (bits - free);
+                mWords[index + 1] |= value << (64 - (bits - free));
+            }
+            mBitLength += bits;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(mWords, (mBitLength + 63) >>> 6);
+        }
+
+        void reset() {
+            Arrays.fill(mWords, 0, Math.min(mWords.length, (mBitLength >>> 6) + 1), 0L);
+            mBitLength = 0;
+        }
+    }
+
+    /**
+     * Reads the bits written by a {@link BitWriter}.
+     */
+    static class BitReader {
+        private final long[] mWords;
+        private int mPosition;
+
+        BitReader(long[] words) {
+            mWords = words;
+        }
+
+        /**
+         * Reads 1 to 64 bits as an unsigned value.
+         */
+        long read(int bits) {
+            int index = mPosition >>> 6;
+            int used = mPosition & 63;
+            int available = 64 - used;
+            mPosition += bits;
+            if (bits <= available) {
+                return (mWords[index] << used) >>> (64 - bits);
+            }
+            int low = bits - available;
+            return ((mWords[index] & ((1L << available) - 1)) << low) | (mWords[index + 1] >>> (64 - low));
+        }
+
+        /**
+         * Reads 1 to 63 bits as a two's complement value.
+         */
+        long readSigned(int bits) {
+            return (read(bits) << (64 - bits)) >> (64 - bits);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Long-term history of all channels in {@link CompressedBlock}s.
+ *
+ * This is the tier behind the {@link SampleStore}: the store keeps the most recent samples
+ * uncompressed, this history keeps hours of samples in a fraction of the memory. Exactly one
+ * thread may append. Every channel collects its samples in an encoder until the block is full,
+ * then the sealed block is published with a new copy of the block list, so readers on any
+ * thread see either the old or the new list and never a block that is still written. When a
+ * channel exceeds its memory budget the oldest blocks are dropped.
+ *
+ * Samples that are still in an open block are not visible yet, see {@link #getSealedUntil}.
+ */
+public class CompressedHistory {
+
+    private final static CompressedBlock[] NO_BLOCKS = new CompressedBlock[0];
+
+    private final int mChannelCount;
+    private final int mBlockSamples;
+    private final long mMaxBytesPerChannel;
+
+    // Only used by the writer thread
+    private final CompressedBlock.Encoder[] mEncoders;
+    private final long[] mChannelBytes;
+
+    // Sealed blocks per channel in chronological order, replaced as a whole on every change
+    private final AtomicReferenceArray<CompressedBlock[]> mBlocks;
+
+    private final AtomicLong mSealedBytes = new AtomicLong();
+    private final AtomicLong mSealedSamples = new AtomicLong();
+    private final AtomicLong mDroppedBlocks = new AtomicLong();
+
+    /**
+     * @param channelCount number of channels
+     * @param blockSamples number of samples per block
+     * @param maxBytesPerChannel memory budget of the sealed blocks of one channel
+     */
+    public CompressedHistory(int channelCount, int blockSamples, long maxBytesPerChannel) {
+        if (channelCount <= 0 || blockSamples <= 0) {
+            throw new IllegalArgumentException("channelCount and blockSamples must be positive");
+        }
+        mChannelCount = channelCount;
+        mBlockSamples = blockSamples;
+        mMaxBytesPerChannel = maxBytesPerChannel;
+        mEncoders = new CompressedBlock.Encoder[channelCount];
+        mChannelBytes = new long[channelCount];
+        mBlocks = new AtomicReferenceArray<CompressedBlock[]>(channelCount);
+        for (int channel = 0; channel < channelCount; channel++) {
+            mEncoders[channel] = new CompressedBlock.Encoder();
+            mBlocks.set(channel, NO_BLOCKS);
+        }
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * Appends a sample. Must only be called from the single writer thread.
+     */
+    public void append(int channel, long timeNanos, float value) {
+        CompressedBlock.Encoder encoder = mEncoders[channel];
+        encoder.append(timeNanos, value);
+        if (encoder.getCount() == mBlockSamples) {
+            seal(channel);
+        }
+    }
+
+    /**
+     * Seals the open blocks of all channels, e.g. at the end of a session. Must only be called
+     * from the writer thread.
+     */
+    public void sealAll() {
+        for (int channel = 0; channel < mChannelCount; channel++) {
+            seal(channel);
+        }
+    }
+
+    private void seal(int channel) {
+        CompressedBlock block = mEncoders[channel].seal();
+        if (block == null) {
+            return;
+        }
+        CompressedBlock[] blocks = mBlocks.get(channel);
+        long bytes = mChannelBytes[channel] + block.getSizeBytes();
+        int first = 0;
+        while (first < blocks.length && bytes > mMaxBytesPerChannel) {
+            bytes -= blocks[first].getSizeBytes();
+            mSealedSamples.addAndGet(-blocks[first].getCount());
+            first++;
+        }
+        mDroppedBlocks.addAndGet(first);
+
+        CompressedBlock[] next = new CompressedBlock[blocks.length - first + 1];
+        System.arraycopy(blocks, first, next, 0, blocks.length - first);
+        next[next.length - 1] = block;
+        mBlocks.set(channel, next);
+
+        mSealedBytes.addAndGet(bytes - mChannelBytes[channel]);
+        mSealedSamples.addAndGet(block.getCount());
+        mChannelBytes[channel] = bytes;
+    }
+
+    /**
+     * @return timestamp of the newest sealed sample of a channel, or {@link Long#MIN_VALUE}
+     */
+    public long getSealedUntil(int channel) {
+        CompressedBlock[] blocks = mBlocks.get(channel);
+        return blocks.length == 0 ? Long.MIN_VALUE : blocks[blocks.length - 1].getLastTime();
+    }
+
+    /**
+     * @return timestamp of the oldest kept sample of a channel, or {@link Long#MAX_VALUE}
+     */
+    public long getOldestTime(int channel) {
+        CompressedBlock[] blocks = mBlocks.get(channel);
+        return blocks.length == 0 ? Long.MAX_VALUE : blocks[0].getFirstTime();
+    }
+
+    /**
+     * Copies the sealed samples whose timestamps lie in {@code [fromNanos, toNanos)}. Only the
+     * blocks that overlap the window are decoded.
+     *
+     * @param channel the channel to read
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @param offset index of the first sample in the arrays
+     * @return the number of samples copied, limited by the length of {@code values}
+     */
+    public int readRange(int channel, long fromNanos, long toNanos, long[] times, float[] values, int offset) {
+        CompressedBlock[] blocks = mBlocks.get(channel);
+        // First block that ends at or after the start of the window
+        int lo = 0;
+        int hi = blocks.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blocks[mid].getLastTime() < fromNanos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int n = 0;
+        for (int i = lo; i < blocks.length && blocks[i].getFirstTime() < toNanos; i++) {
+            if (offset + n == values.length) {
+                break;
+            }
+            n += blocks[i].decode(fromNanos, toNanos, times, values, offset + n);
+        }
+        return n;
+    }
+
+    /**
+     * @return memory used by the sealed blocks of all channels
+     */
+    public long getCompressedBytes() {
+        return mSealedBytes.get();
+    }
+
+    /**
+     * @return number of samples in the sealed blocks of all channels
+     */
+    public long getSampleCount() {
+        return mSealedSamples.get();
+    }
+
+    /**
+     * @return number of blocks dropped to stay within the memory budget
+     */
+    public long getDroppedBlockCount() {
+        return mDroppedBlocks.get();
+    }
+
+    /**
+     * @return size of the kept samples as timestamp and float, divided by their compressed size
+     */
+    public float getCompressionRatio() {
+        long bytes = mSealedBytes.get();
+        return bytes == 0 ? 0f : mSealedSamples.get() * 12f / bytes;
+    }
+}
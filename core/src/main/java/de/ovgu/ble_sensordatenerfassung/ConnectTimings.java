@@ -0,0 +1,62 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Time from starting a connection to the first stored sample, separately for cold connects
+ * (scan, connect, discovery) and warm ones (cached device, discovery skipped if possible).
+ * All methods are thread-safe.
+ */
+public class ConnectTimings {
+
+    public final static int COLD = 0;
+    public final static int WARM = 1;
+    public final static int MODE_COUNT = 2;
+
+    private final long[] mCounts = new long[MODE_COUNT];
+    private final long[] mTotalNanos = new long[MODE_COUNT];
+    private final long[] mMinNanos = new long[MODE_COUNT];
+    private final long[] mMaxNanos = new long[MODE_COUNT];
+    private final long[] mLastNanos = new long[MODE_COUNT];
+
+    /**
+     * Counts one connection.
+     *
+     * @param mode COLD or WARM
+     * @param nanos time from the start of the connection to its first sample
+     */
+    public synchronized void record(int mode, long nanos) {
+        if (mCounts[mode] == 0 || nanos < mMinNanos[mode]) {
+            mMinNanos[mode] = nanos;
+        }
+        mMaxNanos[mode] = Math.max(mMaxNanos[mode], nanos);
+        mCounts[mode]++;
+        mTotalNanos[mode] += nanos;
+        mLastNanos[mode] = nanos;
+    }
+
+    public synchronized long getCount(int mode) {
+        return mCounts[mode];
+    }
+
+    public synchronized long getAverageNanos(int mode) {
+        return mCounts[mode] == 0 ? 0 : mTotalNanos[mode] / mCounts[mode];
+    }
+
+    public synchronized long getMinNanos(int mode) {
+        return mMinNanos[mode];
+    }
+
+    public synchronized long getMaxNanos(int mode) {
+        return mMaxNanos[mode];
+    }
+
+    public synchronized long getLastNanos(int mode) {
+        return mLastNanos[mode];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "cold " + mCounts[COLD] + " x " + mTotalNanos[COLD] / Math.max(1, mCounts[COLD]) / 1000000
+                + " ms, warm " + mCounts[WARM] + " x " + mTotalNanos[WARM] / Math.max(1, mCounts[WARM]) / 1000000
+                + " ms";
+    }
+}
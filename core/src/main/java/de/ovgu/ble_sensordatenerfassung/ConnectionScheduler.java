@@ -0,0 +1,279 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Runs the connect and service discovery steps of several devices one at a time.
+ *
+ * Establishing a connection and discovering the services occupy the shared radio and the
+ * Bluetooth stack, and Android handles pending connections one after the other anyway. A
+ * device whose connect never completes would hold up all others. This scheduler starts the
+ * next step only when the previous one reported back or timed out, in the order the steps
+ * were requested. A device has at most one waiting step, so a device that keeps reconnecting
+ * cannot starve the others: its next step always goes to the end of the line.
+ *
+ * Streaming is not scheduled here, every connection has its own {@link GattOperationQueue}.
+ * All methods are thread-safe.
+ */
+public class ConnectionScheduler {
+
+    public final static int STEP_CONNECT = 0;
+    public final static int STEP_DISCOVER = 1;
+    public final static int STEP_COUNT = 2;
+
+    // Default time to wait for a step to report back
+    public final static long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Carries out the steps.
+     */
+    public interface Callback {
+        /**
+         * Starts a step. Its result has to be reported with {@link #complete}.
+         *
+         * @return false if the step could not be started
+         */
+        boolean onStart(String address, int step);
+
+        /**
+         * A step could not be started or did not report back in time.
+         */
+        void onFailed(String address, int step);
+    }
+
+    private static class Entry {
+        final String mAddress;
+        int mStep;
+        long mEnqueuedNanos;
+
+        Entry(String address, int step, long enqueuedNanos) {
+            mAddress = address;
+            mStep = step;
+            mEnqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    private final Callback mCallback;
+    private final GattOperationQueue.Scheduler mScheduler;
+    private final ArrayDeque<Entry> mPending = new ArrayDeque<>();
+    private Entry mCurrent;
+    private long mCurrentStartNanos;
+
+    private volatile long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    // Statistics, guarded by this
+    private final long[] mCompleted = new long[STEP_COUNT];
+    private final long[] mFailed = new long[STEP_COUNT];
+    private final long[] mTotalDurationNanos = new long[STEP_COUNT];
+    private long mTimeouts;
+    private long mStarted;
+    private long mTotalWaitNanos;
+    private long mMaxWaitNanos;
+
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    public ConnectionScheduler(Callback callback, GattOperationQueue.Scheduler scheduler) {
+        mCallback = callback;
+        mScheduler = scheduler;
+    }
+
+    public void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Requests a step for a device and starts it if nothing else is running. If the device
+     * already waits, it keeps its place and the waiting step is replaced.
+     */
+    public void enqueue(String address, int step) {
+        synchronized (this) {
+            Entry waiting = find(address);
+            if (waiting != null) {
+                waiting.mStep = step;
+            } else {
+                mPending.add(new Entry(address, step, System.nanoTime()));
+            }
+            if (mCurrent != null) {
+                return;
+            }
+        }
+        startNext();
+    }
+
+    /**
+     * Reports the result of the running step. Results of steps that are not running, e.g.
+     * late ones after a timeout, are ignored.
+     */
+    public void complete(String address, int step, boolean success) {
+        synchronized (this) {
+            if (mCurrent == null || mCurrent.mStep != step || !mCurrent.mAddress.equals(address)) {
+                return;
+            }
+            mTotalDurationNanos[step] += System.nanoTime() - mCurrentStartNanos;
+            if (success) {
+                mCompleted[step]++;
+            } else {
+                mFailed[step]++;
+            }
+            mCurrent = null;
+        }
+        mScheduler.removeCallbacks(mTimeoutTask);
+        startNext();
+    }
+
+    /**
+     * Forgets the waiting and the running step of a device, e.g. when it is closed.
+     */
+    public void cancel(String address) {
+        boolean wasRunning = false;
+        synchronized (this) {
+            Entry waiting = find(address);
+            if (waiting != null) {
+                mPending.remove(waiting);
+            }
+            if (mCurrent != null && mCurrent.mAddress.equals(address)) {
+                mCurrent = null;
+                wasRunning = true;
+            }
+        }
+        if (wasRunning) {
+            mScheduler.removeCallbacks(mTimeoutTask);
+            startNext();
+        }
+    }
+
+    /**
+     * Forgets all steps. No callbacks are called.
+     */
+    public void clear() {
+        synchronized (this) {
+            mPending.clear();
+            mCurrent = null;
+        }
+        mScheduler.removeCallbacks(mTimeoutTask);
+    }
+
+    /**
+     * @return the address of the device whose step is running, or null if the radio is free
+     */
+    public synchronized String getRunningAddress() {
+        return mCurrent == null ? null : mCurrent.mAddress;
+    }
+
+    /**
+     * @return number of devices waiting for their step, not counting the running one
+     */
+    public synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    public synchronized boolean isIdle() {
+        return mCurrent == null && mPending.isEmpty();
+    }
+
+    public synchronized long getCompletedCount(int step) {
+        return mCompleted[step];
+    }
+
+    public synchronized long getFailedCount(int step) {
+        return mFailed[step];
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    /**
+     * @return average time a step took from its start to its result
+     */
+    public synchronized long getAverageDurationNanos(int step) {
+        long finished = mCompleted[step] + mFailed[step];
+        return finished == 0 ? 0 : mTotalDurationNanos[step] / finished;
+    }
+
+    /**
+     * @return average time a step waited for the radio before it was started
+     */
+    public synchronized long getAverageWaitNanos() {
+        return mStarted == 0 ? 0 : mTotalWaitNanos / mStarted;
+    }
+
+    public synchronized long getMaxWaitNanos() {
+        return mMaxWaitNanos;
+    }
+
+    private Entry find(String address) {
+        Iterator<Entry> it = mPending.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.mAddress.equals(address)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void onTimeout() {
+        Entry timedOut;
+        synchronized (this) {
+            if (mCurrent == null) {
+                return;
+            }
+            long remaining = mTimeoutMillis - (System.nanoTime() - mCurrentStartNanos) / 1000000;
+            if (remaining > 0) {
+                // Left over from a step that completed while this task was running
+                mScheduler.postDelayed(mTimeoutTask, remaining);
+                return;
+            }
+            timedOut = mCurrent;
+            mTimeouts++;
+            mFailed[timedOut.mStep]++;
+            mTotalDurationNanos[timedOut.mStep] += System.nanoTime() - mCurrentStartNanos;
+            mCurrent = null;
+        }
+        mCallback.onFailed(timedOut.mAddress, timedOut.mStep);
+        startNext();
+    }
+
+    /**
+     * Starts waiting steps until one of them could be started or none is left.
+     */
+    private void startNext() {
+        while (true) {
+            Entry next;
+            synchronized (this) {
+                if (mCurrent != null || mPending.isEmpty()) {
+                    return;
+                }
+                next = mPending.poll();
+                mCurrent = next;
+                mCurrentStartNanos = System.nanoTime();
+                long wait = mCurrentStartNanos - next.mEnqueuedNanos;
+                mStarted++;
+                mTotalWaitNanos += wait;
+                mMaxWaitNanos = Math.max(mMaxWaitNanos, wait);
+            }
+            mScheduler.postDelayed(mTimeoutTask, mTimeoutMillis);
+            if (mCallback.onStart(next.mAddress, next.mStep)) {
+                return;
+            }
+
+            // The stack refused the step, move on to the next device
+            synchronized (this) {
+                if (mCurrent != next) {
+                    return;
+                }
+                mCurrent = null;
+                mFailed[next.mStep]++;
+            }
+            mScheduler.removeCallbacks(mTimeoutTask);
+            mCallback.onFailed(next.mAddress, next.mStep);
+        }
+    }
+}
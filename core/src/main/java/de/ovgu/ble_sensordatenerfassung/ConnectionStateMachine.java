@@ -0,0 +1,253 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of a connection, changed only by events and only along legal transitions.
+ *
+ * The service has one machine for the adapter and the scan, and every device has its own for
+ * connect, discovery, subscription, streaming and reconnects:
+ * <pre>
+ * ADAPTER_OFF  -&gt; IDLE
+ * IDLE         -&gt; SCANNING | CONNECTING
+ * SCANNING     -&gt; IDLE
+ * CONNECTING   -&gt; DISCOVERING | SUBSCRIBING (layout cached) | RECONNECTING | IDLE
+ * DISCOVERING  -&gt; SUBSCRIBING | RECONNECTING | IDLE
+ * SUBSCRIBING  -&gt; STREAMING | RECONNECTING | IDLE
+ * STREAMING    -&gt; RECONNECTING | IDLE
+ * RECONNECTING -&gt; CONNECTING (after the backoff) | IDLE
+ * </pre>
+ * Every state except CLOSED can also go to ADAPTER_OFF and to CLOSED, which is final.
+ * Illegal transitions are rejected and counted. Every transition is timestamped and the most
+ * recent ones are kept. Nothing is polled: whoever receives an event moves the machine.
+ * All methods are thread-safe, the listener is called outside the lock.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {
+        ADAPTER_OFF, IDLE, SCANNING, CONNECTING, DISCOVERING, SUBSCRIBING, STREAMING, RECONNECTING, CLOSED
+    }
+
+    /**
+     * Called after every transition.
+     */
+    public interface Listener {
+        void onStateChanged(ConnectionStateMachine machine, State from, State to, long timeNanos);
+    }
+
+    /**
+     * A transition that happened.
+     */
+    public static class Transition {
+        private final State mFrom;
+        private final State mTo;
+        private final long mTimeNanos;
+
+        Transition(State from, State to, long timeNanos) {
+            mFrom = from;
+            mTo = to;
+            mTimeNanos = timeNanos;
+        }
+
+        public State getFrom() {
+            return mFrom;
+        }
+
+        public State getTo() {
+            return mTo;
+        }
+
+        public long getTimeNanos() {
+            return mTimeNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mFrom + " -> " + mTo + " @" + mTimeNanos;
+        }
+    }
+
+    // Number of transitions kept for getHistory()
+    public final static int HISTORY_CAPACITY = 32;
+
+    // Reconnect delays double from the first to the last
+    public final static long INITIAL_BACKOFF_MILLIS = 500;
+    public final static long MAX_BACKOFF_MILLIS = 30000;
+
+    private final static State[] STATES = State.values();
+    private final static boolean[][] LEGAL = new boolean[STATES.length][STATES.length];
+
+    static {
+        allow(State.ADAPTER_OFF, State.IDLE);
+        allow(State.IDLE, State.SCANNING, State.CONNECTING);
+        allow(State.SCANNING, State.IDLE);
+        allow(State.CONNECTING, State.DISCOVERING, State.SUBSCRIBING, State.RECONNECTING, State.IDLE);
+        allow(State.DISCOVERING, State.SUBSCRIBING, State.RECONNECTING, State.IDLE);
+        allow(State.SUBSCRIBING, State.STREAMING, State.RECONNECTING, State.IDLE);
+        allow(State.STREAMING, State.RECONNECTING, State.IDLE);
+        allow(State.RECONNECTING, State.CONNECTING, State.IDLE);
+        for (State from : STATES) {
+            if (from != State.CLOSED && from != State.ADAPTER_OFF) {
+                allow(from, State.ADAPTER_OFF);
+            }
+            if (from != State.CLOSED) {
+                allow(from, State.CLOSED);
+            }
+        }
+    }
+
+    private static void allow(State from, State... to) {
+        for (State state : to) {
+            LEGAL[from.ordinal()][state.ordinal()] = true;
+        }
+    }
+
+    private final String mName;
+    private State mState;
+    private long mEnteredNanos;
+    private Listener mListener;
+
+    // Ring of the last transitions
+    private final State[] mHistoryFrom = new State[HISTORY_CAPACITY];
+    private final State[] mHistoryTo = new State[HISTORY_CAPACITY];
+    private final long[] mHistoryNanos = new long[HISTORY_CAPACITY];
+    private long mTransitions;
+    private long mRejected;
+
+    // Time spent in every state before the current one
+    private final long[] mTimeInStateNanos = new long[STATES.length];
+
+    private int mReconnectAttempts;
+
+    /**
+     * @param name shown in the log, e.g. the device address
+     * @param initial the state to start in
+     * @param timeNanos when the machine starts
+     */
+    public ConnectionStateMachine(String name, State initial, long timeNanos) {
+        mName = name;
+        mState = initial;
+        mEnteredNanos = timeNanos;
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * @return true if the machine may go from one state to the other
+     */
+    public static boolean isLegal(State from, State to) {
+        return LEGAL[from.ordinal()][to.ordinal()];
+    }
+
+    /**
+     * Moves to a state. Staying in the current state is not a transition and is ignored.
+     *
+     * @return false if the transition is illegal, the state is unchanged then
+     */
+    public boolean moveTo(State to, long timeNanos) {
+        State from;
+        Listener listener;
+        synchronized (this) {
+            from = mState;
+            if (from == to) {
+                return true;
+            }
+            if (!isLegal(from, to)) {
+                mRejected++;
+                return false;
+            }
+            mTimeInStateNanos[from.ordinal()] += timeNanos - mEnteredNanos;
+            int slot = (int) (mTransitions % HISTORY_CAPACITY);
+            mHistoryFrom[slot] = from;
+            mHistoryTo[slot] = to;
+            mHistoryNanos[slot] = timeNanos;
+            mTransitions++;
+            mState = to;
+            mEnteredNanos = timeNanos;
+            if (to == State.STREAMING) {
+                mReconnectAttempts = 0;
+            }
+            listener = mListener;
+        }
+        if (listener != null) {
+            listener.onStateChanged(this, from, to, timeNanos);
+        }
+        return true;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    public synchronized boolean is(State state) {
+        return mState == state;
+    }
+
+    /**
+     * @return when the current state was entered
+     */
+    public synchronized long getEnteredNanos() {
+        return mEnteredNanos;
+    }
+
+    /**
+     * @return total time spent in a state, including the current stay
+     */
+    public synchronized long getTimeInStateNanos(State state, long nowNanos) {
+        long time = mTimeInStateNanos[state.ordinal()];
+        return state == mState ? time + nowNanos - mEnteredNanos : time;
+    }
+
+    /**
+     * @return the last transitions, the oldest first
+     */
+    public synchronized List<Transition> getHistory() {
+        int count = (int) Math.min(mTransitions, HISTORY_CAPACITY);
+        List<Transition> history = new ArrayList<>(count);
+        for (long i = mTransitions - count; i < mTransitions; i++) {
+            int slot = (int) (i % HISTORY_CAPACITY);
+            history.add(new Transition(mHistoryFrom[slot], mHistoryTo[slot], mHistoryNanos[slot]));
+        }
+        return history;
+    }
+
+    public synchronized long getTransitionCount() {
+        return mTransitions;
+    }
+
+    /**
+     * @return number of illegal transitions that were rejected
+     */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * Counts a reconnect attempt and returns how long to wait before it. The delay doubles
+     * with every attempt until the connection streams again.
+     */
+    public synchronized long nextReconnectDelayMillis() {
+        long delay = INITIAL_BACKOFF_MILLIS << Math.min(mReconnectAttempts, 16);
+        mReconnectAttempts++;
+        return Math.min(delay, MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @return reconnect attempts since the connection last streamed
+     */
+    public synchronized int getReconnectAttempts() {
+        return mReconnectAttempts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName + " " + mState;
+    }
+}
@@ -0,0 +1,393 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.Locale;
+
+/**
+ * Computes derived channels and running statistics from the raw samples, in constant time
+ * and without allocations per sample.
+ *
+ * Input power is voltage times current, output power is torque times speed times 2&pi;/60.
+ * Both are recomputed whenever one of their inputs changes, using the latest value of the
+ * other one. Rows, from frames or from the {@link RowAssembler}, give both inputs of a power
+ * from the same instant. Energy is the trapezoidal integral of the power, in watt hours. The local
+ * efficiency is output over input power and is compared with the efficiency the device
+ * reports. Every channel, raw and derived, keeps count, mean, variance (Welford), min and max.
+ *
+ * The samples are fed from a single thread. Derived samples are passed to the {@link Sink} on
+ * that thread. The statistics may be read from any thread.
+ */
+public class DerivedMetrics {
+
+    public final static int CHANNEL_INPUT_POWER = SampleDecoder.CHANNEL_COUNT;
+    public final static int CHANNEL_OUTPUT_POWER = SampleDecoder.CHANNEL_COUNT + 1;
+    public final static int CHANNEL_INPUT_ENERGY = SampleDecoder.CHANNEL_COUNT + 2;
+    public final static int CHANNEL_OUTPUT_ENERGY = SampleDecoder.CHANNEL_COUNT + 3;
+    public final static int CHANNEL_LOCAL_EFFICIENCY = SampleDecoder.CHANNEL_COUNT + 4;
+
+    // Raw and derived channels together
+    public final static int CHANNEL_COUNT = SampleDecoder.CHANNEL_COUNT + 5;
+
+    // Bit mask with a bit for every raw channel
+    private final static int ALL_RAW_CHANNELS = (1 << SampleDecoder.CHANNEL_COUNT) - 1;
+
+    // Below this input power the efficiency is not meaningful
+    public final static float MIN_EFFICIENCY_INPUT_POWER = 1f;
+
+    // Deviation in percentage points from which the reported efficiency counts as a mismatch
+    public final static float DEFAULT_EFFICIENCY_TOLERANCE = 5f;
+
+    // Power is not integrated over gaps longer than this, e.g. after a reconnect
+    private final static long MAX_INTEGRATION_GAP_NANOS = 5000000000L;
+
+    private final static double RPM_TO_RAD_PER_SECOND = 2 * Math.PI / 60;
+    private final static double JOULES_PER_WATT_HOUR = 3600;
+
+    /**
+     * Receives the derived samples.
+     */
+    public interface Sink {
+        void onDerived(int channel, long timeNanos, float value);
+    }
+
+    private final Sink mSink;
+
+    // Latest raw values and the channels that have one
+    private final float[] mLatest = new float[SampleDecoder.CHANNEL_COUNT];
+    private int mReceived;
+
+    private final Integrator mInput = new Integrator();
+    private final Integrator mOutput = new Integrator();
+    private float mLocalEfficiency = Float.NaN;
+
+    // Running statistics per channel
+    private final long[] mCounts = new long[CHANNEL_COUNT];
+    private final double[] mMeans = new double[CHANNEL_COUNT];
+    private final double[] mM2 = new double[CHANNEL_COUNT];
+    private final float[] mMins = new float[CHANNEL_COUNT];
+    private final float[] mMaxs = new float[CHANNEL_COUNT];
+
+    // Comparison of the reported with the local efficiency
+    private float mEfficiencyTolerance = DEFAULT_EFFICIENCY_TOLERANCE;
+    private long mEfficiencyChecks;
+    private long mEfficiencyMismatches;
+    private double mEfficiencyDeviationSum;
+    private float mLastEfficiencyDeviation = Float.NaN;
+
+    // Derived samples of the current update, emitted after the lock is released
+    private final int[] mPendingChannels = new int[CHANNEL_COUNT];
+    private final float[] mPendingValues = new float[CHANNEL_COUNT];
+    private int mPending;
+
+    public DerivedMetrics(Sink sink) {
+        mSink = sink;
+        reset();
+    }
+
+    /**
+     * Returns the value of a raw or derived channel as text, e.g. for a TextView.
+     */
+    public static String format(int channel, float value) {
+        if (channel == CHANNEL_INPUT_ENERGY || channel == CHANNEL_OUTPUT_ENERGY) {
+            return String.format(Locale.getDefault(), "%.3f", value);
+        }
+        return SampleDecoder.format(channel, value);
+    }
+
+    /**
+     * Clears energy, statistics and the efficiency comparison, e.g. for a new session.
+     */
+    public synchronized void reset() {
+        mReceived = 0;
+        mInput.reset();
+        mOutput.reset();
+        mLocalEfficiency = Float.NaN;
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            mCounts[channel] = 0;
+            mMeans[channel] = 0;
+            mM2[channel] = 0;
+            mMins[channel] = Float.NaN;
+            mMaxs[channel] = Float.NaN;
+        }
+        mEfficiencyChecks = 0;
+        mEfficiencyMismatches = 0;
+        mEfficiencyDeviationSum = 0;
+        mLastEfficiencyDeviation = Float.NaN;
+    }
+
+    /**
+     * @param tolerance deviation in percentage points from which the reported efficiency
+     * counts as a mismatch
+     */
+    public synchronized void setEfficiencyTolerance(float tolerance) {
+        mEfficiencyTolerance = tolerance;
+    }
+
+    /**
+     * Adds a sample of a single raw channel.
+     */
+    public void onSample(int channel, long timeNanos, float value) {
+        synchronized (this) {
+            mPending = 0;
+            update(channel, value);
+            switch (channel) {
+                case SampleDecoder.CHANNEL_VOLTAGE:
+                case SampleDecoder.CHANNEL_CURRENT:
+                    if (updateInputPower(timeNanos)) {
+                        updateLocalEfficiency();
+                    }
+                    break;
+                case SampleDecoder.CHANNEL_SPEED:
+                case SampleDecoder.CHANNEL_TORQUE:
+                    if (updateOutputPower(timeNanos)) {
+                        updateLocalEfficiency();
+                    }
+                    break;
+                case SampleDecoder.CHANNEL_EFFICIENCY:
+                    checkEfficiency(value);
+                    break;
+            }
+        }
+        emit(timeNanos);
+    }
+
+    /**
+     * Adds a row with a value for every raw channel, e.g. from a frame notification. The powers
+     * are computed once from the values of the row.
+     */
+    public void onRow(long timeNanos, float[] values) {
+        onRow(timeNanos, values, ALL_RAW_CHANNELS);
+    }
+
+    /**
+     * Adds a row assembled from single channel samples. Only the measured channels count for
+     * the statistics and the efficiency comparison; interpolated values are used for the
+     * powers, NaN values skip the powers that depend on them.
+     *
+     * @param measured bit mask of the channels that were measured, the others are interpolated
+     * or NaN
+     */
+    public void onRow(long timeNanos, float[] values, int measured) {
+        synchronized (this) {
+            mPending = 0;
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                float value = values[channel];
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                mLatest[channel] = value;
+                mReceived |= 1 << channel;
+                if ((measured & (1 << channel)) != 0) {
+                    addStatistics(channel, value);
+                }
+            }
+            boolean changed = false;
+            if (!Float.isNaN(values[SampleDecoder.CHANNEL_VOLTAGE])
+                    && !Float.isNaN(values[SampleDecoder.CHANNEL_CURRENT])) {
+                changed = updateInputPower(timeNanos);
+            }
+            if (!Float.isNaN(values[SampleDecoder.CHANNEL_SPEED])
+                    && !Float.isNaN(values[SampleDecoder.CHANNEL_TORQUE])) {
+                changed |= updateOutputPower(timeNanos);
+            }
+            if (changed) {
+                updateLocalEfficiency();
+            }
+            if ((measured & (1 << SampleDecoder.CHANNEL_EFFICIENCY)) != 0) {
+                checkEfficiency(values[SampleDecoder.CHANNEL_EFFICIENCY]);
+            }
+        }
+        emit(timeNanos);
+    }
+
+    private void update(int channel, float value) {
+        mLatest[channel] = value;
+        mReceived |= 1 << channel;
+        addStatistics(channel, value);
+    }
+
+    private boolean has(int channel) {
+        return (mReceived & (1 << channel)) != 0;
+    }
+
+    private boolean updateInputPower(long timeNanos) {
+        if (!has(SampleDecoder.CHANNEL_VOLTAGE) || !has(SampleDecoder.CHANNEL_CURRENT)) {
+            return false;
+        }
+        float power = mLatest[SampleDecoder.CHANNEL_VOLTAGE] * mLatest[SampleDecoder.CHANNEL_CURRENT];
+        mInput.add(timeNanos, power);
+        addDerived(CHANNEL_INPUT_POWER, power);
+        addDerived(CHANNEL_INPUT_ENERGY, (float) (mInput.mJoules / JOULES_PER_WATT_HOUR));
+        return true;
+    }
+
+    private boolean updateOutputPower(long timeNanos) {
+        if (!has(SampleDecoder.CHANNEL_SPEED) || !has(SampleDecoder.CHANNEL_TORQUE)) {
+            return false;
+        }
+        float power = (float) (mLatest[SampleDecoder.CHANNEL_TORQUE]
+                * mLatest[SampleDecoder.CHANNEL_SPEED] * RPM_TO_RAD_PER_SECOND);
+        mOutput.add(timeNanos, power);
+        addDerived(CHANNEL_OUTPUT_POWER, power);
+        addDerived(CHANNEL_OUTPUT_ENERGY, (float) (mOutput.mJoules / JOULES_PER_WATT_HOUR));
+        return true;
+    }
+
+    private void updateLocalEfficiency() {
+        if (!mInput.mStarted || !mOutput.mStarted || mInput.mPower < MIN_EFFICIENCY_INPUT_POWER) {
+            mLocalEfficiency = Float.NaN;
+            return;
+        }
+        mLocalEfficiency = mOutput.mPower / mInput.mPower * 100f;
+        addDerived(CHANNEL_LOCAL_EFFICIENCY, mLocalEfficiency);
+    }
+
+    private void checkEfficiency(float reported) {
+        if (Float.isNaN(mLocalEfficiency)) {
+            return;
+        }
+        float deviation = reported - mLocalEfficiency;
+        mLastEfficiencyDeviation = deviation;
+        mEfficiencyChecks++;
+        mEfficiencyDeviationSum += Math.abs(deviation);
+        if (Math.abs(deviation) > mEfficiencyTolerance) {
+            mEfficiencyMismatches++;
+        }
+    }
+
+    private void addDerived(int channel, float value) {
+        mPendingChannels[mPending] = channel;
+        mPendingValues[mPending] = value;
+        mPending++;
+        addStatistics(channel, value);
+    }
+
+    private void addStatistics(int channel, float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        long count = ++mCounts[channel];
+        double delta = value - mMeans[channel];
+        mMeans[channel] += delta / count;
+        mM2[channel] += delta * (value - mMeans[channel]);
+        if (count == 1 || value < mMins[channel]) {
+            mMins[channel] = value;
+        }
+        if (count == 1 || value > mMaxs[channel]) {
+            mMaxs[channel] = value;
+        }
+    }
+
+    private void emit(long timeNanos) {
+        // Only the feeding thread touches the pending samples
+        for (int i = 0; i < mPending; i++) {
+            mSink.onDerived(mPendingChannels[i], timeNanos, mPendingValues[i]);
+        }
+        mPending = 0;
+    }
+
+    public synchronized long getCount(int channel) {
+        return mCounts[channel];
+    }
+
+    public synchronized double getMean(int channel) {
+        return mCounts[channel] == 0 ? Double.NaN : mMeans[channel];
+    }
+
+    /**
+     * @return sample variance of a channel, NaN for less than two samples
+     */
+    public synchronized double getVariance(int channel) {
+        return mCounts[channel] < 2 ? Double.NaN : mM2[channel] / (mCounts[channel] - 1);
+    }
+
+    public double getStandardDeviation(int channel) {
+        return Math.sqrt(getVariance(channel));
+    }
+
+    public synchronized float getMin(int channel) {
+        return mMins[channel];
+    }
+
+    public synchronized float getMax(int channel) {
+        return mMaxs[channel];
+    }
+
+    /**
+     * @return input energy since the last reset in watt hours
+     */
+    public synchronized double getInputEnergyWh() {
+        return mInput.mJoules / JOULES_PER_WATT_HOUR;
+    }
+
+    /**
+     * @return output energy since the last reset in watt hours
+     */
+    public synchronized double getOutputEnergyWh() {
+        return mOutput.mJoules / JOULES_PER_WATT_HOUR;
+    }
+
+    /**
+     * @return the efficiency computed from the powers in percent, NaN if not known
+     */
+    public synchronized float getLocalEfficiency() {
+        return mLocalEfficiency;
+    }
+
+    /**
+     * @return number of reported efficiencies compared with the local one
+     */
+    public synchronized long getEfficiencyCheckCount() {
+        return mEfficiencyChecks;
+    }
+
+    /**
+     * @return number of reported efficiencies off by more than the tolerance
+     */
+    public synchronized long getEfficiencyMismatchCount() {
+        return mEfficiencyMismatches;
+    }
+
+    /**
+     * @return mean absolute difference between reported and local efficiency in percentage
+     * points, NaN if nothing was compared
+     */
+    public synchronized double getMeanEfficiencyDeviation() {
+        return mEfficiencyChecks == 0 ? Double.NaN : mEfficiencyDeviationSum / mEfficiencyChecks;
+    }
+
+    /**
+     * @return reported minus local efficiency of the last comparison, NaN if none
+     */
+    public synchronized float getLastEfficiencyDeviation() {
+        return mLastEfficiencyDeviation;
+    }
+
+    /**
+     * Trapezoidal integral of a power over time.
+     */
+    private static class Integrator {
+        boolean mStarted;
+        long mTime;
+        float mPower;
+        double mJoules;
+
+        void add(long timeNanos, float power) {
+            if (mStarted) {
+                long dt = timeNanos - mTime;
+                if (dt > 0 && dt <= MAX_INTEGRATION_GAP_NANOS) {
+                    mJoules += (mPower + (double) power) / 2 * dt / 1e9;
+                }
+            }
+            mStarted = true;
+            mTime = timeNanos;
+            mPower = power;
+        }
+
+        void reset() {
+            mStarted = false;
+            mTime = 0;
+            mPower = 0;
+            mJoules = 0;
+        }
+    }
+}
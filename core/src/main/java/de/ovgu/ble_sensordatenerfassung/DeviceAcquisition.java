@@ -0,0 +1,327 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Everything that is received from one sensor: the GATT request queue of its connection, the
+ * history of all its channels in the {@link SampleStore}, the {@link CompressedHistory} and the
+ * {@link RollupEngine}, its {@link DerivedMetrics} and its recording.
+ *
+ * Single channel notifications are stored as they arrive and grouped into time-aligned rows
+ * by a {@link RowAssembler}. The derived metrics and the recording only see rows, from the
+ * assembler or from frame notifications, so a power never combines values of different
+ * instants.
+ *
+ * Values are passed in already timestamped, so this class does not depend on the Android
+ * Bluetooth classes. Samples of one device must be passed in from one thread at a time,
+ * usually its GATT callback thread; different devices may use different threads. Everything
+ * may be read from any thread.
+ */
+public class DeviceAcquisition {
+
+    // Number of samples kept per channel, about 2.5 minutes at 100 notifications per second
+    public final static int HISTORY_CAPACITY = 16384;
+
+    // Compressed tier behind the sample store: 1024 samples per block, by default at most 8 MB
+    // per device, shared equally by its channels
+    public final static int COMPRESSED_BLOCK_SAMPLES = 1024;
+    public final static long DEFAULT_COMPRESSED_BYTES = 8 * 1024 * 1024;
+
+    // Summaries at 100 ms, 1 s, 10 s and 1 min, 4096 buckets each: 6 min, 1 h, 11 h and 68 h
+    public final static int ROLLUP_CAPACITY = 4096;
+
+    /**
+     * Receives every raw and derived sample after it was stored.
+     */
+    public interface Listener {
+        void onSample(DeviceAcquisition device, int channel, long timeNanos, float value);
+    }
+
+    private final String mAddress;
+    private final SampleDecoder mDecoder;
+    private final GattOperationQueue mGattQueue;
+    private final SampleStore mSampleStore;
+    private final CompressedHistory mCompressedHistory;
+    private final RollupEngine mRollups;
+    private final FrameDecoder mFrameDecoder = new FrameDecoder();
+    private volatile Listener mListener;
+
+    // Power, energy, efficiency and statistics computed from the raw samples. The derived
+    // samples take the same path as the raw ones.
+    private final DerivedMetrics mDerivedMetrics = new DerivedMetrics(new DerivedMetrics.Sink() {
+        @Override
+        public void onDerived(int channel, long timeNanos, float value) {
+            publishSample(channel, timeNanos, value);
+        }
+    });
+
+    // Records the received rows, null while not recording
+    private volatile SessionRecorder mRecorder;
+
+    // Aligns the single channel notifications into rows, only used by the writer
+    private final RowAssembler mRowAssembler = new RowAssembler(SampleDecoder.CHANNEL_COUNT,
+            RowAssembler.DEFAULT_CAPACITY, new RowAssembler.Sink() {
+        @Override
+        public void onRow(long timeNanos, float[] values, int measured) {
+            mDerivedMetrics.onRow(timeNanos, values, measured);
+            recordRow(timeNanos, values);
+            updateLatestRow(timeNanos, values);
+        }
+    });
+
+    // Latest row of either kind, copied for readers on other threads
+    private final float[] mLatestRow = new float[SampleDecoder.CHANNEL_COUNT];
+    private long mLatestRowNanos = Long.MIN_VALUE;
+
+    // Arrival time of the frame notification being decoded
+    private long mFrameArrival;
+
+    // Time of the last frame row, later rows always go after it
+    private long mLastFrameRowNanos = Long.MIN_VALUE;
+
+    // Time of the last stored sample of each channel, only used by the writer. The range
+    // reads of the tiers need strictly increasing times per channel.
+    private final long[] mLastSampleNanos = new long[DerivedMetrics.CHANNEL_COUNT];
+
+    // Number of raw samples received, only written by the writer
+    private volatile long mSampleCount;
+
+    /**
+     * @param address the Bluetooth address of the device
+     * @param decoder maps the characteristics to channels
+     * @param transport issues the GATT requests on the connection of the device
+     * @param scheduler runs the timeouts of the GATT requests
+     */
+    public DeviceAcquisition(String address, SampleDecoder decoder, GattTransport transport,
+                             GattOperationQueue.Scheduler scheduler) {
+        this(address, decoder, transport, scheduler, DEFAULT_COMPRESSED_BYTES);
+    }
+
+    /**
+     * @param compressedBytes memory budget of the compressed history of all channels of this
+     * device, the oldest blocks are dropped beyond it
+     */
+    public DeviceAcquisition(String address, SampleDecoder decoder, GattTransport transport,
+                             GattOperationQueue.Scheduler scheduler, long compressedBytes) {
+        mAddress = address;
+        mDecoder = decoder;
+        mGattQueue = new GattOperationQueue(transport, scheduler);
+        mSampleStore = new SampleStore(DerivedMetrics.CHANNEL_COUNT, HISTORY_CAPACITY);
+        mCompressedHistory = new CompressedHistory(DerivedMetrics.CHANNEL_COUNT,
+                COMPRESSED_BLOCK_SAMPLES, compressedBytes / DerivedMetrics.CHANNEL_COUNT);
+        mRollups = new RollupEngine(DerivedMetrics.CHANNEL_COUNT, RollupEngine.DEFAULT_RESOLUTIONS,
+                ROLLUP_CAPACITY);
+        Arrays.fill(mLastSampleNanos, Long.MIN_VALUE);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return the queue that runs all GATT requests of this device
+     */
+    public GattOperationQueue getGattQueue() {
+        return mGattQueue;
+    }
+
+    public SampleStore getSampleStore() {
+        return mSampleStore;
+    }
+
+    public CompressedHistory getCompressedHistory() {
+        return mCompressedHistory;
+    }
+
+    public RollupEngine getRollups() {
+        return mRollups;
+    }
+
+    public DerivedMetrics getDerivedMetrics() {
+        return mDerivedMetrics;
+    }
+
+    /**
+     * @return the assembler of the rows from single channel notifications, e.g. to change its
+     * window
+     */
+    public RowAssembler getRowAssembler() {
+        return mRowAssembler;
+    }
+
+    /**
+     * Copies the raw values of the latest row, so that all of them are from the same instant.
+     *
+     * @param values receives a value per raw channel, NaN where none was measured or
+     * interpolated
+     * @return the time of the row, Long.MIN_VALUE if there is none yet
+     */
+    public long getLatestRow(float[] values) {
+        synchronized (mLatestRow) {
+            System.arraycopy(mLatestRow, 0, values, 0, SampleDecoder.CHANNEL_COUNT);
+            return mLatestRowNanos;
+        }
+    }
+
+    /**
+     * @return number of raw samples received so far
+     */
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return number of frame rows that were lost on the way, detected by their sequence numbers
+     */
+    public long getDroppedRowCount() {
+        return mFrameDecoder.getDroppedRows();
+    }
+
+    /**
+     * Starts over for a new connection: the open rows are passed on, then energy and
+     * statistics are reset and frame sequence numbers are forgotten. The history is kept.
+     */
+    public void reset() {
+        mRowAssembler.flush();
+        mRowAssembler.reset();
+        mDerivedMetrics.reset();
+        mFrameDecoder.reset();
+    }
+
+    /**
+     * Sets the recorder that receives the rows from now on, null to stop recording.
+     *
+     * @return the previous recorder
+     */
+    public SessionRecorder setRecorder(SessionRecorder recorder) {
+        SessionRecorder previous = mRecorder;
+        mRecorder = recorder;
+        return previous;
+    }
+
+    public SessionRecorder getRecorder() {
+        return mRecorder;
+    }
+
+    /**
+     * Decodes a characteristic value from a read or notification and appends it to the
+     * history of its channel and to the rows of the {@link RowAssembler}. This runs for every
+     * notification, so it must not allocate.
+     *
+     * @param characteristic the characteristic the value belongs to
+     * @param value the raw value
+     * @param timeNanos arrival time of the value on a monotonic clock
+     * @return the channel of the value, or NO_CHANNEL if it was not stored
+     */
+    public int onValue(UUID characteristic, byte[] value, long timeNanos) {
+        if (value == null || value.length < 4) {
+            return SampleDecoder.NO_CHANNEL;
+        }
+        int channel = mDecoder.channelOf(characteristic);
+        if (channel == SampleDecoder.NO_CHANNEL) {
+            return channel;
+        }
+        float sample = SampleDecoder.decodeFloat(value, 0);
+        mSampleCount++;
+        publishSample(channel, timeNanos, sample);
+        mRowAssembler.add(channel, timeNanos, sample);
+        return channel;
+    }
+
+    /**
+     * Stores the rows of a packed frame notification. The last row gets the arrival time,
+     * earlier rows are placed before it by the difference of their device timestamps, but
+     * always after the last row of the previous frame. Notifications of one connection event
+     * arrive almost at once, which would otherwise put rows out of order.
+     *
+     * @return the number of rows stored
+     */
+    public int onFrame(byte[] value, long arrivalNanos) {
+        mFrameArrival = arrivalNanos;
+        return mFrameDecoder.decode(value, mFrameSink);
+    }
+
+    private final FrameDecoder.RowSink mFrameSink = new FrameDecoder.RowSink() {
+        @Override
+        public void onRow(long sequence, long deviceTimeMicros, long microsBeforeLast, float[] values) {
+            long time = Math.max(mFrameArrival - microsBeforeLast * 1000L, mLastFrameRowNanos + 1);
+            mLastFrameRowNanos = time;
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                publishSample(channel, time, values[channel]);
+            }
+            mSampleCount += SampleDecoder.CHANNEL_COUNT;
+            mDerivedMetrics.onRow(time, values);
+            recordRow(time, values);
+            updateLatestRow(time, values);
+        }
+    };
+
+    /**
+     * Hands a row to the session recorder, if one is running. Never blocks.
+     */
+    private void recordRow(long timeNanos, float[] values) {
+        SessionRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.append(timeNanos, values);
+        }
+    }
+
+    private void updateLatestRow(long timeNanos, float[] values) {
+        synchronized (mLatestRow) {
+            System.arraycopy(values, 0, mLatestRow, 0, SampleDecoder.CHANNEL_COUNT);
+            mLatestRowNanos = timeNanos;
+        }
+    }
+
+    /**
+     * Stores a raw or derived sample in all tiers and passes it on to the listener. A sample
+     * that is not later than the previous one of its channel, like a polled read between
+     * frame rows, is moved 1 ns after it.
+     */
+    private void publishSample(int channel, long timeNanos, float sample) {
+        if (timeNanos <= mLastSampleNanos[channel]) {
+            timeNanos = mLastSampleNanos[channel] + 1;
+        }
+        mLastSampleNanos[channel] = timeNanos;
+        mSampleStore.append(channel, timeNanos, sample);
+        mCompressedHistory.append(channel, timeNanos, sample);
+        mRollups.append(channel, timeNanos, sample);
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onSample(this, channel, timeNanos, sample);
+        }
+    }
+
+    /**
+     * Copies the samples of a channel whose timestamps lie in {@code [fromNanos, toNanos)}
+     * from both tiers: older samples from the compressed history, the rest from the sample
+     * store.
+     *
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @return the number of samples copied, at most the length of {@code values}
+     */
+    public int readHistory(int channel, long fromNanos, long toNanos, long[] times, float[] values) {
+        long sealedUntil = mCompressedHistory.getSealedUntil(channel);
+        int n = 0;
+        if (sealedUntil != Long.MIN_VALUE && fromNanos <= sealedUntil) {
+            n = mCompressedHistory.readRange(channel, fromNanos, Math.min(toNanos, sealedUntil + 1),
+                    times, values, 0);
+            fromNanos = sealedUntil + 1;
+        }
+        if (fromNanos < toNanos && n < values.length) {
+            n += mSampleStore.readRange(channel, fromNanos, toNanos, times, values, n);
+        }
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return mAddress;
+    }
+}
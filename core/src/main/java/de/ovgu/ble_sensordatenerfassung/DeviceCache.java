@@ -0,0 +1,231 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Remembers the devices the app was connected to and the characteristic layout found on them,
+ * so a reconnect can skip the scan and, if the layout still matches, the service discovery.
+ *
+ * The most recently connected device comes first. At most {@link #MAX_ENTRIES} devices are
+ * kept. The cache is stored in a small file:
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    number of entries, most recent first
+ * entry  UTF address, int channel mask, int notify mask, boolean frame, int mtu,
+ *        long last connection in wall clock milliseconds
+ * </pre>
+ * All methods are thread-safe.
+ */
+public class DeviceCache {
+
+    public final static int MAGIC = 0x44454c42;
+    public final static int VERSION = 1;
+    public final static int MAX_ENTRIES = 8;
+
+    /**
+     * What was found on a device by the last service discovery.
+     */
+    public static class Layout {
+        private final String mAddress;
+        private final int mChannels;
+        private final int mNotifyChannels;
+        private final boolean mFrame;
+        private final int mMtu;
+        private final long mLastConnectedMillis;
+
+        /**
+         * @param channels bit mask of the channels whose characteristic exists
+         * @param notifyChannels bit mask of the channels whose characteristic can notify
+         * @param frame whether the packed frame characteristic exists and can notify
+         * @param mtu the MTU negotiated on the last connection
+         * @param lastConnectedMillis wall clock time of the last connection
+         */
+        public Layout(String address, int channels, int notifyChannels, boolean frame, int mtu,
+                      long lastConnectedMillis) {
+            mAddress = address;
+            mChannels = channels;
+            mNotifyChannels = notifyChannels;
+            mFrame = frame;
+            mMtu = mtu;
+            mLastConnectedMillis = lastConnectedMillis;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public int getChannels() {
+            return mChannels;
+        }
+
+        public int getNotifyChannels() {
+            return mNotifyChannels;
+        }
+
+        public boolean hasFrame() {
+            return mFrame;
+        }
+
+        public int getMtu() {
+            return mMtu;
+        }
+
+        public long getLastConnectedMillis() {
+            return mLastConnectedMillis;
+        }
+
+        /**
+         * @return true if a device shows the same characteristics as this layout
+         */
+        public boolean matches(int channels, int notifyChannels, boolean frame) {
+            return channels == mChannels && notifyChannels == mNotifyChannels && frame == mFrame;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + " channels " + Integer.toBinaryString(mChannels)
+                    + (mFrame ? " frames" : "") + " mtu " + mMtu;
+        }
+    }
+
+    private final File mFile;
+    // Insertion order: the most recently connected device is last
+    private final LinkedHashMap<String, Layout> mEntries = new LinkedHashMap<>();
+
+    /**
+     * @param file where the cache is stored, null to keep it in memory only
+     */
+    public DeviceCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the stored cache. A missing or damaged file leaves the cache empty.
+     */
+    public synchronized void load() {
+        mEntries.clear();
+        if (mFile == null || !mFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = Math.min(in.readInt(), MAX_ENTRIES);
+            List<Layout> layouts = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                layouts.add(new Layout(in.readUTF(), in.readInt(), in.readInt(), in.readBoolean(),
+                        in.readInt(), in.readLong()));
+            }
+            // Insert the oldest first, so the most recent ends up last
+            for (int i = layouts.size() - 1; i >= 0; i--) {
+                mEntries.put(layouts.get(i).getAddress(), layouts.get(i));
+            }
+        } catch (IOException e) {
+            mEntries.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Writes the cache, replacing the stored one only once it is complete.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void save() throws IOException {
+        if (mFile == null) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            List<Layout> recent = getRecentLocked();
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(recent.size());
+            for (Layout layout : recent) {
+                out.writeUTF(layout.getAddress());
+                out.writeInt(layout.getChannels());
+                out.writeInt(layout.getNotifyChannels());
+                out.writeBoolean(layout.hasFrame());
+                out.writeInt(layout.getMtu());
+                out.writeLong(layout.getLastConnectedMillis());
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile)) {
+            throw new IOException("Cannot replace " + mFile);
+        }
+    }
+
+    /**
+     * Stores the layout of a device and makes it the most recent one.
+     */
+    public synchronized void put(Layout layout) {
+        mEntries.remove(layout.getAddress());
+        mEntries.put(layout.getAddress(), layout);
+        Iterator<String> it = mEntries.keySet().iterator();
+        while (mEntries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return the layout of a device, or null if it is not cached
+     */
+    public synchronized Layout get(String address) {
+        return mEntries.get(address);
+    }
+
+    public synchronized void remove(String address) {
+        mEntries.remove(address);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return all cached layouts, the most recently connected first
+     */
+    public synchronized List<Layout> getRecent() {
+        return getRecentLocked();
+    }
+
+    private List<Layout> getRecentLocked() {
+        List<Layout> recent = new ArrayList<>(mEntries.values());
+        List<Layout> reversed = new ArrayList<>(recent.size());
+        for (int i = recent.size() - 1; i >= 0; i--) {
+            reversed.add(recent.get(i));
+        }
+        return reversed;
+    }
+
+    private static void closeQuietly(DataInputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Nothing left to read
+        }
+    }
+}
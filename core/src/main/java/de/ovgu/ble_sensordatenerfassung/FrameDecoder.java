@@ -0,0 +1,159 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Decodes notifications of the packed frame characteristic.
+ *
+ * A frame notification carries one or more rows of {@link #ROW_SIZE} bytes each, all
+ * little-endian:
+ * <pre>
+ *  0  uint32   sequence number, incremented by one per row
+ *  4  uint32   device timestamp in microseconds
+ *  8  float32  voltage
+ * 12  float32  current
+ * 16  float32  speed
+ * 20  float32  torque
+ * 24  float32  efficiency
+ * </pre>
+ * Gaps in the sequence numbers are counted as dropped rows. A row that arrives late within
+ * {@link #LATE_WINDOW} rows and fills such a gap is no longer counted as dropped. Both counters
+ * of the device wrap around and are unwrapped here.
+ */
+public class FrameDecoder {
+
+    // Size of one row in bytes
+    public final static int ROW_SIZE = 8 + 4 * SampleDecoder.CHANNEL_COUNT;
+
+    // ATT header bytes that are part of the MTU but not of the notification value
+    private final static int ATT_HEADER_SIZE = 3;
+
+    // Number of rows before the newest one whose arrival is remembered
+    public final static int LATE_WINDOW = 64;
+
+    /**
+     * Receives the decoded rows.
+     */
+    public interface RowSink {
+        /**
+         * @param sequence unwrapped sequence number of the row
+         * @param deviceTimeMicros unwrapped device timestamp of the row
+         * @param microsBeforeLast how much earlier than the last row of the same notification
+         *                         the device took this row, 0 for the last row
+         * @param values values of all channels, only valid during the call
+         */
+        void onRow(long sequence, long deviceTimeMicros, long microsBeforeLast, float[] values);
+    }
+
+    private final float[] mValues = new float[SampleDecoder.CHANNEL_COUNT];
+
+    private boolean mStarted;
+    private long mLastSequence;
+    // Bit i is set if the row i before the newest one was received
+    private long mReceivedMask;
+    private long mLastDeviceTime;
+    private long mReceivedRows;
+    private long mDroppedRows;
+    private long mLateRows;
+
+    /**
+     * @param mtu the negotiated ATT MTU
+     * @return the number of rows that fit into one notification
+     */
+    public static int rowsPerNotification(int mtu) {
+        return Math.max(0, (mtu - ATT_HEADER_SIZE) / ROW_SIZE);
+    }
+
+    /**
+     * Decodes all complete rows of a notification. Does not allocate.
+     *
+     * @param value the notification value
+     * @param sink receives the rows in order
+     * @return the number of rows decoded
+     */
+    public int decode(byte[] value, RowSink sink) {
+        int rows = value.length / ROW_SIZE;
+        long lastRawTime = rows > 0 ? readUInt32(value, (rows - 1) * ROW_SIZE + 4) : 0;
+        for (int row = 0; row < rows; row++) {
+            int offset = row * ROW_SIZE;
+            long sequence = unwrapSequence(readUInt32(value, offset));
+            long rawTime = readUInt32(value, offset + 4);
+            long deviceTime = unwrapDeviceTime(rawTime);
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                mValues[channel] = SampleDecoder.decodeFloat(value, offset + 8 + 4 * channel);
+            }
+            sink.onRow(sequence, deviceTime, Math.max(0, (int) (lastRawTime - rawTime)), mValues);
+        }
+        return rows;
+    }
+
+    /**
+     * Forgets the counters of the device, e.g. after a reconnect.
+     */
+    public void reset() {
+        mStarted = false;
+    }
+
+    public long getReceivedRows() {
+        return mReceivedRows;
+    }
+
+    /**
+     * @return number of rows missing between the received sequence numbers
+     */
+    public long getDroppedRows() {
+        return mDroppedRows;
+    }
+
+    /**
+     * @return number of rows that arrived with an old sequence number. Rows older than
+     * {@link #LATE_WINDOW} may also be counted as dropped.
+     */
+    public long getLateRows() {
+        return mLateRows;
+    }
+
+    private long unwrapSequence(long raw) {
+        mReceivedRows++;
+        if (!mStarted) {
+            mStarted = true;
+            mLastSequence = raw;
+            mReceivedMask = 1;
+            mLastDeviceTime = -1;
+            return raw;
+        }
+        // Distance to the last row modulo 2^32, interpreted as signed
+        int delta = (int) (raw - mLastSequence);
+        if (delta <= 0) {
+            mLateRows++;
+            if (-delta < LATE_WINDOW && (mReceivedMask & 1L << -delta) == 0) {
+                // Fills a gap that was counted as dropped
+                mReceivedMask |= 1L << -delta;
+                mDroppedRows--;
+            }
+            return mLastSequence + delta;
+        }
+        mDroppedRows += delta - 1;
+        mLastSequence += delta;
+        mReceivedMask = (delta < LATE_WINDOW ? mReceivedMask << delta : 0) | 1;
+        return mLastSequence;
+    }
+
+    private long unwrapDeviceTime(long raw) {
+        if (mLastDeviceTime < 0) {
+            mLastDeviceTime = raw;
+            return raw;
+        }
+        int delta = (int) (raw - mLastDeviceTime);
+        if (delta > 0) {
+            mLastDeviceTime += delta;
+            return mLastDeviceTime;
+        }
+        return mLastDeviceTime + delta;
+    }
+
+    private static long readUInt32(byte[] value, int offset) {
+        return (value[offset] & 0xFFL)
+                | (value[offset + 1] & 0xFFL) << 8
+                | (value[offset + 2] & 0xFFL) << 16
+                | (value[offset + 3] & 0xFFL) << 24;
+    }
+}
@@ -0,0 +1,101 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Frame timing of an animated view: how long drawing takes and how many display frames were
+ * missed.
+ *
+ * The view reports every frame callback with its vsync time and the duration of every draw.
+ * A gap between two frame callbacks of more than one and a half frame intervals counts the
+ * frames in between as dropped. Only used on the main thread.
+ */
+public class FrameStats {
+
+    // 60 fps
+    public final static long DEFAULT_FRAME_INTERVAL_NANOS = 16666667L;
+
+    private final long mFrameInterval;
+    private long mLastFrameTime;
+    private long mFrames;
+    private long mDroppedFrames;
+    private long mDraws;
+    private long mDrawNanos;
+    private long mLastDrawNanos;
+    private long mMaxDrawNanos;
+
+    public FrameStats() {
+        this(DEFAULT_FRAME_INTERVAL_NANOS);
+    }
+
+    /**
+     * @param frameIntervalNanos expected time between two display frames
+     */
+    public FrameStats(long frameIntervalNanos) {
+        mFrameInterval = frameIntervalNanos;
+    }
+
+    /**
+     * Called from the frame callback.
+     *
+     * @param frameTimeNanos vsync time of the frame
+     */
+    public void onFrame(long frameTimeNanos) {
+        if (mLastFrameTime != 0) {
+            long interval = frameTimeNanos - mLastFrameTime;
+            if (interval * 2 > mFrameInterval * 3) {
+                mDroppedFrames += (interval + mFrameInterval / 2) / mFrameInterval - 1;
+            }
+        }
+        mLastFrameTime = frameTimeNanos;
+        mFrames++;
+    }
+
+    /**
+     * Ends a sequence of frames, e.g. when the animation pauses, so the pause does not count
+     * as dropped frames.
+     */
+    public void pause() {
+        mLastFrameTime = 0;
+    }
+
+    /**
+     * @param durationNanos time spent in one draw
+     */
+    public void onDraw(long durationNanos) {
+        mDraws++;
+        mDrawNanos += durationNanos;
+        mLastDrawNanos = durationNanos;
+        if (durationNanos > mMaxDrawNanos) {
+            mMaxDrawNanos = durationNanos;
+        }
+    }
+
+    public void reset() {
+        mLastFrameTime = 0;
+        mFrames = 0;
+        mDroppedFrames = 0;
+        mDraws = 0;
+        mDrawNanos = 0;
+        mLastDrawNanos = 0;
+        mMaxDrawNanos = 0;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    public long getLastDrawNanos() {
+        return mLastDrawNanos;
+    }
+
+    public long getAverageDrawNanos() {
+        return mDraws == 0 ? 0 : mDrawNanos / mDraws;
+    }
+
+    public long getMaxDrawNanos() {
+        return mMaxDrawNanos;
+    }
+}
@@ -0,0 +1,91 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.UUID;
+
+/**
+ * A GATT connection to one device with the measurement service, independent of the Android
+ * Bluetooth classes. The service runs every device on one of these, either on the Android
+ * stack or on a {@link SimulatedSensor}.
+ *
+ * Like the requests of {@link GattTransport}, connect, disconnect and discovery only start
+ * and return whether they could be started. Their results, the request results and the
+ * notifications arrive later through the {@link Callback}, always from one thread at a time.
+ */
+public interface GattConnection extends GattTransport {
+
+    // Characteristic properties, the bits of the Bluetooth specification
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_NOTIFY = 0x10;
+
+    /**
+     * Receives the events of a connection. Values are only valid during the call.
+     */
+    interface Callback {
+        void onConnectionStateChange(GattConnection connection, boolean connected);
+
+        void onServicesDiscovered(GattConnection connection, boolean success);
+
+        void onCharacteristicRead(GattConnection connection, UUID characteristic, byte[] value,
+                                  boolean success);
+
+        void onCharacteristicWrite(GattConnection connection, UUID characteristic, boolean success);
+
+        void onDescriptorWrite(GattConnection connection, UUID characteristic, UUID descriptor,
+                               boolean success);
+
+        void onMtuChanged(GattConnection connection, int mtu, boolean success);
+
+        void onCharacteristicChanged(GattConnection connection, UUID characteristic, byte[] value);
+    }
+
+    String getAddress();
+
+    void setCallback(Callback callback);
+
+    /**
+     * Connects, or reconnects after a disconnect.
+     */
+    boolean connect();
+
+    /**
+     * Connects whenever the device is in range again, without a timeout, like the autoConnect
+     * of Android. The controller waits for the device at a low duty cycle, so this is cheap
+     * even for hours. Cancelled by {@link #disconnect()}.
+     */
+    boolean connectInBackground();
+
+    void disconnect();
+
+    /**
+     * Disconnects and releases the connection for good.
+     */
+    void close();
+
+    boolean discoverServices();
+
+    /**
+     * @return true if the measurement service is known, from a discovery of this or an
+     * earlier connection
+     */
+    boolean hasService();
+
+    /**
+     * @return the properties of a characteristic of the measurement service, 0 if the
+     * device does not have it
+     */
+    int getProperties(UUID characteristic);
+
+    boolean hasDescriptor(UUID characteristic, UUID descriptor);
+
+    /**
+     * Enables or disables the notifications of a characteristic locally. The device only
+     * sends them once its CCCD is written too.
+     */
+    boolean setCharacteristicNotification(UUID characteristic, boolean enable);
+
+    /**
+     * Applies the connection priority and PHY of a profile, if the connection supports them.
+     * The MTU is requested separately.
+     */
+    void setLinkProfile(LinkProfile profile);
+}
@@ -0,0 +1,106 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.UUID;
+
+/**
+ * A single GATT request waiting in, or being executed by, the {@link GattOperationQueue}.
+ */
+public class GattOperation {
+
+    // Operation types
+    public final static int TYPE_READ = 0;
+    public final static int TYPE_WRITE = 1;
+    public final static int TYPE_WRITE_DESCRIPTOR = 2;
+    public final static int TYPE_REQUEST_MTU = 3;
+    public final static int TYPE_COUNT = 4;
+
+    /**
+     * Called once an operation has finally succeeded or failed, after all retries.
+     */
+    public interface Callback {
+        void onComplete(GattOperation operation, boolean success);
+    }
+
+    final int mType;
+    final UUID mCharacteristic;
+    final UUID mDescriptor;
+    final byte[] mValue;
+    final int mMtu;
+    final Callback mCallback;
+
+    int mAttempts;
+    long mStartNanos;
+
+    GattOperation(int type, UUID characteristic, UUID descriptor, byte[] value, int mtu,
+                  Callback callback) {
+        mType = type;
+        mCharacteristic = characteristic;
+        mDescriptor = descriptor;
+        mValue = value;
+        mMtu = mtu;
+        mCallback = callback;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public UUID getCharacteristic() {
+        return mCharacteristic;
+    }
+
+    public UUID getDescriptor() {
+        return mDescriptor;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return how often the operation was started so far
+     */
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    boolean start(GattTransport transport) {
+        switch (mType) {
+            case TYPE_READ:
+                return transport.readCharacteristic(mCharacteristic);
+            case TYPE_WRITE:
+                return transport.writeCharacteristic(mCharacteristic, mValue);
+            case TYPE_WRITE_DESCRIPTOR:
+                return transport.writeDescriptor(mCharacteristic, mDescriptor, mValue);
+            case TYPE_REQUEST_MTU:
+                return transport.requestMtu(mMtu);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks whether a GATT callback belongs to this operation.
+     */
+    boolean matches(int type, UUID characteristic, UUID descriptor) {
+        return mType == type
+                && (mCharacteristic == null || mCharacteristic.equals(characteristic))
+                && (mDescriptor == null || mDescriptor.equals(descriptor));
+    }
+
+    @Override
+    public String toString() {
+        switch (mType) {
+            case TYPE_READ:
+                return "read " + mCharacteristic;
+            case TYPE_WRITE:
+                return "write " + mCharacteristic;
+            case TYPE_WRITE_DESCRIPTOR:
+                return "write descriptor " + mDescriptor + " of " + mCharacteristic;
+            case TYPE_REQUEST_MTU:
+                return "request MTU " + mMtu;
+            default:
+                return "unknown operation";
+        }
+    }
+}
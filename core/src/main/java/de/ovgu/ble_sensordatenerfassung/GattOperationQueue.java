@@ -0,0 +1,276 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Executes GATT operations one after the other.
+ *
+ * Android only allows one outstanding GATT request per connection and silently drops any
+ * request issued while another one is in flight. This queue starts the next operation only
+ * when the GATT callback of the previous one arrived, or when it timed out. Failed and timed
+ * out operations are retried a limited number of times.
+ *
+ * All methods are thread-safe, so operations may be enqueued from any thread and the GATT
+ * callbacks may be delivered on the Binder thread.
+ */
+public class GattOperationQueue {
+
+    // Default time to wait for the callback of an operation
+    public final static long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    // Default number of additional attempts after an operation failed or timed out
+    public final static int DEFAULT_RETRIES = 2;
+
+    /**
+     * Runs the timeouts. The method names match {@code android.os.Handler}.
+     */
+    public interface Scheduler {
+        void postDelayed(Runnable task, long delayMillis);
+
+        void removeCallbacks(Runnable task);
+    }
+
+    private final GattTransport mTransport;
+    private final Scheduler mScheduler;
+    private final ArrayDeque<GattOperation> mPending = new ArrayDeque<>();
+    private GattOperation mCurrent;
+
+    private volatile long mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private volatile int mRetries = DEFAULT_RETRIES;
+
+    // Statistics, guarded by this
+    private int mMaxDepth;
+    private long mTimeouts;
+    private long mRetried;
+    private final long[] mCompleted = new long[GattOperation.TYPE_COUNT];
+    private final long[] mFailed = new long[GattOperation.TYPE_COUNT];
+    private final long[] mTotalLatencyNanos = new long[GattOperation.TYPE_COUNT];
+    private final long[] mMaxLatencyNanos = new long[GattOperation.TYPE_COUNT];
+
+    // Shared by all operations, so it is only posted and removed while holding the lock.
+    // Otherwise a late removal for one operation could cancel the timeout of the next.
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    public GattOperationQueue(GattTransport transport, Scheduler scheduler) {
+        mTransport = transport;
+        mScheduler = scheduler;
+    }
+
+    public void setTimeout(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public void setRetries(int retries) {
+        mRetries = retries;
+    }
+
+    public void read(UUID characteristic) {
+        enqueue(new GattOperation(GattOperation.TYPE_READ, characteristic, null, null, 0, null));
+    }
+
+    public void write(UUID characteristic, byte[] value, GattOperation.Callback callback) {
+        enqueue(new GattOperation(GattOperation.TYPE_WRITE, characteristic, null, value, 0, callback));
+    }
+
+    public void writeDescriptor(UUID characteristic, UUID descriptor, byte[] value,
+                                GattOperation.Callback callback) {
+        enqueue(new GattOperation(GattOperation.TYPE_WRITE_DESCRIPTOR, characteristic, descriptor,
+                value, 0, callback));
+    }
+
+    public void requestMtu(int mtu, GattOperation.Callback callback) {
+        enqueue(new GattOperation(GattOperation.TYPE_REQUEST_MTU, null, null, null, mtu, callback));
+    }
+
+    /**
+     * Adds an operation to the end of the queue and starts it if nothing else is running.
+     */
+    public void enqueue(GattOperation operation) {
+        synchronized (this) {
+            mPending.add(operation);
+            mMaxDepth = Math.max(mMaxDepth, mPending.size());
+            if (mCurrent != null) {
+                return;
+            }
+        }
+        startNext();
+    }
+
+    /**
+     * Drops all waiting operations and forgets the running one, e.g. after a disconnect.
+     * Their callbacks are not called.
+     */
+    public void clear() {
+        synchronized (this) {
+            mPending.clear();
+            mScheduler.removeCallbacks(mTimeoutTask);
+            mCurrent = null;
+        }
+    }
+
+    public void onCharacteristicRead(UUID characteristic, boolean success) {
+        complete(GattOperation.TYPE_READ, characteristic, null, success);
+    }
+
+    public void onCharacteristicWrite(UUID characteristic, boolean success) {
+        complete(GattOperation.TYPE_WRITE, characteristic, null, success);
+    }
+
+    public void onDescriptorWrite(UUID characteristic, UUID descriptor, boolean success) {
+        complete(GattOperation.TYPE_WRITE_DESCRIPTOR, characteristic, descriptor, success);
+    }
+
+    public void onMtuChanged(boolean success) {
+        complete(GattOperation.TYPE_REQUEST_MTU, null, null, success);
+    }
+
+    /**
+     * @return number of operations waiting, not counting the running one
+     */
+    public synchronized int getQueueDepth() {
+        return mPending.size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized boolean isIdle() {
+        return mCurrent == null && mPending.isEmpty();
+    }
+
+    public synchronized long getCompletedCount(int type) {
+        return mCompleted[type];
+    }
+
+    public synchronized long getFailedCount(int type) {
+        return mFailed[type];
+    }
+
+    public synchronized long getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetried;
+    }
+
+    /**
+     * @return average time from starting an operation of the given type to its successful
+     * callback. Failed and retried attempts are not part of it.
+     */
+    public synchronized long getAverageLatencyNanos(int type) {
+        return mCompleted[type] == 0 ? 0 : mTotalLatencyNanos[type] / mCompleted[type];
+    }
+
+    public synchronized long getMaxLatencyNanos(int type) {
+        return mMaxLatencyNanos[type];
+    }
+
+    private void complete(int type, UUID characteristic, UUID descriptor, boolean success) {
+        GattOperation finished;
+        synchronized (this) {
+            if (mCurrent == null || !mCurrent.matches(type, characteristic, descriptor)) {
+                // A late callback of an operation that already timed out
+                return;
+            }
+            finished = mCurrent;
+            if (!success && finished.mAttempts <= mRetries) {
+                mRetried++;
+                mPending.addFirst(finished);
+                finished = null;
+            } else if (success) {
+                // Averaged over the completed operations, so only their latency counts
+                long latency = System.nanoTime() - finished.mStartNanos;
+                mTotalLatencyNanos[type] += latency;
+                mMaxLatencyNanos[type] = Math.max(mMaxLatencyNanos[type], latency);
+                mCompleted[type]++;
+            } else {
+                mFailed[type]++;
+            }
+            mScheduler.removeCallbacks(mTimeoutTask);
+            mCurrent = null;
+        }
+        if (finished != null && finished.mCallback != null) {
+            finished.mCallback.onComplete(finished, success);
+        }
+        startNext();
+    }
+
+    private void onTimeout() {
+        GattOperation timedOut;
+        synchronized (this) {
+            if (mCurrent == null) {
+                return;
+            }
+            long remaining = mTimeoutMillis - (System.nanoTime() - mCurrent.mStartNanos) / 1000000;
+            if (remaining > 0) {
+                // Left over from an operation that completed while this task was running
+                mScheduler.postDelayed(mTimeoutTask, remaining);
+                return;
+            }
+            timedOut = mCurrent;
+            mTimeouts++;
+            if (timedOut.mAttempts <= mRetries) {
+                mRetried++;
+                mPending.addFirst(timedOut);
+                timedOut = null;
+            } else {
+                mFailed[mCurrent.mType]++;
+            }
+            mCurrent = null;
+        }
+        if (timedOut != null && timedOut.mCallback != null) {
+            timedOut.mCallback.onComplete(timedOut, false);
+        }
+        startNext();
+    }
+
+    /**
+     * Starts waiting operations until one of them could be started or the queue is empty.
+     */
+    private void startNext() {
+        while (true) {
+            GattOperation next;
+            synchronized (this) {
+                if (mCurrent != null || mPending.isEmpty()) {
+                    return;
+                }
+                next = mPending.poll();
+                mCurrent = next;
+                next.mAttempts++;
+                next.mStartNanos = System.nanoTime();
+                mScheduler.postDelayed(mTimeoutTask, mTimeoutMillis);
+            }
+            if (next.start(mTransport)) {
+                return;
+            }
+
+            // The stack refused the request, count it as a failed attempt
+            boolean failed;
+            synchronized (this) {
+                if (mCurrent != next) {
+                    return;
+                }
+                mCurrent = null;
+                failed = next.mAttempts > mRetries;
+                if (failed) {
+                    mFailed[next.mType]++;
+                } else {
+                    mRetried++;
+                    mPending.addFirst(next);
+                }
+                mScheduler.removeCallbacks(mTimeoutTask);
+            }
+            if (failed && next.mCallback != null) {
+                next.mCallback.onComplete(next, false);
+            }
+        }
+    }
+}
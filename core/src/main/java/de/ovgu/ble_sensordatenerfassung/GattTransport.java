@@ -0,0 +1,21 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.UUID;
+
+/**
+ * The GATT requests the app issues, independent of the Android Bluetooth classes.
+ *
+ * Every method only starts a request and returns whether it could be started. The result
+ * arrives later through the GATT callback and has to be passed to the
+ * {@link GattOperationQueue}.
+ */
+public interface GattTransport {
+
+    boolean readCharacteristic(UUID characteristic);
+
+    boolean writeCharacteristic(UUID characteristic, byte[] value);
+
+    boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value);
+
+    boolean requestMtu(int mtu);
+}
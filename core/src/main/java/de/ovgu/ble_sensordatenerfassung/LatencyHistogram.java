@@ -0,0 +1,133 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in nanoseconds with a fixed set of log-linear buckets.
+ *
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets, so a bucket is at most 12.5%
+ * wide relative to its values, from 1 ns up to about 18 minutes; longer values go to the last
+ * bucket. Recording allocates nothing and uses neither locks nor atomic read-modify-writes, so
+ * it can stay on in the GATT callbacks. Values are recorded by one thread at a time, any
+ * thread may read percentiles concurrently.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BUCKET_BITS = 3;
+    public final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Largest power of two with buckets of its own, 2^40 ns are about 18 minutes
+    private final static int MAX_EXPONENT = 40;
+
+    public final static int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * @return the bucket of a value
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value that falls into a bucket
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long mantissa = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Adds a value. Negative values count as 0. Only one thread at a time may record.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        // Single writer: ordered stores are enough for the readers
+        int bucket = bucketOf(nanos);
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+        mCount.lazySet(mCount.get() + 1);
+        mTotal.lazySet(mTotal.get() + nanos);
+        if (nanos > mMax.get()) {
+            mMax.lazySet(nanos);
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanNanos() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotal.get() / count;
+    }
+
+    public long getMaxNanos() {
+        return mMax.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket that holds the percentile, never more than the
+     * largest recorded value, 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            count += mCounts.get(i);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Copies the bucket counts, e.g. to show the whole distribution.
+     *
+     * @param counts at least {@link #BUCKET_COUNT} entries
+     */
+    public void copyCounts(long[] counts) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+        }
+    }
+
+    /**
+     * Clears the histogram. Values recorded at the same time may be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotal.set(0);
+        mMax.set(0);
+    }
+}
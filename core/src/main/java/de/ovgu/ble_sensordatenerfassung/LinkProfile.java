@@ -0,0 +1,62 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Named sets of Bluetooth LE link parameters.
+ *
+ * The values are independent of the Android classes; the MeasurementService maps them
+ * to the matching {@code BluetoothGatt}, {@code BluetoothDevice} and {@code ScanSettings}
+ * constants.
+ */
+public enum LinkProfile {
+
+    // Shortest connection interval, 2M PHY and a large MTU for high notification rates
+    HIGH_THROUGHPUT(247, LinkProfile.PRIORITY_HIGH, LinkProfile.PHY_2M, LinkProfile.SCAN_LOW_LATENCY),
+
+    // Android's default connection interval, enough for a person watching the values
+    BALANCED(185, LinkProfile.PRIORITY_BALANCED, LinkProfile.PHY_1M, LinkProfile.SCAN_BALANCED),
+
+    // Long connection interval while nobody looks and nothing piles up
+    LOW_POWER(65, LinkProfile.PRIORITY_LOW_POWER, LinkProfile.PHY_1M, LinkProfile.SCAN_LOW_POWER);
+
+    // Connection priorities
+    public final static int PRIORITY_BALANCED = 0;
+    public final static int PRIORITY_HIGH = 1;
+    public final static int PRIORITY_LOW_POWER = 2;
+
+    // Preferred PHYs
+    public final static int PHY_1M = 1;
+    public final static int PHY_2M = 2;
+
+    // Scan modes
+    public final static int SCAN_LOW_POWER = 0;
+    public final static int SCAN_BALANCED = 1;
+    public final static int SCAN_LOW_LATENCY = 2;
+
+    private final int mMtu;
+    private final int mConnectionPriority;
+    private final int mPhy;
+    private final int mScanMode;
+
+    LinkProfile(int mtu, int connectionPriority, int phy, int scanMode) {
+        mMtu = mtu;
+        mConnectionPriority = connectionPriority;
+        mPhy = phy;
+        mScanMode = scanMode;
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getConnectionPriority() {
+        return mConnectionPriority;
+    }
+
+    public int getPhy() {
+        return mPhy;
+    }
+
+    public int getScanMode() {
+        return mScanMode;
+    }
+}
@@ -0,0 +1,67 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Chooses a {@link LinkProfile} from what is observed on the link.
+ *
+ * A backlog, i.e. queued GATT requests or rows lost on the way, switches to
+ * {@link LinkProfile#HIGH_THROUGHPUT} at once. Stepping down only happens after the link was
+ * calm for several evaluations in a row: to {@link LinkProfile#BALANCED} while a UI is
+ * attached, to {@link LinkProfile#LOW_POWER} when nobody is watching.
+ */
+public class LinkProfileSelector {
+
+    // A backlog of this size asks for more throughput
+    public final static int HIGH_BACKLOG = 3;
+
+    // Number of calm evaluations in a row before stepping down
+    public final static int CALM_EVALUATIONS = 5;
+
+    private LinkProfile mProfile;
+    private int mCalm;
+
+    public LinkProfileSelector(LinkProfile initial) {
+        mProfile = initial;
+    }
+
+    /**
+     * Evaluates the link and returns the profile it should use from now on.
+     *
+     * @param backlog queued requests plus rows lost since the last evaluation
+     * @param uiAttached whether a UI currently shows the values
+     * @return the profile to use
+     */
+    public LinkProfile evaluate(int backlog, boolean uiAttached) {
+        if (backlog >= HIGH_BACKLOG) {
+            mCalm = 0;
+            mProfile = LinkProfile.HIGH_THROUGHPUT;
+            return mProfile;
+        }
+        if (backlog > 0) {
+            mCalm = 0;
+            return mProfile;
+        }
+
+        LinkProfile target = uiAttached ? LinkProfile.BALANCED : LinkProfile.LOW_POWER;
+        if (target.ordinal() < mProfile.ordinal()) {
+            // Stepping up to a faster profile never has to wait
+            mCalm = 0;
+            mProfile = target;
+        } else if (target != mProfile && ++mCalm >= CALM_EVALUATIONS) {
+            mCalm = 0;
+            mProfile = target;
+        }
+        return mProfile;
+    }
+
+    public LinkProfile getProfile() {
+        return mProfile;
+    }
+
+    /**
+     * Sets the profile, e.g. after the user picked one.
+     */
+    public void setProfile(LinkProfile profile) {
+        mProfile = profile;
+        mCalm = 0;
+    }
+}
@@ -0,0 +1,72 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Throughput and latency achieved while a {@link LinkProfile} was active.
+ *
+ * The latency is the mean interval between notifications, i.e. how long a new value waits for
+ * the next connection event. Samples are counted on the GATT callback thread, activation
+ * happens on the main thread.
+ */
+public class LinkProfileStats {
+    private long mActiveNanos;
+    private long mActiveSince = -1;
+    private long mSamples;
+    private long mNotifications;
+    private long mIntervalSumNanos;
+    private long mLastNotification = -1;
+
+    public synchronized void activate(long nowNanos) {
+        if (mActiveSince < 0) {
+            mActiveSince = nowNanos;
+            mLastNotification = -1;
+        }
+    }
+
+    public synchronized void deactivate(long nowNanos) {
+        if (mActiveSince >= 0) {
+            mActiveNanos += nowNanos - mActiveSince;
+            mActiveSince = -1;
+        }
+    }
+
+    /**
+     * Counts a notification carrying the given number of samples.
+     */
+    public synchronized void onNotification(long nowNanos, int samples) {
+        if (mActiveSince < 0) {
+            return;
+        }
+        mSamples += samples;
+        if (mLastNotification >= 0) {
+            mNotifications++;
+            mIntervalSumNanos += nowNanos - mLastNotification;
+        }
+        mLastNotification = nowNanos;
+    }
+
+    /**
+     * @return total time the profile was active, including the current activation
+     */
+    public synchronized long getActiveNanos(long nowNanos) {
+        return mActiveNanos + (mActiveSince >= 0 ? nowNanos - mActiveSince : 0);
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    /**
+     * @return samples per second while the profile was active
+     */
+    public synchronized double getThroughput(long nowNanos) {
+        long active = getActiveNanos(nowNanos);
+        return active == 0 ? 0 : mSamples * 1e9 / active;
+    }
+
+    /**
+     * @return mean interval between notifications in nanoseconds
+     */
+    public synchronized long getMeanLatencyNanos() {
+        return mNotifications == 0 ? 0 : mIntervalSumNanos / mNotifications;
+    }
+}
@@ -0,0 +1,82 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling.
+ *
+ * Reduces a series to a given number of points while keeping its visual shape: the first and
+ * last points are kept, the rest is split into equal buckets, and from every bucket the point
+ * is taken that forms the largest triangle with the point chosen before and the average of the
+ * next bucket. Peaks therefore survive, unlike with plain averaging or decimation.
+ */
+public final class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * Downsamples {@code count} points.
+     *
+     * @param times timestamps of the points, in ascending order
+     * @param values values of the points
+     * @param count number of points to read
+     * @param threshold number of points wanted, the series is copied unchanged if it has no
+     * more points or if the threshold is less than 3
+     * @param outTimes receives the timestamps of the chosen points
+     * @param outValues receives the values of the chosen points
+     * @return the number of points written, at most the length of the output arrays
+     */
+    public static int downsample(long[] times, float[] values, int count, int threshold,
+                                 long[] outTimes, float[] outValues) {
+        threshold = Math.min(threshold, outValues.length);
+        if (threshold >= count || threshold < 3) {
+            int n = Math.min(count, outValues.length);
+            System.arraycopy(times, 0, outTimes, 0, n);
+            System.arraycopy(values, 0, outValues, 0, n);
+            return n;
+        }
+
+        // Relative times keep the double precision where the points are
+        long origin = times[0];
+        double every = (double) (count - 2) / (threshold - 2);
+        int a = 0;
+        int n = 0;
+        outTimes[n] = times[0];
+        outValues[n++] = values[0];
+
+        for (int i = 0; i < threshold - 2; i++) {
+            // Average of the next bucket
+            int avgStart = (int) ((i + 1) * every) + 1;
+            int avgEnd = Math.min((int) ((i + 2) * every) + 1, count);
+            double avgX = 0;
+            double avgY = 0;
+            for (int j = avgStart; j < avgEnd; j++) {
+                avgX += times[j] - origin;
+                avgY += values[j];
+            }
+            avgX /= avgEnd - avgStart;
+            avgY /= avgEnd - avgStart;
+
+            // Point of this bucket with the largest triangle
+            int start = (int) (i * every) + 1;
+            int end = (int) ((i + 1) * every) + 1;
+            double ax = times[a] - origin;
+            double ay = values[a];
+            double maxArea = -1;
+            int next = start;
+            for (int j = start; j < end; j++) {
+                double area = Math.abs((ax - avgX) * (values[j] - ay) - (ax - (times[j] - origin)) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+            outTimes[n] = times[next];
+            outValues[n++] = values[next];
+            a = next;
+        }
+
+        outTimes[n] = times[count - 1];
+        outValues[n++] = values[count - 1];
+        return n;
+    }
+}
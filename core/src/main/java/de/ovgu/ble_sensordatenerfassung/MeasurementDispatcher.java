@@ -0,0 +1,203 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers events and samples to the registered {@link MeasurementListener}s, each on the
+ * executor it was registered with.
+ *
+ * Samples are collected into {@link SampleBatch}es, so listeners get one callback per batch
+ * instead of one per notification. A batch is handed out when it is full or when
+ * {@link #flushSamples()} is called.
+ */
+public class MeasurementDispatcher {
+
+    // Default number of samples per batch
+    public final static int DEFAULT_BATCH_SIZE = 64;
+
+    private final int mBatchSize;
+    private final CopyOnWriteArrayList<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+    // Batch that is being filled, guarded by mBatchLock
+    private final Object mBatchLock = new Object();
+    private SampleBatch mBatch;
+
+    public MeasurementDispatcher() {
+        this(DEFAULT_BATCH_SIZE);
+    }
+
+    public MeasurementDispatcher(int batchSize) {
+        mBatchSize = batchSize;
+        mBatch = new SampleBatch(batchSize);
+    }
+
+    /**
+     * Registers a listener. Registering the same listener again replaces its executor.
+     *
+     * @param listener the listener to call
+     * @param executor the executor the callbacks run on
+     */
+    public void register(MeasurementListener listener, Executor executor) {
+        unregister(listener);
+        mRegistrations.add(new Registration(listener, executor));
+    }
+
+    /**
+     * Removes a listener. Callbacks that are already queued on its executor still run.
+     */
+    public void unregister(MeasurementListener listener) {
+        for (Registration registration : mRegistrations) {
+            if (registration.mListener == listener) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    public boolean hasListeners() {
+        return !mRegistrations.isEmpty();
+    }
+
+    public void dispatchDeviceFound(final String address) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onDeviceFound(address);
+                }
+            });
+        }
+    }
+
+    public void dispatchConnected() {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onConnected();
+                }
+            });
+        }
+    }
+
+    public void dispatchDisconnected() {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onDisconnected();
+                }
+            });
+        }
+    }
+
+    public void dispatchConnectionStateChanged(final ConnectionStateMachine.State state) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onConnectionStateChanged(state);
+                }
+            });
+        }
+    }
+
+    public void dispatchServicesDiscovered() {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onServicesDiscovered();
+                }
+            });
+        }
+    }
+
+    /**
+     * Tells all listeners which channels changed. A listener that has not yet handled the
+     * previous call gets both masks merged into one call.
+     *
+     * @param changedChannels bit mask of the changed channels
+     */
+    public void dispatchValuesChanged(int changedChannels) {
+        for (Registration registration : mRegistrations) {
+            registration.valuesChanged(changedChannels);
+        }
+    }
+
+    /**
+     * Adds a sample to the current batch and hands the batch out once it is full.
+     */
+    public void addSample(int channel, long timeNanos, float value) {
+        SampleBatch full = null;
+        synchronized (mBatchLock) {
+            if (mBatch.add(channel, timeNanos, value)) {
+                full = mBatch;
+                mBatch = new SampleBatch(mBatchSize);
+            }
+        }
+        if (full != null) {
+            dispatchSamples(full);
+        }
+    }
+
+    /**
+     * Hands out the current batch even if it is not full yet.
+     */
+    public void flushSamples() {
+        SampleBatch batch;
+        synchronized (mBatchLock) {
+            if (mBatch.size() == 0) {
+                return;
+            }
+            batch = mBatch;
+            mBatch = new SampleBatch(mBatchSize);
+        }
+        dispatchSamples(batch);
+    }
+
+    private void dispatchSamples(final SampleBatch batch) {
+        for (final Registration registration : mRegistrations) {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onSamples(batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * A listener and its executor. Also merges value change notifications, so a slow
+     * listener never has more than one of them queued.
+     */
+    private static class Registration implements Runnable {
+        final MeasurementListener mListener;
+        final Executor mExecutor;
+        private final AtomicInteger mPendingChanges = new AtomicInteger();
+
+        Registration(MeasurementListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        void valuesChanged(int changedChannels) {
+            int pending;
+            do {
+                pending = mPendingChanges.get();
+            } while (!mPendingChanges.compareAndSet(pending, pending | changedChannels));
+            if (pending == 0) {
+                mExecutor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int changed = mPendingChanges.getAndSet(0);
+            if (changed != 0) {
+                mListener.onValuesChanged(changed);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Receives events and samples from the MeasurementService.
+ *
+ * Listeners are registered together with an executor, and every callback runs on that
+ * executor. Use {@link MeasurementListenerAdapter} to implement only some of the callbacks.
+ */
+public interface MeasurementListener {
+
+    /**
+     * A device with the measurement service was found by the scan.
+     *
+     * @param address the Bluetooth address of the device
+     */
+    void onDeviceFound(String address);
+
+    /**
+     * The GATT connection to the device is established.
+     */
+    void onConnected();
+
+    /**
+     * The GATT connection to the device was closed or lost.
+     */
+    void onDisconnected();
+
+    /**
+     * The connection state shown to the user changed, see
+     * MeasurementService.getConnectionState().
+     *
+     * @param state the new state
+     */
+    void onConnectionStateChanged(ConnectionStateMachine.State state);
+
+    /**
+     * The measurement characteristics of the device have been discovered.
+     */
+    void onServicesDiscovered();
+
+    /**
+     * New samples arrived. Batches are delivered in order and must not be modified.
+     *
+     * @param batch the samples in the order they arrived
+     */
+    void onSamples(SampleBatch batch);
+
+    /**
+     * The latest values changed. Unlike {@link #onSamples}, this is called at most once per
+     * display refresh, no matter how many samples arrived in between.
+     *
+     * @param changedChannels bit mask of the channels whose latest value changed
+     */
+    void onValuesChanged(int changedChannels);
+}
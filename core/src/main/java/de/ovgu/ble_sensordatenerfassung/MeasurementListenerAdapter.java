@@ -0,0 +1,36 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Empty implementation of {@link MeasurementListener}, so a listener only overrides the
+ * callbacks it is interested in.
+ */
+public abstract class MeasurementListenerAdapter implements MeasurementListener {
+
+    @Override
+    public void onDeviceFound(String address) {
+    }
+
+    @Override
+    public void onConnected() {
+    }
+
+    @Override
+    public void onDisconnected() {
+    }
+
+    @Override
+    public void onConnectionStateChanged(ConnectionStateMachine.State state) {
+    }
+
+    @Override
+    public void onServicesDiscovered() {
+    }
+
+    @Override
+    public void onSamples(SampleBatch batch) {
+    }
+
+    @Override
+    public void onValuesChanged(int changedChannels) {
+    }
+}
@@ -0,0 +1,42 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.UUID;
+
+/**
+ * UUIDs of the measurement service of the test bench and of its characteristics.
+ */
+public final class MeasurementProfile {
+
+    public final static String SERVICE =     "5d8eee9c-f629-4429-a328-baf6ecb10bbb";
+    public final static String VOLTAGE =     "4b4369f0-0929-4af2-90ee-9be9df9779fc";
+    public final static String CURRENT =     "e570157c-65b9-45ff-83ff-0d963f8f7056";
+    public final static String SPEED =       "d0524569-7ad1-4a2c-9b41-a62977af90f1";
+    public final static String TORQUE =      "0506ecfe-b5e1-43df-8129-dcda57e2d1b0";
+    public final static String EFFICIENCY =  "20b0b221-492e-4c1a-90d6-4b8a12f91a43";
+    // Optional characteristic that packs all channels into rows, see FrameDecoder
+    public final static String FRAME =       "9a3f41c6-0b5e-4f2a-8e1d-6c7b2d4e5f10";
+    public final static String CCCD =        "00002902-0000-1000-8000-00805f9b34fb";
+
+    private MeasurementProfile() {
+    }
+
+    /**
+     * @return the characteristics of the channels, in the order of {@link SampleDecoder}
+     */
+    public static UUID[] channelUuids() {
+        return new UUID[]{
+                UUID.fromString(VOLTAGE),
+                UUID.fromString(CURRENT),
+                UUID.fromString(SPEED),
+                UUID.fromString(TORQUE),
+                UUID.fromString(EFFICIENCY)};
+    }
+
+    /**
+     * @return a decoder for the channels of the measurement service
+     */
+    public static SampleDecoder newDecoder() {
+        UUID[] uuids = channelUuids();
+        return new SampleDecoder(uuids[0], uuids[1], uuids[2], uuids[3], uuids[4]);
+    }
+}
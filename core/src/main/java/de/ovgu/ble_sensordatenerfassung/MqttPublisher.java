@@ -0,0 +1,196 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the frames of a {@link SampleStreamer} to an MQTT broker, e.g. a Mosquitto on the
+ * lab PC, so any number of clients can subscribe.
+ *
+ * Only what streaming needs of MQTT 3.1.1 is implemented: a clean session, QoS 0 publishes and
+ * keep-alive pings. Every source gets a topic of its own below the topic prefix, e.g.
+ * {@code bench/samples/00:11:22:33:44:55}, and every frame is one message. The socket blocks,
+ * so a slow broker holds up the sender and the queues of the streamer fill up according to
+ * their policy.
+ */
+public class MqttPublisher implements StreamTransport {
+
+    public final static int DEFAULT_PORT = 1883;
+
+    private final static int CONNECT = 0x10;
+    private final static int CONNACK = 0x20;
+    private final static int PUBLISH = 0x30;
+    private final static int PINGREQ = 0xc0;
+    private final static int DISCONNECT = 0xe0;
+
+    // MQTT 3.1.1, clean session
+    private final static int PROTOCOL_LEVEL = 4;
+    private final static int CLEAN_SESSION = 0x02;
+
+    private final static int KEEP_ALIVE_SECONDS = 60;
+    private final static int TIMEOUT_MILLIS = 5000;
+    private final static int BUFFER_SIZE = 16 * 1024;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String mHost;
+    private final int mPort;
+    private final String mTopicPrefix;
+    private final String mClientId;
+
+    // Only used by the sender thread of the streamer
+    private Socket mSocket;
+    private OutputStream mOut;
+    private InputStream mIn;
+    private final byte[] mScratch = new byte[64];
+    private final Map<String, byte[]> mTopics = new HashMap<>();
+    private long mLastSendNanos;
+
+    private volatile long mPublished;
+
+    /**
+     * @param host the broker
+     * @param port the port of the broker, usually {@link #DEFAULT_PORT}
+     * @param topicPrefix the topics of the sources are below this one
+     * @param clientId identifies this publisher at the broker, must be unique there
+     */
+    public MqttPublisher(String host, int port, String topicPrefix, String clientId) {
+        mHost = host;
+        mPort = port;
+        mTopicPrefix = topicPrefix;
+        mClientId = clientId;
+    }
+
+    @Override
+    public void open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(mHost, mPort), TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            mSocket = socket;
+            mOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            mIn = socket.getInputStream();
+            connect();
+        } catch (IOException e) {
+            close();
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        byte[] clientId = mClientId.getBytes(UTF_8);
+        OutputStream out = mOut;
+        out.write(CONNECT);
+        writeRemainingLength(out, 10 + 2 + clientId.length);
+        writeString(out, "MQTT".getBytes(UTF_8));
+        out.write(PROTOCOL_LEVEL);
+        out.write(CLEAN_SESSION);
+        out.write(KEEP_ALIVE_SECONDS >> 8);
+        out.write(KEEP_ALIVE_SECONDS & 0xff);
+        writeString(out, clientId);
+        out.flush();
+        mLastSendNanos = System.nanoTime();
+
+        // Fixed header, remaining length 2, session present flag, return code
+        for (int i = 0; i < 4; i++) {
+            int b = mIn.read();
+            if (b < 0) {
+                throw new EOFException("Broker closed the connection");
+            }
+            mScratch[i] = (byte) b;
+        }
+        if ((mScratch[0] & 0xff) != CONNACK || mScratch[1] != 2) {
+            throw new IOException("Not an MQTT broker: " + mHost + ":" + mPort);
+        }
+        if (mScratch[3] != 0) {
+            throw new IOException("Broker refused the connection, return code " + mScratch[3]);
+        }
+    }
+
+    @Override
+    public void send(String source, byte[] frame, int length) throws IOException {
+        byte[] topic = mTopics.get(source);
+        if (topic == null) {
+            topic = (mTopicPrefix + "/" + source).getBytes(UTF_8);
+            mTopics.put(source, topic);
+        }
+        OutputStream out = mOut;
+        out.write(PUBLISH);
+        writeRemainingLength(out, 2 + topic.length + length);
+        writeString(out, topic);
+        out.write(frame, 0, length);
+        out.flush();
+        mLastSendNanos = System.nanoTime();
+        mPublished++;
+    }
+
+    @Override
+    public void poll() throws IOException {
+        // Only ping responses come back at QoS 0
+        while (mIn.available() > 0) {
+            if (mIn.read(mScratch) < 0) {
+                throw new EOFException("Broker closed the connection");
+            }
+        }
+        if (System.nanoTime() - mLastSendNanos > TimeUnit.SECONDS.toNanos(KEEP_ALIVE_SECONDS) / 2) {
+            mOut.write(PINGREQ);
+            mOut.write(0);
+            mOut.flush();
+            mLastSendNanos = System.nanoTime();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (mSocket == null) {
+            return;
+        }
+        try {
+            mOut.write(DISCONNECT);
+            mOut.write(0);
+            mOut.flush();
+        } catch (IOException e) {
+            // Closed below anyway
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // Nothing left to release
+        }
+        mSocket = null;
+        mOut = null;
+        mIn = null;
+    }
+
+    /**
+     * @return number of frames published
+     */
+    public long getPublishedCount() {
+        return mPublished;
+    }
+
+    private static void writeRemainingLength(OutputStream out, int length) throws IOException {
+        do {
+            int digit = length & 0x7f;
+            length >>>= 7;
+            out.write(length > 0 ? digit | 0x80 : digit);
+        } while (length > 0);
+    }
+
+    private static void writeString(OutputStream out, byte[] bytes) throws IOException {
+        out.write(bytes.length >> 8);
+        out.write(bytes.length & 0xff);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,258 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Maintains min/max/mean/count summaries of all channels at several resolutions while the
+ * samples arrive.
+ *
+ * Every resolution is a level of fixed-size time buckets, e.g. 100 ms, 1 s, 10 s and 1 min.
+ * Appending a sample updates the open bucket of every level, so the cost per sample only
+ * depends on the number of levels. When a sample falls into a new bucket, the open one is
+ * completed and published to a ring of completed buckets. Empty intervals produce no bucket.
+ *
+ * Exactly one thread may append. Any number of threads may query without locking, using the
+ * same publish-and-recheck scheme as the {@link SampleStore}. Only completed buckets are
+ * visible to queries.
+ */
+public class RollupEngine {
+
+    public final static long[] DEFAULT_RESOLUTIONS = {
+            TimeUnit.MILLISECONDS.toNanos(100),
+            TimeUnit.SECONDS.toNanos(1),
+            TimeUnit.SECONDS.toNanos(10),
+            TimeUnit.MINUTES.toNanos(1)};
+
+    /**
+     * Result of a query, reused between queries to avoid allocations.
+     */
+    public static class Buckets {
+        public final long[] times;
+        public final float[] mins;
+        public final float[] maxs;
+        public final float[] means;
+        public final int[] counts;
+        /** Number of valid buckets */
+        public int size;
+        /** Resolution of the level the buckets were taken from */
+        public long resolutionNanos;
+
+        public Buckets(int capacity) {
+            times = new long[capacity];
+            mins = new float[capacity];
+            maxs = new float[capacity];
+            means = new float[capacity];
+            counts = new int[capacity];
+        }
+
+        public int getCapacity() {
+            return times.length;
+        }
+    }
+
+    private final int mChannelCount;
+    private final long[] mResolutions;
+    private final int mCapacity;
+    private final int mMask;
+
+    // Completed buckets, indexed by channel * levels + level
+    private final long[][] mStarts;
+    private final float[][] mMins;
+    private final float[][] mMaxs;
+    private final double[][] mSums;
+    private final int[][] mCounts;
+    private final AtomicLongArray mCompleted;
+
+    // Open bucket of every level, only used by the writer thread
+    private final long[] mOpenIndex;
+    private final float[] mOpenMin;
+    private final float[] mOpenMax;
+    private final double[] mOpenSum;
+    private final int[] mOpenCount;
+
+    /**
+     * @param channelCount number of channels
+     * @param resolutions bucket length of every level in nanoseconds, finest first
+     * @param capacity number of completed buckets kept per channel and level, rounded up to a
+     * power of two
+     */
+    public RollupEngine(int channelCount, long[] resolutions, int capacity) {
+        if (channelCount <= 0 || resolutions.length == 0 || capacity <= 0) {
+            throw new IllegalArgumentException("channelCount, resolutions and capacity must not be empty");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mChannelCount = channelCount;
+        mResolutions = resolutions.clone();
+        mCapacity = size;
+        mMask = size - 1;
+        int rings = channelCount * resolutions.length;
+        mStarts = new long[rings][size];
+        mMins = new float[rings][size];
+        mMaxs = new float[rings][size];
+        mSums = new double[rings][size];
+        mCounts = new int[rings][size];
+        mCompleted = new AtomicLongArray(rings);
+        mOpenIndex = new long[rings];
+        mOpenMin = new float[rings];
+        mOpenMax = new float[rings];
+        mOpenSum = new double[rings];
+        mOpenCount = new int[rings];
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getLevelCount() {
+        return mResolutions.length;
+    }
+
+    public long getResolution(int level) {
+        return mResolutions[level];
+    }
+
+    /**
+     * @return number of completed buckets kept per channel and level
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Adds a sample to all levels. Must only be called from the single writer thread.
+     * Timestamps of a channel must not decrease.
+     */
+    public void append(int channel, long timeNanos, float value) {
+        int ring = channel * mResolutions.length;
+        for (int level = 0; level < mResolutions.length; level++, ring++) {
+            long index = timeNanos / mResolutions[level];
+            if (mOpenCount[ring] > 0 && index != mOpenIndex[ring]) {
+                complete(ring, level);
+            }
+            if (mOpenCount[ring] == 0) {
+                mOpenIndex[ring] = index;
+                mOpenMin[ring] = value;
+                mOpenMax[ring] = value;
+                mOpenSum[ring] = value;
+                mOpenCount[ring] = 1;
+            } else {
+                if (value < mOpenMin[ring]) {
+                    mOpenMin[ring] = value;
+                }
+                if (value > mOpenMax[ring]) {
+                    mOpenMax[ring] = value;
+                }
+                mOpenSum[ring] += value;
+                mOpenCount[ring]++;
+            }
+        }
+    }
+
+    private void complete(int ring, int level) {
+        long completed = mCompleted.get(ring);
+        int slot = (int) completed & mMask;
+        mStarts[ring][slot] = mOpenIndex[ring] * mResolutions[level];
+        mMins[ring][slot] = mOpenMin[ring];
+        mMaxs[ring][slot] = mOpenMax[ring];
+        mSums[ring][slot] = mOpenSum[ring];
+        mCounts[ring][slot] = mOpenCount[ring];
+        mOpenCount[ring] = 0;
+        // Publish the bucket only after it has been written
+        mCompleted.lazySet(ring, completed + 1);
+    }
+
+    /**
+     * Returns the start of the oldest completed bucket of a level, or {@link Long#MAX_VALUE}
+     * if there is none.
+     */
+    public long getOldestTime(int channel, int level) {
+        while (true) {
+            int ring = channel * mResolutions.length + level;
+            long completed = mCompleted.get(ring);
+            if (completed == 0) {
+                return Long.MAX_VALUE;
+            }
+            long oldest = Math.max(0, completed - mCapacity);
+            long time = mStarts[ring][(int) oldest & mMask];
+            if (oldest >= mCompleted.get(ring) - mCapacity) {
+                return time;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a level still has all buckets from {@code fromNanos} on, i.e. it has
+     * not dropped any yet or its oldest kept bucket is not after that time.
+     */
+    private boolean covers(int channel, int level, long fromNanos) {
+        int ring = channel * mResolutions.length + level;
+        return mCompleted.get(ring) <= mCapacity || getOldestTime(channel, level) <= fromNanos;
+    }
+
+    /**
+     * Copies the buckets of the finest level that covers {@code [fromNanos, toNanos)} with at
+     * most the capacity of the result. Buckets are included if they start in the window.
+     *
+     * @return the number of buckets copied
+     */
+    public int query(int channel, long fromNanos, long toNanos, Buckets result) {
+        int max = result.getCapacity();
+        int level = 0;
+        while (level < mResolutions.length - 1
+                && (toNanos / mResolutions[level] - fromNanos / mResolutions[level] > max
+                || !covers(channel, level, fromNanos))) {
+            level++;
+        }
+        return query(channel, level, fromNanos, toNanos, result);
+    }
+
+    /**
+     * Copies the buckets of one level that start in {@code [fromNanos, toNanos)}.
+     *
+     * @return the number of buckets copied, at most the capacity of the result
+     */
+    public int query(int channel, int level, long fromNanos, long toNanos, Buckets result) {
+        int ring = channel * mResolutions.length + level;
+        long[] starts = mStarts[ring];
+        while (true) {
+            long completed = mCompleted.get(ring);
+            long oldest = Math.max(0, completed - mCapacity);
+            long first = lowerBound(starts, oldest, completed, fromNanos);
+            long end = lowerBound(starts, first, completed, toNanos);
+            int n = (int) Math.min(result.getCapacity(), end - first);
+            for (int i = 0; i < n; i++) {
+                int slot = (int) (first + i) & mMask;
+                int count = mCounts[ring][slot];
+                result.times[i] = starts[slot];
+                result.mins[i] = mMins[ring][slot];
+                result.maxs[i] = mMaxs[ring][slot];
+                result.means[i] = (float) (mSums[ring][slot] / count);
+                result.counts[i] = count;
+            }
+            if (first >= mCompleted.get(ring) - mCapacity) {
+                result.size = n;
+                result.resolutionNanos = mResolutions[level];
+                return n;
+            }
+            // The writer lapped us while copying, try again with the newer buckets
+        }
+    }
+
+    private long lowerBound(long[] starts, long from, long to, long timeNanos) {
+        long lo = from;
+        long hi = to;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (starts[(int) mid & mMask] < timeNanos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,367 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * Groups the samples of channels that arrive one by one, e.g. one notification per
+ * characteristic, into rows of values from the same instant.
+ *
+ * A sample joins the open row whose arrival times it is closest to, as long as the row has no
+ * value of its channel yet and all times of the row stay within the skew window. Otherwise it
+ * opens a new row. The open rows wait in a small reorder buffer sorted by time, so a sample
+ * that arrives late still finds its row. A row leaves the buffer once every channel has a
+ * value, once the newest arrival is more than the skew window plus the maximum delay past its
+ * first sample, or when the buffer is full. Rows leave in time order; a sample whose row has
+ * already left is counted as late and not put into a row.
+ *
+ * Channels missing from a row are interpolated linearly between the last value that left the
+ * buffer and the next one still waiting in it, or marked with NaN if one of them is missing.
+ * The row time is the mean arrival time of the measured values, never earlier than the row
+ * before.
+ *
+ * The samples are fed from a single thread, which also receives the rows. Nothing is
+ * allocated after construction. The window may be changed and the counters read from any
+ * thread.
+ */
+public class RowAssembler {
+
+    // Notifications of one sample round arrive within a few connection events
+    public final static long DEFAULT_SKEW_NANOS = 20000000L;
+    public final static long DEFAULT_DELAY_NANOS = 30000000L;
+    public final static int DEFAULT_CAPACITY = 16;
+
+    // Values further apart than this are not interpolated, e.g. after notifications stalled
+    private final static long MAX_INTERPOLATION_NANOS = 1000000000L;
+
+    /**
+     * Receives the assembled rows.
+     */
+    public interface Sink {
+        /**
+         * @param timeNanos mean arrival time of the measured values
+         * @param values a value for every channel, interpolated or NaN where none was measured;
+         * only valid during the call
+         * @param measured bit mask of the channels measured for this row
+         */
+        void onRow(long timeNanos, float[] values, int measured);
+    }
+
+    private final int mChannels;
+    private final int mAllChannels;
+    private final int mCapacity;
+    private final Sink mSink;
+
+    private volatile long mSkewNanos = DEFAULT_SKEW_NANOS;
+    private volatile long mDelayNanos = DEFAULT_DELAY_NANOS;
+    private volatile boolean mInterpolating = true;
+
+    // Slots of the open rows sorted by their earliest time, and the unused slots
+    private final int[] mOrder;
+    private int mOpen;
+    private final int[] mFree;
+    private int mFreeCount;
+
+    // Per slot: earliest and latest time, measured channels, and time and value per channel
+    private final long[] mFirstTimes;
+    private final long[] mLastTimes;
+    private final int[] mMeasured;
+    private final long[] mTimes;
+    private final float[] mValues;
+
+    // Last measured value per channel that left the buffer, for the interpolation
+    private final long[] mPreviousTimes;
+    private final float[] mPreviousValues;
+    private int mPreviousChannels;
+
+    private long mNewestNanos;
+    private long mEmittedFirstNanos;
+    private long mEmittedNanos;
+    private final float[] mRow;
+
+    // Only written by the feeding thread
+    private volatile long mRowCount;
+    private volatile long mIncompleteRowCount;
+    private volatile long mInterpolatedCount;
+    private volatile long mMissingCount;
+    private volatile long mLateCount;
+
+    /**
+     * @param channels number of channels per row, at most 31
+     * @param capacity number of open rows the reorder buffer holds
+     * @param sink receives the rows
+     */
+    public RowAssembler(int channels, int capacity, Sink sink) {
+        if (channels < 1 || channels > 31 || capacity < 1) {
+            throw new IllegalArgumentException("Bad row size or capacity");
+        }
+        mChannels = channels;
+        mAllChannels = (1 << channels) - 1;
+        mCapacity = capacity;
+        mSink = sink;
+        mOrder = new int[capacity];
+        mFree = new int[capacity];
+        mFirstTimes = new long[capacity];
+        mLastTimes = new long[capacity];
+        mMeasured = new int[capacity];
+        mTimes = new long[capacity * channels];
+        mValues = new float[capacity * channels];
+        mPreviousTimes = new long[channels];
+        mPreviousValues = new float[channels];
+        mRow = new float[channels];
+        reset();
+    }
+
+    /**
+     * @param skewNanos how far apart the values of one row may arrive
+     * @param delayNanos how long an incomplete row waits for late values after its window
+     */
+    public void setWindow(long skewNanos, long delayNanos) {
+        mSkewNanos = skewNanos;
+        mDelayNanos = delayNanos;
+    }
+
+    public long getSkewNanos() {
+        return mSkewNanos;
+    }
+
+    public long getDelayNanos() {
+        return mDelayNanos;
+    }
+
+    /**
+     * @param interpolating false to mark every missing value with NaN
+     */
+    public void setInterpolating(boolean interpolating) {
+        mInterpolating = interpolating;
+    }
+
+    /**
+     * Drops the open rows and the values for the interpolation, e.g. for a new connection.
+     */
+    public void reset() {
+        mOpen = 0;
+        mFreeCount = mCapacity;
+        for (int i = 0; i < mCapacity; i++) {
+            mFree[i] = mCapacity - 1 - i;
+            mMeasured[i] = 0;
+        }
+        mPreviousChannels = 0;
+        mNewestNanos = Long.MIN_VALUE;
+        mEmittedFirstNanos = Long.MIN_VALUE;
+        mEmittedNanos = Long.MIN_VALUE;
+    }
+
+    /**
+     * Adds a sample and passes on the rows that are done.
+     *
+     * @param timeNanos arrival time of the sample on a monotonic clock
+     * @return false if the sample came too late for its row
+     */
+    public boolean add(int channel, long timeNanos, float value) {
+        if (timeNanos > mNewestNanos) {
+            mNewestNanos = timeNanos;
+        }
+        long skew = mSkewNanos;
+        long maxAge = skew + mDelayNanos;
+        int slot = findRow(channel, timeNanos, skew);
+        if (slot < 0) {
+            // Its row would already have been passed on
+            boolean late = mNewestNanos - timeNanos > maxAge;
+            if (!late && mOpen == mCapacity) {
+                emitFirst();
+            }
+            if (late || timeNanos < mEmittedFirstNanos) {
+                mLateCount++;
+                return false;
+            }
+            slot = openRow(timeNanos);
+        }
+
+        int at = slot * mChannels + channel;
+        mTimes[at] = timeNanos;
+        mValues[at] = value;
+        mMeasured[slot] |= 1 << channel;
+        if (timeNanos > mLastTimes[slot]) {
+            mLastTimes[slot] = timeNanos;
+        }
+        if (timeNanos < mFirstTimes[slot]) {
+            mFirstTimes[slot] = timeNanos;
+            sortEarlier(slot);
+        }
+
+        while (mOpen > 0) {
+            int first = mOrder[0];
+            if (mMeasured[first] != mAllChannels && mNewestNanos - mFirstTimes[first] <= maxAge) {
+                break;
+            }
+            emitFirst();
+        }
+        return true;
+    }
+
+    /**
+     * Passes on all open rows, complete or not.
+     */
+    public void flush() {
+        while (mOpen > 0) {
+            emitFirst();
+        }
+    }
+
+    /**
+     * @return the open row the sample fits best, -1 if none
+     */
+    private int findRow(int channel, long timeNanos, long skew) {
+        int bit = 1 << channel;
+        int best = -1;
+        long bestDistance = Long.MAX_VALUE;
+        // Newest first, so that on a tie the sample joins the newer row
+        for (int i = mOpen - 1; i >= 0; i--) {
+            int slot = mOrder[i];
+            if ((mMeasured[slot] & bit) != 0) {
+                continue;
+            }
+            long first = mFirstTimes[slot];
+            long last = mLastTimes[slot];
+            if (Math.max(last, timeNanos) - Math.min(first, timeNanos) > skew) {
+                continue;
+            }
+            long distance = timeNanos < first ? first - timeNanos : timeNanos > last ? timeNanos - last : 0;
+            if (distance < bestDistance) {
+                best = slot;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    private int openRow(long timeNanos) {
+        int slot = mFree[--mFreeCount];
+        mFirstTimes[slot] = timeNanos;
+        mLastTimes[slot] = timeNanos;
+        mMeasured[slot] = 0;
+        mOrder[mOpen++] = slot;
+        sortEarlier(slot);
+        return slot;
+    }
+
+    /**
+     * Moves a row whose earliest time went back to its place in the order.
+     */
+    private void sortEarlier(int slot) {
+        int i = mOpen - 1;
+        while (mOrder[i] != slot) {
+            i--;
+        }
+        long first = mFirstTimes[slot];
+        while (i > 0 && mFirstTimes[mOrder[i - 1]] > first) {
+            mOrder[i] = mOrder[i - 1];
+            i--;
+        }
+        mOrder[i] = slot;
+    }
+
+    private void emitFirst() {
+        int slot = mOrder[0];
+        mOpen--;
+        System.arraycopy(mOrder, 1, mOrder, 0, mOpen);
+        mFree[mFreeCount++] = slot;
+
+        int measured = mMeasured[slot];
+        mMeasured[slot] = 0;
+        int base = slot * mChannels;
+        long first = mFirstTimes[slot];
+        long offsets = 0;
+        int count = 0;
+        for (int channel = 0; channel < mChannels; channel++) {
+            if ((measured & (1 << channel)) != 0) {
+                offsets += mTimes[base + channel] - first;
+                count++;
+            }
+        }
+        long time = Math.max(first + offsets / count, mEmittedNanos);
+
+        for (int channel = 0; channel < mChannels; channel++) {
+            if ((measured & (1 << channel)) != 0) {
+                mRow[channel] = mValues[base + channel];
+            } else {
+                mRow[channel] = fill(channel, time);
+            }
+        }
+        for (int channel = 0; channel < mChannels; channel++) {
+            if ((measured & (1 << channel)) != 0) {
+                mPreviousTimes[channel] = mTimes[base + channel];
+                mPreviousValues[channel] = mValues[base + channel];
+                mPreviousChannels |= 1 << channel;
+            }
+        }
+
+        mEmittedFirstNanos = first;
+        mEmittedNanos = time;
+        mRowCount++;
+        if (measured != mAllChannels) {
+            mIncompleteRowCount++;
+        }
+        mSink.onRow(time, mRow, measured);
+    }
+
+    /**
+     * @return the interpolated value of a channel missing from the row being passed on, NaN
+     * if there is no value on both sides
+     */
+    private float fill(int channel, long timeNanos) {
+        int bit = 1 << channel;
+        if (mInterpolating && (mPreviousChannels & bit) != 0) {
+            for (int i = 0; i < mOpen; i++) {
+                int slot = mOrder[i];
+                if ((mMeasured[slot] & bit) == 0) {
+                    continue;
+                }
+                int at = slot * mChannels + channel;
+                long before = mPreviousTimes[channel];
+                long span = mTimes[at] - before;
+                if (span <= 0 || span > MAX_INTERPOLATION_NANOS) {
+                    break;
+                }
+                float fraction = Math.min(1f, Math.max(0f, (float) (timeNanos - before) / span));
+                mInterpolatedCount++;
+                return mPreviousValues[channel] + (mValues[at] - mPreviousValues[channel]) * fraction;
+            }
+        }
+        mMissingCount++;
+        return Float.NaN;
+    }
+
+    /**
+     * @return number of rows passed on
+     */
+    public long getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * @return number of rows passed on with at least one channel not measured
+     */
+    public long getIncompleteRowCount() {
+        return mIncompleteRowCount;
+    }
+
+    /**
+     * @return number of missing values that were interpolated
+     */
+    public long getInterpolatedCount() {
+        return mInterpolatedCount;
+    }
+
+    /**
+     * @return number of missing values that were marked with NaN
+     */
+    public long getMissingCount() {
+        return mMissingCount;
+    }
+
+    /**
+     * @return number of samples that arrived after their row was passed on
+     */
+    public long getLateCount() {
+        return mLateCount;
+    }
+}
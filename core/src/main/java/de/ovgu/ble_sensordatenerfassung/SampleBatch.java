@@ -0,0 +1,49 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+/**
+ * A batch of timestamped samples of any channels, kept in primitive arrays.
+ *
+ * A batch is filled by the {@link MeasurementDispatcher} and handed to all listeners once it
+ * is complete. From then on it is never changed again.
+ */
+public class SampleBatch {
+    private final int[] mChannels;
+    private final long[] mTimes;
+    private final float[] mValues;
+    private int mSize;
+
+    public SampleBatch(int capacity) {
+        mChannels = new int[capacity];
+        mTimes = new long[capacity];
+        mValues = new float[capacity];
+    }
+
+    /**
+     * Adds a sample while the batch is still being filled.
+     *
+     * @return true if the batch is full afterwards
+     */
+    boolean add(int channel, long timeNanos, float value) {
+        mChannels[mSize] = channel;
+        mTimes[mSize] = timeNanos;
+        mValues[mSize] = value;
+        mSize++;
+        return mSize == mChannels.length;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getChannel(int index) {
+        return mChannels[index];
+    }
+
+    public long getTime(int index) {
+        return mTimes[index];
+    }
+
+    public float getValue(int index) {
+        return mValues[index];
+    }
+}
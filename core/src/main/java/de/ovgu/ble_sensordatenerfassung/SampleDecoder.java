@@ -0,0 +1,84 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Turns raw characteristic values into primitive samples.
+ *
+ * The sensor sends every value as a 4 byte IEEE 754 float in little-endian byte order.
+ * The bytes are read in place, so the characteristic value is never modified and no
+ * buffer or String is created per notification. Text is only produced by {@link #format}
+ * when a value is actually shown.
+ */
+public class SampleDecoder {
+
+    // Channel indices, used for every per-channel array in the app
+    public final static int CHANNEL_VOLTAGE = 0;
+    public final static int CHANNEL_CURRENT = 1;
+    public final static int CHANNEL_SPEED = 2;
+    public final static int CHANNEL_TORQUE = 3;
+    public final static int CHANNEL_EFFICIENCY = 4;
+    public final static int CHANNEL_COUNT = 5;
+
+    // Returned by channelOf() for characteristics that carry no measurement value
+    public final static int NO_CHANNEL = -1;
+
+    private final UUID[] mChannelUuids;
+
+    public SampleDecoder(UUID voltage, UUID current, UUID speed, UUID torque, UUID efficiency) {
+        mChannelUuids = new UUID[]{voltage, current, speed, torque, efficiency};
+    }
+
+    /**
+     * Looks up the channel of a characteristic without converting its UUID to a String.
+     *
+     * @param uuid UUID of the characteristic
+     * @return the channel index or {@link #NO_CHANNEL}
+     */
+    public int channelOf(UUID uuid) {
+        for (int i = 0; i < CHANNEL_COUNT; i++) {
+            if (mChannelUuids[i].equals(uuid)) {
+                return i;
+            }
+        }
+        return NO_CHANNEL;
+    }
+
+    /**
+     * Returns the UUID of the characteristic that carries the given channel.
+     */
+    public UUID uuidOf(int channel) {
+        return mChannelUuids[channel];
+    }
+
+    /**
+     * Reads a little-endian float from a characteristic value.
+     *
+     * @param value the raw characteristic value
+     * @param offset index of the first byte of the float
+     * @return the decoded value
+     */
+    public static float decodeFloat(byte[] value, int offset) {
+        int bits = (value[offset] & 0xFF)
+                | (value[offset + 1] & 0xFF) << 8
+                | (value[offset + 2] & 0xFF) << 16
+                | (value[offset + 3] & 0xFF) << 24;
+        return Float.intBitsToFloat(bits);
+    }
+
+    /**
+     * Formats a value the way it is shown on the display. Speed is shown without decimals,
+     * all other channels with one decimal.
+     *
+     * @param channel the channel the value belongs to
+     * @param value the value to format
+     * @return the display text without unit
+     */
+    public static String format(int channel, float value) {
+        if (channel == CHANNEL_SPEED) {
+            return String.format(Locale.getDefault(), "%.0f", value);
+        }
+        return String.format(Locale.getDefault(), "%.1f", value);
+    }
+}
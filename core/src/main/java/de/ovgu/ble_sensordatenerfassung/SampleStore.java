@@ -0,0 +1,241 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-capacity history of timestamped samples for every channel.
+ *
+ * Each channel is a ring of primitive values and timestamps, so memory stays constant and
+ * nothing is boxed. Exactly one thread (the GATT callback) may append. Any number of threads
+ * may read at the same time without locking, like a seqlock: the writer announces a sample
+ * before it overwrites its slot and publishes the count after. Readers check the announced
+ * count after copying to find out whether the writer has overwritten part of what they
+ * copied. The slots are read and written through atomic arrays, so the copied values are
+ * ordered before that check on every processor, not only on x86.
+ *
+ * Samples are addressed by their sequence number, which is the number of samples appended to
+ * the channel before them.
+ */
+public class SampleStore {
+
+    // Returned by read() when the requested samples have already been overwritten
+    public final static int OVERRUN = -1;
+
+    private final int mChannelCount;
+    private final int mCapacity;
+    private final int mMask;
+    // The slots of all channels one after the other, values as their float bits
+    private final AtomicIntegerArray mValues;
+    private final AtomicLongArray mTimes;
+
+    // Number of samples ever appended per channel, written only by the writer thread
+    private final AtomicLongArray mCounts;
+
+    // Count including the sample being written, ahead of mCounts while a slot is overwritten
+    private final AtomicLongArray mWriting;
+
+    /**
+     * @param channelCount number of channels
+     * @param capacity number of samples kept per channel, rounded up to a power of two
+     */
+    public SampleStore(int channelCount, int capacity) {
+        if (channelCount <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("channelCount and capacity must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mChannelCount = channelCount;
+        mCapacity = size;
+        mMask = size - 1;
+        mValues = new AtomicIntegerArray(channelCount * size);
+        mTimes = new AtomicLongArray(channelCount * size);
+        mCounts = new AtomicLongArray(channelCount);
+        mWriting = new AtomicLongArray(channelCount);
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Appends a sample. Must only be called from the single writer thread.
+     *
+     * @param channel the channel of the sample
+     * @param timeNanos arrival time of the sample
+     * @param value the sample value
+     */
+    public void append(int channel, long timeNanos, float value) {
+        long count = mCounts.get(channel);
+        int index = slot(channel, count);
+        // Announce the overwrite before the slot changes, publish the sample after
+        mWriting.lazySet(channel, count + 1);
+        mValues.lazySet(index, Float.floatToRawIntBits(value));
+        mTimes.lazySet(index, timeNanos);
+        mCounts.lazySet(channel, count + 1);
+    }
+
+    /**
+     * Returns the number of samples ever appended to a channel. This is also the sequence
+     * number the next sample will get.
+     */
+    public long count(int channel) {
+        return mCounts.get(channel);
+    }
+
+    /**
+     * Returns the sequence number of the oldest sample that is still kept.
+     */
+    public long oldestSequence(int channel) {
+        return Math.max(0, mCounts.get(channel) - mCapacity);
+    }
+
+    /**
+     * Returns the most recent value of a channel, or NaN if nothing was received yet.
+     */
+    public float latest(int channel) {
+        long count = mCounts.get(channel);
+        if (count == 0) {
+            return Float.NaN;
+        }
+        return Float.intBitsToFloat(mValues.get(slot(channel, count - 1)));
+    }
+
+    /**
+     * Returns the arrival time of the most recent sample of a channel, or 0 if nothing was
+     * received yet.
+     */
+    public long latestTime(int channel) {
+        long count = mCounts.get(channel);
+        if (count == 0) {
+            return 0L;
+        }
+        return mTimes.get(slot(channel, count - 1));
+    }
+
+    /**
+     * Copies samples starting at a sequence number.
+     *
+     * @param channel the channel to read
+     * @param fromSequence sequence number of the first sample to copy
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @param max maximum number of samples to copy
+     * @return the number of samples copied, or {@link #OVERRUN} if the first requested sample
+     * is no longer kept. Readers that fall behind can continue at {@link #oldestSequence}.
+     */
+    public int read(int channel, long fromSequence, long[] times, float[] values, int max) {
+        long count = mCounts.get(channel);
+        if (fromSequence < count - mCapacity) {
+            return OVERRUN;
+        }
+        int n = (int) Math.min(max, Math.max(0, count - fromSequence));
+        copy(channel, fromSequence, n, times, values, 0);
+        if (fromSequence < mWriting.get(channel) - mCapacity) {
+            return OVERRUN;
+        }
+        return n;
+    }
+
+    /**
+     * Copies the most recent samples of a channel in chronological order.
+     *
+     * @param channel the channel to read
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @param max maximum number of samples to copy
+     * @return the number of samples copied
+     */
+    public int readLatest(int channel, long[] times, float[] values, int max) {
+        while (true) {
+            long count = mCounts.get(channel);
+            int n = (int) Math.min(Math.min(max, mCapacity), count);
+            long first = count - n;
+            copy(channel, first, n, times, values, 0);
+            if (first >= mWriting.get(channel) - mCapacity) {
+                return n;
+            }
+            // The writer lapped us while copying, try again with the newer samples
+        }
+    }
+
+    /**
+     * Copies all kept samples whose timestamps lie in {@code [fromNanos, toNanos)}.
+     *
+     * @param channel the channel to read
+     * @param fromNanos start of the window, inclusive
+     * @param toNanos end of the window, exclusive
+     * @param times receives the timestamps, may be null
+     * @param values receives the values
+     * @return the number of samples copied, at most the length of {@code values}
+     */
+    public int readRange(int channel, long fromNanos, long toNanos, long[] times, float[] values) {
+        return readRange(channel, fromNanos, toNanos, times, values, 0);
+    }
+
+    /**
+     * Like {@link #readRange(int, long, long, long[], float[])}, but copies to the arrays
+     * starting at {@code offset}.
+     */
+    public int readRange(int channel, long fromNanos, long toNanos, long[] times, float[] values, int offset) {
+        while (true) {
+            long count = mCounts.get(channel);
+            long oldest = Math.max(0, count - mCapacity);
+            long first = lowerBound(channel, oldest, count, fromNanos);
+            long end = lowerBound(channel, first, count, toNanos);
+            int n = (int) Math.min(values.length - offset, end - first);
+            copy(channel, first, n, times, values, offset);
+            if (first >= mWriting.get(channel) - mCapacity) {
+                return n;
+            }
+        }
+    }
+
+    /**
+     * Finds the first sequence number in {@code [from, to)} whose timestamp is not before
+     * {@code timeNanos}. Timestamps of a channel never decrease.
+     */
+    private long lowerBound(int channel, long from, long to, long timeNanos) {
+        long lo = from;
+        long hi = to;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (mTimes.get(slot(channel, mid)) < timeNanos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private int slot(int channel, long sequence) {
+        return channel * mCapacity + ((int) sequence & mMask);
+    }
+
+    private void copy(int channel, long first, int n, long[] times, float[] values, int offset) {
+        int start = slot(channel, first);
+        int head = Math.min(n, (channel + 1) * mCapacity - start);
+        copy(start, head, times, values, offset);
+        copy(channel * mCapacity, n - head, times, values, offset + head);
+    }
+
+    private void copy(int start, int n, long[] times, float[] values, int offset) {
+        AtomicIntegerArray source = mValues;
+        for (int i = 0; i < n; i++) {
+            values[offset + i] = Float.intBitsToFloat(source.get(start + i));
+        }
+        if (times != null) {
+            AtomicLongArray sourceTimes = mTimes;
+            for (int i = 0; i < n; i++) {
+                times[offset + i] = sourceTimes.get(start + i);
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes the sample stream of one or more devices over a {@link StreamTransport}, e.g. to
+ * watch a bench run live on a lab PC.
+ *
+ * Every device feeds its own {@link Source}. {@link Source#offer} only copies the sample into
+ * a bounded ring and never blocks, so it can be called from the GATT callback thread. A sender
+ * thread collects the samples for a batch interval and sends them as compact binary frames,
+ * one per source and batch:
+ * <pre>
+ * frame, little-endian
+ *  0  int    MAGIC
+ *  4  int    length of the frame in bytes
+ *  8  int    sequence number of the frame within its source
+ * 12  short  VERSION
+ * 14  short  number of samples
+ * 16  long   samples of the source dropped so far
+ * 24  long   samples of the source decimated so far
+ * 32  long   time the frame was sent, same clock as the samples
+ * 40  long   time of the first sample in nanoseconds
+ * 48  byte   length of the source name, then the name in UTF-8
+ *
+ * sample
+ *     byte   channel
+ *     varint zigzag difference to the time of the previous sample, in microseconds
+ *     float  value
+ * </pre>
+ * A sample takes 7 bytes at up to 8 ms between samples. Times are kept to the microsecond
+ * relative to the first sample of the frame.
+ *
+ * If the transport is slower than the samples arrive, the ring fills up and the
+ * {@link Policy} decides what is lost: {@link Policy#DROP} keeps the full rate and drops what
+ * does not fit, {@link Policy#DECIMATE} keeps the whole time span at a lower rate by skipping
+ * samples once the ring is a quarter full. Both are counted per source and reported in the
+ * frames, so a client can tell a gap from a quiet sensor.
+ */
+public class SampleStreamer {
+
+    public final static int MAGIC = 0x46454c42; // "BLEF" in little-endian
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 48;
+
+    // Longest source name, and the most samples in a frame
+    public final static int MAX_NAME_LENGTH = 255;
+    public final static int MAX_FRAME_SAMPLES = 1024;
+
+    // Channel, time difference of at most 10 varint bytes, value
+    private final static int MAX_SAMPLE_SIZE = 1 + 10 + 4;
+    public final static int MAX_FRAME_SIZE = HEADER_SIZE + 1 + MAX_NAME_LENGTH
+            + MAX_FRAME_SAMPLES * MAX_SAMPLE_SIZE;
+
+    // Samples buffered per source between the callback thread and the sender
+    public final static int DEFAULT_QUEUE_CAPACITY = 8192;
+
+    // A live view needs the samples soon, but not one frame per notification
+    private final static long DEFAULT_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Wait before connecting again after the transport failed
+    private final static long RETRY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * What happens to samples that arrive faster than the transport sends them.
+     */
+    public enum Policy {
+        // Samples that do not fit into the full queue are dropped
+        DROP,
+        // Every 2nd, 4th and then 8th sample per channel is kept as the queue fills, the rest
+        // is dropped once it is full
+        DECIMATE
+    }
+
+    /**
+     * The clock of the sample timestamps.
+     */
+    public interface Clock {
+        long nanos();
+    }
+
+    private final static Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanos() {
+            return System.nanoTime();
+        }
+    };
+
+    private final StreamTransport mTransport;
+    private final Clock mClock;
+    private final int mQueueCapacity;
+    private volatile Policy mPolicy = Policy.DECIMATE;
+    private volatile long mBatchNanos = DEFAULT_BATCH_NANOS;
+
+    private final CopyOnWriteArrayList<Source> mSources = new CopyOnWriteArrayList<>();
+
+    // Written by the sender only
+    private final AtomicLong mSentFrames = new AtomicLong();
+    private final AtomicLong mSentSamples = new AtomicLong();
+    private final AtomicLong mSentBytes = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private volatile boolean mConnected;
+    private volatile IOException mError;
+
+    private volatile boolean mRunning;
+    private Sender mSender;
+
+    public SampleStreamer(StreamTransport transport) {
+        this(transport, SYSTEM_CLOCK, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param transport sends the frames
+     * @param clock the clock of the sample timestamps, for the send time of the frames
+     * @param queueCapacity number of samples buffered per source
+     */
+    public SampleStreamer(StreamTransport transport, Clock clock, int queueCapacity) {
+        mTransport = transport;
+        mClock = clock;
+        mQueueCapacity = queueCapacity;
+    }
+
+    public void setPolicy(Policy policy) {
+        mPolicy = policy;
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Sets how long the sender collects samples before it sends them. Shorter intervals mean
+     * less latency, but more and smaller frames.
+     */
+    public void setBatchMillis(long batchMillis) {
+        mBatchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+    }
+
+    /**
+     * Starts the sender thread. It opens the transport and opens it again whenever it fails.
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        mSender = new Sender();
+        mSender.start();
+    }
+
+    /**
+     * Sends the queued samples, closes the transport and stops the sender thread.
+     */
+    public void close() {
+        Sender sender;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            sender = mSender;
+        }
+        LockSupport.unpark(sender);
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a source, e.g. for a device that connected.
+     *
+     * @param name name of the source in its frames, e.g. the device address
+     */
+    public Source addSource(String name) {
+        Source source = new Source(name);
+        mSources.add(source);
+        return source;
+    }
+
+    /**
+     * Removes a source. Samples still queued in it are not sent.
+     */
+    public void removeSource(Source source) {
+        mSources.remove(source);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return true while the transport is open
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    public long getSentFrames() {
+        return mSentFrames.get();
+    }
+
+    public long getSentSamples() {
+        return mSentSamples.get();
+    }
+
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    /**
+     * @return how often the transport failed to open or to send
+     */
+    public long getFailures() {
+        return mFailures.get();
+    }
+
+    /**
+     * @return the last error of the transport, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * The samples of one device, fed from one thread at a time.
+     */
+    public class Source {
+        private final String mName;
+        private final byte[] mNameBytes;
+
+        // Single producer, single consumer ring of samples
+        private final byte[] mChannels = new byte[mQueueCapacity];
+        private final long[] mTimes = new long[mQueueCapacity];
+        private final float[] mValues = new float[mQueueCapacity];
+        private final AtomicLong mHead = new AtomicLong(); // next sample to queue, owned by the producer
+        private final AtomicLong mTail = new AtomicLong(); // next sample to send, owned by the sender
+
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mDecimated = new AtomicLong();
+
+        // Samples seen per channel while decimating, only used by the producer
+        private final int[] mDecimation = new int[256];
+
+        // Only used by the sender
+        private int mSequence;
+
+        Source(String name) {
+            byte[] bytes = name.getBytes(UTF_8);
+            if (bytes.length > MAX_NAME_LENGTH) {
+                throw new IllegalArgumentException("Source name too long: " + name);
+            }
+            mName = name;
+            mNameBytes = bytes;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * Queues a sample for sending. Never blocks and never allocates.
+         *
+         * @param channel channel of the sample, at most 255
+         * @return false if the sample was dropped or decimated
+         */
+        public boolean offer(int channel, long timeNanos, float value) {
+            long head = mHead.get();
+            long queued = head - mTail.get();
+            if (queued >= mQueueCapacity) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            if (mPolicy == Policy.DECIMATE) {
+                // Keep every 2nd sample from a quarter full, every 4th from half, every 8th from three quarters
+                int level = (int) (queued * 4 / mQueueCapacity);
+                if (level > 0 && (mDecimation[channel & 0xff]++ & ((1 << level) - 1)) != 0) {
+                    mDecimated.incrementAndGet();
+                    return false;
+                }
+            }
+            int slot = (int) (head % mQueueCapacity);
+            mChannels[slot] = (byte) channel;
+            mTimes[slot] = timeNanos;
+            mValues[slot] = value;
+            mHead.lazySet(head + 1);
+            if (queued + 1 == MAX_FRAME_SAMPLES) {
+                // A full frame, do not wait for the end of the batch interval
+                LockSupport.unpark(mSender);
+            }
+            return true;
+        }
+
+        /**
+         * @return number of samples waiting to be sent
+         */
+        public int getQueuedCount() {
+            return (int) (mHead.get() - mTail.get());
+        }
+
+        public long getDroppedCount() {
+            return mDropped.get();
+        }
+
+        public long getDecimatedCount() {
+            return mDecimated.get();
+        }
+    }
+
+    /**
+     * Moves the samples from the sources into frames and hands them to the transport.
+     */
+    private class Sender extends Thread {
+        private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+        private final ByteBuffer mBuffer = ByteBuffer.wrap(mFrame).order(ByteOrder.LITTLE_ENDIAN);
+        private long mRetryNanos;
+
+        Sender() {
+            super("SampleStreamer");
+        }
+
+        @Override
+        public void run() {
+            mRetryNanos = System.nanoTime();
+            try {
+                while (true) {
+                    boolean running = mRunning;
+                    if (!mConnected && System.nanoTime() - mRetryNanos >= 0) {
+                        connect();
+                    }
+                    if (mConnected) {
+                        try {
+                            for (Source source : mSources) {
+                                drain(source);
+                            }
+                            mTransport.poll();
+                        } catch (IOException e) {
+                            fail(e);
+                        }
+                    }
+                    if (!running) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, mBatchNanos);
+                }
+            } finally {
+                mConnected = false;
+                mTransport.close();
+            }
+        }
+
+        private void connect() {
+            try {
+                mTransport.open();
+                mConnected = true;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException e) {
+            mError = e;
+            mFailures.incrementAndGet();
+            mConnected = false;
+            mTransport.close();
+            mRetryNanos = System.nanoTime() + RETRY_NANOS;
+        }
+
+        private void drain(Source source) throws IOException {
+            long tail = source.mTail.get();
+            long head = source.mHead.get();
+            while (tail < head) {
+                int count = (int) Math.min(head - tail, MAX_FRAME_SAMPLES);
+                int length = encode(source, tail, count);
+                tail += count;
+                source.mTail.lazySet(tail);
+                mTransport.send(source.mName, mFrame, length);
+                mSentFrames.incrementAndGet();
+                mSentSamples.addAndGet(count);
+                mSentBytes.addAndGet(length);
+            }
+        }
+
+        private int encode(Source source, long tail, int count) {
+            ByteBuffer buffer = mBuffer;
+            int first = (int) (tail % mQueueCapacity);
+            long base = source.mTimes[first];
+            buffer.clear();
+            buffer.putInt(MAGIC);
+            buffer.putInt(0);
+            buffer.putInt(source.mSequence++);
+            buffer.putShort((short) VERSION);
+            buffer.putShort((short) count);
+            buffer.putLong(source.mDropped.get());
+            buffer.putLong(source.mDecimated.get());
+            buffer.putLong(mClock.nanos());
+            buffer.putLong(base);
+            buffer.put((byte) source.mNameBytes.length);
+            buffer.put(source.mNameBytes);
+
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((tail + i) % mQueueCapacity);
+                long micros = (source.mTimes[slot] - base) / 1000;
+                long delta = micros - previous;
+                previous = micros;
+                buffer.put(source.mChannels[slot]);
+                putVarint(buffer, (delta << 1) ^ (delta >> 63));
+                buffer.putFloat(source.mValues[slot]);
+            }
+            int length = buffer.position();
+            buffer.putInt(4, length);
+            return length;
+        }
+
+        private void putVarint(ByteBuffer buffer, long value) {
+            while ((value & ~0x7fL) != 0) {
+                buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+    }
+}
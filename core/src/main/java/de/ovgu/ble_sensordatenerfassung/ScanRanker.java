@@ -0,0 +1,182 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Collects the scan reports of one scan window and ranks the devices by signal strength.
+ *
+ * Every device is kept once, no matter how often it advertises. Its RSSI is smoothed with an
+ * exponential moving average, because single reports scatter by several dB. At the end of the
+ * window the strongest devices are the nearest benches, which are the ones to connect to.
+ * Reports may arrive in batches on any thread.
+ */
+public class ScanRanker {
+
+    // Weight of a new report in the smoothed RSSI
+    public final static float DEFAULT_SMOOTHING = 0.3f;
+
+    /**
+     * A device seen during the scan.
+     */
+    public static class Candidate {
+        private final String mAddress;
+        private float mSmoothedRssi;
+        private int mLastRssi;
+        private int mReports;
+        private long mFirstSeenNanos;
+        private long mLastSeenNanos;
+
+        Candidate(String address) {
+            mAddress = address;
+        }
+
+        Candidate(Candidate other) {
+            mAddress = other.mAddress;
+            mSmoothedRssi = other.mSmoothedRssi;
+            mLastRssi = other.mLastRssi;
+            mReports = other.mReports;
+            mFirstSeenNanos = other.mFirstSeenNanos;
+            mLastSeenNanos = other.mLastSeenNanos;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public float getSmoothedRssi() {
+            return mSmoothedRssi;
+        }
+
+        public int getLastRssi() {
+            return mLastRssi;
+        }
+
+        public int getReportCount() {
+            return mReports;
+        }
+
+        public long getFirstSeenNanos() {
+            return mFirstSeenNanos;
+        }
+
+        public long getLastSeenNanos() {
+            return mLastSeenNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mAddress + " " + Math.round(mSmoothedRssi) + " dBm (" + mReports + ")";
+        }
+    }
+
+    // Strongest first, ties by the earlier sighting
+    private final static Comparator<Candidate> BY_RSSI = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            int c = Float.compare(b.mSmoothedRssi, a.mSmoothedRssi);
+            if (c != 0) {
+                return c;
+            }
+            return a.mFirstSeenNanos < b.mFirstSeenNanos ? -1 : a.mFirstSeenNanos == b.mFirstSeenNanos ? 0 : 1;
+        }
+    };
+
+    private final float mSmoothing;
+    private final HashMap<String, Candidate> mCandidates = new HashMap<>();
+    private long mReports;
+
+    public ScanRanker() {
+        this(DEFAULT_SMOOTHING);
+    }
+
+    /**
+     * @param smoothing weight of a new report in the smoothed RSSI, between 0 and 1
+     */
+    public ScanRanker(float smoothing) {
+        if (smoothing <= 0 || smoothing > 1) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        mSmoothing = smoothing;
+    }
+
+    /**
+     * Adds a scan report.
+     *
+     * @param address the address of the advertising device
+     * @param rssi the signal strength of the report in dBm
+     * @param timeNanos when the report was received
+     * @return true if the device was not seen before in this window
+     */
+    public synchronized boolean onResult(String address, int rssi, long timeNanos) {
+        mReports++;
+        Candidate candidate = mCandidates.get(address);
+        boolean added = candidate == null;
+        if (added) {
+            candidate = new Candidate(address);
+            candidate.mSmoothedRssi = rssi;
+            candidate.mFirstSeenNanos = timeNanos;
+            mCandidates.put(address, candidate);
+        } else {
+            candidate.mSmoothedRssi += mSmoothing * (rssi - candidate.mSmoothedRssi);
+        }
+        candidate.mLastRssi = rssi;
+        candidate.mReports++;
+        candidate.mLastSeenNanos = timeNanos;
+        return added;
+    }
+
+    /**
+     * @return a copy of all candidates, the strongest first
+     */
+    public synchronized List<Candidate> getRanked() {
+        List<Candidate> ranked = new ArrayList<>(mCandidates.size());
+        for (Candidate candidate : mCandidates.values()) {
+            ranked.add(new Candidate(candidate));
+        }
+        Collections.sort(ranked, BY_RSSI);
+        return ranked;
+    }
+
+    /**
+     * Picks the strongest devices.
+     *
+     * @param max number of devices wanted
+     * @param minReports number of reports a device needs, so a single stray report does not win
+     * @return the addresses of at most {@code max} devices, the strongest first
+     */
+    public List<String> pickBest(int max, int minReports) {
+        List<String> best = new ArrayList<>();
+        for (Candidate candidate : getRanked()) {
+            if (best.size() >= max) {
+                break;
+            }
+            if (candidate.mReports >= minReports) {
+                best.add(candidate.mAddress);
+            }
+        }
+        return best;
+    }
+
+    public synchronized int getCandidateCount() {
+        return mCandidates.size();
+    }
+
+    /**
+     * @return number of reports received in this window, including repeated ones
+     */
+    public synchronized long getReportCount() {
+        return mReports;
+    }
+
+    /**
+     * Starts a new window.
+     */
+    public synchronized void clear() {
+        mCandidates.clear();
+        mReports = 0;
+    }
+}
@@ -0,0 +1,450 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Exports a session recorded by the {@link SessionRecorder} as CSV or in a compressed columnar
+ * format.
+ *
+ * The session is streamed row by row through a {@link SessionReader}, so memory use only
+ * depends on the chunk size, not on the length of the session. The columnar format collects
+ * {@link #CHUNK_ROWS} rows, then writes the timestamps as varint deltas followed by the raw
+ * float bits of every selected channel, all through a deflater:
+ * <pre>
+ * header, little-endian
+ *  0  int    COLUMNAR_MAGIC
+ *  4  int    COLUMNAR_VERSION
+ *  8  int    number of exported channels
+ * 12  int    mask of the exported channels in the session
+ * 16  long   wall clock time of the session start in milliseconds
+ * 24  long   monotonic time of the session start in nanoseconds
+ *
+ * chunk
+ *     int    number of rows, 0 marks the end
+ *     varint time deltas in nanoseconds, the first relative to the previous chunk
+ *     int    float bits of the first exported channel, one per row, then the next channel
+ * </pre>
+ */
+public class SessionExporter {
+
+    public final static int FORMAT_CSV = 0;
+    public final static int FORMAT_COLUMNAR = 1;
+
+    public final static int COLUMNAR_MAGIC = 0x43454c42; // "BLEC" in little-endian
+    public final static int COLUMNAR_VERSION = 1;
+    public final static int COLUMNAR_HEADER_SIZE = 32;
+    public final static int CHUNK_ROWS = 4096;
+
+    // Rows between two progress reports
+    private final static int PROGRESS_ROWS = 16384;
+
+    private final static String[] CHANNEL_NAMES = {"voltage", "current", "speed", "torque", "efficiency"};
+
+    /**
+     * Receives the progress of an export. Called on the exporting thread.
+     */
+    public interface ProgressListener {
+        /**
+         * @param fraction share of the session read so far, from 0 to 1
+         * @param exportedRows number of rows written so far
+         */
+        void onProgress(float fraction, long exportedRows);
+    }
+
+    private int mFormat = FORMAT_CSV;
+    private int mChannelMask = -1;
+    private long mFromNanos = Long.MIN_VALUE;
+    private long mToNanos = Long.MAX_VALUE;
+    private ProgressListener mProgressListener;
+
+    public SessionExporter setFormat(int format) {
+        mFormat = format;
+        return this;
+    }
+
+    /**
+     * @param channelMask bit mask of the channels to export, all by default
+     */
+    public SessionExporter setChannelMask(int channelMask) {
+        mChannelMask = channelMask;
+        return this;
+    }
+
+    /**
+     * Restricts the export to rows in {@code [fromNanos, toNanos)}, relative to the session
+     * start.
+     */
+    public SessionExporter setTimeRange(long fromNanos, long toNanos) {
+        mFromNanos = fromNanos;
+        mToNanos = toNanos;
+        return this;
+    }
+
+    public SessionExporter setProgressListener(ProgressListener listener) {
+        mProgressListener = listener;
+        return this;
+    }
+
+    /**
+     * Exports a session into a file on the given executor.
+     *
+     * @return the number of exported rows. Cancelling the future with interruption stops the
+     * export and deletes the incomplete file.
+     */
+    public Future<Long> exportAsync(ExecutorService executor, final File session, final File target) {
+        return executor.submit(new Callable<Long>() {
+            @Override
+            public Long call() throws IOException {
+                OutputStream out = new FileOutputStream(target);
+                boolean complete = false;
+                try {
+                    long rows = export(session, out);
+                    complete = true;
+                    return rows;
+                } finally {
+                    out.close();
+                    if (!complete) {
+                        target.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Exports a session into a stream. The stream is flushed but not closed.
+     *
+     * @return the number of exported rows
+     * @throws InterruptedIOException if the thread was interrupted
+     */
+    public long export(File session, OutputStream out) throws IOException {
+        SessionReader reader = new SessionReader(session);
+        reader.open();
+        int mask = mChannelMask & ((1 << reader.getChannelCount()) - 1);
+        Exporter exporter;
+        if (mFormat == FORMAT_COLUMNAR) {
+            exporter = new ColumnarExporter(reader, out, mask);
+        } else {
+            exporter = new CsvExporter(reader, out, mask);
+        }
+        try {
+            reader.read(exporter);
+        } catch (ExportException e) {
+            throw (IOException) e.getCause();
+        }
+        exporter.finish();
+        if (exporter.mInterrupted) {
+            throw new InterruptedIOException("Export cancelled");
+        }
+        if (mProgressListener != null) {
+            mProgressListener.onProgress(1f, exporter.mRows);
+        }
+        return exporter.mRows;
+    }
+
+    /**
+     * Returns the column header of a channel, or {@code "channel<n>"} for unnamed channels.
+     */
+    public static String channelName(int channel) {
+        return channel < CHANNEL_NAMES.length ? CHANNEL_NAMES[channel] : "channel" + channel;
+    }
+
+    /**
+     * Reads a file in the columnar format.
+     *
+     * @param visitor receives the rows; the values only contain the exported channels and the
+     * timestamps are on the monotonic clock of the recording
+     * @return the number of rows read
+     */
+    public static long readColumnar(InputStream in, SessionReader.RowVisitor visitor) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+        byte[] headerBytes = new byte[COLUMNAR_HEADER_SIZE];
+        data.readFully(headerBytes);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != COLUMNAR_MAGIC || header.getInt(4) != COLUMNAR_VERSION) {
+            throw new IOException("Not a columnar export");
+        }
+        int channels = header.getInt(8);
+        long time = header.getLong(24);
+        long rows = 0;
+        long[] times = new long[0];
+        float[][] columns = new float[channels][0];
+        float[] values = new float[channels];
+        byte[] bytes = new byte[0];
+        while (true) {
+            int count = Integer.reverseBytes(data.readInt());
+            if (count == 0) {
+                return rows;
+            }
+            if (count < 0 || count > CHUNK_ROWS) {
+                throw new IOException("Invalid chunk");
+            }
+            if (times.length < count) {
+                times = new long[count];
+                columns = new float[channels][count];
+                bytes = new byte[4 * count];
+            }
+            for (int r = 0; r < count; r++) {
+                time += readVarLong(data);
+                times[r] = time;
+            }
+            for (int c = 0; c < channels; c++) {
+                data.readFully(bytes, 0, 4 * count);
+                ByteBuffer column = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+                for (int r = 0; r < count; r++) {
+                    columns[c][r] = column.getFloat(4 * r);
+                }
+            }
+            for (int r = 0; r < count; r++) {
+                for (int c = 0; c < channels; c++) {
+                    values[c] = columns[c][r];
+                }
+                rows++;
+                if (!visitor.onRow(times[r], values)) {
+                    return rows;
+                }
+            }
+        }
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                // Zigzag decoding
+                return (value >>> 1) ^ -(value & 1);
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Filters the rows and reports progress, the subclasses write them.
+     */
+    private abstract class Exporter implements SessionReader.RowVisitor {
+        final SessionReader mReader;
+        final int[] mChannels;
+        final long mFrom;
+        final long mTo;
+        long mRows;
+        boolean mInterrupted;
+
+        Exporter(SessionReader reader, int mask) {
+            mReader = reader;
+            mChannels = new int[Integer.bitCount(mask)];
+            for (int channel = 0, i = 0; i < mChannels.length; channel++) {
+                if ((mask & (1 << channel)) != 0) {
+                    mChannels[i++] = channel;
+                }
+            }
+            long start = reader.getStartNanos();
+            mFrom = mFromNanos == Long.MIN_VALUE ? Long.MIN_VALUE : start + mFromNanos;
+            mTo = mToNanos == Long.MAX_VALUE ? Long.MAX_VALUE : start + mToNanos;
+        }
+
+        @Override
+        public boolean onRow(long timeNanos, float[] values) {
+            if (timeNanos < mFrom) {
+                return true;
+            }
+            if (timeNanos >= mTo) {
+                // Rows are in chronological order, nothing more to export
+                return false;
+            }
+            try {
+                write(timeNanos, values);
+            } catch (IOException e) {
+                throw new ExportException(e);
+            }
+            mRows++;
+            if (mRows % PROGRESS_ROWS == 0) {
+                if (Thread.currentThread().isInterrupted()) {
+                    mInterrupted = true;
+                    return false;
+                }
+                if (mProgressListener != null) {
+                    mProgressListener.onProgress(mReader.getProgress(), mRows);
+                }
+            }
+            return true;
+        }
+
+        abstract void write(long timeNanos, float[] values) throws IOException;
+
+        abstract void finish() throws IOException;
+    }
+
+    private class CsvExporter extends Exporter {
+        private final Writer mWriter;
+        private final StringBuilder mLine = new StringBuilder(128);
+        private char[] mChars = new char[128];
+
+        CsvExporter(SessionReader reader, OutputStream out, int mask) throws IOException {
+            super(reader, mask);
+            mWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 64 * 1024);
+            mLine.append("time_ms");
+            for (int channel : mChannels) {
+                mLine.append(',').append(channelName(channel));
+            }
+            mLine.append('\n');
+            writeLine();
+        }
+
+        @Override
+        void write(long timeNanos, float[] values) throws IOException {
+            mLine.setLength(0);
+            // Milliseconds since the session start with microsecond resolution
+            long micros = (timeNanos - mReader.getStartNanos()) / 1000;
+            if (micros < 0) {
+                mLine.append('-');
+                micros = -micros;
+            }
+            mLine.append(micros / 1000).append('.');
+            long fraction = micros % 1000;
+            if (fraction < 100) {
+                mLine.append('0');
+            }
+            if (fraction < 10) {
+                mLine.append('0');
+            }
+            mLine.append(fraction);
+            for (int channel : mChannels) {
+                // Float.toString always uses '.', independent of the locale
+                mLine.append(',').append(values[channel]);
+            }
+            mLine.append('\n');
+            writeLine();
+        }
+
+        @Override
+        void finish() throws IOException {
+            mWriter.flush();
+        }
+
+        private void writeLine() throws IOException {
+            // Writer.append(CharSequence) would create a String for every line
+            int length = mLine.length();
+            if (mChars.length < length) {
+                mChars = new char[length];
+            }
+            mLine.getChars(0, length, mChars, 0);
+            mWriter.write(mChars, 0, length);
+        }
+    }
+
+    private class ColumnarExporter extends Exporter {
+        private final DeflaterOutputStream mDeflater;
+        private final OutputStream mOut;
+        private final long[] mTimes = new long[CHUNK_ROWS];
+        private final float[] mColumns;
+        private final ByteBuffer mBuffer;
+        private int mCount;
+        private long mLastTime;
+
+        ColumnarExporter(SessionReader reader, OutputStream out, int mask) throws IOException {
+            super(reader, mask);
+            mDeflater = new DeflaterOutputStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), 64 * 1024);
+            mOut = new BufferedOutputStream(mDeflater, 64 * 1024);
+            mColumns = new float[mChannels.length * CHUNK_ROWS];
+            // Large enough for the row count and the varints of a whole chunk
+            mBuffer = ByteBuffer.allocate(4 + 10 * CHUNK_ROWS).order(ByteOrder.LITTLE_ENDIAN);
+            mLastTime = reader.getStartNanos();
+
+            mBuffer.putInt(COLUMNAR_MAGIC);
+            mBuffer.putInt(COLUMNAR_VERSION);
+            mBuffer.putInt(mChannels.length);
+            mBuffer.putInt(mask);
+            mBuffer.putLong(reader.getStartMillis());
+            mBuffer.putLong(reader.getStartNanos());
+            writeBuffer();
+        }
+
+        @Override
+        void write(long timeNanos, float[] values) throws IOException {
+            mTimes[mCount] = timeNanos;
+            for (int i = 0; i < mChannels.length; i++) {
+                mColumns[i * CHUNK_ROWS + mCount] = values[mChannels[i]];
+            }
+            mCount++;
+            if (mCount == CHUNK_ROWS) {
+                writeChunk();
+            }
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (mCount > 0) {
+                writeChunk();
+            }
+            mBuffer.putInt(0);
+            writeBuffer();
+            mOut.flush();
+            mDeflater.finish();
+            mDeflater.flush();
+        }
+
+        private void writeChunk() throws IOException {
+            mBuffer.putInt(mCount);
+            for (int r = 0; r < mCount; r++) {
+                long delta = mTimes[r] - mLastTime;
+                mLastTime = mTimes[r];
+                // Zigzag encoding keeps small negative deltas short
+                long value = (delta << 1) ^ (delta >> 63);
+                while ((value & ~0x7fL) != 0) {
+                    mBuffer.put((byte) ((value & 0x7f) | 0x80));
+                    value >>>= 7;
+                }
+                mBuffer.put((byte) value);
+            }
+            writeBuffer();
+            for (int i = 0; i < mChannels.length; i++) {
+                for (int r = 0; r < mCount; r++) {
+                    mBuffer.putFloat(mColumns[i * CHUNK_ROWS + r]);
+                }
+                writeBuffer();
+            }
+            mCount = 0;
+        }
+
+        private void writeBuffer() throws IOException {
+            mOut.write(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * Carries a write error out of the row visitor.
+     */
+    private static class ExportException extends RuntimeException {
+        private final static long serialVersionUID = 1L;
+
+        ExportException(IOException cause) {
+            super(cause);
+        }
+    }
+}
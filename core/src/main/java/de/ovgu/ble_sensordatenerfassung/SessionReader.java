@@ -0,0 +1,206 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the rows of a session written by the {@link SessionRecorder}.
+ *
+ * The segments are streamed block by block, so memory use does not depend on the length of
+ * the session. Reading stops at the first block whose checksum does not match, which is
+ * where a crashed recording ended.
+ */
+public class SessionReader {
+
+    /**
+     * Receives the rows of a session in order.
+     */
+    public interface RowVisitor {
+        /**
+         * @param timeNanos timestamp of the row
+         * @param values one value per channel, only valid during the call
+         * @return false to stop reading
+         */
+        boolean onRow(long timeNanos, float[] values);
+    }
+
+    private final File mDirectory;
+    private int mChannelCount = -1;
+    private long mStartMillis;
+    private long mStartNanos;
+    private boolean mTruncated;
+    private volatile float mProgress;
+
+    public SessionReader(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Reads the header of the first segment.
+     *
+     * @throws IOException if the session has no valid segment
+     */
+    public void open() throws IOException {
+        File first = new File(mDirectory, SessionRecorder.segmentName(0));
+        RandomAccessFile file = new RandomAccessFile(first, "r");
+        try {
+            ByteBuffer header = readHeader(file.getChannel());
+            mChannelCount = header.getInt(8);
+            mStartMillis = header.getLong(24);
+            mStartNanos = header.getLong(32);
+        } finally {
+            file.close();
+        }
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return wall clock time of the session start in milliseconds
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /**
+     * @return monotonic time of the session start, on the clock of the row timestamps
+     */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * @return true if the last read ended at a damaged block, e.g. after a crash
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * @return number of segment files of the session
+     */
+    public int getSegmentCount() {
+        int count = 0;
+        while (new File(mDirectory, SessionRecorder.segmentName(count)).isFile()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return how much of the session the running or last read has covered, from 0 to 1
+     */
+    public float getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * Visits all valid rows of the session.
+     *
+     * @param visitor receives the rows
+     * @return the number of rows visited
+     * @throws IOException if a segment cannot be read
+     */
+    public long read(RowVisitor visitor) throws IOException {
+        if (mChannelCount < 0) {
+            open();
+        }
+        mTruncated = false;
+        mProgress = 0f;
+        int segments = Math.max(1, getSegmentCount());
+        int rowSize = SessionRecorder.rowSize(mChannelCount);
+        float[] values = new float[mChannelCount];
+        CRC32 crc = new CRC32();
+        ByteBuffer block = null;
+        long rows = 0;
+
+        for (int index = 0; ; index++) {
+            File segment = new File(mDirectory, SessionRecorder.segmentName(index));
+            if (!segment.isFile()) {
+                mProgress = 1f;
+                return rows;
+            }
+            RandomAccessFile file = new RandomAccessFile(segment, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                ByteBuffer header = readHeader(channel);
+                int rowsPerBlock = header.getInt(12);
+                int blocksPerSegment = header.getInt(16);
+                int blockSize = SessionRecorder.BLOCK_HEADER_SIZE + rowsPerBlock * rowSize;
+                if (block == null || block.capacity() < blockSize) {
+                    block = ByteBuffer.allocate(blockSize).order(ByteOrder.LITTLE_ENDIAN);
+                }
+
+                for (int b = 0; b < blocksPerSegment; b++) {
+                    mProgress = (index + (float) b / blocksPerSegment) / segments;
+                    block.clear();
+                    block.limit(blockSize);
+                    long position = SessionRecorder.SEGMENT_HEADER_SIZE + (long) b * blockSize;
+                    while (block.hasRemaining()) {
+                        if (channel.read(block, position + block.position()) < 0) {
+                            break;
+                        }
+                    }
+                    int count = block.getInt(0);
+                    if (count == 0) {
+                        // End of the recording
+                        mProgress = 1f;
+                        return rows;
+                    }
+                    if (count < 0 || count > rowsPerBlock
+                            || block.position() < SessionRecorder.BLOCK_HEADER_SIZE + count * rowSize) {
+                        mTruncated = true;
+                        return rows;
+                    }
+                    crc.reset();
+                    crc.update(block.array(), SessionRecorder.BLOCK_HEADER_SIZE, count * rowSize);
+                    if ((int) crc.getValue() != block.getInt(4)) {
+                        mTruncated = true;
+                        return rows;
+                    }
+
+                    int offset = SessionRecorder.BLOCK_HEADER_SIZE;
+                    for (int r = 0; r < count; r++) {
+                        long time = block.getLong(offset);
+                        for (int c = 0; c < mChannelCount; c++) {
+                            values[c] = block.getFloat(offset + 8 + 4 * c);
+                        }
+                        offset += rowSize;
+                        rows++;
+                        if (!visitor.onRow(time, values)) {
+                            return rows;
+                        }
+                    }
+                    if (count < rowsPerBlock) {
+                        // Only the last block of a recording is partially filled
+                        mProgress = 1f;
+                        return rows;
+                    }
+                }
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    private static ByteBuffer readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SessionRecorder.SEGMENT_HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Segment header incomplete");
+            }
+        }
+        if (header.getInt(0) != SessionRecorder.MAGIC || header.getInt(4) != SessionRecorder.VERSION) {
+            throw new IOException("Not a session segment");
+        }
+        return header;
+    }
+}
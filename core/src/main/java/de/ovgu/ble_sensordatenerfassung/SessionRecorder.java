@@ -0,0 +1,373 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Records timestamped rows of all channels into memory-mapped segment files.
+ *
+ * {@link #append} only copies the row into a preallocated ring and never blocks, so it can be
+ * called from the GATT callback thread. A writer thread moves the rows into the mapped
+ * segments in batches. Every segment starts with a header, followed by blocks of a fixed
+ * number of rows:
+ * <pre>
+ * segment header, little-endian
+ *  0  int    MAGIC
+ *  4  int    VERSION
+ *  8  int    channel count
+ * 12  int    rows per block
+ * 16  int    blocks per segment
+ * 20  int    segment index
+ * 24  long   wall clock time of the session start in milliseconds
+ * 32  long   monotonic time of the session start in nanoseconds
+ *
+ * block
+ *  0  int    number of valid rows
+ *  4  int    CRC32 of the valid rows
+ *  8  rows   long timestamp in nanoseconds, then one float per channel
+ * </pre>
+ * The writer copies new rows into the block first and then updates the row count and
+ * checksum, so a block is consistent whenever its checksum matches. After a crash the
+ * {@link SessionReader} recovers everything up to the last valid block.
+ */
+public class SessionRecorder {
+
+    public final static int MAGIC = 0x53454c42; // "BLES" in little-endian
+    public final static int VERSION = 1;
+    public final static int SEGMENT_HEADER_SIZE = 40;
+    public final static int BLOCK_HEADER_SIZE = 8;
+
+    // Defaults: 256 rows per block, 1024 blocks (about 7 MB) per segment
+    public final static int DEFAULT_ROWS_PER_BLOCK = 256;
+    public final static int DEFAULT_BLOCKS_PER_SEGMENT = 1024;
+
+    // Rows buffered between the callback thread and the writer thread
+    private final static int RING_CAPACITY = 8192;
+
+    // How long the writer sleeps between batches, and how often it forces the pages to disk
+    private final static long DEFAULT_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private final static long DEFAULT_SYNC_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final File mDirectory;
+    private final int mChannelCount;
+    private final int mRowsPerBlock;
+    private final int mBlocksPerSegment;
+    private final int mRowSize;
+    private final int mBlockSize;
+    private volatile long mBatchNanos = DEFAULT_BATCH_NANOS;
+    private volatile long mSyncNanos = DEFAULT_SYNC_NANOS;
+
+    // Single producer, single consumer ring of rows
+    private final long[] mRingTimes = new long[RING_CAPACITY];
+    private final float[] mRingValues;
+    private final AtomicLong mHead = new AtomicLong(); // next row to write, owned by the producer
+    private final AtomicLong mTail = new AtomicLong(); // next row to persist, owned by the writer
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mRecorded = new AtomicLong();
+    private volatile int mSegmentCount;
+    private volatile IOException mError;
+
+    private volatile boolean mRunning;
+    private volatile boolean mSyncRequested;
+    private Writer mWriter;
+    private long mStartMillis;
+    private long mStartNanos;
+
+    /**
+     * @param directory directory of the session, created if necessary
+     * @param channelCount number of values per row
+     */
+    public SessionRecorder(File directory, int channelCount) {
+        this(directory, channelCount, DEFAULT_ROWS_PER_BLOCK, DEFAULT_BLOCKS_PER_SEGMENT);
+    }
+
+    public SessionRecorder(File directory, int channelCount, int rowsPerBlock, int blocksPerSegment) {
+        mDirectory = directory;
+        mChannelCount = channelCount;
+        mRowsPerBlock = rowsPerBlock;
+        mBlocksPerSegment = blocksPerSegment;
+        mRowSize = rowSize(channelCount);
+        mBlockSize = BLOCK_HEADER_SIZE + rowsPerBlock * mRowSize;
+        mRingValues = new float[RING_CAPACITY * channelCount];
+    }
+
+    /**
+     * @return size of one row in bytes
+     */
+    public static int rowSize(int channelCount) {
+        return 8 + 4 * channelCount;
+    }
+
+    /**
+     * Returns the file name of a segment within the session directory.
+     */
+    public static String segmentName(int index) {
+        return String.format(Locale.US, "segment-%05d.bin", index);
+    }
+
+    /**
+     * Sets how long the writer collects rows before it writes them, and how often it forces
+     * the written pages to storage. Longer intervals mean fewer wakeups.
+     */
+    public void setIntervals(long batchMillis, long syncMillis) {
+        mBatchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+        mSyncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+    }
+
+    /**
+     * Creates the first segment and starts the writer thread.
+     *
+     * @param startMillis wall clock time of the session start
+     * @param startNanos monotonic time of the session start, same clock as the row timestamps
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public synchronized void start(long startMillis, long startNanos) throws IOException {
+        if (mRunning) {
+            return;
+        }
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + mDirectory);
+        }
+        mStartMillis = startMillis;
+        mStartNanos = startNanos;
+        mWriter = new Writer();
+        mWriter.openSegment(0);
+        mRunning = true;
+        mWriter.start();
+    }
+
+    /**
+     * Queues a row for recording. Never blocks and never allocates.
+     *
+     * @param timeNanos timestamp of the row
+     * @param values one value per channel
+     * @return false if the row was dropped because the writer fell behind or is not running
+     */
+    public boolean append(long timeNanos, float[] values) {
+        if (!mRunning) {
+            return false;
+        }
+        long head = mHead.get();
+        if (head - mTail.get() >= RING_CAPACITY) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int slot = (int) (head % RING_CAPACITY);
+        mRingTimes[slot] = timeNanos;
+        System.arraycopy(values, 0, mRingValues, slot * mChannelCount, mChannelCount);
+        mHead.lazySet(head + 1);
+        if (head - mTail.get() >= RING_CAPACITY / 2) {
+            // Half full, do not wait for the end of the batch interval
+            LockSupport.unpark(mWriter);
+        }
+        return true;
+    }
+
+    /**
+     * Asks the writer to write all queued rows and force them to storage soon.
+     */
+    public void flush() {
+        mSyncRequested = true;
+        Writer writer = mWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Writes all queued rows, forces them to storage and stops the writer thread.
+     *
+     * @throws IOException the first error of the writer, if any
+     */
+    public void close() throws IOException {
+        Writer writer;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            writer = mWriter;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public long getRecordedRows() {
+        return mRecorded.get();
+    }
+
+    public long getDroppedRows() {
+        return mDropped.get();
+    }
+
+    public int getSegmentCount() {
+        return mSegmentCount;
+    }
+
+    /**
+     * @return the error that stopped the writer, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Moves rows from the ring into the mapped segments.
+     */
+    private class Writer extends Thread {
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mRowBytes;
+        private final ByteBuffer mRow;
+        private RandomAccessFile mFile;
+        private MappedByteBuffer mSegment;
+        private int mSegmentIndex;
+        private int mBlock;
+        private int mRowsInBlock;
+        private long mLastSync;
+
+        Writer() {
+            super("SessionRecorder");
+            mRowBytes = new byte[mRowSize];
+            mRow = ByteBuffer.wrap(mRowBytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        public void run() {
+            mLastSync = System.nanoTime();
+            try {
+                while (true) {
+                    boolean running = mRunning;
+                    drain();
+                    long now = System.nanoTime();
+                    if (mSyncRequested || !running || now - mLastSync >= mSyncNanos) {
+                        mSyncRequested = false;
+                        mSegment.force();
+                        mLastSync = now;
+                    }
+                    if (!running) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, mBatchNanos);
+                }
+            } catch (IOException e) {
+                mError = e;
+                mRunning = false;
+            } finally {
+                closeSegment();
+            }
+        }
+
+        private void drain() throws IOException {
+            long tail = mTail.get();
+            long head = mHead.get();
+            if (tail == head) {
+                return;
+            }
+            int blockStart = SEGMENT_HEADER_SIZE + mBlock * mBlockSize;
+            while (tail < head) {
+                int slot = (int) (tail % RING_CAPACITY);
+                mRow.clear();
+                mRow.putLong(mRingTimes[slot]);
+                for (int channel = 0; channel < mChannelCount; channel++) {
+                    mRow.putFloat(mRingValues[slot * mChannelCount + channel]);
+                }
+                tail++;
+                mTail.lazySet(tail);
+
+                // Rows first, then the header that makes them valid
+                mSegment.position(blockStart + BLOCK_HEADER_SIZE + mRowsInBlock * mRowSize);
+                mSegment.put(mRowBytes);
+                mCrc.update(mRowBytes, 0, mRowSize);
+                mRowsInBlock++;
+                mRecorded.incrementAndGet();
+
+                if (mRowsInBlock == mRowsPerBlock) {
+                    commitBlock(blockStart);
+                    nextBlock();
+                    blockStart = SEGMENT_HEADER_SIZE + mBlock * mBlockSize;
+                }
+            }
+            if (mRowsInBlock > 0) {
+                commitBlock(blockStart);
+            }
+        }
+
+        private void commitBlock(int blockStart) {
+            mSegment.putInt(blockStart + 4, (int) mCrc.getValue());
+            mSegment.putInt(blockStart, mRowsInBlock);
+        }
+
+        private void nextBlock() throws IOException {
+            mRowsInBlock = 0;
+            mCrc.reset();
+            mBlock++;
+            if (mBlock == mBlocksPerSegment) {
+                mSegment.force();
+                closeSegment();
+                openSegment(mSegmentIndex + 1);
+            }
+        }
+
+        void openSegment(int index) throws IOException {
+            File file = new File(mDirectory, segmentName(index));
+            long size = SEGMENT_HEADER_SIZE + (long) mBlocksPerSegment * mBlockSize;
+            mFile = new RandomAccessFile(file, "rw");
+            mFile.setLength(size);
+            mSegment = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            mSegment.order(ByteOrder.LITTLE_ENDIAN);
+            mSegment.putInt(0, MAGIC);
+            mSegment.putInt(4, VERSION);
+            mSegment.putInt(8, mChannelCount);
+            mSegment.putInt(12, mRowsPerBlock);
+            mSegment.putInt(16, mBlocksPerSegment);
+            mSegment.putInt(20, index);
+            mSegment.putLong(24, mStartMillis);
+            mSegment.putLong(32, mStartNanos);
+            mSegmentIndex = index;
+            mBlock = 0;
+            mRowsInBlock = 0;
+            mCrc.reset();
+            mSegmentCount = index + 1;
+        }
+
+        private void closeSegment() {
+            if (mFile == null) {
+                return;
+            }
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                if (mError == null) {
+                    mError = e;
+                }
+            }
+            mFile = null;
+        }
+    }
+}
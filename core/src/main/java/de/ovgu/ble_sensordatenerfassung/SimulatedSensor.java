@@ -0,0 +1,765 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A sensor of the test bench in software, for load and soak tests without the bench.
+ *
+ * It shows the measurement service with the five channel characteristics and, optionally,
+ * the packed frame characteristic, and behaves like a connection on the Android stack: one
+ * request at a time, results and notifications on a thread of its own, notifications only
+ * once their CCCD is written, subscriptions lost with the connection and services kept
+ * across reconnects. While subscribed it samples a {@link Signal} at the configured rate,
+ * up to several kHz, and sends the values at the next connection event, after an extra
+ * latency and a random jitter. Notifications can be lost at random, and connections drop at
+ * random if a mean time between disconnects is set.
+ *
+ * Sending allocates nothing, so what is measured at high rates is the receiving side. If the
+ * receiver falls behind by more than the buffer, rows are dropped like a full radio buffer
+ * does, and counted.
+ */
+public class SimulatedSensor implements GattConnection {
+
+    /**
+     * The values of all channels over time. Only called from the thread of the sensor.
+     */
+    public interface Signal {
+        /**
+         * @param seconds time since the sensor was created
+         * @param values receives the value of every channel
+         */
+        void sample(double seconds, float[] values);
+    }
+
+    /**
+     * A motor on the test bench whose load steps between two torques. Speed droops with the
+     * torque, current and efficiency follow from the powers, and every channel has a little
+     * Gaussian noise.
+     */
+    public static class TestBench implements Signal {
+
+        // The load steps every STEP_SECONDS and settles with time constant TAU_SECONDS
+        private final static double STEP_SECONDS = 10;
+        private final static double TAU_SECONDS = 0.5;
+        private final static double LOW_TORQUE = 0.2;
+        private final static double HIGH_TORQUE = 0.8;
+
+        private final static double SUPPLY_VOLTAGE = 12;
+        private final static double RESISTANCE = 0.05;
+        private final static double NO_LOAD_SPEED = 1800;
+        private final static double DROOP = 300;
+        private final static double RPM_TO_RAD_PER_SECOND = 2 * Math.PI / 60;
+
+        // Standard deviation of the noise per channel
+        private final static float[] NOISE = {0.02f, 0.05f, 2f, 0.005f, 0.2f};
+
+        private final Random mNoise;
+
+        public TestBench(long seed) {
+            mNoise = new Random(seed);
+        }
+
+        @Override
+        public void sample(double seconds, float[] values) {
+            long step = (long) (seconds / STEP_SECONDS);
+            double target = (step & 1) == 0 ? LOW_TORQUE : HIGH_TORQUE;
+            double previous = step == 0 ? 0 : (step & 1) == 0 ? HIGH_TORQUE : LOW_TORQUE;
+            double torque = target + (previous - target) * Math.exp(-(seconds - step * STEP_SECONDS) / TAU_SECONDS);
+            double speed = NO_LOAD_SPEED - DROOP * torque;
+            double outputPower = torque * speed * RPM_TO_RAD_PER_SECOND;
+            // Copper losses grow with the load, friction is always there
+            double efficiency = 0.9 - 0.1 * (torque - 0.5) * (torque - 0.5) - 2 / (outputPower + 20);
+            double current = outputPower / efficiency / SUPPLY_VOLTAGE;
+            values[SampleDecoder.CHANNEL_VOLTAGE] = (float) (SUPPLY_VOLTAGE - RESISTANCE * current);
+            values[SampleDecoder.CHANNEL_CURRENT] = (float) current;
+            values[SampleDecoder.CHANNEL_SPEED] = (float) speed;
+            values[SampleDecoder.CHANNEL_TORQUE] = (float) torque;
+            values[SampleDecoder.CHANNEL_EFFICIENCY] = (float) (100 * efficiency);
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                values[channel] += NOISE[channel] * (float) mNoise.nextGaussian();
+            }
+        }
+    }
+
+    public final static float DEFAULT_RATE = 100;
+    public final static int DEFAULT_MTU = 23;
+    public final static int DEFAULT_MAX_MTU = 247;
+    public final static long DEFAULT_CONNECT_MILLIS = 300;
+    public final static long DEFAULT_DISCOVERY_MILLIS = 600;
+    // Rows the radio buffers before it drops the oldest ones
+    public final static int DEFAULT_BUFFER_ROWS = 256;
+
+    // Connection intervals of the link profiles, like Android chooses them
+    private final static long HIGH_INTERVAL_NANOS = 15000000L;
+    private final static long BALANCED_INTERVAL_NANOS = 45000000L;
+    private final static long LOW_POWER_INTERVAL_NANOS = 120000000L;
+
+    private final static UUID CCCD = UUID.fromString(MeasurementProfile.CCCD);
+    private final static UUID FRAME_UUID = UUID.fromString(MeasurementProfile.FRAME);
+    private final static SampleDecoder DECODER = MeasurementProfile.newDecoder();
+
+    // Bit of the frame characteristic in the notification masks
+    private final static int FRAME_BIT = 1 << SampleDecoder.CHANNEL_COUNT;
+    private final static int ALL_CHANNELS = (1 << SampleDecoder.CHANNEL_COUNT) - 1;
+
+    // No event scheduled
+    private final static long NONE = Long.MAX_VALUE;
+
+    // Requests, one at a time like on Android
+    private final static int REQUEST_NONE = 0;
+    private final static int REQUEST_READ = 1;
+    private final static int REQUEST_WRITE_DESCRIPTOR = 2;
+    private final static int REQUEST_MTU = 3;
+
+    // What the thread of the sensor does next
+    private final static int EVENT_DISCONNECTED = 0;
+    private final static int EVENT_CONNECTED = 1;
+    private final static int EVENT_DISCOVERED = 2;
+    private final static int EVENT_REQUEST = 3;
+    private final static int EVENT_ROW = 4;
+
+    private final String mAddress;
+    private final Signal mSignal;
+    private final long mStartNanos = System.nanoTime();
+    private volatile Callback mCallback;
+
+    // Configuration
+    private volatile long mIntervalNanos = (long) (1e9 / DEFAULT_RATE);
+    private volatile long mLatencyNanos;
+    private volatile long mJitterNanos;
+    private volatile float mLossRate;
+    private volatile long mMeanMillisBetweenDisconnects;
+    private volatile long mConnectNanos = DEFAULT_CONNECT_MILLIS * 1000000L;
+    private volatile long mDiscoveryNanos = DEFAULT_DISCOVERY_MILLIS * 1000000L;
+    private volatile long mConnectionIntervalNanos = BALANCED_INTERVAL_NANOS;
+    private volatile int mBufferRows = DEFAULT_BUFFER_ROWS;
+    private volatile int mNotifyingChannels = ALL_CHANNELS;
+    private volatile boolean mFrameSupported;
+    private volatile int mMaxMtu = DEFAULT_MAX_MTU;
+
+    // Connection state, guarded by this
+    private Thread mThread;
+    private boolean mClosed;
+    private boolean mConnected;
+    private boolean mServiceKnown;
+    private long mConnectedNanos;
+    private long mConnectDue = NONE;
+    private long mDisconnectDue = NONE;
+    private long mDropDue = NONE;
+    private long mDiscoveryDue = NONE;
+    private int mLocalNotifications;
+    private int mSubscriptions;
+    private int mMtu = DEFAULT_MTU;
+
+    // The running request, guarded by this
+    private int mRequestType = REQUEST_NONE;
+    private long mRequestDue = NONE;
+    private UUID mRequestCharacteristic;
+    private int mRequestBit;
+    private boolean mRequestEnable;
+    private int mRequestMtu;
+
+    // Streaming, guarded by this
+    private long mNextSampleNanos;
+    private long mNextDeliveryNanos = NONE;
+    private long mLastDeliveryNanos;
+    private long mSequence;
+    private int mFrameRows;
+    private byte[] mFrame = new byte[0];
+
+    // Only used by the thread of the sensor
+    private final Random mRandom;
+    private final float[] mValues = new float[SampleDecoder.CHANNEL_COUNT];
+    private final byte[][] mChannelValues = new byte[SampleDecoder.CHANNEL_COUNT][4];
+    private final byte[] mReadValue = new byte[4];
+
+    // Statistics, only written by the thread of the sensor
+    private volatile long mSampleNanos;
+    private volatile long mRows;
+    private volatile long mSent;
+    private volatile long mLost;
+    private volatile long mOverflows;
+    private volatile long mDrops;
+
+    /**
+     * @param address the address the sensor reports
+     * @param signal the values it sends
+     * @param seed makes jitter, loss and disconnects repeatable
+     */
+    public SimulatedSensor(String address, Signal signal, long seed) {
+        mAddress = address;
+        mSignal = signal;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * A sensor on the {@link TestBench}, seeded from the address.
+     */
+    public SimulatedSensor(String address) {
+        this(address, new TestBench(address.hashCode()), address.hashCode());
+    }
+
+    /**
+     * @param rowsPerSecond how often all channels are sampled and sent
+     */
+    public void setRate(float rowsPerSecond) {
+        if (!(rowsPerSecond > 0)) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        mIntervalNanos = Math.max(1, (long) (1e9 / rowsPerSecond));
+    }
+
+    public float getRate() {
+        return 1e9f / mIntervalNanos;
+    }
+
+    /**
+     * @param nanos time a notification or request takes in addition to the connection events
+     */
+    public void setLatency(long nanos) {
+        mLatencyNanos = nanos;
+    }
+
+    /**
+     * @param nanos largest random delay added to every notification, evenly distributed
+     */
+    public void setJitter(long nanos) {
+        mJitterNanos = nanos;
+    }
+
+    /**
+     * @param rate probability that a notification is lost, between 0 and 1
+     */
+    public void setLossRate(float rate) {
+        mLossRate = rate;
+    }
+
+    /**
+     * @param millis mean time between random disconnects, exponentially distributed, 0 for none
+     */
+    public void setMeanTimeBetweenDisconnects(long millis) {
+        mMeanMillisBetweenDisconnects = millis;
+    }
+
+    public void setConnectDelay(long millis) {
+        mConnectNanos = millis * 1000000L;
+    }
+
+    public void setDiscoveryDelay(long millis) {
+        mDiscoveryNanos = millis * 1000000L;
+    }
+
+    /**
+     * Notifications are only sent at connection events, which come this far apart. Set by
+     * {@link #setLinkProfile}, 0 sends them as soon as they are due.
+     */
+    public void setConnectionInterval(long nanos) {
+        mConnectionIntervalNanos = nanos;
+    }
+
+    /**
+     * @param rows rows that may wait for the receiver before the oldest are dropped
+     */
+    public void setBufferRows(int rows) {
+        mBufferRows = rows;
+    }
+
+    /**
+     * Chooses which channels can notify, the others can only be read. Applies to the next
+     * discovery.
+     *
+     * @param mask a bit per channel
+     */
+    public void setNotifyingChannels(int mask) {
+        mNotifyingChannels = mask & ALL_CHANNELS;
+    }
+
+    /**
+     * Adds the packed frame characteristic of the newer firmware. Applies to the next
+     * discovery.
+     */
+    public void setFrameSupported(boolean supported) {
+        mFrameSupported = supported;
+    }
+
+    public void setMaxMtu(int mtu) {
+        mMaxMtu = mtu;
+    }
+
+    /**
+     * Drops the connection now, as if the sensor went out of range.
+     */
+    public synchronized void dropConnection() {
+        if (mConnected) {
+            mDropDue = System.nanoTime();
+            wake();
+        }
+    }
+
+    /**
+     * @return when the value being delivered was sampled, on the {@link System#nanoTime}
+     * clock. Only valid during a callback.
+     */
+    public long getSampleNanos() {
+        return mSampleNanos;
+    }
+
+    /**
+     * @return rows sampled while subscribed
+     */
+    public long getRowCount() {
+        return mRows;
+    }
+
+    /**
+     * @return notifications delivered to the callback
+     */
+    public long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * @return notifications lost on purpose, see {@link #setLossRate}
+     */
+    public long getLostCount() {
+        return mLost;
+    }
+
+    /**
+     * @return rows dropped because the receiver fell behind by more than the buffer
+     */
+    public long getOverflowCount() {
+        return mOverflows;
+    }
+
+    /**
+     * @return connections dropped at random or by {@link #dropConnection}
+     */
+    public long getDropCount() {
+        return mDrops;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public synchronized boolean connect() {
+        if (mClosed) {
+            return false;
+        }
+        if (mConnected || mConnectDue != NONE) {
+            return true;
+        }
+        mConnectDue = System.nanoTime() + mConnectNanos;
+        if (mThread == null) {
+            mThread = new Thread(mLoop, "SimulatedSensor " + mAddress);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+        wake();
+        return true;
+    }
+
+    /**
+     * A simulated sensor is always in range, so this is the same as {@link #connect()}.
+     */
+    @Override
+    public boolean connectInBackground() {
+        return connect();
+    }
+
+    @Override
+    public synchronized void disconnect() {
+        long now = System.nanoTime();
+        if (mConnectDue != NONE) {
+            // A cancelled connect is reported as a disconnect
+            mConnectDue = NONE;
+            mDisconnectDue = now;
+        } else if (mConnected) {
+            mDisconnectDue = now + mLatencyNanos;
+        }
+        wake();
+    }
+
+    @Override
+    public synchronized void close() {
+        mClosed = true;
+        mConnected = false;
+        wake();
+    }
+
+    @Override
+    public synchronized boolean discoverServices() {
+        if (!mConnected || mDiscoveryDue != NONE) {
+            return false;
+        }
+        mDiscoveryDue = System.nanoTime() + mDiscoveryNanos;
+        wake();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean hasService() {
+        return mServiceKnown;
+    }
+
+    @Override
+    public synchronized int getProperties(UUID characteristic) {
+        if (!mServiceKnown) {
+            return 0;
+        }
+        int channel = DECODER.channelOf(characteristic);
+        if (channel != SampleDecoder.NO_CHANNEL) {
+            return PROPERTY_READ | ((mNotifyingChannels & 1 << channel) != 0 ? PROPERTY_NOTIFY : 0);
+        }
+        return mFrameSupported && FRAME_UUID.equals(characteristic) ? PROPERTY_NOTIFY : 0;
+    }
+
+    @Override
+    public boolean hasDescriptor(UUID characteristic, UUID descriptor) {
+        return CCCD.equals(descriptor) && (getProperties(characteristic) & PROPERTY_NOTIFY) != 0;
+    }
+
+    @Override
+    public synchronized boolean setCharacteristicNotification(UUID characteristic, boolean enable) {
+        if ((getProperties(characteristic) & PROPERTY_NOTIFY) == 0) {
+            return false;
+        }
+        int bit = bitOf(characteristic);
+        mLocalNotifications = enable ? mLocalNotifications | bit : mLocalNotifications & ~bit;
+        return true;
+    }
+
+    /**
+     * Uses the connection interval Android chooses for the priority of the profile.
+     */
+    @Override
+    public void setLinkProfile(LinkProfile profile) {
+        switch (profile.getConnectionPriority()) {
+            case LinkProfile.PRIORITY_HIGH:
+                mConnectionIntervalNanos = HIGH_INTERVAL_NANOS;
+                break;
+            case LinkProfile.PRIORITY_LOW_POWER:
+                mConnectionIntervalNanos = LOW_POWER_INTERVAL_NANOS;
+                break;
+            default:
+                mConnectionIntervalNanos = BALANCED_INTERVAL_NANOS;
+        }
+    }
+
+    @Override
+    public synchronized boolean readCharacteristic(UUID characteristic) {
+        if ((getProperties(characteristic) & PROPERTY_READ) == 0 || !startRequest(REQUEST_READ)) {
+            return false;
+        }
+        mRequestCharacteristic = characteristic;
+        return true;
+    }
+
+    /**
+     * The sensor has no writable characteristics.
+     */
+    @Override
+    public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+        if (!hasDescriptor(characteristic, descriptor) || !startRequest(REQUEST_WRITE_DESCRIPTOR)) {
+            return false;
+        }
+        mRequestCharacteristic = characteristic;
+        mRequestBit = bitOf(characteristic);
+        mRequestEnable = value != null && value.length > 0 && (value[0] & 1) != 0;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean requestMtu(int mtu) {
+        if (!startRequest(REQUEST_MTU)) {
+            return false;
+        }
+        mRequestMtu = mtu;
+        return true;
+    }
+
+    private int bitOf(UUID characteristic) {
+        int channel = DECODER.channelOf(characteristic);
+        return channel == SampleDecoder.NO_CHANNEL ? FRAME_BIT : 1 << channel;
+    }
+
+    /**
+     * Takes the request slot, the answer takes a round trip. Must hold the lock.
+     */
+    private boolean startRequest(int type) {
+        if (!mConnected || mRequestType != REQUEST_NONE) {
+            return false;
+        }
+        mRequestType = type;
+        mRequestDue = System.nanoTime() + 2 * mLatencyNanos;
+        wake();
+        return true;
+    }
+
+    private void wake() {
+        if (mThread != null) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private final Runnable mLoop = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                long next;
+                synchronized (SimulatedSensor.this) {
+                    if (mClosed) {
+                        mThread = null;
+                        return;
+                    }
+                    next = Math.min(Math.min(Math.min(mConnectDue, mDisconnectDue), Math.min(mDropDue, mDiscoveryDue)),
+                            Math.min(mRequestDue, mNextDeliveryNanos));
+                }
+                if (next == NONE) {
+                    LockSupport.park(SimulatedSensor.this);
+                    continue;
+                }
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(SimulatedSensor.this, wait);
+                    continue;
+                }
+                runEvent(System.nanoTime());
+            }
+        }
+    };
+
+    /**
+     * Runs the most important event that is due. The callbacks are called without the lock.
+     */
+    private void runEvent(long now) {
+        int event;
+        int request = REQUEST_NONE;
+        UUID characteristic = null;
+        int mtu = 0;
+        int channels = 0;
+        boolean frame = false;
+        long sampleNanos = 0;
+        synchronized (this) {
+            if (mDisconnectDue <= now || mDropDue <= now) {
+                if (mDropDue <= now && mConnected) {
+                    mDrops++;
+                }
+                boolean wasConnected = mConnected || mDisconnectDue <= now;
+                onLinkLost();
+                if (!wasConnected) {
+                    return;
+                }
+                event = EVENT_DISCONNECTED;
+            } else if (mConnectDue <= now) {
+                mConnectDue = NONE;
+                mConnected = true;
+                mConnectedNanos = now;
+                mMtu = DEFAULT_MTU;
+                mSubscriptions = 0;
+                long mean = mMeanMillisBetweenDisconnects;
+                mDropDue = mean > 0
+                        ? now + (long) (-Math.log(1 - mRandom.nextDouble()) * mean * 1000000L) : NONE;
+                event = EVENT_CONNECTED;
+            } else if (mDiscoveryDue <= now) {
+                mDiscoveryDue = NONE;
+                mServiceKnown = true;
+                event = EVENT_DISCOVERED;
+            } else if (mRequestDue <= now) {
+                request = mRequestType;
+                characteristic = mRequestCharacteristic;
+                mRequestType = REQUEST_NONE;
+                mRequestDue = NONE;
+                if (request == REQUEST_MTU) {
+                    mMtu = Math.max(DEFAULT_MTU, Math.min(mRequestMtu, mMaxMtu));
+                    mtu = mMtu;
+                    mFrameRows = 0;
+                    mFrame = new byte[FrameDecoder.rowsPerNotification(mtu) * FrameDecoder.ROW_SIZE];
+                } else if (request == REQUEST_WRITE_DESCRIPTOR) {
+                    boolean streaming = mSubscriptions != 0;
+                    mSubscriptions = mRequestEnable ? mSubscriptions | mRequestBit : mSubscriptions & ~mRequestBit;
+                    if (!streaming && mSubscriptions != 0) {
+                        mNextSampleNanos = now;
+                        mLastDeliveryNanos = now;
+                        mNextDeliveryNanos = planDelivery(now);
+                    } else if (mSubscriptions == 0) {
+                        mNextDeliveryNanos = NONE;
+                    }
+                }
+                event = EVENT_REQUEST;
+            } else if (mNextDeliveryNanos <= now) {
+                sampleNanos = mNextSampleNanos;
+                mNextSampleNanos += mIntervalNanos;
+                long late = now - mNextDeliveryNanos;
+                mNextDeliveryNanos = planDelivery(mNextSampleNanos);
+                mRows++;
+                if (late > mBufferRows * mIntervalNanos) {
+                    // The receiver is too slow, the radio buffer is full
+                    mOverflows++;
+                    mSequence++;
+                    return;
+                }
+                channels = mSubscriptions & mLocalNotifications & ALL_CHANNELS;
+                frame = (mSubscriptions & mLocalNotifications & FRAME_BIT) != 0 && mFrame.length > 0;
+                event = EVENT_ROW;
+            } else {
+                return;
+            }
+        }
+
+        Callback callback = mCallback;
+        if (callback == null) {
+            return;
+        }
+        switch (event) {
+            case EVENT_DISCONNECTED:
+                callback.onConnectionStateChange(this, false);
+                break;
+            case EVENT_CONNECTED:
+                callback.onConnectionStateChange(this, true);
+                break;
+            case EVENT_DISCOVERED:
+                callback.onServicesDiscovered(this, true);
+                break;
+            case EVENT_REQUEST:
+                if (request == REQUEST_READ) {
+                    mSignal.sample((now - mStartNanos) / 1e9, mValues);
+                    writeFloat(mReadValue, 0, mValues[DECODER.channelOf(characteristic)]);
+                    mSampleNanos = now;
+                    callback.onCharacteristicRead(this, characteristic, mReadValue, true);
+                } else if (request == REQUEST_WRITE_DESCRIPTOR) {
+                    callback.onDescriptorWrite(this, characteristic, CCCD, true);
+                } else if (request == REQUEST_MTU) {
+                    callback.onMtuChanged(this, mtu, true);
+                }
+                break;
+            default:
+                sendRow(callback, sampleNanos, channels, frame);
+        }
+    }
+
+    /**
+     * Forgets everything that belongs to a connection. Must hold the lock.
+     */
+    private void onLinkLost() {
+        mConnected = false;
+        mConnectDue = NONE;
+        mDisconnectDue = NONE;
+        mDropDue = NONE;
+        mDiscoveryDue = NONE;
+        mRequestType = REQUEST_NONE;
+        mRequestDue = NONE;
+        mSubscriptions = 0;
+        mNextDeliveryNanos = NONE;
+        mFrameRows = 0;
+    }
+
+    /**
+     * @return when a row sampled at the given time reaches the receiver: at the next
+     * connection event after the latency and jitter, never before the row before it
+     */
+    private long planDelivery(long sampleNanos) {
+        long due = sampleNanos + mLatencyNanos;
+        long jitter = mJitterNanos;
+        if (jitter > 0) {
+            due += (long) (mRandom.nextDouble() * jitter);
+        }
+        long interval = mConnectionIntervalNanos;
+        if (interval > 0) {
+            long events = (due - mConnectedNanos + interval - 1) / interval;
+            due = mConnectedNanos + Math.max(0, events) * interval;
+        }
+        due = Math.max(due, mLastDeliveryNanos);
+        mLastDeliveryNanos = due;
+        return due;
+    }
+
+    /**
+     * Samples the signal and sends the subscribed channels and frames. Runs without the lock.
+     */
+    private void sendRow(Callback callback, long sampleNanos, int channels, boolean frame) {
+        mSignal.sample((sampleNanos - mStartNanos) / 1e9, mValues);
+        mSampleNanos = sampleNanos;
+        for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+            if ((channels & 1 << channel) == 0) {
+                continue;
+            }
+            if (isLost()) {
+                continue;
+            }
+            byte[] value = mChannelValues[channel];
+            writeFloat(value, 0, mValues[channel]);
+            mSent++;
+            callback.onCharacteristicChanged(this, DECODER.uuidOf(channel), value);
+        }
+        if (!frame) {
+            return;
+        }
+        byte[] value;
+        synchronized (this) {
+            value = mFrame;
+            int offset = mFrameRows * FrameDecoder.ROW_SIZE;
+            writeUInt32(value, offset, mSequence++);
+            writeUInt32(value, offset + 4, (sampleNanos - mStartNanos) / 1000);
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                writeFloat(value, offset + 8 + 4 * channel, mValues[channel]);
+            }
+            if (++mFrameRows * FrameDecoder.ROW_SIZE < value.length) {
+                return;
+            }
+            mFrameRows = 0;
+        }
+        if (!isLost()) {
+            mSent++;
+            callback.onCharacteristicChanged(this, FRAME_UUID, value);
+        }
+    }
+
+    private boolean isLost() {
+        float loss = mLossRate;
+        if (loss > 0 && mRandom.nextFloat() < loss) {
+            mLost++;
+            return true;
+        }
+        return false;
+    }
+
+    private static void writeFloat(byte[] value, int offset, float f) {
+        writeUInt32(value, offset, Float.floatToIntBits(f));
+    }
+
+    private static void writeUInt32(byte[] value, int offset, long bits) {
+        value[offset] = (byte) bits;
+        value[offset + 1] = (byte) (bits >> 8);
+        value[offset + 2] = (byte) (bits >> 16);
+        value[offset + 3] = (byte) (bits >> 24);
+    }
+
+    @Override
+    public String toString() {
+        return mAddress + " " + getRate() + "/s";
+    }
+}
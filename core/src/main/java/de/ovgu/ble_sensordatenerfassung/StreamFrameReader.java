@@ -0,0 +1,174 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Decodes the frames of a {@link SampleStreamer}, on the receiving side, e.g. a lab PC.
+ *
+ * Frames can be read one after the other from the stream of a {@link TcpStreamServer}, or
+ * decoded from single messages, e.g. MQTT payloads. The header fields of the last frame stay
+ * available until the next one is read.
+ */
+public class StreamFrameReader {
+
+    /**
+     * Receives the samples of a frame in order.
+     */
+    public interface SampleVisitor {
+        void onSample(int channel, long timeNanos, float value);
+    }
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final byte[] mFrame = new byte[SampleStreamer.MAX_FRAME_SIZE];
+    private final byte[] mNameBytes = new byte[SampleStreamer.MAX_NAME_LENGTH];
+    private int mNameLength = -1;
+    private String mSource;
+    private int mSequence;
+    private int mSampleCount;
+    private long mDropped;
+    private long mDecimated;
+    private long mSendNanos;
+
+    /**
+     * Reads the next frame from a stream of frames.
+     *
+     * @return the number of samples in the frame, -1 at the end of the stream
+     * @throws IOException if the stream cannot be read or does not hold frames
+     */
+    public int readFrom(InputStream in, SampleVisitor visitor) throws IOException {
+        int read = 0;
+        while (read < 8) {
+            int n = in.read(mFrame, read, 8 - read);
+            if (n < 0) {
+                if (read == 0) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            read += n;
+        }
+        ByteBuffer header = ByteBuffer.wrap(mFrame, 0, 8).order(ByteOrder.LITTLE_ENDIAN);
+        int length = header.getInt(4);
+        if (header.getInt(0) != SampleStreamer.MAGIC || length < SampleStreamer.HEADER_SIZE + 1
+                || length > mFrame.length) {
+            throw new IOException("Not a sample frame");
+        }
+        while (read < length) {
+            int n = in.read(mFrame, read, length - read);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            read += n;
+        }
+        return read(mFrame, 0, length, visitor);
+    }
+
+    /**
+     * Decodes a single frame.
+     *
+     * @return the number of samples in the frame
+     * @throws IOException if the bytes are not a complete frame
+     */
+    public int read(byte[] frame, int offset, int length, SampleVisitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(frame, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != SampleStreamer.MAGIC || buffer.getInt() != length) {
+                throw new IOException("Not a sample frame");
+            }
+            mSequence = buffer.getInt();
+            int version = buffer.getShort();
+            if (version != SampleStreamer.VERSION) {
+                throw new IOException("Unsupported frame version " + version);
+            }
+            mSampleCount = buffer.getShort() & 0xffff;
+            mDropped = buffer.getLong();
+            mDecimated = buffer.getLong();
+            mSendNanos = buffer.getLong();
+            long base = buffer.getLong();
+            readSource(buffer);
+
+            long micros = 0;
+            for (int i = 0; i < mSampleCount; i++) {
+                int channel = buffer.get() & 0xff;
+                long delta = readVarint(buffer);
+                micros += (delta >>> 1) ^ -(delta & 1);
+                visitor.onSample(channel, base + micros * 1000, buffer.getFloat());
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Incomplete sample frame");
+        }
+        return mSampleCount;
+    }
+
+    private void readSource(ByteBuffer buffer) {
+        int length = buffer.get() & 0xff;
+        int start = buffer.position();
+        boolean same = length == mNameLength;
+        for (int i = 0; same && i < length; i++) {
+            same = buffer.get(start + i) == mNameBytes[i];
+        }
+        if (!same) {
+            buffer.get(mNameBytes, 0, length);
+            mNameLength = length;
+            mSource = new String(Arrays.copyOf(mNameBytes, length), UTF_8);
+        } else {
+            buffer.position(start + length);
+        }
+    }
+
+    private static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Damaged varint");
+    }
+
+    /**
+     * @return the source of the last frame, e.g. the device address
+     */
+    public String getSource() {
+        return mSource;
+    }
+
+    public int getSequence() {
+        return mSequence;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return samples of the source dropped by the sender before the last frame
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * @return samples of the source decimated by the sender before the last frame
+     */
+    public long getDecimatedCount() {
+        return mDecimated;
+    }
+
+    /**
+     * @return time the last frame was sent, on the clock of the samples
+     */
+    public long getSendNanos() {
+        return mSendNanos;
+    }
+}
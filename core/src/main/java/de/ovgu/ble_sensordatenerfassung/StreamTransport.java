@@ -0,0 +1,36 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.IOException;
+
+/**
+ * Carries the frames of a {@link SampleStreamer} to the network, e.g. to the clients of a
+ * {@link TcpStreamServer} or to the broker of an {@link MqttPublisher}.
+ *
+ * All methods are called on the sender thread of the streamer only.
+ */
+public interface StreamTransport {
+
+    /**
+     * Connects or binds. Called again after the transport failed.
+     */
+    void open() throws IOException;
+
+    /**
+     * Sends a frame. May block, the queues of the streamer take the backpressure.
+     *
+     * @param source name of the source the frame belongs to, e.g. the device address
+     * @param frame the encoded frame, only valid during the call
+     * @param length length of the frame
+     */
+    void send(String source, byte[] frame, int length) throws IOException;
+
+    /**
+     * Does the work between frames, e.g. accepting clients or keeping the connection alive.
+     */
+    void poll() throws IOException;
+
+    /**
+     * Releases the connection. May be called when the transport is not open.
+     */
+    void close();
+}
@@ -0,0 +1,174 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serves the frames of a {@link SampleStreamer} to any number of TCP clients on the local
+ * network, e.g. {@code nc phone 5050 > bench.frames} on a lab PC.
+ *
+ * Clients only receive: every frame goes to every client, one after the other without any
+ * framing beyond the length in the frame header. The sockets are non-blocking and every client
+ * has a buffer of its own. A client that does not read fast enough loses whole frames once its
+ * buffer is full, which is counted; it never holds up the other clients or the sender.
+ */
+public class TcpStreamServer implements StreamTransport {
+
+    public final static int DEFAULT_PORT = 5050;
+
+    // Frames a client may fall behind by, about 40000 samples
+    private final static int CLIENT_BUFFER_SIZE = 256 * 1024;
+
+    private final int mPort;
+    private ServerSocketChannel mServer;
+    private volatile int mBoundPort = -1;
+
+    // Only used by the sender thread of the streamer
+    private final List<Client> mClients = new ArrayList<>();
+    private final ByteBuffer mDiscard = ByteBuffer.allocate(256);
+
+    private volatile int mClientCount;
+    private volatile long mDroppedFrames;
+
+    /**
+     * @param port the port to listen on, 0 for any free port
+     */
+    public TcpStreamServer(int port) {
+        mPort = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(mPort));
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        mServer = server;
+        mBoundPort = server.socket().getLocalPort();
+    }
+
+    @Override
+    public void send(String source, byte[] frame, int length) {
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            if (client.mPending.remaining() < length) {
+                client.mDroppedFrames++;
+                mDroppedFrames++;
+                continue;
+            }
+            client.mPending.put(frame, 0, length);
+            write(i, client);
+        }
+    }
+
+    @Override
+    public void poll() throws IOException {
+        SocketChannel channel;
+        while ((channel = mServer.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            mClients.add(new Client(channel));
+        }
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            Client client = mClients.get(i);
+            if (!write(i, client)) {
+                continue;
+            }
+            // Nothing is expected from the clients, reading only notices those that left
+            try {
+                mDiscard.clear();
+                if (client.mChannel.read(mDiscard) < 0) {
+                    remove(i);
+                }
+            } catch (IOException e) {
+                remove(i);
+            }
+        }
+        mClientCount = mClients.size();
+    }
+
+    /**
+     * Writes as much of the buffer of a client as its socket takes.
+     *
+     * @return false if the client was removed
+     */
+    private boolean write(int index, Client client) {
+        ByteBuffer pending = client.mPending;
+        if (pending.position() == 0) {
+            return true;
+        }
+        pending.flip();
+        try {
+            client.mChannel.write(pending);
+        } catch (IOException e) {
+            remove(index);
+            return false;
+        } finally {
+            pending.compact();
+        }
+        return true;
+    }
+
+    private void remove(int index) {
+        Client client = mClients.remove(index);
+        try {
+            client.mChannel.close();
+        } catch (IOException e) {
+            // Gone anyway
+        }
+        mClientCount = mClients.size();
+    }
+
+    @Override
+    public void close() {
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            remove(i);
+        }
+        if (mServer != null) {
+            try {
+                mServer.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+            mServer = null;
+        }
+    }
+
+    /**
+     * @return the port the server listens on, -1 before it was opened
+     */
+    public int getPort() {
+        return mBoundPort;
+    }
+
+    public int getClientCount() {
+        return mClientCount;
+    }
+
+    /**
+     * @return frames not sent to a client because it fell behind
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    private static class Client {
+        final SocketChannel mChannel;
+        final ByteBuffer mPending = ByteBuffer.allocateDirect(CLIENT_BUFFER_SIZE);
+        long mDroppedFrames;
+
+        Client(SocketChannel channel) {
+            mChannel = channel;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+
+/**
+ * Reads the events of a trace written by the {@link TraceRecorder}.
+ *
+ * The trace is streamed, so memory use does not depend on its length. Values are handed out
+ * in arrays of their exact length that are reused for every event of that length, so reading
+ * does not allocate once all lengths have been seen. Reading stops at the first incomplete
+ * record, which is where a crashed recording ended.
+ */
+public class TraceReader {
+
+    /**
+     * Receives the events of a trace in order.
+     */
+    public interface EventVisitor {
+        /**
+         * @param type one of the event types of the {@link TraceRecorder}
+         * @param characteristic the characteristic of a notification or read, otherwise null
+         * @param value the raw value of a notification or read, only valid during the call
+         * @param timeNanos time of the event
+         * @return false to stop reading
+         */
+        boolean onEvent(int type, UUID characteristic, byte[] value, long timeNanos);
+    }
+
+    private final static int BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private final UUID[] mCharacteristics = new UUID[TraceRecorder.MAX_CHARACTERISTICS];
+    private final byte[][] mValues = new byte[TraceRecorder.MAX_VALUE_LENGTH + 1][];
+    private long mStartMillis;
+    private long mStartNanos;
+    private boolean mTruncated;
+
+    public TraceReader(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the header.
+     *
+     * @throws IOException if the file is not a trace
+     */
+    public void open() throws IOException {
+        InputStream in = new FileInputStream(mFile);
+        try {
+            readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return wall clock time of the trace start in milliseconds
+     */
+    public long getStartMillis() {
+        return mStartMillis;
+    }
+
+    /**
+     * @return monotonic time of the trace start, on the clock of the event times
+     */
+    public long getStartNanos() {
+        return mStartNanos;
+    }
+
+    /**
+     * @return true if the last read ended at an incomplete record, e.g. after a crash
+     */
+    public boolean isTruncated() {
+        return mTruncated;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Visits all complete events of the trace.
+     *
+     * @param visitor receives the events
+     * @return the number of events visited
+     * @throws IOException if the file cannot be read or holds an unknown record
+     */
+    public long read(EventVisitor visitor) throws IOException {
+        mTruncated = false;
+        InputStream in = new BufferedInputStream(new FileInputStream(mFile), BUFFER_SIZE);
+        long events = 0;
+        try {
+            readHeader(in);
+            long time = mStartNanos;
+            while (true) {
+                int type = in.read();
+                if (type < 0) {
+                    return events;
+                }
+                if (type == TraceRecorder.EVENT_CHARACTERISTIC) {
+                    int index = readByte(in);
+                    mCharacteristics[index] = new UUID(readLong(in), readLong(in));
+                    continue;
+                }
+                long delta = readVarint(in);
+                time += (delta >>> 1) ^ -(delta & 1);
+                UUID characteristic = null;
+                byte[] value = null;
+                if (type == TraceRecorder.EVENT_NOTIFICATION || type == TraceRecorder.EVENT_READ) {
+                    characteristic = mCharacteristics[readByte(in)];
+                    int length = (int) readVarint(in);
+                    if (characteristic == null || length > TraceRecorder.MAX_VALUE_LENGTH) {
+                        throw new IOException("Damaged record in " + mFile);
+                    }
+                    value = valueOfLength(length);
+                    readFully(in, value);
+                } else if (type < TraceRecorder.EVENT_CONNECTED || type > TraceRecorder.EVENT_RESET) {
+                    throw new IOException("Unknown event " + type + " in " + mFile);
+                }
+                events++;
+                if (!visitor.onEvent(type, characteristic, value, time)) {
+                    return events;
+                }
+            }
+        } catch (EOFException e) {
+            mTruncated = true;
+            return events;
+        } finally {
+            in.close();
+        }
+    }
+
+    private void readHeader(InputStream in) throws IOException {
+        byte[] bytes = new byte[TraceRecorder.HEADER_SIZE];
+        readFully(in, bytes);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getInt(0) != TraceRecorder.MAGIC) {
+            throw new IOException("Not a trace: " + mFile);
+        }
+        if (header.getInt(4) != TraceRecorder.VERSION) {
+            throw new IOException("Unsupported trace version " + header.getInt(4));
+        }
+        mStartMillis = header.getLong(8);
+        mStartNanos = header.getLong(16);
+    }
+
+    private byte[] valueOfLength(int length) {
+        byte[] value = mValues[length];
+        if (value == null) {
+            value = new byte[length];
+            mValues[length] = value;
+        }
+        return value;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException();
+        }
+        return b;
+    }
+
+    private static long readLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value |= (long) readByte(in) << (8 * i);
+        }
+        return value;
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(in);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Damaged varint");
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            int read = in.read(bytes, offset, bytes.length - offset);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the raw GATT events of one device into a compact binary trace, so that a glitch
+ * seen on the bench can be replayed later with the {@link TraceReplayer}.
+ *
+ * Like the {@link SessionRecorder}, the event methods only encode into a preallocated ring and
+ * never block or allocate, so they can be called from the GATT callback thread. A writer
+ * thread appends the ring to the file in batches. The trace is a header followed by records:
+ * <pre>
+ * header, little-endian
+ *  0  int    MAGIC
+ *  4  int    VERSION
+ *  8  long   wall clock time of the trace start in milliseconds
+ * 16  long   monotonic time of the trace start in nanoseconds
+ *
+ * record, starting with its event type
+ *  EVENT_CHARACTERISTIC   byte index, long most and long least significant bits of the UUID
+ *  EVENT_NOTIFICATION,
+ *  EVENT_READ             varint time, byte index, varint length, value
+ *  EVENT_CONNECTED,
+ *  EVENT_DISCONNECTED,
+ *  EVENT_RESET            varint time
+ * </pre>
+ * Times are zigzag varints relative to the previous event, so a notification of a float
+ * channel usually takes 9 bytes. A characteristic is defined the first time it shows up and
+ * referred to by its index afterwards. A crash loses at most the last batch, the
+ * {@link TraceReader} stops at the first incomplete record.
+ */
+public class TraceRecorder {
+
+    public final static int MAGIC = 0x54454c42; // "BLET" in little-endian
+    public final static int VERSION = 1;
+    public final static int HEADER_SIZE = 24;
+
+    // Event types, the first byte of every record
+    public final static int EVENT_CHARACTERISTIC = 1;
+    public final static int EVENT_NOTIFICATION = 2;
+    public final static int EVENT_READ = 3;
+    public final static int EVENT_CONNECTED = 4;
+    public final static int EVENT_DISCONNECTED = 5;
+    public final static int EVENT_RESET = 6;
+
+    // Largest attribute value allowed by the Bluetooth specification
+    public final static int MAX_VALUE_LENGTH = 512;
+    public final static int MAX_CHARACTERISTICS = 256;
+
+    // Bytes buffered between the callback thread and the writer, a power of two
+    private final static int RING_CAPACITY = 1 << 20;
+    private final static int RING_MASK = RING_CAPACITY - 1;
+
+    // Longest encoding of a record: definition, type, time, index, length and value
+    private final static int MAX_RECORD_SIZE = 18 + 1 + 10 + 1 + 2 + MAX_VALUE_LENGTH;
+
+    private final static long DEFAULT_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final File mFile;
+    private volatile long mBatchNanos = DEFAULT_BATCH_NANOS;
+
+    // Single producer, single consumer ring of encoded records
+    private final byte[] mRing = new byte[RING_CAPACITY];
+    private final AtomicLong mHead = new AtomicLong(); // next byte to write, owned by the producer
+    private final AtomicLong mTail = new AtomicLong(); // next byte to persist, owned by the writer
+
+    // Characteristics defined so far, only used by the producer
+    private final UUID[] mCharacteristics = new UUID[MAX_CHARACTERISTICS];
+    private int mCharacteristicCount;
+    private long mLastTime;
+
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mRecorded = new AtomicLong();
+    private volatile long mBytesWritten;
+    private volatile IOException mError;
+
+    private volatile boolean mRunning;
+    private Writer mWriter;
+
+    public TraceRecorder(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Sets how long the writer collects events before it appends them to the file.
+     */
+    public void setBatchMillis(long batchMillis) {
+        mBatchNanos = TimeUnit.MILLISECONDS.toNanos(batchMillis);
+    }
+
+    /**
+     * Creates the trace file and starts the writer thread.
+     *
+     * @param startMillis wall clock time of the trace start
+     * @param startNanos monotonic time of the trace start, same clock as the event times
+     * @throws IOException if the file cannot be created
+     */
+    public synchronized void start(long startMillis, long startNanos) throws IOException {
+        if (mRunning) {
+            return;
+        }
+        File parent = mFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(startMillis).putLong(startNanos);
+            out.write(header.array());
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        mLastTime = startNanos;
+        mBytesWritten = HEADER_SIZE;
+        mWriter = new Writer(out);
+        mRunning = true;
+        mWriter.start();
+    }
+
+    /**
+     * Records a notification. Never blocks and never allocates.
+     *
+     * @return false if the event was dropped because the writer fell behind or is not running
+     */
+    public boolean onNotification(UUID characteristic, byte[] value, long timeNanos) {
+        return appendValue(EVENT_NOTIFICATION, characteristic, value, timeNanos);
+    }
+
+    /**
+     * Records the value of a successful read. Never blocks and never allocates.
+     */
+    public boolean onRead(UUID characteristic, byte[] value, long timeNanos) {
+        return appendValue(EVENT_READ, characteristic, value, timeNanos);
+    }
+
+    /**
+     * Records a connect or disconnect.
+     */
+    public boolean onConnectionStateChange(boolean connected, long timeNanos) {
+        return appendEvent(connected ? EVENT_CONNECTED : EVENT_DISCONNECTED, timeNanos);
+    }
+
+    /**
+     * Records that the acquisition started over, see {@link DeviceAcquisition#reset()}.
+     */
+    public boolean onReset(long timeNanos) {
+        return appendEvent(EVENT_RESET, timeNanos);
+    }
+
+    private boolean appendEvent(int type, long timeNanos) {
+        if (!mRunning) {
+            return false;
+        }
+        long head = mHead.get();
+        if (head + MAX_RECORD_SIZE - mTail.get() > RING_CAPACITY) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        head = put(head, type);
+        head = putTime(head, timeNanos);
+        return publish(head);
+    }
+
+    private boolean appendValue(int type, UUID characteristic, byte[] value, long timeNanos) {
+        if (!mRunning) {
+            return false;
+        }
+        int length = value == null ? 0 : value.length;
+        long head = mHead.get();
+        if (length > MAX_VALUE_LENGTH || head + MAX_RECORD_SIZE - mTail.get() > RING_CAPACITY) {
+            mDropped.incrementAndGet();
+            return false;
+        }
+        int index = indexOf(characteristic);
+        if (index < 0) {
+            if (mCharacteristicCount == MAX_CHARACTERISTICS) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            index = mCharacteristicCount++;
+            mCharacteristics[index] = characteristic;
+            head = put(head, EVENT_CHARACTERISTIC);
+            head = put(head, index);
+            head = putLong(head, characteristic.getMostSignificantBits());
+            head = putLong(head, characteristic.getLeastSignificantBits());
+        }
+        head = put(head, type);
+        head = putTime(head, timeNanos);
+        head = put(head, index);
+        head = putVarint(head, length);
+        for (int i = 0; i < length; i++) {
+            head = put(head, value[i]);
+        }
+        return publish(head);
+    }
+
+    private int indexOf(UUID characteristic) {
+        for (int index = 0; index < mCharacteristicCount; index++) {
+            if (mCharacteristics[index].equals(characteristic)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private boolean publish(long head) {
+        mHead.lazySet(head);
+        mRecorded.incrementAndGet();
+        if (head - mTail.get() >= RING_CAPACITY / 2) {
+            // Half full, do not wait for the end of the batch interval
+            LockSupport.unpark(mWriter);
+        }
+        return true;
+    }
+
+    private long put(long head, int b) {
+        mRing[(int) head & RING_MASK] = (byte) b;
+        return head + 1;
+    }
+
+    private long putLong(long head, long value) {
+        for (int i = 0; i < 8; i++) {
+            head = put(head, (int) (value >>> (8 * i)));
+        }
+        return head;
+    }
+
+    private long putTime(long head, long timeNanos) {
+        long delta = timeNanos - mLastTime;
+        mLastTime = timeNanos;
+        return putVarint(head, (delta << 1) ^ (delta >> 63));
+    }
+
+    private long putVarint(long head, long value) {
+        while ((value & ~0x7fL) != 0) {
+            head = put(head, (int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        return put(head, (int) value);
+    }
+
+    /**
+     * Asks the writer to append all queued events soon.
+     */
+    public void flush() {
+        Writer writer = mWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Writes all queued events, closes the file and stops the writer thread.
+     *
+     * @throws IOException the first error of the writer, if any
+     */
+    public void close() throws IOException {
+        Writer writer;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            writer = mWriter;
+        }
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return number of events recorded, not counting the characteristic definitions
+     */
+    public long getRecordedEvents() {
+        return mRecorded.get();
+    }
+
+    public long getDroppedEvents() {
+        return mDropped.get();
+    }
+
+    /**
+     * @return size of the trace written so far in bytes
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * @return the error that stopped the writer, or null
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Appends the ring to the file.
+     */
+    private class Writer extends Thread {
+        private final FileOutputStream mOut;
+
+        Writer(FileOutputStream out) {
+            super("TraceRecorder");
+            mOut = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    boolean running = mRunning;
+                    drain();
+                    if (!running) {
+                        mOut.getFD().sync();
+                        break;
+                    }
+                    LockSupport.parkNanos(this, mBatchNanos);
+                }
+            } catch (IOException e) {
+                mError = e;
+                mRunning = false;
+            } finally {
+                try {
+                    mOut.close();
+                } catch (IOException e) {
+                    if (mError == null) {
+                        mError = e;
+                    }
+                }
+            }
+        }
+
+        private void drain() throws IOException {
+            long tail = mTail.get();
+            long head = mHead.get();
+            while (tail < head) {
+                int from = (int) tail & RING_MASK;
+                int length = (int) Math.min(head - tail, RING_CAPACITY - from);
+                mOut.write(mRing, from, length);
+                tail += length;
+                mTail.lazySet(tail);
+                mBytesWritten += length;
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feeds a recorded trace through the decoding, storage and derived metrics of a
+ * {@link DeviceAcquisition}, the same way the service feeds the live GATT events.
+ *
+ * The values keep their recorded arrival times, so replaying a trace twice gives the same
+ * history and metrics no matter how fast it runs. At speed 1 the events are paced like on the
+ * bench, at {@link #MAX_SPEED} they follow each other without pause, which makes a trace a
+ * throughput benchmark of the pipeline.
+ */
+public class TraceReplayer {
+
+    public final static float REAL_TIME = 1f;
+    public final static float MAX_SPEED = 0f;
+
+    private final static UUID FRAME_UUID = UUID.fromString(MeasurementProfile.FRAME);
+
+    // Below this the replay does not park but spins, parking is too coarse
+    private final static long SPIN_NANOS = 50000;
+
+    private final TraceReader mReader;
+    private volatile float mSpeed = REAL_TIME;
+    private volatile boolean mStopped;
+
+    private DeviceAcquisition mAcquisition;
+    private long mFirstEventNanos;
+    private long mReplayStartNanos;
+    private long mValueCount;
+    private long mResetCount;
+
+    public TraceReplayer(TraceReader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Sets the speed of the replay relative to the recording, {@link #MAX_SPEED} to replay as
+     * fast as possible.
+     */
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    /**
+     * Stops a running replay after the current event.
+     */
+    public void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * Replays the trace into an acquisition on the calling thread. Notifications and reads go
+     * through {@link DeviceAcquisition#onValue} or {@link DeviceAcquisition#onFrame}, recorded
+     * resets through {@link DeviceAcquisition#reset()}.
+     *
+     * @return the number of values replayed
+     * @throws IOException if the trace cannot be read
+     */
+    public long replay(DeviceAcquisition acquisition) throws IOException {
+        mAcquisition = acquisition;
+        mStopped = false;
+        mValueCount = 0;
+        mResetCount = 0;
+        mFirstEventNanos = Long.MIN_VALUE;
+        mReplayStartNanos = System.nanoTime();
+        try {
+            mReader.read(mVisitor);
+        } finally {
+            mAcquisition = null;
+        }
+        return mValueCount;
+    }
+
+    /**
+     * @return number of notifications and reads of the last replay
+     */
+    public long getValueCount() {
+        return mValueCount;
+    }
+
+    /**
+     * @return number of resets of the last replay, one per new connection on the bench
+     */
+    public long getResetCount() {
+        return mResetCount;
+    }
+
+    private final TraceReader.EventVisitor mVisitor = new TraceReader.EventVisitor() {
+        @Override
+        public boolean onEvent(int type, UUID characteristic, byte[] value, long timeNanos) {
+            if (mStopped) {
+                return false;
+            }
+            pace(timeNanos);
+            switch (type) {
+                case TraceRecorder.EVENT_NOTIFICATION:
+                case TraceRecorder.EVENT_READ:
+                    if (FRAME_UUID.equals(characteristic)) {
+                        mAcquisition.onFrame(value, timeNanos);
+                    } else {
+                        mAcquisition.onValue(characteristic, value, timeNanos);
+                    }
+                    mValueCount++;
+                    break;
+                case TraceRecorder.EVENT_RESET:
+                    mAcquisition.reset();
+                    mResetCount++;
+                    break;
+                default:
+                    // Connection changes are only kept for diagnosis
+                    break;
+            }
+            return true;
+        }
+    };
+
+    /**
+     * Waits until an event is due at the current speed.
+     */
+    private void pace(long timeNanos) {
+        if (mFirstEventNanos == Long.MIN_VALUE) {
+            mFirstEventNanos = timeNanos;
+            return;
+        }
+        float speed = mSpeed;
+        if (speed <= MAX_SPEED) {
+            return;
+        }
+        long due = mReplayStartNanos + (long) ((timeNanos - mFirstEventNanos) / speed);
+        while (!mStopped) {
+            long wait = due - System.nanoTime();
+            if (wait <= 0) {
+                return;
+            }
+            if (wait > SPIN_NANOS) {
+                LockSupport.parkNanos(this, wait - SPIN_NANOS);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Folds many "value changed" events into few display refreshes.
+ *
+ * The GATT callback marks the channel of every new sample. Only the first mark after a refresh
+ * asks for a new refresh to be scheduled; all following marks are absorbed until the refresh
+ * runs and takes the set of changed channels. The refresh side decides how often that is, e.g.
+ * once per display frame.
+ */
+public class UpdateCoalescer {
+
+    // Bit mask of the channels that changed since the last refresh
+    private final AtomicInteger mChanged = new AtomicInteger();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final AtomicLong mRequested = new AtomicLong();
+    private final AtomicLong mDelivered = new AtomicLong();
+
+    /**
+     * Marks a channel as changed.
+     *
+     * @param channel the channel that received a new value, less than 32
+     * @return true if the caller has to schedule a refresh, false if one is already pending
+     */
+    public boolean markChanged(int channel) {
+        mRequested.incrementAndGet();
+        int bit = 1 << channel;
+        int changed;
+        do {
+            changed = mChanged.get();
+        } while ((changed & bit) == 0 && !mChanged.compareAndSet(changed, changed | bit));
+        return mScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Takes the channels that changed since the last refresh. Called by the refresh itself.
+     *
+     * @return bit mask of the changed channels, 0 if there is nothing to show
+     */
+    public int takeChanged() {
+        // Allow new requests first, so a mark racing with this call schedules another refresh
+        mScheduled.set(false);
+        int changed = mChanged.getAndSet(0);
+        if (changed != 0) {
+            mDelivered.incrementAndGet();
+        }
+        return changed;
+    }
+
+    /**
+     * @return number of change events marked so far
+     */
+    public long getRequestedCount() {
+        return mRequested.get();
+    }
+
+    /**
+     * @return number of refreshes that were actually delivered
+     */
+    public long getDeliveredCount() {
+        return mDelivered.get();
+    }
+
+    /**
+     * @return number of change events that were absorbed into another refresh
+     */
+    public long getCoalescedCount() {
+        return Math.max(0, mRequested.get() - mDelivered.get());
+    }
+}
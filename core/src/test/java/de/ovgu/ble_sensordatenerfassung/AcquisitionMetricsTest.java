@@ -0,0 +1,84 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the acquisition metrics.
+ */
+public class AcquisitionMetricsTest {
+
+    // 100 notifications per second
+    private final static long INTERVAL = 10000000L;
+
+    private AcquisitionMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mMetrics = new AcquisitionMetrics();
+    }
+
+    @Test
+    public void measuresRateAndJitter() {
+        long time = 0;
+        for (int i = 0; i < 200; i++) {
+            // Every other notification is 1 ms late
+            mMetrics.onNotification(SampleDecoder.CHANNEL_SPEED, time + (i % 2) * 1000000L, 2000);
+            time += INTERVAL;
+        }
+        AcquisitionMetrics.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(200, snapshot.getNotificationCount(SampleDecoder.CHANNEL_SPEED));
+        assertEquals(0, snapshot.getNotificationCount(SampleDecoder.CHANNEL_VOLTAGE));
+        assertEquals(100f, snapshot.getRate(SampleDecoder.CHANNEL_SPEED), 2f);
+        assertEquals(100f, snapshot.getAverageRate(SampleDecoder.CHANNEL_SPEED), 1f);
+        assertEquals(0, snapshot.getGapCount(SampleDecoder.CHANNEL_SPEED));
+        assertEquals(1000000L, snapshot.getJitterP50Nanos(SampleDecoder.CHANNEL_SPEED), 150000);
+        assertEquals(2000, snapshot.getDecodeP50Nanos(), 250);
+        assertEquals(200, mMetrics.getDecodeTime().getCount());
+    }
+
+    @Test
+    public void detectsGaps() {
+        long time = 0;
+        for (int i = 0; i < 20; i++) {
+            mMetrics.onNotification(AcquisitionMetrics.FRAME, time, 0);
+            time += INTERVAL;
+        }
+        // Five notifications lost
+        time += 5 * INTERVAL;
+        for (int i = 0; i < 20; i++) {
+            mMetrics.onNotification(AcquisitionMetrics.FRAME, time, 0);
+            time += INTERVAL;
+        }
+        assertEquals(1, mMetrics.getGapCount(AcquisitionMetrics.FRAME));
+        // The gap does not change the usual interval
+        assertEquals(INTERVAL, mMetrics.getIntervalNanos(AcquisitionMetrics.FRAME));
+
+        mMetrics.onStall(SampleDecoder.CHANNEL_TORQUE);
+        assertEquals(1, mMetrics.getStallCount(SampleDecoder.CHANNEL_TORQUE));
+        assertTrue(mMetrics.snapshot().toString().startsWith("3 0/s"));
+
+        mMetrics.reset();
+        assertEquals(0, mMetrics.getGapCount(AcquisitionMetrics.FRAME));
+        assertEquals(0, mMetrics.getNotificationCount(AcquisitionMetrics.FRAME));
+    }
+
+    @Test
+    public void measuresLatencyToDisplay() {
+        // Only the oldest value before a refresh counts
+        mMetrics.onPending(1000);
+        mMetrics.onPending(5000);
+        mMetrics.onDisplayed(9000);
+        // Nothing new, nothing to measure
+        mMetrics.onDisplayed(20000);
+        mMetrics.onPending(30000);
+        mMetrics.onDisplayed(31000);
+
+        LatencyHistogram latency = mMetrics.getUiLatency();
+        assertEquals(2, latency.getCount());
+        assertEquals(8000, latency.getMaxNanos());
+        assertEquals(4500, latency.getMeanNanos());
+    }
+}
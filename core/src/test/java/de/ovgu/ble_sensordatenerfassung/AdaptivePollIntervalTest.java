@@ -0,0 +1,39 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the adaptive polling interval.
+ */
+public class AdaptivePollIntervalTest {
+
+    @Test
+    public void steadyValuesStretchTheInterval() {
+        AdaptivePollInterval interval = new AdaptivePollInterval(50, 1000);
+        long last = interval.getIntervalMillis();
+        for (int i = 0; i < 5; i++) {
+            long next = interval.onPoll(false);
+            assertTrue(next > last);
+            last = next;
+        }
+        for (int i = 0; i < 20; i++) {
+            interval.onPoll(false);
+        }
+        assertEquals(1000, interval.getIntervalMillis());
+    }
+
+    @Test
+    public void changingValuesShortenTheInterval() {
+        AdaptivePollInterval interval = new AdaptivePollInterval(50, 1000);
+        for (int i = 0; i < 20; i++) {
+            interval.onPoll(false);
+        }
+        assertEquals(500, interval.onPoll(true));
+        for (int i = 0; i < 10; i++) {
+            interval.onPoll(true);
+        }
+        assertEquals(50, interval.getIntervalMillis());
+    }
+}
@@ -0,0 +1,83 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the compressed history.
+ */
+public class CompressedHistoryTest {
+
+    @Test
+    public void blockRoundTripsIrregularSamples() {
+        Random random = new Random(42);
+        CompressedBlock.Encoder encoder = new CompressedBlock.Encoder();
+        long[] times = new long[2000];
+        float[] values = new float[2000];
+        long time = 5000000000L;
+        for (int i = 0; i < times.length; i++) {
+            // Jittered 10 ms interval with an occasional gap of seconds
+            time += 10000000L + random.nextInt(2000000) - 1000000 + (i % 500 == 0 ? 3000000000L : 0);
+            times[i] = time;
+            values[i] = i % 100 == 0 ? -12f : 12f + random.nextInt(50) * 0.01f;
+        }
+        values[7] = Float.NaN;
+        for (int i = 0; i < times.length; i++) {
+            encoder.append(times[i], values[i]);
+        }
+        CompressedBlock block = encoder.seal();
+        assertEquals(times.length, block.getCount());
+        assertEquals(times[times.length - 1], block.getLastTime());
+        assertNull(encoder.seal());
+
+        long[] decodedTimes = new long[times.length];
+        float[] decodedValues = new float[times.length];
+        assertEquals(times.length, block.decode(Long.MIN_VALUE, Long.MAX_VALUE, decodedTimes, decodedValues, 0));
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i] / 1000 * 1000, decodedTimes[i]);
+            assertEquals(Float.floatToRawIntBits(values[i]), Float.floatToRawIntBits(decodedValues[i]));
+        }
+    }
+
+    @Test
+    public void readsWindowsAcrossBlocks() {
+        CompressedHistory history = new CompressedHistory(2, 100, Long.MAX_VALUE);
+        for (int i = 0; i < 1050; i++) {
+            history.append(1, i * 1000000L, i);
+        }
+        // The last 50 samples are still in the open block
+        assertEquals(1000, history.getSampleCount());
+        assertEquals(999000000L, history.getSealedUntil(1));
+        assertEquals(Long.MIN_VALUE, history.getSealedUntil(0));
+
+        long[] times = new long[500];
+        float[] values = new float[500];
+        int n = history.readRange(1, 150000000L, 420000000L, times, values, 0);
+        assertEquals(270, n);
+        assertEquals(150f, values[0], 0f);
+        assertEquals(419000000L, times[n - 1]);
+
+        // Limited by the array
+        assertEquals(500, history.readRange(1, 0, Long.MAX_VALUE, times, values, 0));
+
+        history.sealAll();
+        assertEquals(1050, history.getSampleCount());
+    }
+
+    @Test
+    public void dropsOldestBlocksOverBudget() {
+        CompressedHistory history = new CompressedHistory(1, 100, 4096);
+        for (int i = 0; i < 100000; i++) {
+            history.append(0, i * 1000000L, (i * 7919) % 1000);
+        }
+        assertTrue(history.getCompressedBytes() <= 4096);
+        assertTrue(history.getDroppedBlockCount() > 0);
+        assertEquals(history.getSealedUntil(0), 99999000000L);
+
+        float[] values = new float[100];
+        assertEquals(0, history.readRange(0, 0, history.getOldestTime(0), null, values, 0));
+    }
+}
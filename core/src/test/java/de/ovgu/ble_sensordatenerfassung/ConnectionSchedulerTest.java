@@ -0,0 +1,150 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for scheduling the connects and discoveries of several devices.
+ */
+public class ConnectionSchedulerTest {
+
+    // Records the started and failed steps and accepts them unless told otherwise
+    private static class Recorder implements ConnectionScheduler.Callback {
+        final List<String> mStarted = new ArrayList<>();
+        final List<String> mFailed = new ArrayList<>();
+        boolean mAccept = true;
+
+        @Override
+        public boolean onStart(String address, int step) {
+            mStarted.add(address + " " + step);
+            return mAccept;
+        }
+
+        @Override
+        public void onFailed(String address, int step) {
+            mFailed.add(address + " " + step);
+        }
+    }
+
+    // Keeps the timeout task so the test can fire it
+    private static class ManualScheduler implements GattOperationQueue.Scheduler {
+        Runnable mTask;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mTask = task;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            if (mTask == task) {
+                mTask = null;
+            }
+        }
+    }
+
+    private Recorder mRecorder;
+    private ManualScheduler mScheduler;
+    private ConnectionScheduler mConnections;
+
+    @Before
+    public void setUp() {
+        mRecorder = new Recorder();
+        mScheduler = new ManualScheduler();
+        mConnections = new ConnectionScheduler(mRecorder, mScheduler);
+        mConnections.setTimeout(0);
+    }
+
+    @Test
+    public void runsOneStepAtATime() {
+        mConnections.enqueue("A", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("B", ConnectionScheduler.STEP_CONNECT);
+        assertEquals("A", mConnections.getRunningAddress());
+        assertEquals(1, mConnections.getQueueDepth());
+        assertEquals(1, mRecorder.mStarted.size());
+
+        mConnections.complete("A", ConnectionScheduler.STEP_CONNECT, true);
+        assertEquals("B", mConnections.getRunningAddress());
+        mConnections.complete("B", ConnectionScheduler.STEP_CONNECT, true);
+        assertTrue(mConnections.isIdle());
+        assertEquals(2, mConnections.getCompletedCount(ConnectionScheduler.STEP_CONNECT));
+        assertNull(mScheduler.mTask);
+    }
+
+    @Test
+    public void discoveryWaitsBehindOtherDevices() {
+        mConnections.enqueue("A", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("B", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("C", ConnectionScheduler.STEP_CONNECT);
+        // A connected and wants to discover, B and C connect first
+        mConnections.complete("A", ConnectionScheduler.STEP_CONNECT, true);
+        mConnections.enqueue("A", ConnectionScheduler.STEP_DISCOVER);
+        mConnections.complete("B", ConnectionScheduler.STEP_CONNECT, true);
+        mConnections.enqueue("B", ConnectionScheduler.STEP_DISCOVER);
+        mConnections.complete("C", ConnectionScheduler.STEP_CONNECT, true);
+        mConnections.complete("A", ConnectionScheduler.STEP_DISCOVER, true);
+
+        assertEquals(5, mRecorder.mStarted.size());
+        assertEquals("A 0", mRecorder.mStarted.get(0));
+        assertEquals("B 0", mRecorder.mStarted.get(1));
+        assertEquals("C 0", mRecorder.mStarted.get(2));
+        assertEquals("A 1", mRecorder.mStarted.get(3));
+        assertEquals("B 1", mRecorder.mStarted.get(4));
+    }
+
+    @Test
+    public void deviceWaitsOnlyOnce() {
+        mConnections.enqueue("A", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("B", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("C", ConnectionScheduler.STEP_CONNECT);
+        // B asks again and keeps its place instead of being queued twice
+        mConnections.enqueue("B", ConnectionScheduler.STEP_DISCOVER);
+        assertEquals(2, mConnections.getQueueDepth());
+
+        mConnections.complete("A", ConnectionScheduler.STEP_CONNECT, true);
+        assertEquals("B 1", mRecorder.mStarted.get(1));
+    }
+
+    @Test
+    public void timeoutFreesTheRadio() {
+        mConnections.enqueue("A", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("B", ConnectionScheduler.STEP_CONNECT);
+        mScheduler.mTask.run();
+
+        assertEquals(1, mConnections.getTimeoutCount());
+        assertEquals("[A 0]", mRecorder.mFailed.toString());
+        assertEquals("B", mConnections.getRunningAddress());
+
+        // The late result of A is ignored
+        mConnections.complete("A", ConnectionScheduler.STEP_CONNECT, true);
+        assertEquals("B", mConnections.getRunningAddress());
+        assertEquals(0, mConnections.getCompletedCount(ConnectionScheduler.STEP_CONNECT));
+    }
+
+    @Test
+    public void refusedStepMovesOn() {
+        mRecorder.mAccept = false;
+        mConnections.enqueue("A", ConnectionScheduler.STEP_CONNECT);
+        assertTrue(mConnections.isIdle());
+        assertEquals("[A 0]", mRecorder.mFailed.toString());
+        assertEquals(1, mConnections.getFailedCount(ConnectionScheduler.STEP_CONNECT));
+    }
+
+    @Test
+    public void cancelRemovesWaitingAndRunningSteps() {
+        mConnections.enqueue("A", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("B", ConnectionScheduler.STEP_CONNECT);
+        mConnections.enqueue("C", ConnectionScheduler.STEP_CONNECT);
+        mConnections.cancel("B");
+        mConnections.cancel("A");
+
+        assertEquals("C", mConnections.getRunningAddress());
+        assertEquals(0, mConnections.getQueueDepth());
+        assertTrue(mRecorder.mFailed.isEmpty());
+    }
+}
@@ -0,0 +1,135 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.ovgu.ble_sensordatenerfassung.ConnectionStateMachine.State;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the connection state machine.
+ */
+public class ConnectionStateMachineTest {
+
+    private ConnectionStateMachine mMachine;
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mMachine = new ConnectionStateMachine("test", State.IDLE, 0);
+        mMachine.setListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine machine, State from, State to, long timeNanos) {
+                mEvents.add(from + ">" + to + "@" + timeNanos);
+            }
+        });
+    }
+
+    @Test
+    public void followsConnectionLifecycle() {
+        assertTrue(mMachine.moveTo(State.CONNECTING, 10));
+        assertTrue(mMachine.moveTo(State.DISCOVERING, 20));
+        assertTrue(mMachine.moveTo(State.SUBSCRIBING, 30));
+        assertTrue(mMachine.moveTo(State.STREAMING, 40));
+        assertTrue(mMachine.moveTo(State.IDLE, 100));
+        assertEquals(State.IDLE, mMachine.getState());
+        assertEquals(5, mMachine.getTransitionCount());
+        assertEquals(0, mMachine.getRejectedCount());
+        assertEquals("[IDLE>CONNECTING@10, CONNECTING>DISCOVERING@20, DISCOVERING>SUBSCRIBING@30, "
+                + "SUBSCRIBING>STREAMING@40, STREAMING>IDLE@100]", mEvents.toString());
+    }
+
+    @Test
+    public void rejectsIllegalTransitions() {
+        assertFalse(mMachine.moveTo(State.STREAMING, 10));
+        assertFalse(mMachine.moveTo(State.DISCOVERING, 10));
+        assertEquals(State.IDLE, mMachine.getState());
+        assertEquals(2, mMachine.getRejectedCount());
+        assertTrue(mEvents.isEmpty());
+
+        // Staying is not a transition
+        assertTrue(mMachine.moveTo(State.IDLE, 20));
+        assertEquals(0, mMachine.getTransitionCount());
+
+        // Scans end before any device connects
+        assertTrue(mMachine.moveTo(State.SCANNING, 30));
+        assertFalse(mMachine.moveTo(State.CONNECTING, 40));
+        assertFalse(ConnectionStateMachine.isLegal(State.RECONNECTING, State.STREAMING));
+        assertTrue(ConnectionStateMachine.isLegal(State.CONNECTING, State.SUBSCRIBING));
+    }
+
+    @Test
+    public void closedIsFinal() {
+        assertTrue(mMachine.moveTo(State.CLOSED, 10));
+        for (State state : State.values()) {
+            if (state != State.CLOSED) {
+                assertFalse(state.toString(), mMachine.moveTo(state, 20));
+            }
+        }
+        assertEquals(State.CLOSED, mMachine.getState());
+    }
+
+    @Test
+    public void adapterOffFromEveryState() {
+        for (State state : State.values()) {
+            boolean legal = ConnectionStateMachine.isLegal(state, State.ADAPTER_OFF);
+            assertEquals(state.toString(), state != State.CLOSED && state != State.ADAPTER_OFF, legal);
+        }
+        mMachine.moveTo(State.CONNECTING, 10);
+        assertTrue(mMachine.moveTo(State.ADAPTER_OFF, 20));
+        // Only the adapter coming back leads out of it
+        assertFalse(mMachine.moveTo(State.SCANNING, 30));
+        assertTrue(mMachine.moveTo(State.IDLE, 40));
+    }
+
+    @Test
+    public void reconnectsWithBackoff() {
+        mMachine.moveTo(State.CONNECTING, 0);
+        mMachine.moveTo(State.SUBSCRIBING, 0);
+        mMachine.moveTo(State.STREAMING, 0);
+        assertTrue(mMachine.moveTo(State.RECONNECTING, 10));
+
+        long[] expected = {500, 1000, 2000, 4000, 8000, 16000, 30000, 30000};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], mMachine.nextReconnectDelayMillis());
+        }
+        assertEquals(expected.length, mMachine.getReconnectAttempts());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(ConnectionStateMachine.MAX_BACKOFF_MILLIS, mMachine.nextReconnectDelayMillis());
+        }
+
+        // Streaming again starts over with the shortest delay
+        assertTrue(mMachine.moveTo(State.CONNECTING, 20));
+        assertTrue(mMachine.moveTo(State.SUBSCRIBING, 30));
+        assertTrue(mMachine.moveTo(State.STREAMING, 40));
+        assertEquals(0, mMachine.getReconnectAttempts());
+        assertEquals(ConnectionStateMachine.INITIAL_BACKOFF_MILLIS, mMachine.nextReconnectDelayMillis());
+    }
+
+    @Test
+    public void timestampsTransitions() {
+        mMachine.moveTo(State.CONNECTING, 100);
+        mMachine.moveTo(State.IDLE, 250);
+        mMachine.moveTo(State.CONNECTING, 300);
+        assertEquals(300, mMachine.getEnteredNanos());
+        assertEquals(150, mMachine.getTimeInStateNanos(State.CONNECTING, 300));
+        assertEquals(200, mMachine.getTimeInStateNanos(State.CONNECTING, 350));
+        assertEquals(150, mMachine.getTimeInStateNanos(State.IDLE, 350));
+
+        for (int i = 0; i < ConnectionStateMachine.HISTORY_CAPACITY; i++) {
+            mMachine.moveTo(i % 2 == 0 ? State.IDLE : State.CONNECTING, 400 + i);
+        }
+        List<ConnectionStateMachine.Transition> history = mMachine.getHistory();
+        assertEquals(ConnectionStateMachine.HISTORY_CAPACITY, history.size());
+        // The oldest are overwritten, the rest stays in order
+        assertEquals(400, history.get(0).getTimeNanos());
+        ConnectionStateMachine.Transition last = history.get(history.size() - 1);
+        assertEquals(400 + ConnectionStateMachine.HISTORY_CAPACITY - 1, last.getTimeNanos());
+        assertEquals(State.CONNECTING, last.getTo());
+        assertEquals(State.IDLE, last.getFrom());
+    }
+}
@@ -0,0 +1,97 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the derived channels and running statistics.
+ */
+public class DerivedMetricsTest {
+
+    private final static long SECOND = 1000000000L;
+
+    private final float[] mLatest = new float[DerivedMetrics.CHANNEL_COUNT];
+    private int mDerivedSamples;
+    private DerivedMetrics mMetrics;
+
+    @Before
+    public void setUp() {
+        mMetrics = new DerivedMetrics(new DerivedMetrics.Sink() {
+            @Override
+            public void onDerived(int channel, long timeNanos, float value) {
+                mLatest[channel] = value;
+                mDerivedSamples++;
+            }
+        });
+    }
+
+    private static float[] row(float voltage, float current, float speed, float torque, float efficiency) {
+        return new float[]{voltage, current, speed, torque, efficiency};
+    }
+
+    @Test
+    public void computesPowerAndIntegratesEnergy() {
+        // 12 V, 10 A -> 120 W; 1000 rpm, 1 Nm -> 104.7 W
+        mMetrics.onRow(0, row(12f, 10f, 1000f, 1f, 87.3f));
+        assertEquals(120f, mLatest[DerivedMetrics.CHANNEL_INPUT_POWER], 1e-4f);
+        assertEquals(104.72f, mLatest[DerivedMetrics.CHANNEL_OUTPUT_POWER], 1e-2f);
+        assertEquals(87.27f, mLatest[DerivedMetrics.CHANNEL_LOCAL_EFFICIENCY], 1e-2f);
+        assertEquals(5, mDerivedSamples);
+
+        // Ramp from 120 W to 240 W over an hour: trapezoid gives 180 Wh
+        mMetrics.onRow(3600 * SECOND / 1000, row(12f, 10f, 1000f, 1f, 87.3f));
+        for (int i = 1; i <= 1000; i++) {
+            mMetrics.onRow(3600 * SECOND / 1000 * (i + 1), row(12f, 10f + i / 100f, 1000f, 1f, 87.3f));
+        }
+        assertEquals(0.12 + 180.0, mMetrics.getInputEnergyWh(), 1e-6);
+        assertEquals(mMetrics.getInputEnergyWh(), mLatest[DerivedMetrics.CHANNEL_INPUT_ENERGY], 1e-3);
+    }
+
+    @Test
+    public void updatesFromSingleChannels() {
+        mMetrics.onSample(SampleDecoder.CHANNEL_VOLTAGE, 0, 10f);
+        assertEquals(0, mDerivedSamples);
+        mMetrics.onSample(SampleDecoder.CHANNEL_CURRENT, SECOND, 2f);
+        assertEquals(20f, mLatest[DerivedMetrics.CHANNEL_INPUT_POWER], 0f);
+        mMetrics.onSample(SampleDecoder.CHANNEL_VOLTAGE, 2 * SECOND, 11f);
+        assertEquals(22f, mLatest[DerivedMetrics.CHANNEL_INPUT_POWER], 0f);
+        // 21 W for one second
+        assertEquals(21.0 / 3600, mMetrics.getInputEnergyWh(), 1e-9);
+
+        // Not integrated over a long gap
+        mMetrics.onSample(SampleDecoder.CHANNEL_VOLTAGE, 60 * SECOND, 11f);
+        assertEquals(21.0 / 3600, mMetrics.getInputEnergyWh(), 1e-9);
+    }
+
+    @Test
+    public void keepsRunningStatistics() {
+        float[] values = {2f, 4f, 4f, 4f, 5f, 5f, 7f, 9f};
+        for (int i = 0; i < values.length; i++) {
+            mMetrics.onSample(SampleDecoder.CHANNEL_TORQUE, i, values[i]);
+        }
+        assertEquals(8, mMetrics.getCount(SampleDecoder.CHANNEL_TORQUE));
+        assertEquals(5.0, mMetrics.getMean(SampleDecoder.CHANNEL_TORQUE), 1e-9);
+        assertEquals(32.0 / 7, mMetrics.getVariance(SampleDecoder.CHANNEL_TORQUE), 1e-9);
+        assertEquals(2f, mMetrics.getMin(SampleDecoder.CHANNEL_TORQUE), 0f);
+        assertEquals(9f, mMetrics.getMax(SampleDecoder.CHANNEL_TORQUE), 0f);
+
+        mMetrics.reset();
+        assertEquals(0, mMetrics.getCount(SampleDecoder.CHANNEL_TORQUE));
+        assertTrue(Double.isNaN(mMetrics.getMean(SampleDecoder.CHANNEL_TORQUE)));
+    }
+
+    @Test
+    public void crossChecksReportedEfficiency() {
+        mMetrics.onRow(0, row(12f, 10f, 1000f, 1f, 87f));
+        mMetrics.onRow(SECOND, row(12f, 10f, 1000f, 1f, 95f));
+        assertEquals(2, mMetrics.getEfficiencyCheckCount());
+        assertEquals(1, mMetrics.getEfficiencyMismatchCount());
+        assertEquals(95f - 87.27f, mMetrics.getLastEfficiencyDeviation(), 1e-2f);
+
+        // Not compared while there is hardly any input power
+        mMetrics.onRow(2 * SECOND, row(12f, 0.01f, 0f, 0f, 0f));
+        assertEquals(2, mMetrics.getEfficiencyCheckCount());
+    }
+}
@@ -0,0 +1,211 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the acquisition of one device, and for several devices side by side.
+ */
+public class DeviceAcquisitionTest {
+
+    private final static UUID[] UUIDS = {
+            UUID.fromString(MeasurementProfile.VOLTAGE),
+            UUID.fromString(MeasurementProfile.CURRENT),
+            UUID.fromString(MeasurementProfile.SPEED),
+            UUID.fromString(MeasurementProfile.TORQUE),
+            UUID.fromString(MeasurementProfile.EFFICIENCY)};
+
+    private final static SampleDecoder DECODER =
+            new SampleDecoder(UUIDS[0], UUIDS[1], UUIDS[2], UUIDS[3], UUIDS[4]);
+
+    // Refuses every request, the tests only push values
+    private final static GattTransport NO_TRANSPORT = new GattTransport() {
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            return false;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return false;
+        }
+    };
+
+    private final static GattOperationQueue.Scheduler NO_SCHEDULER = new GattOperationQueue.Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+        }
+    };
+
+    private DeviceAcquisition mFirst;
+    private DeviceAcquisition mSecond;
+    private int mSamples;
+    private DeviceAcquisition mLastDevice;
+
+    @Before
+    public void setUp() {
+        DeviceAcquisition.Listener listener = new DeviceAcquisition.Listener() {
+            @Override
+            public void onSample(DeviceAcquisition device, int channel, long timeNanos, float value) {
+                mSamples++;
+                mLastDevice = device;
+            }
+        };
+        mFirst = new DeviceAcquisition("00:00:00:00:00:01", DECODER, NO_TRANSPORT, NO_SCHEDULER);
+        mSecond = new DeviceAcquisition("00:00:00:00:00:02", DECODER, NO_TRANSPORT, NO_SCHEDULER);
+        mFirst.setListener(listener);
+        mSecond.setListener(listener);
+    }
+
+    private static byte[] encode(float value) {
+        int bits = Float.floatToIntBits(value);
+        return new byte[]{(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24)};
+    }
+
+    // Rows one millisecond apart on the device clock, the sequence number as value
+    private static byte[] frame(int firstSequence, int rows) {
+        byte[] value = new byte[rows * FrameDecoder.ROW_SIZE];
+        for (int row = 0; row < rows; row++) {
+            int sequence = firstSequence + row;
+            byte[] header = encode(Float.intBitsToFloat(sequence));
+            byte[] time = encode(Float.intBitsToFloat(sequence * 1000));
+            System.arraycopy(header, 0, value, row * FrameDecoder.ROW_SIZE, 4);
+            System.arraycopy(time, 0, value, row * FrameDecoder.ROW_SIZE + 4, 4);
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                System.arraycopy(encode(sequence), 0, value, row * FrameDecoder.ROW_SIZE + 8 + 4 * channel, 4);
+            }
+        }
+        return value;
+    }
+
+    @Test
+    public void storesAndDerivesPerDevice() {
+        assertEquals(SampleDecoder.CHANNEL_VOLTAGE, mFirst.onValue(UUIDS[0], encode(12f), 1000));
+        assertEquals(SampleDecoder.CHANNEL_CURRENT, mFirst.onValue(UUIDS[1], encode(2f), 2000));
+        // The powers wait for the row to be complete
+        assertEquals(0, mFirst.getSampleStore().count(DerivedMetrics.CHANNEL_INPUT_POWER));
+        mFirst.onValue(UUIDS[2], encode(1000f), 3000);
+        mFirst.onValue(UUIDS[3], encode(0.1f), 4000);
+        mFirst.onValue(UUIDS[4], encode(90f), 5000);
+        mSecond.onValue(UUIDS[0], encode(24f), 1000);
+
+        assertEquals(12f, mFirst.getSampleStore().latest(SampleDecoder.CHANNEL_VOLTAGE), 0f);
+        assertEquals(24f, mSecond.getSampleStore().latest(SampleDecoder.CHANNEL_VOLTAGE), 0f);
+        assertEquals(24f, mFirst.getSampleStore().latest(DerivedMetrics.CHANNEL_INPUT_POWER), 0f);
+        assertEquals(0, mSecond.getSampleStore().count(DerivedMetrics.CHANNEL_INPUT_POWER));
+        assertEquals(5, mFirst.getSampleCount());
+        assertEquals(1, mSecond.getSampleCount());
+        assertSame(mSecond, mLastDevice);
+        assertTrue(mSamples > 3);
+    }
+
+    @Test
+    public void derivesFromAlignedRows() {
+        float[] row = new float[SampleDecoder.CHANNEL_COUNT];
+        assertEquals(Long.MIN_VALUE, mFirst.getLatestRow(row));
+        long time = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int channel = 0; channel < UUIDS.length; channel++) {
+                time += 1000000L;
+                mFirst.onValue(UUIDS[channel], encode(10f * (round + 1) + channel), time);
+            }
+            // The next round starts after the skew window
+            time += RowAssembler.DEFAULT_SKEW_NANOS;
+        }
+        assertEquals(3, mFirst.getRowAssembler().getRowCount());
+        assertEquals(0, mFirst.getRowAssembler().getIncompleteRowCount());
+        // Voltage and current of the same round, never of neighbouring ones
+        assertEquals(30f * 31f, mFirst.getSampleStore().latest(DerivedMetrics.CHANNEL_INPUT_POWER), 1e-3f);
+        assertEquals(3, mFirst.getSampleStore().count(DerivedMetrics.CHANNEL_INPUT_POWER));
+        mFirst.getLatestRow(row);
+        assertEquals(32f, row[SampleDecoder.CHANNEL_SPEED], 0f);
+
+        // A round without current is passed on by the next reset, the power is skipped
+        mFirst.onValue(UUIDS[0], encode(50f), time + 1000000L);
+        mFirst.reset();
+        assertEquals(1, mFirst.getRowAssembler().getIncompleteRowCount());
+        assertEquals(3, mFirst.getSampleStore().count(DerivedMetrics.CHANNEL_INPUT_POWER));
+    }
+
+    @Test
+    public void framesOfOneConnectionEventStayInOrder() {
+        // Both notifications arrive within half a millisecond, each covers three milliseconds
+        assertEquals(3, mFirst.onFrame(frame(1, 3), 1000000000L));
+        assertEquals(3, mFirst.onFrame(frame(4, 3), 1000500000L));
+
+        long[] times = new long[6];
+        float[] values = new float[6];
+        assertEquals(6, mFirst.readHistory(SampleDecoder.CHANNEL_VOLTAGE, 0, Long.MAX_VALUE, times, values));
+        for (int i = 1; i < 6; i++) {
+            assertEquals(i + 1, values[i], 0f);
+            assertTrue("Row " + i, times[i] > times[i - 1]);
+        }
+        assertEquals(1000500000L, times[5]);
+    }
+
+    @Test
+    public void ignoresUnknownAndShortValues() {
+        assertEquals(SampleDecoder.NO_CHANNEL, mFirst.onValue(UUID.randomUUID(), encode(1f), 0));
+        assertEquals(SampleDecoder.NO_CHANNEL, mFirst.onValue(UUIDS[0], new byte[2], 0));
+        assertEquals(SampleDecoder.NO_CHANNEL, mFirst.onValue(UUIDS[0], null, 0));
+        assertEquals(0, mFirst.getSampleCount());
+        assertEquals(0, mSamples);
+    }
+
+    @Test
+    public void readsHistoryAcrossTiers() {
+        int total = 3 * DeviceAcquisition.COMPRESSED_BLOCK_SAMPLES;
+        for (int i = 0; i < total; i++) {
+            mFirst.onValue(UUIDS[3], encode(i), i * 1000000L);
+        }
+        assertTrue(mFirst.getCompressedHistory().getSealedUntil(SampleDecoder.CHANNEL_TORQUE) != Long.MIN_VALUE);
+
+        long[] times = new long[total];
+        float[] values = new float[total];
+        int n = mFirst.readHistory(SampleDecoder.CHANNEL_TORQUE, 0, Long.MAX_VALUE, times, values);
+        assertEquals(total, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, values[i], 0f);
+        }
+    }
+
+    @Test
+    public void equalTimestampsSurviveTheSealedBoundary() {
+        // Pairs of samples share a timestamp, like a polled read next to a frame row, and the
+        // last sealed sample shares it with the first one that is only in the sample store
+        int total = 3 * DeviceAcquisition.COMPRESSED_BLOCK_SAMPLES + 2;
+        for (int i = 0; i < total; i++) {
+            mFirst.onValue(UUIDS[3], encode(i), ((i + 1) / 2) * 1000000L);
+        }
+        assertTrue(mFirst.getCompressedHistory().getSealedUntil(SampleDecoder.CHANNEL_TORQUE) != Long.MIN_VALUE);
+
+        long[] times = new long[total];
+        float[] values = new float[total];
+        int n = mFirst.readHistory(SampleDecoder.CHANNEL_TORQUE, 0, Long.MAX_VALUE, times, values);
+        assertEquals(total, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, values[i], 0f);
+            if (i > 0) {
+                assertTrue("Sample " + i, times[i] >= times[i - 1]);
+            }
+        }
+    }
+}
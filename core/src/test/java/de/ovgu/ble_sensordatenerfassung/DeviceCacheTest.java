@@ -0,0 +1,96 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the cache of known devices.
+ */
+public class DeviceCacheTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static DeviceCache.Layout layout(String address, long millis) {
+        return new DeviceCache.Layout(address, 0x1f, 0x0f, true, 185, millis);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = new File(mFolder.getRoot(), "cache");
+        DeviceCache cache = new DeviceCache(file);
+        cache.put(layout("00:00:00:00:00:01", 1));
+        cache.put(new DeviceCache.Layout("00:00:00:00:00:02", 0x03, 0, false, 23, 2));
+        cache.save();
+
+        DeviceCache loaded = new DeviceCache(file);
+        loaded.load();
+        assertEquals(2, loaded.size());
+        DeviceCache.Layout second = loaded.getRecent().get(0);
+        assertEquals("00:00:00:00:00:02", second.getAddress());
+        assertEquals(0x03, second.getChannels());
+        assertEquals(0, second.getNotifyChannels());
+        assertFalse(second.hasFrame());
+        assertEquals(23, second.getMtu());
+        assertEquals(2, second.getLastConnectedMillis());
+        assertTrue(loaded.get("00:00:00:00:00:01").matches(0x1f, 0x0f, true));
+        assertFalse(loaded.get("00:00:00:00:00:01").matches(0x1f, 0x0f, false));
+    }
+
+    @Test
+    public void mostRecentFirst() {
+        DeviceCache cache = new DeviceCache(null);
+        cache.put(layout("A", 1));
+        cache.put(layout("B", 2));
+        cache.put(layout("A", 3));
+        // Looking a device up does not change the order
+        assertNotNull(cache.get("B"));
+        List<DeviceCache.Layout> recent = cache.getRecent();
+        assertEquals("A", recent.get(0).getAddress());
+        assertEquals(3, recent.get(0).getLastConnectedMillis());
+        assertEquals("B", recent.get(1).getAddress());
+
+        cache.remove("A");
+        assertNull(cache.get("A"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void keepsMaxEntries() {
+        DeviceCache cache = new DeviceCache(null);
+        for (int i = 0; i < DeviceCache.MAX_ENTRIES + 3; i++) {
+            cache.put(layout("D" + i, i));
+        }
+        assertEquals(DeviceCache.MAX_ENTRIES, cache.size());
+        assertNull(cache.get("D0"));
+        assertNull(cache.get("D2"));
+        assertEquals("D" + (DeviceCache.MAX_ENTRIES + 2), cache.getRecent().get(0).getAddress());
+    }
+
+    @Test
+    public void damagedFileLeavesCacheEmpty() throws IOException {
+        File file = new File(mFolder.getRoot(), "cache");
+        DeviceCache cache = new DeviceCache(file);
+        cache.put(layout("A", 1));
+        cache.save();
+        // Cut the file in the middle of the entry
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.getChannel().truncate(file.length() - 4);
+        out.close();
+
+        DeviceCache loaded = new DeviceCache(file);
+        loaded.put(layout("B", 2));
+        loaded.load();
+        assertEquals(0, loaded.size());
+
+        new DeviceCache(new File(mFolder.getRoot(), "missing")).load();
+    }
+}
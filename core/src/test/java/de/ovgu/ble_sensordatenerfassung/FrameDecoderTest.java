@@ -0,0 +1,100 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for decoding packed measurement frames.
+ */
+public class FrameDecoderTest {
+
+    private static class Collector implements FrameDecoder.RowSink {
+        final List<long[]> mHeaders = new ArrayList<>();
+        final List<float[]> mRows = new ArrayList<>();
+
+        @Override
+        public void onRow(long sequence, long deviceTimeMicros, long microsBeforeLast, float[] values) {
+            mHeaders.add(new long[]{sequence, deviceTimeMicros, microsBeforeLast});
+            mRows.add(values.clone());
+        }
+    }
+
+    private static byte[] frame(long... sequences) {
+        byte[] value = new byte[sequences.length * FrameDecoder.ROW_SIZE];
+        for (int row = 0; row < sequences.length; row++) {
+            int offset = row * FrameDecoder.ROW_SIZE;
+            putInt(value, offset, (int) sequences[row]);
+            putInt(value, offset + 4, (int) (sequences[row] * 1000));
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                putInt(value, offset + 8 + 4 * channel, Float.floatToIntBits(channel + 0.5f));
+            }
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] value, int offset, int bits) {
+        value[offset] = (byte) bits;
+        value[offset + 1] = (byte) (bits >> 8);
+        value[offset + 2] = (byte) (bits >> 16);
+        value[offset + 3] = (byte) (bits >> 24);
+    }
+
+    @Test
+    public void decodesAllRowsOfANotification() {
+        FrameDecoder decoder = new FrameDecoder();
+        Collector collector = new Collector();
+        assertEquals(2, decoder.decode(frame(7, 8), collector));
+
+        assertArrayEquals(new long[]{7, 7000, 1000}, collector.mHeaders.get(0));
+        assertArrayEquals(new long[]{8, 8000, 0}, collector.mHeaders.get(1));
+        assertArrayEquals(new float[]{0.5f, 1.5f, 2.5f, 3.5f, 4.5f}, collector.mRows.get(1), 0f);
+    }
+
+    @Test
+    public void countsDroppedAndLateRows() {
+        FrameDecoder decoder = new FrameDecoder();
+        Collector collector = new Collector();
+        decoder.decode(frame(1, 2), collector);
+        decoder.decode(frame(6), collector);
+        decoder.decode(frame(4), collector);
+        assertEquals(2, decoder.getDroppedRows());
+        assertEquals(1, decoder.getLateRows());
+        assertEquals(4, decoder.getReceivedRows());
+
+        // A duplicate fills no gap
+        decoder.decode(frame(4), collector);
+        assertEquals(2, decoder.getDroppedRows());
+        assertEquals(2, decoder.getLateRows());
+    }
+
+    @Test
+    public void rowsLaterThanTheWindowStayDropped() {
+        FrameDecoder decoder = new FrameDecoder();
+        Collector collector = new Collector();
+        decoder.decode(frame(1), collector);
+        decoder.decode(frame(3 + FrameDecoder.LATE_WINDOW), collector);
+        decoder.decode(frame(2), collector);
+        assertEquals(FrameDecoder.LATE_WINDOW + 1, decoder.getDroppedRows());
+        assertEquals(1, decoder.getLateRows());
+    }
+
+    @Test
+    public void sequenceNumbersAreUnwrapped() {
+        FrameDecoder decoder = new FrameDecoder();
+        Collector collector = new Collector();
+        decoder.decode(frame(0xFFFFFFFFL, 0), collector);
+        assertEquals(0x100000000L, collector.mHeaders.get(1)[0]);
+        assertEquals(0, decoder.getDroppedRows());
+    }
+
+    @Test
+    public void rowsPerNotificationFollowsMtu() {
+        assertEquals(0, FrameDecoder.rowsPerNotification(23));
+        assertEquals(1, FrameDecoder.rowsPerNotification(31));
+        assertEquals(8, FrameDecoder.rowsPerNotification(247));
+    }
+}
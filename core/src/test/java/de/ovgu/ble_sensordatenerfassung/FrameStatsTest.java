@@ -0,0 +1,45 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the frame timing of the chart.
+ */
+public class FrameStatsTest {
+
+    private final static long FRAME = FrameStats.DEFAULT_FRAME_INTERVAL_NANOS;
+
+    @Test
+    public void countsMissedFrames() {
+        FrameStats stats = new FrameStats();
+        long time = 1000000000L;
+        stats.onFrame(time);
+        stats.onFrame(time += FRAME);
+        // A little late is still the next frame
+        stats.onFrame(time += FRAME + FRAME / 3);
+        assertEquals(0, stats.getDroppedFrameCount());
+        // Two frames missed
+        stats.onFrame(time += 3 * FRAME);
+        assertEquals(2, stats.getDroppedFrameCount());
+        assertEquals(4, stats.getFrameCount());
+
+        // A pause is not counted
+        stats.pause();
+        stats.onFrame(time + 100 * FRAME);
+        assertEquals(2, stats.getDroppedFrameCount());
+    }
+
+    @Test
+    public void tracksDrawTimes() {
+        FrameStats stats = new FrameStats();
+        stats.onDraw(1000);
+        stats.onDraw(3000);
+        assertEquals(2000, stats.getAverageDrawNanos());
+        assertEquals(3000, stats.getMaxDrawNanos());
+        assertEquals(3000, stats.getLastDrawNanos());
+        stats.reset();
+        assertEquals(0, stats.getAverageDrawNanos());
+    }
+}
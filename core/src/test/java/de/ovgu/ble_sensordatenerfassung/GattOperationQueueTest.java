@@ -0,0 +1,191 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the GATT operation queue, run against a fake transport.
+ */
+public class GattOperationQueueTest {
+    private static final UUID VOLTAGE = UUID.fromString(MeasurementProfile.VOLTAGE);
+    private static final UUID CURRENT = UUID.fromString(MeasurementProfile.CURRENT);
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    // Records the requests and accepts them unless told otherwise
+    private static class FakeTransport implements GattTransport {
+        final List<String> mRequests = new ArrayList<>();
+        boolean mAccept = true;
+
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            mRequests.add("read " + characteristic);
+            return mAccept;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            mRequests.add("write " + characteristic);
+            return mAccept;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            mRequests.add("descriptor " + characteristic);
+            return mAccept;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            mRequests.add("mtu " + mtu);
+            return mAccept;
+        }
+    }
+
+    // Keeps the timeout task so the test can fire it
+    private static class ManualScheduler implements GattOperationQueue.Scheduler {
+        Runnable mTask;
+        // Runs once at the next removal, like another thread that gets in between
+        Runnable mBeforeRemove;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            mTask = task;
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            Runnable beforeRemove = mBeforeRemove;
+            mBeforeRemove = null;
+            if (beforeRemove != null) {
+                beforeRemove.run();
+            }
+            if (mTask == task) {
+                mTask = null;
+            }
+        }
+    }
+
+    private FakeTransport mTransport;
+    private ManualScheduler mScheduler;
+    private GattOperationQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mTransport = new FakeTransport();
+        mScheduler = new ManualScheduler();
+        mQueue = new GattOperationQueue(mTransport, mScheduler);
+    }
+
+    @Test
+    public void operationsRunOneAtATime() {
+        mQueue.read(VOLTAGE);
+        mQueue.read(CURRENT);
+        mQueue.requestMtu(185, null);
+        assertEquals(1, mTransport.mRequests.size());
+        assertEquals(2, mQueue.getQueueDepth());
+
+        mQueue.onCharacteristicRead(VOLTAGE, true);
+        assertEquals("read " + CURRENT, mTransport.mRequests.get(1));
+
+        mQueue.onCharacteristicRead(CURRENT, true);
+        mQueue.onMtuChanged(true);
+        assertEquals(3, mTransport.mRequests.size());
+        assertTrue(mQueue.isIdle());
+        assertEquals(2, mQueue.getCompletedCount(GattOperation.TYPE_READ));
+        assertEquals(1, mQueue.getCompletedCount(GattOperation.TYPE_REQUEST_MTU));
+    }
+
+    @Test
+    public void callbacksOfOtherOperationsAreIgnored() {
+        mQueue.read(VOLTAGE);
+        mQueue.read(CURRENT);
+        mQueue.onCharacteristicRead(CURRENT, true);
+        assertEquals(1, mTransport.mRequests.size());
+    }
+
+    @Test
+    public void timedOutOperationsAreRetriedThenFailed() {
+        final List<Boolean> results = new ArrayList<>();
+        mQueue.setRetries(1);
+        mQueue.setTimeout(0);
+        mQueue.writeDescriptor(VOLTAGE, CCCD, new byte[]{1, 0}, new GattOperation.Callback() {
+            @Override
+            public void onComplete(GattOperation operation, boolean success) {
+                results.add(success);
+            }
+        });
+        mQueue.read(CURRENT);
+
+        mScheduler.mTask.run();
+        assertEquals("descriptor " + VOLTAGE, mTransport.mRequests.get(1));
+        mScheduler.mTask.run();
+        assertEquals(1, results.size());
+        assertFalse(results.get(0));
+        assertEquals("read " + CURRENT, mTransport.mRequests.get(2));
+        assertEquals(2, mQueue.getTimeoutCount());
+        assertEquals(1, mQueue.getRetryCount());
+        assertEquals(1, mQueue.getFailedCount(GattOperation.TYPE_WRITE_DESCRIPTOR));
+    }
+
+    @Test
+    public void failedStatusIsRetried() {
+        mQueue.read(VOLTAGE);
+        mQueue.onCharacteristicRead(VOLTAGE, false);
+        assertEquals(2, mTransport.mRequests.size());
+        mQueue.onCharacteristicRead(VOLTAGE, true);
+        assertEquals(1, mQueue.getCompletedCount(GattOperation.TYPE_READ));
+        assertTrue(mQueue.isIdle());
+    }
+
+    @Test
+    public void retriesDoNotInflateTheAverageLatency() {
+        mQueue.read(VOLTAGE);
+        mQueue.onCharacteristicRead(VOLTAGE, false);
+        mQueue.onCharacteristicRead(VOLTAGE, true);
+        assertEquals(1, mQueue.getCompletedCount(GattOperation.TYPE_READ));
+        // One completed operation, its latency is the average and the maximum alike
+        assertEquals(mQueue.getMaxLatencyNanos(GattOperation.TYPE_READ),
+                mQueue.getAverageLatencyNanos(GattOperation.TYPE_READ));
+    }
+
+    @Test
+    public void nextOperationKeepsItsTimeout() {
+        mQueue.read(VOLTAGE);
+        // Enqueued by another thread while the callback of the first read completes it
+        mScheduler.mBeforeRemove = new Runnable() {
+            @Override
+            public void run() {
+                mQueue.read(CURRENT);
+            }
+        };
+        mQueue.onCharacteristicRead(VOLTAGE, true);
+        assertEquals("read " + CURRENT, mTransport.mRequests.get(1));
+        assertNotNull(mScheduler.mTask);
+    }
+
+    @Test
+    public void refusedRequestsDoNotBlockTheQueue() {
+        mTransport.mAccept = false;
+        mQueue.setRetries(0);
+        mQueue.read(VOLTAGE);
+        assertTrue(mQueue.isIdle());
+        assertEquals(1, mQueue.getFailedCount(GattOperation.TYPE_READ));
+        assertNull(mScheduler.mTask);
+    }
+
+    @Test
+    public void clearDropsEverything() {
+        mQueue.read(VOLTAGE);
+        mQueue.read(CURRENT);
+        mQueue.clear();
+        assertTrue(mQueue.isIdle());
+        mQueue.onCharacteristicRead(VOLTAGE, true);
+        assertEquals(1, mTransport.mRequests.size());
+    }
+}
@@ -0,0 +1,69 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the log-linear latency histogram.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverAllValues() {
+        int last = -1;
+        for (long value = 0; value < 100000; value++) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket == last || bucket == last + 1);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(bucket));
+            last = bucket;
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+        assertEquals(0, LatencyHistogram.bucketOf(-5));
+    }
+
+    @Test
+    public void bucketsAreNarrow() {
+        for (int bucket = LatencyHistogram.SUB_BUCKETS; bucket < LatencyHistogram.BUCKET_COUNT; bucket++) {
+            long upper = LatencyHistogram.upperBoundOf(bucket);
+            long lower = LatencyHistogram.upperBoundOf(bucket - 1) + 1;
+            assertEquals(bucket, LatencyHistogram.bucketOf(lower));
+            assertEquals(bucket, LatencyHistogram.bucketOf(upper));
+            assertTrue((upper - lower + 1) * 8 <= lower);
+        }
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(3);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000 + random.nextInt(1000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        long p50 = values[values.length / 2 - 1];
+        long p99 = values[values.length * 99 / 100 - 1];
+        assertEquals(p50, histogram.getPercentileNanos(50), p50 / 8.0);
+        assertEquals(p99, histogram.getPercentileNanos(99), p99 / 8.0);
+        assertEquals(values[values.length - 1], histogram.getPercentileNanos(100));
+        assertEquals(values[values.length - 1], histogram.getMaxNanos());
+        assertEquals(values.length, histogram.getCount());
+
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        histogram.copyCounts(counts);
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        assertEquals(values.length, total);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(50));
+    }
+}
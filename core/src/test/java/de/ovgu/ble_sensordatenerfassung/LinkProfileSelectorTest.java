@@ -0,0 +1,47 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the automatic link profile selection.
+ */
+public class LinkProfileSelectorTest {
+
+    @Test
+    public void backlogSwitchesToHighThroughputAtOnce() {
+        LinkProfileSelector selector = new LinkProfileSelector(LinkProfile.LOW_POWER);
+        assertEquals(LinkProfile.HIGH_THROUGHPUT,
+                selector.evaluate(LinkProfileSelector.HIGH_BACKLOG, false));
+    }
+
+    @Test
+    public void steppingDownWaitsForACalmLink() {
+        LinkProfileSelector selector = new LinkProfileSelector(LinkProfile.HIGH_THROUGHPUT);
+        for (int i = 1; i < LinkProfileSelector.CALM_EVALUATIONS; i++) {
+            assertEquals(LinkProfile.HIGH_THROUGHPUT, selector.evaluate(0, true));
+        }
+        assertEquals(LinkProfile.BALANCED, selector.evaluate(0, true));
+
+        // A small backlog restarts the wait
+        for (int i = 1; i < LinkProfileSelector.CALM_EVALUATIONS; i++) {
+            selector.evaluate(0, false);
+        }
+        selector.evaluate(1, false);
+        assertEquals(LinkProfile.BALANCED, selector.evaluate(0, false));
+    }
+
+    @Test
+    public void attachingAUiLeavesLowPowerAtOnce() {
+        LinkProfileSelector selector = new LinkProfileSelector(LinkProfile.LOW_POWER);
+        assertEquals(LinkProfile.BALANCED, selector.evaluate(0, true));
+    }
+
+    @Test
+    public void everyProfileFitsAFrameRow() {
+        for (LinkProfile profile : LinkProfile.values()) {
+            assertTrue(FrameDecoder.rowsPerNotification(profile.getMtu()) > 0);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for delivering events and sample batches to listeners.
+ */
+public class MeasurementDispatcherTest {
+
+    // Collects tasks so the test decides when the "listener thread" runs them
+    private static class QueueExecutor implements Executor {
+        final List<Runnable> mTasks = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        void runAll() {
+            while (!mTasks.isEmpty()) {
+                mTasks.remove(0).run();
+            }
+        }
+    }
+
+    private static class RecordingListener extends MeasurementListenerAdapter {
+        final List<SampleBatch> mBatches = new ArrayList<>();
+        final List<Integer> mChanges = new ArrayList<>();
+        int mConnected;
+
+        @Override
+        public void onConnected() {
+            mConnected++;
+        }
+
+        @Override
+        public void onSamples(SampleBatch batch) {
+            mBatches.add(batch);
+        }
+
+        @Override
+        public void onValuesChanged(int changedChannels) {
+            mChanges.add(changedChannels);
+        }
+    }
+
+    @Test
+    public void fullBatchesAreDelivered() {
+        MeasurementDispatcher dispatcher = new MeasurementDispatcher(2);
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        dispatcher.register(listener, executor);
+
+        dispatcher.addSample(0, 1L, 1f);
+        dispatcher.addSample(3, 2L, 2f);
+        dispatcher.addSample(4, 3L, 3f);
+        executor.runAll();
+
+        assertEquals(1, listener.mBatches.size());
+        SampleBatch batch = listener.mBatches.get(0);
+        assertEquals(2, batch.size());
+        assertEquals(3, batch.getChannel(1));
+        assertEquals(2L, batch.getTime(1));
+        assertEquals(2f, batch.getValue(1), 0f);
+
+        dispatcher.flushSamples();
+        executor.runAll();
+        assertEquals(2, listener.mBatches.size());
+        assertEquals(1, listener.mBatches.get(1).size());
+
+        // Nothing pending, nothing delivered
+        dispatcher.flushSamples();
+        executor.runAll();
+        assertEquals(2, listener.mBatches.size());
+    }
+
+    @Test
+    public void valueChangesAreMergedForSlowListeners() {
+        MeasurementDispatcher dispatcher = new MeasurementDispatcher();
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        dispatcher.register(listener, executor);
+
+        dispatcher.dispatchValuesChanged(1);
+        dispatcher.dispatchValuesChanged(4);
+        assertEquals(1, executor.mTasks.size());
+        executor.runAll();
+        assertEquals(1, listener.mChanges.size());
+        assertEquals(5, (int) listener.mChanges.get(0));
+    }
+
+    @Test
+    public void unregisteredListenersAreNotCalled() {
+        MeasurementDispatcher dispatcher = new MeasurementDispatcher();
+        QueueExecutor executor = new QueueExecutor();
+        RecordingListener listener = new RecordingListener();
+        dispatcher.register(listener, executor);
+        dispatcher.register(listener, executor);
+        dispatcher.dispatchConnected();
+        executor.runAll();
+        assertEquals(1, listener.mConnected);
+
+        dispatcher.unregister(listener);
+        assertFalse(dispatcher.hasListeners());
+        dispatcher.dispatchConnected();
+        executor.runAll();
+        assertEquals(1, listener.mConnected);
+    }
+}
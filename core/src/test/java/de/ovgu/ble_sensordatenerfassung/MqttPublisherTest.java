@@ -0,0 +1,192 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for publishing frames to a minimal MQTT broker on the loopback interface.
+ */
+public class MqttPublisherTest {
+
+    /**
+     * Accepts one connection, answers the CONNECT and keeps the topics and payloads of the
+     * publishes.
+     */
+    private static class LoopbackBroker extends Thread {
+        final ServerSocket mServer;
+        final List<String> mTopics = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> mPayloads = Collections.synchronizedList(new ArrayList<byte[]>());
+        volatile String mClientId;
+        volatile int mReturnCode;
+        volatile boolean mDisconnected;
+
+        LoopbackBroker() throws IOException {
+            mServer = new ServerSocket(0);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Socket socket = mServer.accept();
+                try {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    OutputStream out = socket.getOutputStream();
+                    while (true) {
+                        int type = in.read();
+                        if (type < 0) {
+                            return;
+                        }
+                        byte[] body = new byte[readRemainingLength(in)];
+                        in.readFully(body);
+                        switch (type & 0xf0) {
+                            case 0x10:
+                                // Protocol name, level, flags, keep alive, then the client id
+                                mClientId = new String(body, 12, body.length - 12, "UTF-8");
+                                out.write(new byte[]{0x20, 2, 0, (byte) mReturnCode});
+                                out.flush();
+                                break;
+                            case 0x30:
+                                int topicLength = ((body[0] & 0xff) << 8) | (body[1] & 0xff);
+                                mTopics.add(new String(body, 2, topicLength, "UTF-8"));
+                                byte[] payload = new byte[body.length - 2 - topicLength];
+                                System.arraycopy(body, 2 + topicLength, payload, 0, payload.length);
+                                mPayloads.add(payload);
+                                break;
+                            case 0xe0:
+                                mDisconnected = true;
+                                return;
+                            default:
+                                break;
+                        }
+                    }
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                // The test fails on the missing messages
+            }
+        }
+
+        private static int readRemainingLength(DataInputStream in) throws IOException {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int digit = in.readUnsignedByte();
+                length |= (digit & 0x7f) << shift;
+                if ((digit & 0x80) == 0) {
+                    return length;
+                }
+            }
+        }
+    }
+
+    private LoopbackBroker mBroker;
+
+    @Before
+    public void setUp() throws Exception {
+        mBroker = new LoopbackBroker();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mBroker.mServer.close();
+        mBroker.join(5000);
+    }
+
+    @Test
+    public void publishesFramesPerSource() throws Exception {
+        mBroker.start();
+        MqttPublisher publisher = new MqttPublisher("127.0.0.1", mBroker.mServer.getLocalPort(),
+                "bench/samples", "test-client");
+        SampleStreamer streamer = new SampleStreamer(publisher);
+        streamer.setBatchMillis(5);
+        streamer.setPolicy(SampleStreamer.Policy.DROP);
+        SampleStreamer.Source first = streamer.addSource("00:00:00:00:00:01");
+        SampleStreamer.Source second = streamer.addSource("00:00:00:00:00:02");
+        streamer.start();
+        // Both fit into the queues, closing the streamer sends what is still queued
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(first.offer(i % 5, i * 1000000L, i));
+            if (i % 5 == 0) {
+                assertTrue(second.offer(0, i * 1000000L, -i));
+            }
+        }
+        streamer.close();
+        mBroker.join(5000);
+
+        assertEquals("test-client", mBroker.mClientId);
+        assertTrue(mBroker.mDisconnected);
+        assertEquals(publisher.getPublishedCount(), mBroker.mPayloads.size());
+
+        StreamFrameReader reader = new StreamFrameReader();
+        final int[] counts = new int[2];
+        for (int i = 0; i < mBroker.mPayloads.size(); i++) {
+            byte[] payload = mBroker.mPayloads.get(i);
+            final int index = mBroker.mTopics.get(i).endsWith("01") ? 0 : 1;
+            reader.read(payload, 0, payload.length, new StreamFrameReader.SampleVisitor() {
+                @Override
+                public void onSample(int channel, long timeNanos, float value) {
+                    counts[index]++;
+                }
+            });
+            assertEquals("bench/samples/" + reader.getSource(), mBroker.mTopics.get(i));
+        }
+        assertEquals(5000, counts[0]);
+        assertEquals(1000, counts[1]);
+    }
+
+    @Test
+    public void refusedConnectionIsRetried() throws Exception {
+        // Not authorized
+        mBroker.mReturnCode = 5;
+        mBroker.start();
+        final MqttPublisher publisher = new MqttPublisher("127.0.0.1", mBroker.mServer.getLocalPort(),
+                "bench", "refused");
+        // The streamer counts the failure before it closes the transport
+        final CountDownLatch closed = new CountDownLatch(1);
+        SampleStreamer streamer = new SampleStreamer(new StreamTransport() {
+            @Override
+            public void open() throws IOException {
+                publisher.open();
+            }
+
+            @Override
+            public void send(String source, byte[] frame, int length) throws IOException {
+                publisher.send(source, frame, length);
+            }
+
+            @Override
+            public void poll() throws IOException {
+                publisher.poll();
+            }
+
+            @Override
+            public void close() {
+                publisher.close();
+                closed.countDown();
+            }
+        });
+        streamer.start();
+        try {
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(1, streamer.getFailures());
+            assertFalse(streamer.isConnected());
+            assertTrue(streamer.getError().getMessage().contains("return code 5"));
+        } finally {
+            streamer.close();
+        }
+    }
+}
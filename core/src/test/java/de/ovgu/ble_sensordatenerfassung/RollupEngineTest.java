@@ -0,0 +1,80 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the rollups and the LTTB downsampling.
+ */
+public class RollupEngineTest {
+
+    private final static long MS = 1000000L;
+
+    @Test
+    public void summarizesBucketsOfEveryLevel() {
+        RollupEngine rollups = new RollupEngine(2, new long[]{100 * MS, 1000 * MS}, 64);
+        // 10 ms interval, values 0..249
+        for (int i = 0; i < 250; i++) {
+            rollups.append(1, i * 10 * MS, i);
+        }
+        RollupEngine.Buckets buckets = new RollupEngine.Buckets(100);
+
+        // The open buckets (200..249 of level 1, 240..249 of level 0) are not visible yet
+        assertEquals(24, rollups.query(1, 0, 0, Long.MAX_VALUE, buckets));
+        assertEquals(100 * MS, buckets.times[1]);
+        assertEquals(10f, buckets.mins[1], 0f);
+        assertEquals(19f, buckets.maxs[1], 0f);
+        assertEquals(14.5f, buckets.means[1], 0f);
+        assertEquals(10, buckets.counts[1]);
+
+        assertEquals(2, rollups.query(1, 1, 0, Long.MAX_VALUE, buckets));
+        assertEquals(199f, buckets.maxs[1], 0f);
+        assertEquals(0, rollups.query(0, 0, 0, Long.MAX_VALUE, buckets));
+    }
+
+    @Test
+    public void queryPicksFinestLevelThatFits() {
+        RollupEngine rollups = new RollupEngine(1, new long[]{100 * MS, 1000 * MS, 10000 * MS}, 16);
+        for (int i = 0; i < 10000; i++) {
+            rollups.append(0, i * 10 * MS, 1f);
+        }
+        RollupEngine.Buckets buckets = new RollupEngine.Buckets(32);
+
+        // Recent and short: the finest level still has it
+        rollups.query(0, 98500 * MS, 99500 * MS, buckets);
+        assertEquals(100 * MS, buckets.resolutionNanos);
+        // Too many buckets for the result at 100 ms
+        rollups.query(0, 90000 * MS, 99000 * MS, buckets);
+        assertEquals(1000 * MS, buckets.resolutionNanos);
+        // Older than the finer levels keep
+        rollups.query(0, 0, 99000 * MS, buckets);
+        assertEquals(10000 * MS, buckets.resolutionNanos);
+        assertEquals(9, buckets.size);
+        assertEquals(1000, buckets.counts[0]);
+    }
+
+    @Test
+    public void lttbKeepsEndsAndPeaks() {
+        long[] times = new long[1000];
+        float[] values = new float[1000];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = i * MS;
+            values[i] = i == 567 ? 100f : (i % 2) * 0.1f;
+        }
+        long[] outTimes = new long[50];
+        float[] outValues = new float[50];
+        assertEquals(20, Lttb.downsample(times, values, times.length, 20, outTimes, outValues));
+        assertEquals(0, outTimes[0]);
+        assertEquals(999 * MS, outTimes[19]);
+        boolean peak = false;
+        for (int i = 1; i < 20; i++) {
+            assertTrue(outTimes[i] > outTimes[i - 1]);
+            peak |= outValues[i] == 100f;
+        }
+        assertTrue(peak);
+
+        // Fewer points than wanted are copied
+        assertEquals(10, Lttb.downsample(times, values, 10, 20, outTimes, outValues));
+    }
+}
@@ -0,0 +1,152 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for grouping single channel samples into time-aligned rows.
+ */
+public class RowAssemblerTest {
+
+    private final static int CHANNELS = 5;
+    private final static long MS = 1000000L;
+
+    private final List<Long> mTimes = new ArrayList<Long>();
+    private final List<float[]> mRows = new ArrayList<float[]>();
+    private final List<Integer> mMeasured = new ArrayList<Integer>();
+    private RowAssembler mAssembler;
+
+    @Before
+    public void setUp() {
+        mAssembler = new RowAssembler(CHANNELS, 4, new RowAssembler.Sink() {
+            @Override
+            public void onRow(long timeNanos, float[] values, int measured) {
+                mTimes.add(timeNanos);
+                mRows.add(values.clone());
+                mMeasured.add(measured);
+            }
+        });
+        mAssembler.setWindow(5 * MS, 10 * MS);
+    }
+
+    /**
+     * Adds a round of samples whose values are the round number plus a tenth of the channel.
+     */
+    private void addRound(int round, long timeNanos, long spacingNanos, int skippedChannel) {
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            if (channel != skippedChannel) {
+                assertTrue(mAssembler.add(channel, timeNanos + channel * spacingNanos, value(round, channel)));
+            }
+        }
+    }
+
+    private static float value(int round, int channel) {
+        return round + 0.1f * channel;
+    }
+
+    @Test
+    public void groupsRoundsIntoRows() {
+        for (int round = 0; round < 10; round++) {
+            addRound(round, round * 10 * MS, MS, -1);
+        }
+        assertEquals(10, mRows.size());
+        for (int round = 0; round < 10; round++) {
+            assertEquals(0x1f, (int) mMeasured.get(round));
+            // Mean of the arrival times
+            assertEquals(round * 10 * MS + 2 * MS, (long) mTimes.get(round));
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                assertEquals(value(round, channel), mRows.get(round)[channel], 0f);
+            }
+        }
+        assertEquals(0, mAssembler.getIncompleteRowCount());
+    }
+
+    @Test
+    public void lostSampleDoesNotShiftLaterRows() {
+        // Several rounds arrive within one connection event, a few microseconds apart
+        long time = 0;
+        for (int round = 0; round < 6; round++) {
+            addRound(round, time, 10000L, round == 2 ? 1 : -1);
+            time += CHANNELS * 10000L;
+        }
+        mAssembler.flush();
+        assertEquals(6, mRows.size());
+        for (int round = 0; round < 6; round++) {
+            assertEquals(value(round, 3), mRows.get(round)[3], 0f);
+        }
+        assertEquals(1, mAssembler.getIncompleteRowCount());
+        assertEquals(0x1f & ~(1 << 1), (int) mMeasured.get(2));
+        // The lost current lies between those of the rounds before and after
+        float current = mRows.get(2)[1];
+        assertTrue("Interpolated " + current, current > value(1, 1) && current < value(3, 1));
+        assertEquals(1, mAssembler.getInterpolatedCount());
+    }
+
+    @Test
+    public void lateSampleFindsItsRow() {
+        mAssembler.add(0, 0, value(0, 0));
+        mAssembler.add(1, MS, value(0, 1));
+        mAssembler.add(2, 2 * MS, value(0, 2));
+        mAssembler.add(4, 4 * MS, value(0, 4));
+        // The next round starts before the torque of the first one arrives
+        mAssembler.add(0, 10 * MS, value(1, 0));
+        assertTrue(mAssembler.add(3, 3 * MS, value(0, 3)));
+        assertEquals(1, mRows.size());
+        assertEquals(0x1f, (int) mMeasured.get(0));
+        assertEquals(value(0, 3), mRows.get(0)[3], 0f);
+        assertEquals(0, mAssembler.getLateCount());
+    }
+
+    @Test
+    public void incompleteRowWaitsForTheDelay() {
+        mAssembler.setInterpolating(false);
+        mAssembler.add(0, 0, 1f);
+        mAssembler.add(1, MS, 2f);
+        mAssembler.add(0, 14 * MS, 3f);
+        assertEquals(0, mRows.size());
+        // More than window plus delay after the first sample
+        mAssembler.add(0, 16 * MS, 4f);
+        assertEquals(1, mRows.size());
+        assertEquals(0x3, (int) mMeasured.get(0));
+        assertTrue(Float.isNaN(mRows.get(0)[2]));
+        assertEquals(CHANNELS - 2, mAssembler.getMissingCount());
+
+        // Its torque comes too late, the row is gone
+        assertFalse(mAssembler.add(3, 0, 5f));
+        assertEquals(1, mAssembler.getLateCount());
+    }
+
+    @Test
+    public void fullBufferPassesOnTheOldestRow() {
+        // Every sample of the same channel needs a row of its own
+        for (int i = 0; i < 4; i++) {
+            mAssembler.add(0, i * MS, i);
+        }
+        assertEquals(0, mRows.size());
+        mAssembler.add(0, 4 * MS, 4);
+        assertEquals(1, mRows.size());
+        assertEquals(0, (long) mTimes.get(0));
+        mAssembler.flush();
+        assertEquals(5, mRows.size());
+        for (int i = 1; i < mTimes.size(); i++) {
+            assertTrue(mTimes.get(i) > mTimes.get(i - 1));
+        }
+    }
+
+    @Test
+    public void resetForgetsOpenRows() {
+        mAssembler.add(0, 0, 1f);
+        mAssembler.reset();
+        addRound(1, 0, MS, 2);
+        mAssembler.flush();
+        assertEquals(1, mRows.size());
+        // Nothing before the reset to interpolate from
+        assertTrue(Float.isNaN(mRows.get(0)[2]));
+        assertEquals(value(1, 0), mRows.get(0)[0], 0f);
+    }
+}
@@ -0,0 +1,46 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the notification decode path.
+ */
+public class SampleDecoderTest {
+    private final SampleDecoder mDecoder = new SampleDecoder(
+            UUID.fromString(MeasurementProfile.VOLTAGE),
+            UUID.fromString(MeasurementProfile.CURRENT),
+            UUID.fromString(MeasurementProfile.SPEED),
+            UUID.fromString(MeasurementProfile.TORQUE),
+            UUID.fromString(MeasurementProfile.EFFICIENCY));
+
+    @Test
+    public void decodeFloat_readsLittleEndian() {
+        // 12.5f is 0x41480000
+        byte[] value = {0x00, 0x00, 0x48, 0x41};
+        assertEquals(12.5f, SampleDecoder.decodeFloat(value, 0), 0f);
+    }
+
+    @Test
+    public void decodeFloat_leavesValueUntouched() {
+        byte[] value = {0x00, 0x00, 0x48, 0x41};
+        SampleDecoder.decodeFloat(value, 0);
+        assertArrayEquals(new byte[]{0x00, 0x00, 0x48, 0x41}, value);
+    }
+
+    @Test
+    public void decodeFloat_honoursOffset() {
+        byte[] value = {0x7F, 0x00, 0x00, (byte) 0x80, (byte) 0xBF};
+        assertEquals(-1.0f, SampleDecoder.decodeFloat(value, 1), 0f);
+    }
+
+    @Test
+    public void channelOf_mapsCharacteristics() {
+        assertEquals(SampleDecoder.CHANNEL_TORQUE,
+                mDecoder.channelOf(UUID.fromString(MeasurementProfile.TORQUE)));
+        assertEquals(SampleDecoder.NO_CHANNEL, mDecoder.channelOf(UUID.randomUUID()));
+    }
+}
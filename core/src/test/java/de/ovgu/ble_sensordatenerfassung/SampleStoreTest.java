@@ -0,0 +1,132 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the per-channel sample history.
+ */
+public class SampleStoreTest {
+
+    @Test
+    public void latest_returnsLastAppended() {
+        SampleStore store = new SampleStore(2, 8);
+        assertTrue(Float.isNaN(store.latest(1)));
+        store.append(1, 10L, 1.5f);
+        store.append(1, 20L, 2.5f);
+        assertEquals(2.5f, store.latest(1), 0f);
+        assertEquals(20L, store.latestTime(1));
+        assertEquals(0, store.count(0));
+    }
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo() {
+        assertEquals(16, new SampleStore(1, 9).getCapacity());
+        assertEquals(8, new SampleStore(1, 8).getCapacity());
+    }
+
+    @Test
+    public void readLatest_wrapsAround() {
+        SampleStore store = new SampleStore(1, 4);
+        for (int i = 0; i < 6; i++) {
+            store.append(0, i, i);
+        }
+        long[] times = new long[4];
+        float[] values = new float[4];
+        assertEquals(4, store.readLatest(0, times, values, 4));
+        assertArrayEquals(new float[]{2, 3, 4, 5}, values, 0f);
+        assertArrayEquals(new long[]{2, 3, 4, 5}, times);
+    }
+
+    @Test
+    public void read_reportsOverrun() {
+        SampleStore store = new SampleStore(1, 4);
+        for (int i = 0; i < 6; i++) {
+            store.append(0, i, i);
+        }
+        float[] values = new float[4];
+        assertEquals(SampleStore.OVERRUN, store.read(0, 1, null, values, 4));
+        assertEquals(2, store.oldestSequence(0));
+        assertEquals(3, store.read(0, 3, null, values, 4));
+        assertArrayEquals(new float[]{3, 4, 5}, new float[]{values[0], values[1], values[2]}, 0f);
+    }
+
+    @Test
+    public void readRange_selectsWindow() {
+        SampleStore store = new SampleStore(1, 16);
+        for (int i = 0; i < 10; i++) {
+            store.append(0, i * 10L, i);
+        }
+        long[] times = new long[16];
+        float[] values = new float[16];
+        int n = store.readRange(0, 25L, 60L, times, values);
+        assertEquals(3, n);
+        assertArrayEquals(new long[]{30, 40, 50}, new long[]{times[0], times[1], times[2]});
+    }
+
+    @Test
+    public void concurrentReaders_seeConsistentWindows() throws Exception {
+        final SampleStore store = new SampleStore(1, 256);
+        final int total = 200000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] times = new long[64];
+                float[] values = new float[64];
+                while (store.count(0) < total && failure.get() == null) {
+                    int n = store.readLatest(0, times, values, 64);
+                    for (int i = 0; i < n; i++) {
+                        // The writer stores the timestamp as value, consecutive samples differ by one
+                        if (values[i] != times[i] || (i > 0 && times[i] != times[i - 1] + 1)) {
+                            failure.set("inconsistent window at " + times[i]);
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < total; i++) {
+            store.append(0, i, i);
+        }
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void readersAtTheOldestSampleNeverSeeOverwrittenSlots() throws Exception {
+        final SampleStore store = new SampleStore(1, 2);
+        final int total = 2000000;
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long[] times = new long[4];
+                float[] values = new float[4];
+                while (store.count(0) < total && failure.get() == null) {
+                    // The slots the writer overwrites next
+                    long first = store.oldestSequence(0);
+                    int n = store.read(0, first, times, values, 4);
+                    for (int i = 0; i < n; i++) {
+                        if (times[i] != first + i || values[i] != times[i]) {
+                            failure.set("sample " + (first + i) + " read as " + times[i] + "/" + values[i]);
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < total; i++) {
+            store.append(0, i, i);
+        }
+        reader.join();
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,231 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for batching samples into frames and for the queue policies.
+ */
+public class SampleStreamerTest {
+
+    /**
+     * Keeps the frames, optionally blocks in send like a stalled network.
+     */
+    private static class MemoryTransport implements StreamTransport {
+        final List<byte[]> mFrames = new ArrayList<byte[]>();
+        final List<String> mSources = new ArrayList<String>();
+        volatile CountDownLatch mBlock;
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void send(String source, byte[] frame, int length) throws IOException {
+            CountDownLatch block = mBlock;
+            if (block != null) {
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            synchronized (this) {
+                mFrames.add(Arrays.copyOf(frame, length));
+                mSources.add(source);
+            }
+        }
+
+        @Override
+        public void poll() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final static StreamFrameReader.SampleVisitor IGNORE = new StreamFrameReader.SampleVisitor() {
+        @Override
+        public void onSample(int channel, long timeNanos, float value) {
+        }
+    };
+
+    private final MemoryTransport mTransport = new MemoryTransport();
+    private SampleStreamer mStreamer;
+
+    @After
+    public void tearDown() {
+        CountDownLatch block = mTransport.mBlock;
+        if (block != null) {
+            block.countDown();
+        }
+        if (mStreamer != null) {
+            mStreamer.close();
+        }
+    }
+
+    private List<float[]> decodeAll(String source) throws IOException {
+        final List<float[]> samples = new ArrayList<float[]>();
+        StreamFrameReader reader = new StreamFrameReader();
+        synchronized (mTransport) {
+            for (int i = 0; i < mTransport.mFrames.size(); i++) {
+                if (!source.equals(mTransport.mSources.get(i))) {
+                    continue;
+                }
+                byte[] frame = mTransport.mFrames.get(i);
+                reader.read(frame, 0, frame.length, new StreamFrameReader.SampleVisitor() {
+                    @Override
+                    public void onSample(int channel, long timeNanos, float value) {
+                        samples.add(new float[]{channel, value});
+                    }
+                });
+                assertEquals(source, reader.getSource());
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void framesCarryEverySample() throws Exception {
+        mStreamer = new SampleStreamer(mTransport);
+        mStreamer.setBatchMillis(5);
+        // Faster than any sender, but fits into the queue
+        mStreamer.setPolicy(SampleStreamer.Policy.DROP);
+        SampleStreamer.Source first = mStreamer.addSource("00:00:00:00:00:01");
+        SampleStreamer.Source second = mStreamer.addSource("00:00:00:00:00:02");
+        mStreamer.start();
+        long time = 5000000000L;
+        for (int i = 0; i < 3000; i++) {
+            time += 1234567;
+            assertTrue(first.offer(i % DerivedMetrics.CHANNEL_COUNT, time, i * 0.5f));
+            if (i % 10 == 0) {
+                assertTrue(second.offer(2, time, -i));
+            }
+        }
+        mStreamer.close();
+
+        List<float[]> samples = decodeAll("00:00:00:00:00:01");
+        assertEquals(3000, samples.size());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i % DerivedMetrics.CHANNEL_COUNT, samples.get(i)[0], 0f);
+            assertEquals(i * 0.5f, samples.get(i)[1], 0f);
+        }
+        assertEquals(300, decodeAll("00:00:00:00:00:02").size());
+        assertEquals(3300, mStreamer.getSentSamples());
+        // Seven bytes per sample at about a millisecond apart, eight at ten milliseconds
+        assertTrue("Bytes " + mStreamer.getSentBytes(),
+                mStreamer.getSentBytes() <= 3000 * 7 + 300 * 8 + mStreamer.getSentFrames() * 70);
+    }
+
+    @Test
+    public void timesSurviveToTheMicrosecond() throws Exception {
+        mStreamer = new SampleStreamer(mTransport);
+        SampleStreamer.Source source = mStreamer.addSource("a");
+        mStreamer.start();
+        long[] times = {1000000000L, 1000001999L, 999000000L, 1500000000L};
+        for (long time : times) {
+            source.offer(0, time, 1f);
+        }
+        mStreamer.close();
+
+        final List<Long> decoded = new ArrayList<Long>();
+        byte[] frame = mTransport.mFrames.get(0);
+        new StreamFrameReader().read(frame, 0, frame.length, new StreamFrameReader.SampleVisitor() {
+            @Override
+            public void onSample(int channel, long timeNanos, float value) {
+                decoded.add(timeNanos);
+            }
+        });
+        assertEquals(times.length, decoded.size());
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i], decoded.get(i), 1000);
+        }
+    }
+
+    @Test
+    public void dropPolicyNeverBlocksTheProducer() throws Exception {
+        mTransport.mBlock = new CountDownLatch(1);
+        mStreamer = new SampleStreamer(mTransport, new SampleStreamer.Clock() {
+            @Override
+            public long nanos() {
+                return System.nanoTime();
+            }
+        }, 4096);
+        mStreamer.setPolicy(SampleStreamer.Policy.DROP);
+        SampleStreamer.Source source = mStreamer.addSource("a");
+        mStreamer.start();
+
+        long start = System.nanoTime();
+        int accepted = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (source.offer(0, i, i)) {
+                accepted++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        assertTrue("Took " + elapsed, elapsed < TimeUnit.SECONDS.toNanos(1));
+        // The queue, plus at most the frame stuck in the transport
+        assertTrue("Accepted " + accepted, accepted >= 4096 && accepted <= 4096 + SampleStreamer.MAX_FRAME_SAMPLES);
+        assertEquals(100000 - accepted, source.getDroppedCount());
+        assertEquals(0, source.getDecimatedCount());
+
+        mTransport.mBlock.countDown();
+        mStreamer.close();
+        assertEquals(accepted, mStreamer.getSentSamples());
+    }
+
+    @Test
+    public void decimatePolicyKeepsTheTimeSpan() throws Exception {
+        mTransport.mBlock = new CountDownLatch(1);
+        mStreamer = new SampleStreamer(mTransport, new SampleStreamer.Clock() {
+            @Override
+            public long nanos() {
+                return System.nanoTime();
+            }
+        }, 4096);
+        SampleStreamer.Source source = mStreamer.addSource("a");
+        mStreamer.start();
+        for (int i = 0; i < 12000; i++) {
+            source.offer(0, i * 1000L, i);
+        }
+        assertTrue(source.getDecimatedCount() > 0);
+        mTransport.mBlock.countDown();
+        mStreamer.close();
+
+        List<float[]> samples = decodeAll("a");
+        assertEquals(12000, samples.size() + source.getDroppedCount() + source.getDecimatedCount());
+        // Thinned out, but samples from late in the burst still got through
+        assertTrue(samples.get(samples.size() - 1)[1] > 8000);
+
+        // The last frame tells the client how much was left out
+        byte[] frame = mTransport.mFrames.get(mTransport.mFrames.size() - 1);
+        StreamFrameReader reader = new StreamFrameReader();
+        reader.read(frame, 0, frame.length, IGNORE);
+        assertEquals(source.getDecimatedCount(), reader.getDecimatedCount());
+        assertEquals(source.getDroppedCount(), reader.getDroppedCount());
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedFrames() throws Exception {
+        mStreamer = new SampleStreamer(mTransport);
+        mStreamer.addSource("a").offer(1, 0, 1f);
+        mStreamer.start();
+        mStreamer.close();
+        byte[] frame = mTransport.mFrames.get(0);
+        StreamFrameReader reader = new StreamFrameReader();
+        assertEquals(1, reader.readFrom(new ByteArrayInputStream(frame), IGNORE));
+        reader.readFrom(new ByteArrayInputStream(frame, 0, frame.length - 2), IGNORE);
+    }
+}
@@ -0,0 +1,82 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for ranking the devices of a scan window.
+ */
+public class ScanRankerTest {
+
+    private ScanRanker mRanker;
+
+    @Before
+    public void setUp() {
+        mRanker = new ScanRanker(0.5f);
+    }
+
+    @Test
+    public void keepsEveryDeviceOnce() {
+        assertTrue(mRanker.onResult("A", -70, 0));
+        assertFalse(mRanker.onResult("A", -72, 1));
+        assertTrue(mRanker.onResult("B", -60, 2));
+        assertEquals(2, mRanker.getCandidateCount());
+        assertEquals(3, mRanker.getReportCount());
+
+        mRanker.clear();
+        assertEquals(0, mRanker.getCandidateCount());
+        assertTrue(mRanker.onResult("A", -70, 3));
+    }
+
+    @Test
+    public void smoothsRssi() {
+        mRanker.onResult("A", -80, 0);
+        mRanker.onResult("A", -60, 1);
+        mRanker.onResult("A", -60, 2);
+        ScanRanker.Candidate a = mRanker.getRanked().get(0);
+        assertEquals(-65f, a.getSmoothedRssi(), 1e-4f);
+        assertEquals(-60, a.getLastRssi());
+        assertEquals(3, a.getReportCount());
+        assertEquals(0, a.getFirstSeenNanos());
+        assertEquals(2, a.getLastSeenNanos());
+    }
+
+    @Test
+    public void ranksStrongestFirst() {
+        // The far bench advertises first, a single strong spike does not let it win
+        mRanker.onResult("far", -85, 0);
+        mRanker.onResult("near", -55, 1);
+        mRanker.onResult("far", -40, 2);
+        mRanker.onResult("near", -57, 3);
+        mRanker.onResult("mid", -70, 4);
+        mRanker.onResult("mid", -70, 5);
+
+        List<ScanRanker.Candidate> ranked = mRanker.getRanked();
+        assertEquals("near", ranked.get(0).getAddress());
+        assertEquals("far", ranked.get(1).getAddress());
+        assertEquals("mid", ranked.get(2).getAddress());
+        assertEquals("[near]", mRanker.pickBest(1, 2).toString());
+        assertEquals("[near, far]", mRanker.pickBest(2, 2).toString());
+    }
+
+    @Test
+    public void requiresMinimumReports() {
+        mRanker.onResult("once", -40, 0);
+        mRanker.onResult("twice", -80, 1);
+        mRanker.onResult("twice", -80, 2);
+        assertEquals("[twice]", mRanker.pickBest(1, 2).toString());
+        assertEquals("[once]", mRanker.pickBest(1, 1).toString());
+        assertTrue(mRanker.pickBest(1, 3).isEmpty());
+    }
+
+    @Test
+    public void tiesGoToEarlierDevice() {
+        mRanker.onResult("B", -60, 5);
+        mRanker.onResult("A", -60, 7);
+        assertEquals("[B, A]", mRanker.pickBest(2, 1).toString());
+    }
+}
@@ -0,0 +1,91 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for exporting recorded sessions.
+ */
+public class SessionExporterTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mSession;
+
+    @Before
+    public void record() throws Exception {
+        mSession = mFolder.newFolder("session");
+        SessionRecorder recorder = new SessionRecorder(mSession, SampleDecoder.CHANNEL_COUNT, 64, 16);
+        recorder.setIntervals(1, 1000);
+        recorder.start(0L, 1000000L);
+        float[] values = new float[SampleDecoder.CHANNEL_COUNT];
+        for (int i = 0; i < 10000; i++) {
+            for (int c = 0; c < values.length; c++) {
+                values[c] = i + c * 0.5f;
+            }
+            // One row per millisecond after the start. A full ring has already woken up the
+            // writer, so retry until it made room.
+            while (!recorder.append(1000000L + i * 1000000L, values)) {
+                Thread.yield();
+            }
+        }
+        recorder.close();
+    }
+
+    @Test
+    public void csvContainsSelectedChannelsAndRange() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long rows = new SessionExporter()
+                .setChannelMask((1 << SampleDecoder.CHANNEL_VOLTAGE) | (1 << SampleDecoder.CHANNEL_TORQUE))
+                .setTimeRange(2000000L, 5000000L)
+                .export(mSession, out);
+
+        assertEquals(3, rows);
+        assertEquals("time_ms,voltage,torque\n"
+                + "2.000,2.0,3.5\n"
+                + "3.000,3.0,4.5\n"
+                + "4.000,4.0,5.5\n", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void columnarRoundTripsAllRows() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final float[] lastProgress = {0f};
+        long rows = new SessionExporter()
+                .setFormat(SessionExporter.FORMAT_COLUMNAR)
+                .setChannelMask(1 << SampleDecoder.CHANNEL_SPEED)
+                .setProgressListener(new SessionExporter.ProgressListener() {
+                    @Override
+                    public void onProgress(float fraction, long exportedRows) {
+                        assertTrue(fraction >= lastProgress[0]);
+                        lastProgress[0] = fraction;
+                    }
+                })
+                .export(mSession, out);
+        assertEquals(10000, rows);
+        assertEquals(1f, lastProgress[0], 0f);
+
+        final long[] expected = {0};
+        long read = SessionExporter.readColumnar(new ByteArrayInputStream(out.toByteArray()),
+                new SessionReader.RowVisitor() {
+                    @Override
+                    public boolean onRow(long timeNanos, float[] values) {
+                        long i = expected[0]++;
+                        assertEquals(1000000L + i * 1000000L, timeNanos);
+                        assertEquals(1, values.length);
+                        assertEquals(i + 1f, values[0], 0f);
+                        return true;
+                    }
+                });
+        assertEquals(10000, read);
+    }
+}
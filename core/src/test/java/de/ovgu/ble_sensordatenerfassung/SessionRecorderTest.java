@@ -0,0 +1,89 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for recording sessions and reading them back.
+ */
+public class SessionRecorderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void record(SessionRecorder recorder, int rows) {
+        float[] values = new float[SampleDecoder.CHANNEL_COUNT];
+        for (int i = 0; i < rows; i++) {
+            for (int c = 0; c < values.length; c++) {
+                values[c] = i + c * 0.25f;
+            }
+            // A full ring has already woken up the writer, retry until it made room
+            while (!recorder.append(i * 1000L, values)) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static long readAll(SessionReader reader, final boolean check) throws IOException {
+        final long[] expected = {0};
+        reader.read(new SessionReader.RowVisitor() {
+            @Override
+            public boolean onRow(long timeNanos, float[] values) {
+                if (check) {
+                    assertEquals(expected[0] * 1000L, timeNanos);
+                    assertEquals(expected[0] + 0.75f, values[3], 0f);
+                }
+                expected[0]++;
+                return true;
+            }
+        });
+        return expected[0];
+    }
+
+    @Test
+    public void rowsSurviveAcrossBlocksAndSegments() throws Exception {
+        File directory = mFolder.newFolder("session");
+        SessionRecorder recorder = new SessionRecorder(directory, SampleDecoder.CHANNEL_COUNT, 16, 4);
+        recorder.setIntervals(1, 1000);
+        recorder.start(123L, 456L);
+        record(recorder, 1000);
+        recorder.close();
+
+        assertEquals(1000, recorder.getRecordedRows());
+        assertTrue(recorder.getSegmentCount() > 1);
+
+        SessionReader reader = new SessionReader(directory);
+        assertEquals(1000, readAll(reader, true));
+        assertFalse(reader.isTruncated());
+        assertEquals(SampleDecoder.CHANNEL_COUNT, reader.getChannelCount());
+        assertEquals(123L, reader.getStartMillis());
+        assertEquals(456L, reader.getStartNanos());
+    }
+
+    @Test
+    public void readingStopsAtADamagedBlock() throws Exception {
+        File directory = mFolder.newFolder("crashed");
+        SessionRecorder recorder = new SessionRecorder(directory, SampleDecoder.CHANNEL_COUNT, 16, 64);
+        recorder.start(0L, 0L);
+        record(recorder, 100);
+        recorder.close();
+
+        // Damage a row of the third block, as a torn write would
+        int blockSize = SessionRecorder.BLOCK_HEADER_SIZE + 16 * SessionRecorder.rowSize(SampleDecoder.CHANNEL_COUNT);
+        RandomAccessFile file = new RandomAccessFile(new File(directory, SessionRecorder.segmentName(0)), "rw");
+        file.seek(SessionRecorder.SEGMENT_HEADER_SIZE + 2 * blockSize + SessionRecorder.BLOCK_HEADER_SIZE + 3);
+        file.write(0x5A);
+        file.close();
+
+        SessionReader reader = new SessionReader(directory);
+        assertEquals(32, readAll(reader, true));
+        assertTrue(reader.isTruncated());
+    }
+}
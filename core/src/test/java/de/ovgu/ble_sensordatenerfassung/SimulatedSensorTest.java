@@ -0,0 +1,348 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for the simulated sensor: connection, requests, notifications and the
+ * disturbances it can add.
+ */
+public class SimulatedSensorTest {
+
+    private final static UUID VOLTAGE = UUID.fromString(MeasurementProfile.VOLTAGE);
+    private final static UUID FRAME = UUID.fromString(MeasurementProfile.FRAME);
+    private final static UUID CCCD = UUID.fromString(MeasurementProfile.CCCD);
+    private final static byte[] ENABLE = {1, 0};
+
+    private final static long TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Counts the callbacks and keeps the last values. Every callback wakes up the threads
+     * waiting on the recorder.
+     */
+    private static class Recorder implements GattConnection.Callback {
+        volatile boolean mConnected;
+        volatile int mConnects;
+        volatile int mDisconnects;
+        volatile int mDiscoveries;
+        volatile int mDescriptorWrites;
+        volatile int mReads;
+        volatile int mMtu;
+        volatile int mNotifications;
+        volatile float mLastVoltage;
+        // Set to hold the first notification until the latch is released, like a slow receiver
+        volatile CountDownLatch mHold;
+        final CountDownLatch mHeld = new CountDownLatch(1);
+        final FrameDecoder mFrames = new FrameDecoder();
+
+        private synchronized void changed() {
+            notifyAll();
+        }
+
+        @Override
+        public void onConnectionStateChange(GattConnection connection, boolean connected) {
+            mConnected = connected;
+            if (connected) {
+                mConnects++;
+            } else {
+                mDisconnects++;
+            }
+            changed();
+        }
+
+        @Override
+        public void onServicesDiscovered(GattConnection connection, boolean success) {
+            mDiscoveries++;
+            changed();
+        }
+
+        @Override
+        public void onCharacteristicRead(GattConnection connection, UUID characteristic, byte[] value,
+                                         boolean success) {
+            mLastVoltage = SampleDecoder.decodeFloat(value, 0);
+            mReads++;
+            changed();
+        }
+
+        @Override
+        public void onCharacteristicWrite(GattConnection connection, UUID characteristic, boolean success) {
+        }
+
+        @Override
+        public void onDescriptorWrite(GattConnection connection, UUID characteristic, UUID descriptor,
+                                      boolean success) {
+            mDescriptorWrites++;
+            changed();
+        }
+
+        @Override
+        public void onMtuChanged(GattConnection connection, int mtu, boolean success) {
+            mMtu = mtu;
+            changed();
+        }
+
+        @Override
+        public void onCharacteristicChanged(GattConnection connection, UUID characteristic, byte[] value) {
+            if (FRAME.equals(characteristic)) {
+                mFrames.decode(value, new FrameDecoder.RowSink() {
+                    @Override
+                    public void onRow(long sequence, long deviceTimeMicros, long microsBeforeLast, float[] values) {
+                    }
+                });
+            } else if (VOLTAGE.equals(characteristic)) {
+                mLastVoltage = SampleDecoder.decodeFloat(value, 0);
+            }
+            mNotifications++;
+            changed();
+            CountDownLatch hold = mHold;
+            if (hold != null) {
+                mHold = null;
+                mHeld.countDown();
+                try {
+                    hold.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private SimulatedSensor mSensor;
+    private Recorder mRecorder;
+
+    @Before
+    public void setUp() {
+        mSensor = new SimulatedSensor("00:00:00:00:00:01");
+        mSensor.setConnectDelay(0);
+        mSensor.setDiscoveryDelay(0);
+        mSensor.setConnectionInterval(0);
+        mRecorder = new Recorder();
+        mSensor.setCallback(mRecorder);
+    }
+
+    @After
+    public void tearDown() {
+        mSensor.close();
+    }
+
+    /**
+     * Waits until the condition holds, checking it after every callback.
+     */
+    private void await(Condition condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        synchronized (mRecorder) {
+            while (!condition.holds()) {
+                long remaining = end - System.nanoTime();
+                assertTrue("Timed out", remaining > 0);
+                TimeUnit.NANOSECONDS.timedWait(mRecorder, remaining);
+            }
+        }
+    }
+
+    /**
+     * Waits for the answer to a read. Requests and rows run on the same thread in the order
+     * they are due, so everything due before the read has been delivered afterwards.
+     */
+    private void roundTrip() throws InterruptedException {
+        final int reads = mRecorder.mReads;
+        assertTrue(mSensor.readCharacteristic(VOLTAGE));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mReads > reads;
+            }
+        });
+    }
+
+    private void connectAndDiscover() throws InterruptedException {
+        assertTrue(mSensor.connect());
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mConnected;
+            }
+        });
+        assertTrue(mSensor.discoverServices());
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mDiscoveries > 0;
+            }
+        });
+    }
+
+    private void subscribe(UUID characteristic) throws InterruptedException {
+        final int writes = mRecorder.mDescriptorWrites;
+        assertTrue(mSensor.setCharacteristicNotification(characteristic, true));
+        assertTrue(mSensor.writeDescriptor(characteristic, CCCD, ENABLE));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mDescriptorWrites > writes;
+            }
+        });
+    }
+
+    @Test
+    public void showsTheServiceAfterDiscovery() throws Exception {
+        mSensor.setNotifyingChannels(~(1 << SampleDecoder.CHANNEL_TORQUE));
+        assertEquals(0, mSensor.getProperties(VOLTAGE));
+        connectAndDiscover();
+        assertTrue(mSensor.hasService());
+        assertEquals(GattConnection.PROPERTY_READ | GattConnection.PROPERTY_NOTIFY,
+                mSensor.getProperties(VOLTAGE));
+        assertEquals(GattConnection.PROPERTY_READ,
+                mSensor.getProperties(UUID.fromString(MeasurementProfile.TORQUE)));
+        assertFalse(mSensor.hasDescriptor(UUID.fromString(MeasurementProfile.TORQUE), CCCD));
+        assertEquals("No frames on the old firmware", 0, mSensor.getProperties(FRAME));
+    }
+
+    @Test
+    public void notifiesOnlyOnceSubscribed() throws Exception {
+        mSensor.setRate(1000);
+        connectAndDiscover();
+        roundTrip();
+        assertEquals(0, mSensor.getRowCount());
+        assertEquals(0, mRecorder.mNotifications);
+
+        subscribe(VOLTAGE);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mNotifications >= 200;
+            }
+        });
+        assertEquals(mRecorder.mNotifications, mSensor.getSentCount(), 1);
+        assertTrue(mRecorder.mLastVoltage > 11f && mRecorder.mLastVoltage < 12.2f);
+    }
+
+    @Test
+    public void runsOneRequestAtATime() throws Exception {
+        connectAndDiscover();
+        mSensor.setLatency(50000000L);
+        assertTrue(mSensor.readCharacteristic(VOLTAGE));
+        assertFalse("A request is still running", mSensor.readCharacteristic(VOLTAGE));
+        assertFalse(mSensor.requestMtu(247));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mReads == 1;
+            }
+        });
+        assertTrue(mRecorder.mLastVoltage > 11f);
+        assertTrue(mSensor.requestMtu(517));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mMtu > 0;
+            }
+        });
+        assertEquals(SimulatedSensor.DEFAULT_MAX_MTU, mRecorder.mMtu);
+    }
+
+    @Test
+    public void lostFramesShowUpAsDroppedRows() throws Exception {
+        mSensor.setFrameSupported(true);
+        mSensor.setRate(2000);
+        mSensor.setLossRate(0.3f);
+        connectAndDiscover();
+        assertTrue(mSensor.requestMtu(247));
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mMtu > 0;
+            }
+        });
+        subscribe(FRAME);
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mNotifications >= 100;
+            }
+        });
+        assertTrue(mSensor.getLostCount() > 0);
+        int rows = FrameDecoder.rowsPerNotification(SimulatedSensor.DEFAULT_MAX_MTU);
+        assertEquals(0, mRecorder.mFrames.getDroppedRows() % rows);
+        assertTrue(mRecorder.mFrames.getDroppedRows() > 0);
+    }
+
+    @Test
+    public void dropLosesSubscriptionsButKeepsServices() throws Exception {
+        mSensor.setRate(1000);
+        connectAndDiscover();
+        subscribe(VOLTAGE);
+        mSensor.dropConnection();
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mDisconnects == 1;
+            }
+        });
+        assertEquals(1, mSensor.getDropCount());
+        assertFalse(mSensor.isConnected());
+        long rows = mSensor.getRowCount();
+        int notifications = mRecorder.mNotifications;
+
+        assertTrue(mSensor.connect());
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mRecorder.mConnects == 2;
+            }
+        });
+        assertTrue("Services are cached", mSensor.hasService());
+        roundTrip();
+        assertEquals(rows, mSensor.getRowCount());
+        assertEquals(notifications, mRecorder.mNotifications);
+    }
+
+    @Test
+    public void dropsRowsWhenTheReceiverFallsBehind() throws Exception {
+        mSensor.setRate(5000);
+        mSensor.setBufferRows(10);
+        connectAndDiscover();
+        CountDownLatch release = new CountDownLatch(1);
+        mRecorder.mHold = release;
+        subscribe(VOLTAGE);
+        assertTrue(mRecorder.mHeld.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        // Hold the receiver until more rows than the buffer are due
+        long due = System.nanoTime() + 20 * (long) (1e9 / 5000);
+        while (System.nanoTime() < due) {
+            LockSupport.parkNanos(due - System.nanoTime());
+        }
+        release.countDown();
+        await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mSensor.getOverflowCount() > 0;
+            }
+        });
+        assertTrue(mSensor.getSentCount() < mSensor.getRowCount());
+    }
+
+    @Test
+    public void testBenchStaysInRange() {
+        SimulatedSensor.TestBench bench = new SimulatedSensor.TestBench(1);
+        float[] values = new float[SampleDecoder.CHANNEL_COUNT];
+        for (double seconds = 0; seconds < 60; seconds += 0.01) {
+            bench.sample(seconds, values);
+            assertEquals(12f, values[SampleDecoder.CHANNEL_VOLTAGE], 1f);
+            assertTrue(values[SampleDecoder.CHANNEL_CURRENT] > -0.5f);
+            assertTrue(values[SampleDecoder.CHANNEL_SPEED] > 1400 && values[SampleDecoder.CHANNEL_SPEED] < 1810);
+            assertTrue(values[SampleDecoder.CHANNEL_TORQUE] < 0.85f);
+            assertTrue(values[SampleDecoder.CHANNEL_EFFICIENCY] < 100);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for streaming frames to TCP clients over the loopback interface.
+ */
+public class TcpStreamServerTest {
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    /**
+     * Wakes up the test whenever the sender thread opened the server or polled the clients.
+     */
+    private static class ObservedServer extends TcpStreamServer {
+
+        ObservedServer() {
+            super(0);
+        }
+
+        @Override
+        public void open() throws IOException {
+            super.open();
+            changed();
+        }
+
+        @Override
+        public void poll() throws IOException {
+            super.poll();
+            changed();
+        }
+
+        private synchronized void changed() {
+            notifyAll();
+        }
+
+        synchronized void await(Condition condition) throws InterruptedException {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!condition.holds()) {
+                long remaining = end - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+    }
+
+    private ObservedServer mServer;
+    private SampleStreamer mStreamer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ObservedServer();
+        mStreamer = new SampleStreamer(mServer);
+        mStreamer.setBatchMillis(5);
+        mStreamer.start();
+        mServer.await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mServer.getPort() >= 0;
+            }
+        });
+        assertTrue(mServer.getPort() > 0);
+    }
+
+    @After
+    public void tearDown() {
+        mStreamer.close();
+    }
+
+    private Socket connect(final int clients) throws Exception {
+        Socket socket = new Socket("127.0.0.1", mServer.getPort());
+        socket.setSoTimeout(5000);
+        mServer.await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mServer.getClientCount() >= clients;
+            }
+        });
+        assertEquals(clients, mServer.getClientCount());
+        return socket;
+    }
+
+    @Test
+    public void clientReceivesTheStreamInOrder() throws Exception {
+        Socket socket = connect(1);
+        try {
+            final SampleStreamer.Source source = mStreamer.addSource("00:00:00:00:00:01");
+            final int count = 20000;
+            Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        while (!source.offer(i % 5, System.nanoTime(), i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            };
+            producer.start();
+
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            StreamFrameReader reader = new StreamFrameReader();
+            final int[] next = {0};
+            final long[] maxLatency = {0};
+            while (next[0] < count) {
+                assertTrue(reader.readFrom(in, new StreamFrameReader.SampleVisitor() {
+                    @Override
+                    public void onSample(int channel, long timeNanos, float value) {
+                        assertEquals(next[0], value, 0f);
+                        assertEquals(next[0] % 5, channel);
+                        next[0]++;
+                        maxLatency[0] = Math.max(maxLatency[0], System.nanoTime() - timeNanos);
+                    }
+                }) > 0);
+                assertEquals("00:00:00:00:00:01", reader.getSource());
+            }
+            producer.join();
+            assertEquals(0, source.getDroppedCount());
+            // Batches of 5 ms, far below a second even on a busy machine
+            assertTrue("Latency " + maxLatency[0], maxLatency[0] < TimeUnit.SECONDS.toNanos(1));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void slowClientDoesNotHoldUpTheOthers() throws Exception {
+        // Never reads, its buffers fill up
+        Socket slow = connect(1);
+        Socket fast = connect(2);
+        try {
+            SampleStreamer.Source source = mStreamer.addSource("a");
+            StreamFrameReader reader = new StreamFrameReader();
+            InputStream in = new BufferedInputStream(fast.getInputStream());
+            StreamFrameReader.SampleVisitor ignore = new StreamFrameReader.SampleVisitor() {
+                @Override
+                public void onSample(int channel, long timeNanos, float value) {
+                }
+            };
+            int received = 0;
+            int sent = 0;
+            // Far more than the socket and client buffers of the slow client hold
+            while (sent < 2000000) {
+                for (int i = 0; i < SampleStreamer.MAX_FRAME_SAMPLES; i++) {
+                    if (source.offer(0, sent, sent)) {
+                        sent++;
+                    }
+                }
+                while (received < sent - SampleStreamer.DEFAULT_QUEUE_CAPACITY) {
+                    received += reader.readFrom(in, ignore);
+                }
+            }
+            while (received < sent) {
+                received += reader.readFrom(in, ignore);
+            }
+            assertEquals(sent, received);
+            assertTrue(mServer.getDroppedFrames() > 0);
+            assertEquals(2, mServer.getClientCount());
+        } finally {
+            slow.close();
+            fast.close();
+        }
+    }
+
+    @Test
+    public void noticesClientsThatLeft() throws Exception {
+        connect(1).close();
+        mServer.await(new Condition() {
+            @Override
+            public boolean holds() {
+                return mServer.getClientCount() == 0;
+            }
+        });
+        assertEquals(0, mServer.getClientCount());
+    }
+}
@@ -0,0 +1,289 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for recording raw GATT traces and replaying them into an acquisition.
+ */
+public class TraceReplayerTest {
+
+    private final static UUID[] UUIDS = {
+            UUID.fromString(MeasurementProfile.VOLTAGE),
+            UUID.fromString(MeasurementProfile.CURRENT),
+            UUID.fromString(MeasurementProfile.SPEED),
+            UUID.fromString(MeasurementProfile.TORQUE),
+            UUID.fromString(MeasurementProfile.EFFICIENCY)};
+    private final static UUID FRAME = UUID.fromString(MeasurementProfile.FRAME);
+
+    private final static GattTransport NO_TRANSPORT = new GattTransport() {
+        @Override
+        public boolean readCharacteristic(UUID characteristic) {
+            return false;
+        }
+
+        @Override
+        public boolean writeCharacteristic(UUID characteristic, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean writeDescriptor(UUID characteristic, UUID descriptor, byte[] value) {
+            return false;
+        }
+
+        @Override
+        public boolean requestMtu(int mtu) {
+            return false;
+        }
+    };
+
+    private final static GattOperationQueue.Scheduler NO_SCHEDULER = new GattOperationQueue.Scheduler() {
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static DeviceAcquisition newAcquisition() {
+        return new DeviceAcquisition("00:00:00:00:00:01", MeasurementProfile.newDecoder(),
+                NO_TRANSPORT, NO_SCHEDULER);
+    }
+
+    private static byte[] encode(float value) {
+        int bits = Float.floatToIntBits(value);
+        return new byte[]{(byte) bits, (byte) (bits >> 8), (byte) (bits >> 16), (byte) (bits >> 24)};
+    }
+
+    private static byte[] frame(long firstSequence, int rows, float offset) {
+        byte[] value = new byte[rows * FrameDecoder.ROW_SIZE];
+        for (int row = 0; row < rows; row++) {
+            long sequence = firstSequence + row;
+            int at = row * FrameDecoder.ROW_SIZE;
+            putInt(value, at, (int) sequence);
+            putInt(value, at + 4, (int) (sequence * 1000));
+            for (int channel = 0; channel < SampleDecoder.CHANNEL_COUNT; channel++) {
+                putInt(value, at + 8 + 4 * channel, Float.floatToIntBits(offset + channel + 0.01f * row));
+            }
+        }
+        return value;
+    }
+
+    private static void putInt(byte[] value, int offset, int bits) {
+        value[offset] = (byte) bits;
+        value[offset + 1] = (byte) (bits >> 8);
+        value[offset + 2] = (byte) (bits >> 16);
+        value[offset + 3] = (byte) (bits >> 24);
+    }
+
+    /**
+     * Feeds a bench session into the acquisition and records it at the same time, like the
+     * service does: single channel notifications, a reset for a new connection, then frames
+     * with a gap.
+     */
+    private static void feedAndRecord(DeviceAcquisition live, TraceRecorder recorder) {
+        long time = 1000000L;
+        assertTrue(recorder.onConnectionStateChange(true, time));
+        assertTrue(recorder.onReset(time));
+        live.reset();
+        for (int i = 0; i < 200; i++) {
+            time += 2000000L;
+            UUID characteristic = UUIDS[i % UUIDS.length];
+            byte[] value = encode(10f + i * 0.1f);
+            assertTrue(recorder.onNotification(characteristic, value, time));
+            live.onValue(characteristic, value, time);
+        }
+        time += 5000000L;
+        byte[] read = encode(0.75f);
+        assertTrue(recorder.onRead(UUIDS[3], read, time));
+        live.onValue(UUIDS[3], read, time);
+
+        assertTrue(recorder.onConnectionStateChange(false, time + 1));
+        time += 300000000L;
+        assertTrue(recorder.onConnectionStateChange(true, time));
+        assertTrue(recorder.onReset(time));
+        live.reset();
+        long sequence = 0;
+        for (int i = 0; i < 100; i++) {
+            time += 24000000L;
+            // Every tenth notification is lost on the way
+            sequence += i % 10 == 9 ? 16 : 8;
+            byte[] value = frame(sequence, 8, i);
+            assertTrue(recorder.onNotification(FRAME, value, time));
+            live.onFrame(value, time);
+        }
+    }
+
+    private File recordTrace(DeviceAcquisition live) throws Exception {
+        File file = new File(mFolder.getRoot(), "bench.trace");
+        TraceRecorder recorder = new TraceRecorder(file);
+        recorder.setBatchMillis(1);
+        recorder.start(123L, 1000000L);
+        feedAndRecord(live, recorder);
+        recorder.close();
+        assertEquals(0, recorder.getDroppedEvents());
+        assertEquals(file.length(), recorder.getBytesWritten());
+        return file;
+    }
+
+    private static void assertSameChannel(DeviceAcquisition expected, DeviceAcquisition actual, int channel) {
+        SampleStore a = expected.getSampleStore();
+        SampleStore b = actual.getSampleStore();
+        assertEquals(a.count(channel), b.count(channel));
+        int count = (int) a.count(channel);
+        long[] timesA = new long[count];
+        long[] timesB = new long[count];
+        float[] valuesA = new float[count];
+        float[] valuesB = new float[count];
+        assertEquals(count, a.read(channel, 0, timesA, valuesA, count));
+        assertEquals(count, b.read(channel, 0, timesB, valuesB, count));
+        assertArrayEquals(timesA, timesB);
+        assertArrayEquals(valuesA, valuesB, 0f);
+    }
+
+    private static void assertSamePipeline(DeviceAcquisition expected, DeviceAcquisition actual) {
+        assertEquals(expected.getSampleCount(), actual.getSampleCount());
+        assertEquals(expected.getDroppedRowCount(), actual.getDroppedRowCount());
+        for (int channel = 0; channel < DerivedMetrics.CHANNEL_COUNT; channel++) {
+            assertSameChannel(expected, actual, channel);
+        }
+        DerivedMetrics a = expected.getDerivedMetrics();
+        DerivedMetrics b = actual.getDerivedMetrics();
+        assertEquals(a.getInputEnergyWh(), b.getInputEnergyWh(), 0d);
+        assertEquals(a.getOutputEnergyWh(), b.getOutputEnergyWh(), 0d);
+        assertEquals(a.getMean(SampleDecoder.CHANNEL_SPEED), b.getMean(SampleDecoder.CHANNEL_SPEED), 0d);
+        assertEquals(a.getEfficiencyCheckCount(), b.getEfficiencyCheckCount());
+    }
+
+    @Test
+    public void readsBackEveryEvent() throws Exception {
+        File file = recordTrace(newAcquisition());
+        TraceReader reader = new TraceReader(file);
+        reader.open();
+        assertEquals(123L, reader.getStartMillis());
+        assertEquals(1000000L, reader.getStartNanos());
+
+        final List<Integer> types = new ArrayList<Integer>();
+        final long[] last = {0};
+        final float[] read = {Float.NaN};
+        long events = reader.read(new TraceReader.EventVisitor() {
+            @Override
+            public boolean onEvent(int type, UUID characteristic, byte[] value, long timeNanos) {
+                assertTrue("Times never go back", timeNanos >= last[0]);
+                last[0] = timeNanos;
+                types.add(type);
+                if (type == TraceRecorder.EVENT_READ) {
+                    assertEquals(UUIDS[3], characteristic);
+                    read[0] = SampleDecoder.decodeFloat(value, 0);
+                }
+                return true;
+            }
+        });
+        assertEquals(2 + 200 + 1 + 1 + 2 + 100, events);
+        assertFalse(reader.isTruncated());
+        assertEquals(TraceRecorder.EVENT_CONNECTED, (int) types.get(0));
+        assertEquals(TraceRecorder.EVENT_RESET, (int) types.get(1));
+        assertEquals(TraceRecorder.EVENT_DISCONNECTED, (int) types.get(203));
+        assertEquals(0.75f, read[0], 0f);
+    }
+
+    @Test
+    public void replayReproducesTheLivePipeline() throws Exception {
+        DeviceAcquisition live = newAcquisition();
+        File file = recordTrace(live);
+        assertTrue(live.getDroppedRowCount() > 0);
+
+        TraceReplayer replayer = new TraceReplayer(new TraceReader(file));
+        replayer.setSpeed(TraceReplayer.MAX_SPEED);
+        DeviceAcquisition first = newAcquisition();
+        assertEquals(301, replayer.replay(first));
+        assertEquals(2, replayer.getResetCount());
+        assertSamePipeline(live, first);
+
+        // Deterministic: a second replay ends up with exactly the same state
+        DeviceAcquisition second = newAcquisition();
+        replayer.replay(second);
+        assertSamePipeline(first, second);
+    }
+
+    @Test
+    public void realTimeReplayKeepsThePace() throws Exception {
+        File file = new File(mFolder.getRoot(), "paced.trace");
+        TraceRecorder recorder = new TraceRecorder(file);
+        recorder.start(0L, 0L);
+        // 50 notifications over 100 ms
+        for (int i = 1; i <= 50; i++) {
+            assertTrue(recorder.onNotification(UUIDS[0], encode(i), i * 2000000L));
+        }
+        recorder.close();
+
+        TraceReplayer replayer = new TraceReplayer(new TraceReader(file));
+        long start = System.nanoTime();
+        assertEquals(50, replayer.replay(newAcquisition()));
+        long realTime = System.nanoTime() - start;
+        assertTrue("Took " + realTime, realTime >= 95000000L);
+
+        replayer.setSpeed(10f);
+        start = System.nanoTime();
+        replayer.replay(newAcquisition());
+        long tenfold = System.nanoTime() - start;
+        assertTrue("Took " + tenfold, tenfold >= 9500000L && tenfold < realTime);
+    }
+
+    @Test
+    public void stopsAtAnIncompleteRecord() throws Exception {
+        File file = recordTrace(newAcquisition());
+        RandomAccessFile trace = new RandomAccessFile(file, "rw");
+        try {
+            // Cut into the value of the last frame, as a crash during the write would
+            trace.setLength(trace.length() - 10);
+        } finally {
+            trace.close();
+        }
+        TraceReplayer replayer = new TraceReplayer(new TraceReader(file));
+        replayer.setSpeed(TraceReplayer.MAX_SPEED);
+        assertEquals(300, replayer.replay(newAcquisition()));
+    }
+
+    @Test
+    public void tracesAreCompact() throws Exception {
+        File file = new File(mFolder.getRoot(), "compact.trace");
+        TraceRecorder recorder = new TraceRecorder(file);
+        recorder.start(0L, 0L);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(recorder.onNotification(UUIDS[i % UUIDS.length], encode(i), i * 1000000L));
+        }
+        recorder.close();
+        // Type, time, index, length and the float, plus one definition per characteristic
+        long size = TraceRecorder.HEADER_SIZE + UUIDS.length * 18 + 1000 * (1 + 3 + 1 + 1 + 4);
+        assertTrue("Size " + file.length(), file.length() <= size);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        File file = mFolder.newFile("other.bin");
+        RandomAccessFile other = new RandomAccessFile(file, "rw");
+        try {
+            other.setLength(TraceRecorder.HEADER_SIZE);
+        } finally {
+            other.close();
+        }
+        new TraceReader(file).open();
+    }
+}
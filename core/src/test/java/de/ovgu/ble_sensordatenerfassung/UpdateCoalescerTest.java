@@ -0,0 +1,34 @@
+package de.ovgu.ble_sensordatenerfassung;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit test for folding value changes into display refreshes.
+ */
+public class UpdateCoalescerTest {
+
+    @Test
+    public void onlyFirstMarkSchedules() {
+        UpdateCoalescer coalescer = new UpdateCoalescer();
+        assertTrue(coalescer.markChanged(SampleDecoder.CHANNEL_VOLTAGE));
+        assertFalse(coalescer.markChanged(SampleDecoder.CHANNEL_TORQUE));
+        assertFalse(coalescer.markChanged(SampleDecoder.CHANNEL_VOLTAGE));
+
+        int changed = coalescer.takeChanged();
+        assertEquals((1 << SampleDecoder.CHANNEL_VOLTAGE) | (1 << SampleDecoder.CHANNEL_TORQUE), changed);
+        assertEquals(1, coalescer.getDeliveredCount());
+        assertEquals(2, coalescer.getCoalescedCount());
+
+        // The next change after a refresh schedules again
+        assertTrue(coalescer.markChanged(SampleDecoder.CHANNEL_SPEED));
+    }
+
+    @Test
+    public void emptyRefreshIsNotDelivered() {
+        UpdateCoalescer coalescer = new UpdateCoalescer();
+        assertEquals(0, coalescer.takeChanged());
+        assertEquals(0, coalescer.getDeliveredCount());
+    }
+}